@@ -0,0 +1,21 @@
+package com.songmap.songmap.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisConfig {
+
+    // Redis pub/sub 订阅容器 (跨实例的缓存失效广播)
+    // 不随容器自动启动：启动时 Redis 不可用会让整个应用起不来，改由 GraphDataCache 定时检查并重新订阅
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setRecoveryInterval(5000L);
+        container.setAutoStartup(false);
+        return container;
+    }
+}
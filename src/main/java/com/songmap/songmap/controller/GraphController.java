@@ -1,10 +1,19 @@
 package com.songmap.songmap.controller;
 
+import com.songmap.songmap.dto.CloneJobDTO;
+import com.songmap.songmap.dto.GraphCreatedDTO;
 import com.songmap.songmap.dto.GraphDataDTO;
-import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.dto.GraphSummaryDTO;
+import com.songmap.songmap.dto.GraphViewDTO;
 import com.songmap.songmap.service.GraphService;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
 import java.util.Map;
@@ -20,21 +29,38 @@ public class GraphController {
         this.graphService = graphService;
     }
 
-    // 获取当前用户的所有图谱
+    // 获取当前用户的所有图谱 (GraphInfo 字段 + stats：歌曲数、边数、总播放、最热歌曲)
     @GetMapping("/list")
-    public List<GraphInfo> listGraphs(@RequestAttribute("currentUserId") Long userId) {
-        return graphService.getUserGraphs(userId);
+    public List<GraphSummaryDTO> listGraphs(@RequestAttribute("currentUserId") Long userId) {
+        return graphService.getUserGraphSummaries(userId);
     }
 
     // 创建图谱
     // POST /api/graph/create?type=empty&name=我的新世界
+    // 【修改】模板图谱立即返回 (status=INITIALIZING)，jobId 为后台复制模板数据的任务号
     @PostMapping("/create")
-    public GraphInfo createGraph(@RequestAttribute("currentUserId") Long userId,
+    public GraphCreatedDTO createGraph(@RequestAttribute("currentUserId") Long userId,
                                  @RequestParam(defaultValue = "empty") String type,
                                  @RequestParam(required = false) String name) { // 【新增】name 参数
         return graphService.createGraph(userId, type, name);
     }
 
+    // 【新增】模板克隆任务的进度 (已复制的节点 / 边数、状态)，完成后图谱 status 变为 READY
+    // GET /api/graph/jobs/{jobId}
+    @GetMapping("/jobs/{jobId}")
+    public CloneJobDTO getCloneJob(@RequestAttribute("currentUserId") Long userId,
+                                   @PathVariable String jobId) {
+        return graphService.getCloneJob(userId, jobId);
+    }
+
+    // 【新增】重试克隆失败 (status=FAILED，包括实例重启后被清扫的) 的模板图谱，返回新的 jobId
+    // POST /api/graph/retry/{id}
+    @PostMapping("/retry/{id}")
+    public GraphCreatedDTO retryClone(@RequestAttribute("currentUserId") Long userId,
+                                      @PathVariable Long id) {
+        return graphService.retryClone(userId, id);
+    }
+
     // 删除图谱
     // DELETE /api/graph/delete/{id}
     @DeleteMapping("/delete/{id}")
@@ -45,10 +71,74 @@ public class GraphController {
     }
 
     // 获取图谱可视化数据
-    // GET /api/graph/data/{id}
+    // GET /api/graph/data/{id}            全量 (GraphDataDTO)
+    // GET /api/graph/data/{id}?since=123  增量 (GraphDeltaDTO)，since 为上次拿到的 version
+    // 响应带 ETag (图谱修改版本号)，If-None-Match 命中时返回 304
+    // 全量响应走服务端缓存 (序列化好的 JSON)，图谱没有修改时不再查库
     @GetMapping("/data/{id}")
-    public GraphDataDTO getGraphData(@RequestAttribute("currentUserId") Long userId,
-                                     @PathVariable Long id) {
-        return graphService.getGraphData(userId, id);
+    public ResponseEntity<?> getGraphData(@RequestAttribute("currentUserId") Long userId,
+                                          @PathVariable Long id,
+                                          @RequestParam(required = false) Long since,
+                                          WebRequest request,
+                                          HttpServletResponse response) {
+        if (notModified(userId, id, "", request, response)) {
+            return null;
+        }
+        if (since != null) {
+            return ResponseEntity.ok(graphService.getGraphDelta(userId, id, since));
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(graphService.getGraphDataJson(userId, id));
+    }
+
+    // 同一地址的紧凑二进制列式版本 (全量)，Accept: application/vnd.songmap.graph 时走这里，格式见 GraphBinaryEncoder
+    @GetMapping(value = "/data/{id}", produces = GraphService.BINARY_MEDIA_TYPE)
+    public StreamingResponseBody getGraphDataBinary(@RequestAttribute("currentUserId") Long userId,
+                                                    @PathVariable Long id,
+                                                    WebRequest request,
+                                                    HttpServletResponse response) {
+        if (notModified(userId, id, "-bin", request, response)) {
+            return null;
+        }
+        return graphService.streamGraphBinary(userId, id);
+    }
+
+    // ETag 为图谱修改版本号 + 表示形式后缀 (JSON 和二进制是同一地址的不同表示，ETag 不能相同)，
+    // 同时带 Vary: Accept，避免中间缓存把一种表示返回给另一种 Accept；If-None-Match 命中时已写好 304
+    private boolean notModified(Long userId, Long graphId, String representation,
+                                WebRequest request, HttpServletResponse response) {
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        long version = graphService.getGraphVersion(userId, graphId);
+        return request.checkNotModified("\"" + graphId + "-" + version + representation + "\"");
+    }
+
+    // 流式获取图谱可视化数据 (NDJSON：先所有点，再所有边，最后一行 {"type":"end",...})，适合大图谱
+    // GET /api/graph/data/{id}/stream
+    @GetMapping(value = "/data/{id}/stream", produces = "application/x-ndjson")
+    public StreamingResponseBody streamGraphData(@RequestAttribute("currentUserId") Long userId,
+                                                 @PathVariable Long id) {
+        return graphService.streamGraphData(userId, id);
+    }
+
+    // 获取视口内的子图 (服务端布局坐标)，不传范围时为整张图；点数超过 maxNodes 时按网格聚合
+    // GET /api/graph/view/{id}?minX=-500&minY=-500&maxX=500&maxY=500&maxNodes=500
+    @GetMapping("/view/{id}")
+    public GraphViewDTO getGraphView(@RequestAttribute("currentUserId") Long userId,
+                                     @PathVariable Long id,
+                                     @RequestParam(required = false) Double minX,
+                                     @RequestParam(required = false) Double minY,
+                                     @RequestParam(required = false) Double maxX,
+                                     @RequestParam(required = false) Double maxY,
+                                     @RequestParam(required = false) Integer maxNodes) {
+        return graphService.getGraphView(userId, id, minX, minY, maxX, maxY, maxNodes);
+    }
+
+    // 立即重新划分社区 (平时由定时任务在图谱有变化后重算)
+    // POST /api/graph/communities/{id}
+    @PostMapping("/communities/{id}")
+    public Map<String, Object> detectCommunities(@RequestAttribute("currentUserId") Long userId,
+                                                 @PathVariable Long id) {
+        return Map.of("communities", graphService.detectCommunities(userId, id));
     }
 }
\ No newline at end of file
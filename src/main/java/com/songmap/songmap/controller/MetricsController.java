@@ -0,0 +1,101 @@
+package com.songmap.songmap.controller;
+
+import com.songmap.songmap.service.CommunityDetectionService;
+import com.songmap.songmap.service.GraphAdjacencyCache;
+import com.songmap.songmap.service.GraphChangeLog;
+import com.songmap.songmap.service.GraphDataCache;
+import com.songmap.songmap.service.GraphLayoutService;
+import com.songmap.songmap.service.GraphListenSequencer;
+import com.songmap.songmap.service.GraphStatsService;
+import com.songmap.songmap.service.HubNeighborIndex;
+import com.songmap.songmap.service.ListenIngestService;
+import com.songmap.songmap.service.PersonalizedPageRankService;
+import com.songmap.songmap.service.PlayCounterAccumulator;
+import com.songmap.songmap.service.RecommendationCache;
+import com.songmap.songmap.service.SongEmbeddingService;
+import com.songmap.songmap.service.SpeculativeRecommender;
+import com.songmap.songmap.service.TemplateCloneService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 运行指标接口
+ * GET /api/metrics
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    private final GraphListenSequencer listenSequencer;
+    private final ListenIngestService listenIngestService;
+    private final GraphAdjacencyCache adjacencyCache;
+    private final RecommendationCache recommendationCache;
+    private final PersonalizedPageRankService pageRankService;
+    private final HubNeighborIndex hubIndex;
+    private final SpeculativeRecommender speculativeRecommender;
+    private final SongEmbeddingService embeddingService;
+    private final CommunityDetectionService communityService;
+    private final GraphLayoutService layoutService;
+    private final GraphChangeLog changeLog;
+    private final GraphDataCache graphDataCache;
+    private final GraphStatsService statsService;
+    private final TemplateCloneService cloneService;
+    private final PlayCounterAccumulator counterAccumulator;
+
+    public MetricsController(GraphListenSequencer listenSequencer,
+                             ListenIngestService listenIngestService,
+                             GraphAdjacencyCache adjacencyCache,
+                             RecommendationCache recommendationCache,
+                             PersonalizedPageRankService pageRankService,
+                             HubNeighborIndex hubIndex,
+                             SpeculativeRecommender speculativeRecommender,
+                             SongEmbeddingService embeddingService,
+                             CommunityDetectionService communityService,
+                             GraphLayoutService layoutService,
+                             GraphChangeLog changeLog,
+                             GraphDataCache graphDataCache,
+                             GraphStatsService statsService,
+                             TemplateCloneService cloneService,
+                             PlayCounterAccumulator counterAccumulator) {
+        this.listenSequencer = listenSequencer;
+        this.listenIngestService = listenIngestService;
+        this.adjacencyCache = adjacencyCache;
+        this.recommendationCache = recommendationCache;
+        this.pageRankService = pageRankService;
+        this.hubIndex = hubIndex;
+        this.speculativeRecommender = speculativeRecommender;
+        this.embeddingService = embeddingService;
+        this.communityService = communityService;
+        this.layoutService = layoutService;
+        this.changeLog = changeLog;
+        this.graphDataCache = graphDataCache;
+        this.statsService = statsService;
+        this.cloneService = cloneService;
+        this.counterAccumulator = counterAccumulator;
+    }
+
+    @GetMapping
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("listenSequencer", listenSequencer.snapshot());
+        result.put("listenIngest", listenIngestService.snapshot());
+        result.put("adjacency", adjacencyCache.snapshot());
+        result.put("recommendCache", recommendationCache.snapshot());
+        result.put("pageRank", pageRankService.snapshot());
+        result.put("hubIndex", hubIndex.snapshot());
+        result.put("speculative", speculativeRecommender.snapshot());
+        result.put("embedding", embeddingService.snapshot());
+        result.put("community", communityService.snapshot());
+        result.put("layout", layoutService.snapshot());
+        result.put("changeLog", changeLog.snapshot());
+        result.put("graphDataCache", graphDataCache.snapshot());
+        result.put("graphStats", statsService.snapshot());
+        result.put("templateClone", cloneService.snapshot());
+        result.put("counters", counterAccumulator.snapshot());
+        return result;
+    }
+}
@@ -1,12 +1,22 @@
 package com.songmap.songmap.controller;
 
+import com.songmap.songmap.dto.ListenBatchRequestDTO;
+import com.songmap.songmap.dto.ListenBatchResultDTO;
+import com.songmap.songmap.dto.ListenEventDTO;
+import com.songmap.songmap.dto.PlaylistDTO;
 import com.songmap.songmap.dto.ScoredSongDTO;
 import com.songmap.songmap.entity.Song;
+import com.songmap.songmap.service.GraphListenSequencer;
+import com.songmap.songmap.service.ListenImportService;
+import com.songmap.songmap.service.ListenIngestService;
 import com.songmap.songmap.service.MusicGraphService;
 import com.songmap.songmap.service.MusicHistoryService;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -17,8 +27,10 @@ import com.songmap.songmap.repository.UserRepository;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.server.ResponseStatusException;
 
 /**
  * 音乐控制器类，处理与音乐相关的 HTTP 请求
@@ -40,6 +52,9 @@ public class MusicController {
     private final MusicGraphService musicService;
     private final MusicHistoryService historyService;
     private final UserRepository userRepository; // 【新增】
+    private final ListenIngestService listenIngestService;
+    private final GraphListenSequencer listenSequencer;
+    private final ListenImportService listenImportService;
     // 【新增】定义 QQMusicApi 地址
     private static final String QQ_API_BASE = "http://localhost:3300";
 
@@ -50,10 +65,16 @@ public class MusicController {
      */
     public MusicController(MusicGraphService musicService, 
                            MusicHistoryService historyService,
-                           UserRepository userRepository) { // 【修改】构造函数
+                           UserRepository userRepository,
+                           ListenIngestService listenIngestService,
+                           GraphListenSequencer listenSequencer,
+                           ListenImportService listenImportService) { // 【修改】构造函数
         this.musicService = musicService;
         this.historyService = historyService;
         this.userRepository = userRepository;
+        this.listenIngestService = listenIngestService;
+        this.listenSequencer = listenSequencer;
+        this.listenImportService = listenImportService;
     }
 
     // 2. 升级版听歌接口
@@ -68,36 +89,162 @@ public class MusicController {
                        @RequestParam(defaultValue = "false") boolean isSkip) {
         log.info("用户 {} 在图谱 {} 听歌: {}", userId, graphId, name);
         // forceNew 默认为 false
-        return musicService.addSong(userId, graphId, name, artist, false, isRandom, isFullPlay, isSkip);
+        // 同一图谱的听歌串行执行，避免并发请求读到同一个 "上一首"
+        return listenSequencer.execute(graphId,
+                () -> musicService.addSong(userId, graphId, name, artist, false, isRandom, isFullPlay, isSkip));
+    }
+
+    /**
+     * 【异步】听歌接口：事件进入写入队列后立即返回，由后台批量落库
+     * 需开启 songmap.ingest.async.enabled=true
+     * POST /api/music/listen/async?graphId=1&name=夜曲&artist=周杰伦
+     */
+    @PostMapping("/listen/async")
+    public Map<String, Object> listenAsync(@RequestAttribute("currentUserId") Long userId,
+                                           @RequestParam Long graphId,
+                                           @RequestParam String name,
+                                           @RequestParam(required = false, defaultValue = "Unknown") String artist,
+                                           @RequestParam(defaultValue = "false") boolean isRandom,
+                                           @RequestParam(defaultValue = "true") boolean isFullPlay,
+                                           @RequestParam(defaultValue = "false") boolean isSkip,
+                                           @RequestParam(defaultValue = "false") boolean forceNew) {
+        if (!listenIngestService.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "异步听歌写入未开启");
+        }
+        ListenEventDTO event = new ListenEventDTO(name, artist, isRandom, isFullPlay, isSkip, forceNew,
+                LocalDateTime.now());
+        if (!listenIngestService.submit(userId, graphId, event)) {
+            // 队列已满：背压，让客户端稍后重试
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "听歌队列繁忙，请稍后重试");
+        }
+        return Map.of("accepted", true, "queued", listenIngestService.getQueueDepth());
+    }
+
+    /**
+     * 批量上传听歌事件 (客户端离线同步)
+     * POST /api/music/listen/batch
+     * Body: {"graphId": 1, "events": [{"eventId": "e1", "name": "夜曲", "artist": "周杰伦",
+     *        "timestamp": "2024-05-01T08:00:00", "isRandom": false, "isFullPlay": true, "isSkip": false, "newChain": false}]}
+     * 返回每条事件的处理结果 (APPLIED / DUPLICATE / INVALID)，带 eventId 的事件可安全重试
+     */
+    @PostMapping("/listen/batch")
+    public ListenBatchResultDTO listenBatch(@RequestAttribute("currentUserId") Long userId,
+                                            @RequestBody ListenBatchRequestDTO request) {
+        Long graphId = request.getGraphId();
+        if (graphId == null) throw new IllegalArgumentException("graphId must not be null");
+        log.info("用户 {} 在图谱 {} 批量上传听歌", userId, graphId);
+        return listenSequencer.execute(graphId,
+                () -> musicService.addSongBatch(userId, graphId, request.getEvents()));
+    }
+
+    /**
+     * 批量导入历史听歌记录 (请求体直接是文件内容，流式解析)
+     * POST /api/music/import?graphId=1&format=csv&resume=false
+     * 返回：{"rowsRead": 1000000, "imported": 999990, "elapsedMs": 52000, "rowsPerSec": 19230, ...}
+     */
+    @PostMapping("/import")
+    public Map<String, Object> importListens(@RequestAttribute("currentUserId") Long userId,
+                                             @RequestParam Long graphId,
+                                             @RequestParam(defaultValue = "csv") String format,
+                                             @RequestParam(defaultValue = "false") boolean resume,
+                                             InputStream body) {
+        log.info("用户 {} 向图谱 {} 导入听歌记录, format={}, resume={}", userId, graphId, format, resume);
+        return listenImportService.importListens(userId, graphId, body, format, resume);
+    }
+
+    /**
+     * 查询导入进度 / 断点
+     * GET /api/music/import/status?graphId=1
+     */
+    @GetMapping("/import/status")
+    public Map<Object, Object> importStatus(@RequestAttribute("currentUserId") Long userId,
+                                            @RequestParam Long graphId) {
+        return listenImportService.getStatus(userId, graphId);
     }
 
     // 【核心修复】推荐接口：增加 graphId 参数，并正确获取该图谱的历史
+    // limit: 只返回分数最高的前 N 首 (默认 songmap.recommend.default-limit)
+    // explain=false 时不生成 reason
+    // mode: neighbor (默认，一跳邻居) / ppr (个性化 PageRank 多跳推荐)
+    // diversify=true 时跨社区多样化重排，避免整页都是同一类歌
     @GetMapping("/recommend")
     public List<ScoredSongDTO> recommend(@RequestAttribute("currentUserId") Long userId,
                                          @RequestParam Long graphId, // 必须接收 graphId
-                                         @RequestParam Long currentId) {
+                                         @RequestParam Long currentId,
+                                         @RequestParam(required = false) Integer limit,
+                                         @RequestParam(defaultValue = "true") boolean explain,
+                                         @RequestParam(defaultValue = "neighbor") String mode,
+                                         @RequestParam(defaultValue = "false") boolean diversify) {
         
         // 我们需要获取该图谱的历史记录，目的是找到“上一首”播放的歌（index=1），
         // 以便在推荐算法中对其进行降权（避免推荐刚刚听完的那首，形成死循环）。
         // history[0] 是 currentId (刚刚 listen 进去的)
-        // history[1] 是 previousId (我们要找的)
+        // history[1] 是 previousId (我们要找的)，ppr 模式还会用到更早的几首作为游走起点
         
-        List<Map<String, String>> history = historyService.getStructuredHistory(graphId);
-        Long previousId = null;
-
-        if (history != null && history.size() >= 2) {
-             try {
-                 // 解析 history[1] 获取 ID
-                 String idStr = history.get(1).get("id");
-                 if (idStr != null) {
-                     previousId = Long.valueOf(idStr);
-                 }
-             } catch (NumberFormatException e) {
-                 log.warn("解析历史记录ID失败", e);
-             }
+        List<Long> recentIds = recentHistoryIds(graphId, "ppr".equals(mode) ? Integer.MAX_VALUE : 1);
+
+        switch (mode) {
+            case "neighbor":
+                Long previousId = recentIds.isEmpty() ? null : recentIds.get(0);
+                return musicService.recommendNextSongs(userId, graphId, currentId, previousId, limit, explain, diversify);
+            case "ppr":
+                return musicService.recommendMultiHop(userId, graphId, currentId, recentIds, limit, explain, diversify);
+            default:
+                throw new IllegalArgumentException("Unsupported recommend mode: " + mode);
         }
+    }
+
+    /**
+     * 【批量推荐】一屏多首歌的推荐一次取回，归属校验和历史查询只做一次
+     * GET /api/music/recommend/batch?graphId=1&currentIds=10,11,12&limit=5
+     * 返回 { 种子歌曲 id: 推荐列表 }
+     */
+    @GetMapping("/recommend/batch")
+    public Map<Long, List<ScoredSongDTO>> recommendBatch(@RequestAttribute("currentUserId") Long userId,
+                                                         @RequestParam Long graphId,
+                                                         @RequestParam List<Long> currentIds,
+                                                         @RequestParam(required = false) Integer limit,
+                                                         @RequestParam(defaultValue = "true") boolean explain) {
+        List<Long> recentIds = recentHistoryIds(graphId, 1);
+        Long previousId = recentIds.isEmpty() ? null : recentIds.get(0);
+        return musicService.recommendBatch(userId, graphId, currentIds, previousId, limit, explain);
+    }
+
+    /**
+     * 【连续歌单】一次请求生成一段连续播放的歌单，代替 N 次 listen + recommend 往返
+     * GET /api/music/playlist?graphId=1&startId=10&length=30&beamWidth=8
+     * 歌单不含 startId 本身，也不含它之前刚播放的那首
+     */
+    @GetMapping("/playlist")
+    public PlaylistDTO playlist(@RequestAttribute("currentUserId") Long userId,
+                                @RequestParam Long graphId,
+                                @RequestParam Long startId,
+                                @RequestParam(required = false) Integer length,
+                                @RequestParam(required = false) Integer beamWidth,
+                                @RequestParam(defaultValue = "true") boolean explain) {
+        List<Long> recentIds = recentHistoryIds(graphId, 1);
+        Long previousId = recentIds.isEmpty() ? null : recentIds.get(0);
+        return musicService.generatePlaylist(userId, graphId, startId, previousId, length, beamWidth, explain);
+    }
+
+    // 从该图谱历史中解析 history[1..max] 的歌曲 id (history[0] 是当前歌曲)
+    private List<Long> recentHistoryIds(Long graphId, int max) {
+        List<Map<String, String>> history = historyService.getStructuredHistory(graphId);
+        List<Long> recentIds = new ArrayList<>();
+        if (history == null) return recentIds;
 
-        return musicService.recommendNextSongs(currentId, previousId);
+        for (int i = 1; i < history.size() && recentIds.size() < max; i++) {
+            try {
+                // 解析 history[i] 获取 ID
+                String idStr = history.get(i).get("id");
+                if (idStr != null) {
+                    recentIds.add(Long.valueOf(idStr));
+                }
+            } catch (NumberFormatException e) {
+                log.warn("解析历史记录ID失败", e);
+            }
+        }
+        return recentIds;
     }
 
     // ================= 查询接口 =================
@@ -185,7 +332,8 @@ public class MusicController {
                           @RequestParam(defaultValue = "false") boolean isSkip) {
         log.info("用户 {} 在图谱 {} 新开听歌: {}", userId, graphId, name);
         // forceNew = true
-        return musicService.addSong(userId, graphId, name, artist, true, isRandom, isFullPlay, isSkip);
+        return listenSequencer.execute(graphId,
+                () -> musicService.addSong(userId, graphId, name, artist, true, isRandom, isFullPlay, isSkip));
     }
     
     /**
@@ -0,0 +1,25 @@
+package com.songmap.songmap.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 模板克隆任务的进度
+ * status: PENDING (排队) / RUNNING / DONE / FAILED / CANCELLED (图谱已删除)
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CloneJobDTO {
+    private String jobId;
+    private Long graphId;
+    private String status;
+    private long nodesTotal;     // 模板歌曲数
+    private long nodesCopied;
+    private long linksTotal;     // 模板 NEXT 边数
+    private long linksCopied;
+    private String error;        // 失败原因，仅 FAILED 时有值
+    private long startedAt;      // epoch millis，排队中为 0
+    private long finishedAt;     // epoch millis，未结束为 0
+}
@@ -0,0 +1,20 @@
+package com.songmap.songmap.dto;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.songmap.songmap.entity.GraphInfo;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 创建图谱的返回：GraphInfo 的字段原样展开，模板图谱另带后台克隆任务的 jobId
+ * jobId 为 null 表示没有后台任务 (空图谱)，图谱立即可用；否则按 GET /api/graph/jobs/{jobId} 查询进度
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GraphCreatedDTO {
+    @JsonUnwrapped
+    private GraphInfo graph;
+    private String jobId;
+}
@@ -12,6 +12,7 @@ import java.util.List;
 public class GraphDataDTO {
     private List<NodeData> nodes;
     private List<LinkData> links;
+    private long version;    // 【新增】图谱修改版本号，增量同步时作为 since 传回
 
     @Data
     @AllArgsConstructor
@@ -20,7 +21,7 @@ public class GraphDataDTO {
         private String name;     // 显示名称
         private String artist;   // 作者
         private int symbolSize;  // 节点大小 (根据热度)
-        private int category;    // 分类 (0: 普通, 1: 热门)
+        private int category;    // 分类：社区编号 + 1 (0: 尚未划分社区)
         // 可以加更多属性给 tooltip 展示
     }
 
@@ -30,5 +31,6 @@ public class GraphDataDTO {
         private String source;   // 起点 ID
         private String target;   // 终点 ID
         private int value;       // 边权重 (跳转次数)
+        private double probability; // 转移概率 P(target | source)
     }
 }
\ No newline at end of file
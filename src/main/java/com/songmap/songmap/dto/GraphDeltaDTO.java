@@ -0,0 +1,33 @@
+package com.songmap.songmap.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 图谱增量：客户端持有版本 since 的数据，合并本增量后即为 version 的数据
+ * 合并顺序：先删 removedNodes (连带与之相连的边) 和 removedLinks，再按 id 覆盖 nodes，
+ * 最后对 links 里出现的每个起点，用这里的出边整组替换它原有的出边 (转移概率的分母变了，整组都要更新)
+ * reset 为 true 时 since 已超出变更日志的范围，nodes / links 即整张图，客户端应整体替换
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GraphDeltaDTO {
+    private long version;
+    private boolean reset;
+    private List<GraphDataDTO.NodeData> nodes;
+    private List<String> linkSources;             // 出边需要整组替换的起点 (可能已没有出边)
+    private List<GraphDataDTO.LinkData> links;
+    private List<String> removedNodes;
+    private List<LinkRef> removedLinks;
+
+    @Data
+    @AllArgsConstructor
+    public static class LinkRef {
+        private String source;
+        private String target;
+    }
+}
@@ -0,0 +1,32 @@
+package com.songmap.songmap.dto;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.songmap.songmap.entity.GraphInfo;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 图谱列表项：GraphInfo 的字段原样展开，外加增量维护的统计
+ * stats 为 null 表示统计还没算好 (已排进后台重算)，前端可先不显示
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GraphSummaryDTO {
+    @JsonUnwrapped
+    private GraphInfo graph;
+    private Stats stats;
+
+    @Data
+    @AllArgsConstructor
+    public static class Stats {
+        private long songCount;      // 歌曲 (节点) 数
+        private long linkCount;      // NEXT 边数
+        private long totalListens;   // 总播放次数
+        private String topSongId;    // 播放最多的歌，图谱为空时为 null
+        private String topSongName;
+        private long topSongListens;
+        private long reconciledAt;   // 最近一次按全图重算的时间 (epoch millis)
+    }
+}
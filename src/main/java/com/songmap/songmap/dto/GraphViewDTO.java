@@ -0,0 +1,36 @@
+package com.songmap.songmap.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 视口子图：只含请求的矩形范围内的点和边，点已带好服务端布局坐标
+ * 视口内的点超过 maxNodes 时按网格把同一格里的点合并成一个聚合点 (count > 1)
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GraphViewDTO {
+    private double minX, minY, maxX, maxY; // 整张图布局的范围，客户端据此设置初始视口
+    private int visibleNodes;              // 视口内的实际点数 (聚合前)
+    private boolean aggregated;            // 是否做了聚合
+    private long layoutBuiltAt;            // 布局计算时间 (epoch millis)
+    private List<ViewNode> nodes;
+    private List<GraphDataDTO.LinkData> links; // 聚合点之间的边：value 为跳转次数之和
+
+    @Data
+    @AllArgsConstructor
+    public static class ViewNode {
+        private String id;       // 单个点为歌曲 ID，聚合点为 "cluster:格子编号"
+        private String name;     // 聚合点为其中听得最多的歌
+        private String artist;
+        private double x;
+        private double y;
+        private int symbolSize;
+        private int category;    // 同 GraphDataDTO.NodeData，聚合点取代表歌曲的分类
+        private int count;       // 合并的点数，单个点为 1
+    }
+}
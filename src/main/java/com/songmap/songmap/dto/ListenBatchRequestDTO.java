@@ -0,0 +1,14 @@
+package com.songmap.songmap.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 客户端离线后一次性上传的听歌事件 (按播放顺序排列)
+ */
+@Data
+public class ListenBatchRequestDTO {
+    private Long graphId;
+    private List<ListenEventDTO> events;
+}
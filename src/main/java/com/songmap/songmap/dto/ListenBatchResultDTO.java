@@ -0,0 +1,27 @@
+package com.songmap.songmap.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ListenBatchResultDTO {
+    private int applied;
+    private int duplicates;
+    private int invalid;
+    private List<Outcome> outcomes; // 与请求中的 events 一一对应
+
+    @Data
+    @AllArgsConstructor
+    public static class Outcome {
+        private int index;
+        private String eventId;
+        private String status;   // APPLIED / DUPLICATE / INVALID
+        private Long songId;     // APPLIED 时为写入的节点 ID
+        private String message;
+    }
+}
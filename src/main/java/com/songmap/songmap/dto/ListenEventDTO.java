@@ -0,0 +1,41 @@
+package com.songmap.songmap.dto;
+
+import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 一次听歌事件 (异步写入 / 批量写入共用)
+ * 字段含义与 /api/music/listen 的参数一一对应
+ */
+@Data
+@NoArgsConstructor
+public class ListenEventDTO {
+    private String eventId; // 客户端生成的事件 ID，用于重试去重 (可选)
+    private String name;
+    private String artist;
+    @JsonProperty("isRandom")
+    private boolean isRandom;
+    @JsonProperty("isFullPlay")
+    private boolean isFullPlay = true;
+    @JsonProperty("isSkip")
+    private boolean isSkip;
+    @JsonAlias("newChain")
+    private boolean forceNewChain;  // true: 不与上一首连线 (等价于 /newlisten)
+    @JsonAlias("timestamp")
+    private LocalDateTime listenedAt; // 为空时使用数据库当前时间
+
+    public ListenEventDTO(String name, String artist, boolean isRandom, boolean isFullPlay, boolean isSkip,
+                          boolean forceNewChain, LocalDateTime listenedAt) {
+        this.name = name;
+        this.artist = artist;
+        this.isRandom = isRandom;
+        this.isFullPlay = isFullPlay;
+        this.isSkip = isSkip;
+        this.forceNewChain = forceNewChain;
+        this.listenedAt = listenedAt;
+    }
+}
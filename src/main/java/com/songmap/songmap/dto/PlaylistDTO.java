@@ -0,0 +1,19 @@
+package com.songmap.songmap.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 连续歌单生成结果
+ */
+@Data
+public class PlaylistDTO {
+    private Long startId;
+    private List<ScoredSongDTO> songs; // 按播放顺序，score 为该步的打分
+    private double totalScore;
+
+    // 没凑满请求的长度时为 false：图里走进了死胡同，或超出了时间预算 (budgetExceeded)
+    private boolean complete;
+    private boolean budgetExceeded;
+}
@@ -1,5 +1,6 @@
 package com.songmap.songmap.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.neo4j.core.schema.GeneratedValue;
@@ -16,6 +17,11 @@ import java.time.LocalDateTime;
 @Data
 @NoArgsConstructor
 public class GraphInfo {
+    // 【新增】图谱状态：模板图谱在后台克隆完成前为 INITIALIZING，克隆失败为 FAILED；空值 (老数据) 视为 READY
+    public static final String STATUS_INITIALIZING = "INITIALIZING";
+    public static final String STATUS_READY = "READY";
+    public static final String STATUS_FAILED = "FAILED";
+
     @Id @GeneratedValue
     private Long id;
 
@@ -32,6 +38,8 @@ public class GraphInfo {
     // 封面颜色（为了前端好看，存一个 CSS 渐变色字符串）
     private String coverColor;
 
+    private String status;
+
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
 
@@ -43,4 +51,10 @@ public class GraphInfo {
         this.createdAt = LocalDateTime.now();
         this.updatedAt = LocalDateTime.now();
     }
+
+    // 【新增】模板数据还在后台复制，此时不接受听歌写入
+    @JsonIgnore
+    public boolean isInitializing() {
+        return STATUS_INITIALIZING.equals(status);
+    }
 }
\ No newline at end of file
@@ -69,6 +69,13 @@ public class Song {
     private Integer userSelectCount = 0;   // 主动选择次数
     private Integer randomSelectCount = 0; // 被随机选中次数
 
+    // 【新增】所有出边 jumpCount 之和，听歌写入时增量维护；出边转移概率 = r.jumpCount / outJumpTotal
+    private Integer outJumpTotal = 0;
+
+    // 【新增】指数衰减的亲和度：affinity 是 affinityAt (epoch millis) 时刻的值，读取时再衰减到当前时间
+    private Double affinity = 0.0;
+    private Long affinityAt;
+
     // 【新增】动态属性的万能口袋
     // 数据库里所有未映射的属性，都会自动读写到这个 Map 里
     // prefix = "" 表示属性名在数据库里不加前缀
@@ -19,4 +19,8 @@ public interface GraphInfoRepository extends Neo4jRepository<GraphInfo, Long> {
            "WHERE id(u) = $userId AND id(g) = $id " +
            "RETURN g")
     Optional<GraphInfo> findByIdAndUserId(Long id, Long userId);
+
+    // 【新增】按节点 Label 反查图谱 (按歌名删边这类不带图谱 ID 的操作用)
+    @Query("MATCH (g:GraphInfo) WHERE g.nodeLabel = $nodeLabel RETURN g LIMIT 1")
+    Optional<GraphInfo> findByNodeLabel(String nodeLabel);
 }
\ No newline at end of file
@@ -64,22 +64,24 @@ public interface SongRepository extends Neo4jRepository<Song, Long>{
     // ==================== 2. 查询边 ====================
 
     // 粒度1：仅查边属性 (根据 Edge ID)
-    @Query("MATCH ()-[r:NEXT]->() WHERE id(r) = $id RETURN properties(r)")
+    @Query("MATCH (s)-[r:NEXT]->() WHERE id(r) = $id RETURN r{.*, transitionProb: CASE WHEN coalesce(s.outJumpTotal, 0) > 0 THEN toFloat(coalesce(r.jumpCount, 0)) / s.outJumpTotal ELSE 0.0 END}")
     Map<String, Object> findEdgePropertiesById(@Param("id") Long id);
 
     // 粒度2：查边 + 源点 + 目标点 (根据 Edge ID)
     @Query("MATCH (s:Song)-[r:NEXT]->(t:Song) WHERE id(r) = $id " +
-           "RETURN r{.*} as edge, s as source, t as target") // <--- 修改这里
+           // 附带转移概率，与 ListenCypher.transitionProb 保持一致
+           "RETURN r{.*, transitionProb: CASE WHEN coalesce(s.outJumpTotal, 0) > 0 THEN toFloat(coalesce(r.jumpCount, 0)) / s.outJumpTotal ELSE 0.0 END} as edge, s as source, t as target") // <--- 修改这里
     Optional<EdgeDetailDTO> findEdgeDetailById(@Param("id") Long id);
 
     // 粒度1：仅查边属性 (根据 FromName, ToName)
     @Query("MATCH (s:Song {name: $fromName})-[r:NEXT]->(t:Song {name: $toName}) " +
-           "RETURN properties(r) LIMIT 1")
+           "RETURN r{.*, transitionProb: CASE WHEN coalesce(s.outJumpTotal, 0) > 0 THEN toFloat(coalesce(r.jumpCount, 0)) / s.outJumpTotal ELSE 0.0 END} LIMIT 1")
     Map<String, Object> findEdgePropertiesByNames(@Param("fromName") String fromName, @Param("toName") String toName);
 
     // 粒度2：查边 + 源点 + 目标点 (根据 FromName, ToName)
     @Query("MATCH (s:Song {name: $fromName})-[r:NEXT]->(t:Song {name: $toName}) " +
-           "RETURN r{.*} as edge, s as source, t as target LIMIT 1") // <--- 修改这里
+           // 附带转移概率，与 ListenCypher.transitionProb 保持一致
+           "RETURN r{.*, transitionProb: CASE WHEN coalesce(s.outJumpTotal, 0) > 0 THEN toFloat(coalesce(r.jumpCount, 0)) / s.outJumpTotal ELSE 0.0 END} as edge, s as source, t as target LIMIT 1") // <--- 修改这里
     Optional<EdgeDetailDTO> findEdgeDetailByNames(@Param("fromName") String fromName, @Param("toName") String toName);
 
     // 【新增关键修复】原子性更新歌曲统计数据，防止 save() 误删关系
@@ -100,27 +102,11 @@ public interface SongRepository extends Neo4jRepository<Song, Long>{
 
     // 【新增】删除两个歌曲之间的 NEXT 关系
     // 逻辑：找到名为 fromName 的节点 a，找到名为 toName 的节点 b，删除它们之间名为 NEXT 的关系 r
-    @Query("MATCH (a:Song {name: $fromName})-[r:NEXT]->(b:Song {name: $toName}) DELETE r")
+    // 同时从起点的 outJumpTotal 里扣掉这条边的 jumpCount
+    @Query("MATCH (a:Song {name: $fromName})-[r:NEXT]->(b:Song {name: $toName}) " +
+           "SET a.outJumpTotal = coalesce(a.outJumpTotal, 0) - coalesce(r.jumpCount, 0) " +
+           "DELETE r")
     void deleteRelationship(@Param("fromName") String fromName, @Param("toName") String toName);
-
-    // 【核心大招】创建或更新边（Upsert）
-    // 逻辑：找到两首歌，MERGE 它们的关系。如果是新建关系，设置初始值；如果是已有关系，计数器 +1
-    // 参数说明：
-    // jumpVal: 本次跳转权重（通常为1）
-    // selectVal: 是否主动选择（1或0）
-    // randomVal: 是否随机（1或0）
-    @Query("MATCH (from:Song) WHERE id(from) = $fromId " +
-           "MATCH (to:Song) WHERE id(to) = $toId " +   // <--- 关键修改：拆分成两个 MATCH
-           "MERGE (from)-[r:NEXT]->(to) " +
-           "ON CREATE SET r.jumpCount = $jumpVal, r.userSelectCount = $selectVal, r.randomSelectCount = $randomVal " +
-           "ON MATCH SET r.jumpCount = coalesce(r.jumpCount, 0) + $jumpVal, " +
-                        "r.userSelectCount = coalesce(r.userSelectCount, 0) + $selectVal, " +
-                        "r.randomSelectCount = coalesce(r.randomSelectCount, 0) + $randomVal")
-    void createOrUpdateEdge(@Param("fromId") Long fromId, 
-                            @Param("toId") Long toId,
-                            @Param("jumpVal") int jumpVal,
-                            @Param("selectVal") int selectVal,
-                            @Param("randomVal") int randomVal);
 }
 
 //基于方法名解析结果，框架会自动生成以下 Cypher 查询语句：
@@ -0,0 +1,280 @@
+package com.songmap.songmap.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 力导向布局 (Fruchterman-Reingold + Barnes-Hut)
+ * <p>
+ * 每一轮：所有点建一棵四叉树，斥力对距离足够远的格子 (格子宽 / 距离 &lt; theta) 用格子质心近似，O(n log n)；
+ * 引力沿 NEXT 边 (无向，权重取 log1p)，再加一个与度数成正比的向心力，避免不连通的小块被斥力推到无穷远。
+ * 每个点的位移不超过当前温度，温度每轮按几何级数降到初始的 1%。
+ * </p>
+ * <p>
+ * 受力计算按点区间用 fork-join 并行 (只读树和坐标、各写各的位移)，建树和移动在调用线程上顺序执行。
+ * 纯算法，不访问数据库；x / y 原地更新，可以从上一次的布局热启动。
+ * </p>
+ */
+final class BarnesHutLayout {
+
+    // 理想边长
+    static final double K = 10.0;
+
+    private static final double GRAVITY = 0.02;
+    private static final int TASK_THRESHOLD = 2048;
+    private static final int MAX_DEPTH = 32;
+
+    private BarnesHutLayout() {
+    }
+
+    /**
+     * @param iterations     实际跑的轮数
+     * @param budgetExceeded 是否因为超出时间预算提前结束
+     */
+    record Result(int iterations, boolean budgetExceeded) {
+    }
+
+    /**
+     * 无向加权图：offsets[v] 区间内是 v 的邻居及边权重
+     */
+    record Graph(int n, int[] offsets, int[] neighbors, float[] weights) {
+    }
+
+    /**
+     * 初始温度：冷启动时约为布局边长，热启动 (大部分点已经有位置) 时取几倍边长，只做局部调整
+     */
+    static double startTemperature(int n, boolean warm) {
+        return warm ? 3 * K : K * Math.sqrt(Math.max(1, n));
+    }
+
+    /**
+     * @param deadlineNanos System.nanoTime() 截止时间
+     */
+    static Result run(Graph g, float[] x, float[] y, int iterations, double startTemperature, double theta,
+                      ForkJoinPool pool, long deadlineNanos) {
+        int n = g.n();
+        if (n == 0) return new Result(0, false);
+        float[] dx = new float[n];
+        float[] dy = new float[n];
+        QuadTree tree = new QuadTree(n);
+        double cooling = Math.pow(0.01, 1.0 / Math.max(1, iterations));
+        double temperature = startTemperature;
+
+        for (int iter = 0; iter < iterations; iter++) {
+            if (System.nanoTime() > deadlineNanos) return new Result(iter, true);
+            tree.build(x, y, n);
+            pool.invoke(new ForceTask(g, tree, x, y, dx, dy, theta * theta, 0, n));
+            for (int i = 0; i < n; i++) {
+                double len = Math.sqrt((double) dx[i] * dx[i] + (double) dy[i] * dy[i]);
+                if (len == 0 || Double.isNaN(len)) continue;
+                double scale = Math.min(len, temperature) / len;
+                x[i] += (float) (dx[i] * scale);
+                y[i] += (float) (dy[i] * scale);
+            }
+            temperature *= cooling;
+        }
+        return new Result(iterations, false);
+    }
+
+    private static final class ForceTask extends RecursiveAction {
+        private final Graph g;
+        private final QuadTree tree;
+        private final float[] x, y, dx, dy;
+        private final double theta2;
+        private final int lo, hi;
+
+        ForceTask(Graph g, QuadTree tree, float[] x, float[] y, float[] dx, float[] dy, double theta2, int lo, int hi) {
+            this.g = g;
+            this.tree = tree;
+            this.x = x;
+            this.y = y;
+            this.dx = dx;
+            this.dy = dy;
+            this.theta2 = theta2;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > TASK_THRESHOLD) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ForceTask(g, tree, x, y, dx, dy, theta2, lo, mid),
+                          new ForceTask(g, tree, x, y, dx, dy, theta2, mid, hi));
+                return;
+            }
+            int[] stack = new int[4 * MAX_DEPTH + 4];
+            int[] offsets = g.offsets();
+            int[] neighbors = g.neighbors();
+            float[] weights = g.weights();
+            double k2 = K * K;
+            for (int i = lo; i < hi; i++) {
+                double xi = x[i], yi = y[i];
+                double fx = 0, fy = 0;
+
+                // 1. 斥力 K² * m / d，沿四叉树自顶向下
+                int top = 0;
+                stack[top++] = 0;
+                while (top > 0) {
+                    int c = stack[--top];
+                    double mass = tree.mass[c];
+                    if (mass == 0) continue;
+                    boolean leaf = tree.firstChild[c] < 0;
+                    if (leaf && tree.body[c] == i && mass == 1) continue;
+                    double ddx = xi - tree.comX[c];
+                    double ddy = yi - tree.comY[c];
+                    double d2 = ddx * ddx + ddy * ddy;
+                    double size = tree.size[c];
+                    if (leaf || size * size < theta2 * d2) {
+                        if (d2 < 1e-6) {
+                            // 重合的点：按编号给一个确定的小方向推开
+                            ddx = ((i * 0x9E3779B9) & 0xFF) / 256.0 - 0.5;
+                            ddy = ((i * 0x85EBCA6B) & 0xFF) / 256.0 - 0.5;
+                            d2 = ddx * ddx + ddy * ddy + 1e-6;
+                        }
+                        double f = k2 * mass / d2;
+                        fx += ddx * f;
+                        fy += ddy * f;
+                    } else {
+                        int first = tree.firstChild[c];
+                        for (int q = 0; q < 4; q++) stack[top++] = first + q;
+                    }
+                }
+
+                // 2. 引力 d² / K * log1p(w)
+                int start = offsets[i], end = offsets[i + 1];
+                for (int k = start; k < end; k++) {
+                    int j = neighbors[k];
+                    double ddx = xi - x[j];
+                    double ddy = yi - y[j];
+                    double d = Math.sqrt(ddx * ddx + ddy * ddy);
+                    double f = d / K * Math.log1p(weights[k]);
+                    fx -= ddx * f;
+                    fy -= ddy * f;
+                }
+
+                // 3. 向心力，大小与度数成正比
+                double r = Math.sqrt(xi * xi + yi * yi);
+                if (r > 0) {
+                    double f = GRAVITY * K * (end - start + 1) / r;
+                    fx -= xi * f;
+                    fy -= yi * f;
+                }
+                dx[i] = (float) fx;
+                dy[i] = (float) fy;
+            }
+        }
+    }
+
+    /**
+     * 数组实现的四叉树：格子 c 的四个子格子是 firstChild[c] .. firstChild[c] + 3，叶子 firstChild = -1
+     * 叶子最多放一个点 (body)；超过最大深度仍重合的点合并在同一个叶子里
+     */
+    private static final class QuadTree {
+        int count;
+        double[] minX, minY, size, comX, comY, mass;
+        int[] firstChild, body;
+
+        QuadTree(int n) {
+            allocate(Math.max(16, n * 2));
+        }
+
+        private void allocate(int capacity) {
+            minX = new double[capacity];
+            minY = new double[capacity];
+            size = new double[capacity];
+            comX = new double[capacity];
+            comY = new double[capacity];
+            mass = new double[capacity];
+            firstChild = new int[capacity];
+            body = new int[capacity];
+        }
+
+        private void grow() {
+            int capacity = minX.length * 2;
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            size = Arrays.copyOf(size, capacity);
+            comX = Arrays.copyOf(comX, capacity);
+            comY = Arrays.copyOf(comY, capacity);
+            mass = Arrays.copyOf(mass, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            body = Arrays.copyOf(body, capacity);
+        }
+
+        private int newCell(double x0, double y0, double s) {
+            if (count == minX.length) grow();
+            int c = count++;
+            minX[c] = x0;
+            minY[c] = y0;
+            size[c] = s;
+            comX[c] = 0;
+            comY[c] = 0;
+            mass[c] = 0;
+            firstChild[c] = -1;
+            body[c] = -1;
+            return c;
+        }
+
+        void build(float[] x, float[] y, int n) {
+            double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                x0 = Math.min(x0, x[i]);
+                y0 = Math.min(y0, y[i]);
+                x1 = Math.max(x1, x[i]);
+                y1 = Math.max(y1, y[i]);
+            }
+            count = 0;
+            newCell(x0, y0, Math.max(1e-3, Math.max(x1 - x0, y1 - y0)) * 1.0001);
+            for (int i = 0; i < n; i++) insert(i, x[i], y[i]);
+        }
+
+        private void insert(int i, double px, double py) {
+            int c = 0;
+            for (int depth = 0; ; depth++) {
+                if (firstChild[c] < 0) {
+                    if (mass[c] == 0) {
+                        body[c] = i;
+                        mass[c] = 1;
+                        comX[c] = px;
+                        comY[c] = py;
+                        return;
+                    }
+                    if (depth >= MAX_DEPTH) {
+                        addMass(c, px, py);
+                        return;
+                    }
+                    // 叶子里已有一个点：拆成四个子格子，把原来的点放下去，再继续往下插
+                    int old = body[c];
+                    double half = size[c] / 2;
+                    int first = newCell(minX[c], minY[c], half);
+                    newCell(minX[c] + half, minY[c], half);
+                    newCell(minX[c], minY[c] + half, half);
+                    newCell(minX[c] + half, minY[c] + half, half);
+                    firstChild[c] = first;
+                    body[c] = -1;
+                    int q = first + quadrant(c, comX[c], comY[c]);
+                    body[q] = old;
+                    mass[q] = mass[c];
+                    comX[q] = comX[c];
+                    comY[q] = comY[c];
+                }
+                addMass(c, px, py);
+                c = firstChild[c] + quadrant(c, px, py);
+            }
+        }
+
+        private void addMass(int c, double px, double py) {
+            double m = mass[c];
+            comX[c] = (comX[c] * m + px) / (m + 1);
+            comY[c] = (comY[c] * m + py) / (m + 1);
+            mass[c] = m + 1;
+        }
+
+        private int quadrant(int c, double px, double py) {
+            double half = size[c] / 2;
+            return (px >= minX[c] + half ? 1 : 0) + (py >= minY[c] + half ? 2 : 0);
+        }
+    }
+}
@@ -0,0 +1,645 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ScoredSongDTO;
+import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.neo4j.core.Neo4jClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 社区划分：在 NEXT 结构上做并行标签传播 (Label Propagation)
+ * <p>
+ * 把 NEXT 边看成无向加权图 (权重同 r.weight，下限 0.1)，第一次划分时每个点各自一个标签，
+ * 每轮按随机顺序让每个点改成邻居里权重和最大的标签 (前两轮只数邻居个数)，直到改动的点少于 min-change-ratio、
+ * 达到 max-iterations 或超出时间预算。各点的更新按区间用 fork-join 并行、原地写标签数组 (异步 LPA，不会来回振荡)。
+ * 重算时从上一次的划分热启动 (新歌各自一个标签)，打乱顺序的随机数以 graphId 为种子，图没怎么变时结果也基本不变。
+ * </p>
+ * <p>
+ * 第一次按社区大小降序编号 (0 最大)；之后每个旧社区编号留给与它重叠最多的新社区，其余新社区补空出来的最小编号，
+ * 社区编号 (前端的 category / 颜色) 在两次划分之间保持稳定。只把变化了的点分批写回 n.community；
+ * 内存里留一份 id -> 社区 的有序数组，供推荐的 "跨社区多样化" 重排使用。只为被查看 / 推荐过的图谱计算，有听歌或修改后由定时任务重算。
+ * </p>
+ */
+@Slf4j
+@Service
+public class CommunityDetectionService {
+
+    private static final int TASK_THRESHOLD = 4096;
+
+    // 前几轮只数邻居个数不看权重：一开始每个点各自一个标签，按权重选会让互为最重边的两点早早锁死成小团
+    private static final int WARMUP_ITERATIONS = 2;
+
+    // 不属于任何社区 (上次划分之后新增的歌)
+    public static final int NO_COMMUNITY = -1;
+
+    private final Driver driver;
+    private final Neo4jClient neo4jClient;
+    private final GraphInfoRepository graphInfoRepository;
+    private final GraphAdjacencyCache adjacencyCache;
+    private final GraphChangeLog changeLog;
+
+    @Value("${songmap.community.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.community.max-iterations:20}")
+    private int maxIterations;
+
+    @Value("${songmap.community.min-change-ratio:0.001}")
+    private double minChangeRatio;
+
+    @Value("${songmap.community.time-budget-ms:10000}")
+    private long timeBudgetMs;
+
+    @Value("${songmap.community.parallelism:0}")
+    private int parallelism;
+
+    @Value("${songmap.community.write-batch-size:10000}")
+    private int writeBatchSize;
+
+    @Value("${songmap.recommend.diversify.penalty:0.5}")
+    private double diversifyPenalty;
+
+    @Value("${songmap.recommend.diversify.overfetch:3}")
+    private int overfetch;
+
+    private ForkJoinPool pool;
+
+    // graphId -> 最近一次的划分结果
+    private final Map<Long, Assignment> assignments = new ConcurrentHashMap<>();
+    // 有听歌或修改、划分已过时的图谱
+    private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+    // 被查看过、等待 (重新) 划分的图谱：graphId -> userId
+    private final Map<Long, Long> wanted = new ConcurrentHashMap<>();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private final LongAdder iterations = new LongAdder();
+    private final LongAdder budgetExceeded = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder nodesWritten = new LongAdder();
+    private final LongAdder diversified = new LongAdder();
+
+    /**
+     * 划分结果：ids 升序，communities[i] 是 ids[i] 所在社区
+     */
+    record Assignment(long[] ids, int[] communities, int count) {
+
+        int of(long songId) {
+            int i = Arrays.binarySearch(ids, songId);
+            return i >= 0 ? communities[i] : NO_COMMUNITY;
+        }
+    }
+
+    /**
+     * 无向加权图的 CSR：offsets[v] 区间内是 v 的邻居及边权重
+     */
+    record UndirectedGraph(long[] ids, int[] offsets, int[] neighbors, float[] weights) {
+
+        int n() {
+            return ids.length;
+        }
+    }
+
+    public CommunityDetectionService(Driver driver,
+                                     Neo4jClient neo4jClient,
+                                     GraphInfoRepository graphInfoRepository,
+                                     GraphAdjacencyCache adjacencyCache,
+                                     GraphChangeLog changeLog) {
+        this.driver = driver;
+        this.neo4jClient = neo4jClient;
+        this.graphInfoRepository = graphInfoRepository;
+        this.adjacencyCache = adjacencyCache;
+        this.changeLog = changeLog;
+    }
+
+    @PostConstruct
+    public void start() {
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 图谱被查看：还没有划分或划分已过时就排进下一次定时任务
+     */
+    public void request(Long userId, Long graphId) {
+        if (enabled && (!assignments.containsKey(graphId) || stale.contains(graphId))) {
+            wanted.put(graphId, userId);
+        }
+    }
+
+    // ================= 多样化重排 =================
+
+    /**
+     * 多样化要先多取几首候选，再从中挑出 k 首
+     */
+    public int candidateLimit(int k) {
+        return enabled ? k * Math.max(1, overfetch) : k;
+    }
+
+    /**
+     * 跨社区多样化重排 (贪心)：每次挑 分数 * penalty^(该社区已选首数) 最大的候选，
+     * 同一社区的歌越选越难再进，不知道社区的歌 (新歌) 不降权。返回的分数即降权后的分数
+     *
+     * @param ranked 按分数降序的候选，通常是 {@link #candidateLimit} 首
+     */
+    public List<ScoredSongDTO> diversify(Long userId, Long graphId, List<ScoredSongDTO> ranked, int k, boolean explain) {
+        if (!enabled || ranked.size() <= 1) return ranked.size() > k ? new ArrayList<>(ranked.subList(0, k)) : ranked;
+        request(userId, graphId);
+        int[] communities = communitiesOf(userId, graphId, ranked);
+
+        int n = ranked.size();
+        boolean[] taken = new boolean[n];
+        Map<Integer, Integer> picked = new HashMap<>();
+        List<ScoredSongDTO> result = new ArrayList<>(Math.min(k, n));
+        while (result.size() < k && result.size() < n) {
+            int best = -1;
+            double bestScore = -1;
+            for (int i = 0; i < n; i++) {
+                if (taken[i]) continue;
+                double score = ranked.get(i).getScore() * penaltyOf(communities[i], picked);
+                if (score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            taken[best] = true;
+            if (communities[best] != NO_COMMUNITY) picked.merge(communities[best], 1, Integer::sum);
+            ScoredSongDTO dto = ranked.get(best);
+            dto.setScore(bestScore);
+            if (explain && dto.getReason() != null && communities[best] != NO_COMMUNITY) {
+                dto.setReason(dto.getReason() + " Community:" + communities[best]);
+            }
+            result.add(dto);
+        }
+        diversified.increment();
+        return result;
+    }
+
+    private double penaltyOf(int community, Map<Integer, Integer> picked) {
+        if (community == NO_COMMUNITY) return 1.0;
+        return Math.pow(diversifyPenalty, picked.getOrDefault(community, 0));
+    }
+
+    /**
+     * 候选歌曲所在社区：优先查内存里的划分，没有时 (如重启后) 读节点上写回的 n.community
+     */
+    private int[] communitiesOf(Long userId, Long graphId, List<ScoredSongDTO> ranked) {
+        int[] result = new int[ranked.size()];
+        Assignment assignment = assignments.get(graphId);
+        if (assignment != null) {
+            for (int i = 0; i < result.length; i++) result[i] = assignment.of(ranked.get(i).getSong().getId());
+            return result;
+        }
+
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        List<Long> ids = ranked.stream().map(dto -> dto.getSong().getId()).toList();
+        Map<Long, Integer> stored = new HashMap<>();
+        neo4jClient.query(String.format(
+                    "MATCH (n:`%s`) WHERE id(n) IN $ids AND n.community IS NOT NULL " +
+                    "RETURN id(n) AS id, n.community AS community", graph.getNodeLabel()))
+                .bind(ids).to("ids")
+                .fetch().all()
+                .forEach(row -> stored.put(((Number) row.get("id")).longValue(),
+                        ((Number) row.get("community")).intValue()));
+        for (int i = 0; i < result.length; i++) result[i] = stored.getOrDefault(ids.get(i), NO_COMMUNITY);
+        return result;
+    }
+
+    // ================= 失效 =================
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        if (enabled) stale.add(event.graphId());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        if (!enabled) return;
+        if (event.graphId() == null) stale.addAll(assignments.keySet());
+        else stale.add(event.graphId());
+    }
+
+    // ================= 划分 =================
+
+    @Scheduled(fixedDelayString = "${songmap.community.refresh-interval-ms:300000}")
+    public void refresh() {
+        if (!enabled || wanted.isEmpty()) return;
+        for (Long graphId : new ArrayList<>(wanted.keySet())) {
+            Long userId = wanted.remove(graphId);
+            if (userId == null || (assignments.containsKey(graphId) && !stale.contains(graphId))) continue;
+            try {
+                detect(userId, graphId);
+            } catch (RuntimeException e) {
+                failures.increment();
+                assignments.remove(graphId);
+                log.warn("Failed to detect communities for graph {}: {}", graphId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 划分一个图谱并写回 n.community
+     *
+     * @return 社区个数
+     */
+    public int detect(Long userId, Long graphId) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        // 先清标记再取图，划分期间的新听歌会重新标记
+        stale.remove(graphId);
+        long start = System.nanoTime();
+
+        UndirectedGraph g = load(userId, graphId, graph.getNodeLabel());
+        Assignment previous = assignments.get(graphId);
+        Assignment assignment = partition(graphId, g, previous, start + timeBudgetMs * 1_000_000);
+        List<Long> changedIds = write(graph.getNodeLabel(), assignment, previous);
+        int written = changedIds.size();
+        assignments.put(graphId, assignment);
+        // 社区编号即前端的 category：改了的点记进变更日志走增量，改动太多时变更日志自己退回全量
+        changeLog.nodesChanged(graphId, changedIds);
+
+        long elapsed = System.nanoTime() - start;
+        runs.increment();
+        runNanos.add(elapsed);
+        nodesWritten.add(written);
+        log.info("Detected {} communities in graph {} ({} songs, {} written) in {} ms",
+                assignment.count(), graphId, g.n(), written, elapsed / 1_000_000);
+        return assignment.count();
+    }
+
+    /**
+     * 取无向加权图：开启内存邻接表时直接读快照，否则从 Neo4j 流式读取点和边
+     */
+    private UndirectedGraph load(Long userId, Long graphId, String label) {
+        if (adjacencyCache.isEnabled()) {
+            GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+            return adjacency.read(() -> {
+                int n = adjacency.nodeCount();
+                long[] ids = new long[n];
+                for (int i = 0; i < n; i++) ids[i] = adjacency.nodeId(i);
+                EdgeList edges = new EdgeList(adjacency.edgeCount());
+                adjacency.forEachEdge((from, to, jump, userSelect, randomSelect) ->
+                        edges.add(from, to, SongScorer.interaction(userSelect, jump, randomSelect)));
+                return edges.toGraph(ids);
+            });
+        }
+
+        try (Session session = driver.session()) {
+            List<Long> idList = new ArrayList<>();
+            Map<Long, Integer> index = new HashMap<>();
+            Result nodes = session.run(String.format("MATCH (n:`%s`) RETURN id(n) AS id", label));
+            while (nodes.hasNext()) {
+                long id = nodes.next().get("id").asLong();
+                index.put(id, idList.size());
+                idList.add(id);
+            }
+            EdgeList edges = new EdgeList(idList.size() * 2);
+            Result rels = session.run(String.format(
+                    "MATCH (a:`%1$s`)-[r:NEXT]->(b:`%1$s`) RETURN id(a) AS fromId, id(b) AS toId, r.weight AS weight",
+                    label));
+            while (rels.hasNext()) {
+                Record r = rels.next();
+                Integer from = index.get(r.get("fromId").asLong());
+                Integer to = index.get(r.get("toId").asLong());
+                if (from == null || to == null) continue;
+                edges.add(from, to, r.get("weight").isNull() ? 0 : r.get("weight").asNumber().doubleValue());
+            }
+            return edges.toGraph(idList.stream().mapToLong(Long::longValue).toArray());
+        }
+    }
+
+    /**
+     * 有向边列表 -> 无向 CSR (两个方向各存一份，自环丢弃)
+     */
+    static final class EdgeList {
+        int size;
+        int[] from, to;
+        float[] weight;
+
+        EdgeList(int capacity) {
+            capacity = Math.max(16, capacity);
+            from = new int[capacity];
+            to = new int[capacity];
+            weight = new float[capacity];
+        }
+
+        void add(int a, int b, double w) {
+            if (a == b) return;
+            if (size == from.length) {
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+                weight = Arrays.copyOf(weight, size * 2);
+            }
+            from[size] = a;
+            to[size] = b;
+            weight[size] = (float) Math.max(0.1, w);
+            size++;
+        }
+
+        UndirectedGraph toGraph(long[] ids) {
+            int n = ids.length;
+            int[] offsets = new int[n + 1];
+            for (int e = 0; e < size; e++) {
+                offsets[from[e] + 1]++;
+                offsets[to[e] + 1]++;
+            }
+            for (int v = 0; v < n; v++) offsets[v + 1] += offsets[v];
+            int[] cursor = Arrays.copyOf(offsets, n);
+            int[] neighbors = new int[size * 2];
+            float[] weights = new float[size * 2];
+            for (int e = 0; e < size; e++) {
+                int k = cursor[from[e]]++;
+                neighbors[k] = to[e];
+                weights[k] = weight[e];
+                k = cursor[to[e]]++;
+                neighbors[k] = from[e];
+                weights[k] = weight[e];
+            }
+            return new UndirectedGraph(ids, offsets, neighbors, weights);
+        }
+    }
+
+    /**
+     * 初始标签：有上一次划分时同一旧社区的点共用一个标签 (取该社区第一个点的下标)，新歌和冷启动时各自一个
+     * 标签都是 [0, n) 内的点下标，compact 按此计数
+     */
+    static int[] initialLabels(long[] ids, Assignment previous) {
+        int n = ids.length;
+        int[] labels = new int[n];
+        Map<Integer, Integer> representative = new HashMap<>();
+        for (int v = 0; v < n; v++) {
+            int community = previous == null ? NO_COMMUNITY : previous.of(ids[v]);
+            if (community == NO_COMMUNITY) {
+                labels[v] = v;
+            } else {
+                Integer first = representative.putIfAbsent(community, v);
+                labels[v] = first == null ? v : first;
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * 从上一次划分热启动做标签传播，再按重叠沿用旧社区编号；种子固定为 graphId，同样的图得到同样的划分
+     */
+    Assignment partition(long graphId, UndirectedGraph g, Assignment previous, long deadlineNanos) {
+        int[] labels = propagate(g, initialLabels(g.ids(), previous), new SplittableRandom(graphId), deadlineNanos);
+        return compact(g.ids(), labels, previous);
+    }
+
+    private int[] propagate(UndirectedGraph g, int[] labels, SplittableRandom random, long deadlineNanos) {
+        int n = g.n();
+        // 热启动时标签已经成团，不需要只数邻居个数的预热轮
+        boolean cold = true;
+        for (int v = 0; v < n && cold; v++) cold = labels[v] == v;
+        int warmup = cold ? WARMUP_ITERATIONS : 0;
+        int[] order = new int[n];
+        for (int v = 0; v < n; v++) order[v] = v;
+        int maxDegree = 0;
+        for (int v = 0; v < n; v++) maxDegree = Math.max(maxDegree, g.offsets()[v + 1] - g.offsets()[v]);
+        // 每个叶子任务一张散列表，按最大度数定容量
+        int leafSize = Math.max(TASK_THRESHOLD, n / (pool.getParallelism() * 4) + 1);
+
+        int iter = 0;
+        while (iter < maxIterations) {
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            LongAdder changed = new LongAdder();
+            pool.invoke(new PropagateTask(g, labels, order, changed, iter < warmup, maxDegree, leafSize, 0, n));
+            iter++;
+            if (changed.sum() <= n * minChangeRatio) break;
+            if (System.nanoTime() > deadlineNanos) {
+                budgetExceeded.increment();
+                break;
+            }
+        }
+        iterations.add(iter);
+        return labels;
+    }
+
+    /**
+     * 一轮传播：order[lo, hi) 内的点依次改成邻居中权重和最大的标签 (与当前标签并列时不改，其余并列取较小的)
+     */
+    private static final class PropagateTask extends RecursiveAction {
+        private final UndirectedGraph g;
+        private final int[] labels, order;
+        private final LongAdder changed;
+        private final boolean unweighted;
+        private final int maxDegree, leafSize, lo, hi;
+
+        PropagateTask(UndirectedGraph g, int[] labels, int[] order, LongAdder changed, boolean unweighted,
+                      int maxDegree, int leafSize, int lo, int hi) {
+            this.g = g;
+            this.labels = labels;
+            this.order = order;
+            this.changed = changed;
+            this.unweighted = unweighted;
+            this.maxDegree = maxDegree;
+            this.leafSize = leafSize;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > leafSize) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new PropagateTask(g, labels, order, changed, unweighted, maxDegree, leafSize, lo, mid),
+                          new PropagateTask(g, labels, order, changed, unweighted, maxDegree, leafSize, mid, hi));
+                return;
+            }
+            // 开放寻址散列：标签 -> 权重和，used 记下本轮用过的槽位便于清空
+            int capacity = Integer.highestOneBit(Math.max(2, maxDegree) * 2 - 1) << 1;
+            int mask = capacity - 1;
+            int[] keys = new int[capacity];
+            double[] sums = new double[capacity];
+            int[] used = new int[Math.max(1, maxDegree)];
+            Arrays.fill(keys, -1);
+
+            int[] offsets = g.offsets();
+            int[] neighbors = g.neighbors();
+            float[] weights = g.weights();
+            long localChanged = 0;
+            for (int i = lo; i < hi; i++) {
+                int v = order[i];
+                int start = offsets[v], end = offsets[v + 1];
+                if (start == end) continue;
+                int usedCount = 0;
+                for (int k = start; k < end; k++) {
+                    int label = labels[neighbors[k]];
+                    int slot = (label * 0x9E3779B9) >>> 1 & mask;
+                    while (keys[slot] != -1 && keys[slot] != label) slot = (slot + 1) & mask;
+                    if (keys[slot] == -1) {
+                        keys[slot] = label;
+                        used[usedCount++] = slot;
+                    }
+                    sums[slot] += unweighted ? 1 : weights[k];
+                }
+
+                int current = labels[v];
+                int best = current;
+                double bestSum = -1;
+                for (int u = 0; u < usedCount; u++) {
+                    int slot = used[u];
+                    double sum = sums[slot];
+                    int label = keys[slot];
+                    if (sum > bestSum || (sum == bestSum && best != current && (label == current || label < best))) {
+                        best = label;
+                        bestSum = sum;
+                    }
+                    keys[slot] = -1;
+                    sums[slot] = 0;
+                }
+                if (best != current) {
+                    labels[v] = best;
+                    localChanged++;
+                }
+            }
+            changed.add(localChanged);
+        }
+    }
+
+    /**
+     * 标签换成社区编号，并按 id 排序便于查找
+     * 没有上一次划分时按社区大小降序编号；有时先按重叠点数从大到小配对，旧编号归重叠最多的新社区，
+     * 剩下的新社区 (按大小降序) 依次取还没用掉的最小编号
+     */
+    static Assignment compact(long[] ids, int[] labels, Assignment previous) {
+        int n = ids.length;
+        int[] size = new int[n];
+        for (int label : labels) size[label]++;
+        List<Integer> present = new ArrayList<>();
+        for (int label = 0; label < n; label++) {
+            if (size[label] > 0) present.add(label);
+        }
+        present.sort((a, b) -> size[a] != size[b] ? Integer.compare(size[b], size[a]) : Integer.compare(a, b));
+        int[] rank = new int[n];
+        Arrays.fill(rank, -1);
+
+        Set<Integer> taken = new HashSet<>();
+        if (previous != null) {
+            // (新标签, 旧编号) -> 重叠点数
+            Map<Long, Integer> overlap = new HashMap<>();
+            for (int v = 0; v < n; v++) {
+                int old = previous.of(ids[v]);
+                if (old != NO_COMMUNITY) overlap.merge(((long) labels[v] << 32) | old, 1, Integer::sum);
+            }
+            List<Map.Entry<Long, Integer>> pairs = new ArrayList<>(overlap.entrySet());
+            pairs.sort((a, b) -> !a.getValue().equals(b.getValue())
+                    ? Integer.compare(b.getValue(), a.getValue()) : Long.compare(a.getKey(), b.getKey()));
+            for (Map.Entry<Long, Integer> pair : pairs) {
+                int label = (int) (pair.getKey() >>> 32);
+                int old = (int) (long) pair.getKey();
+                if (rank[label] == -1 && !taken.contains(old)) {
+                    rank[label] = old;
+                    taken.add(old);
+                }
+            }
+        }
+        int next = 0;
+        for (int label : present) {
+            if (rank[label] != -1) continue;
+            while (taken.contains(next)) next++;
+            rank[label] = next;
+            taken.add(next);
+        }
+
+        long[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        int[] communities = new int[n];
+        for (int v = 0; v < n; v++) communities[Arrays.binarySearch(sortedIds, ids[v])] = rank[labels[v]];
+        return new Assignment(sortedIds, communities, present.size());
+    }
+
+    /**
+     * 只写社区变了的点，每批一条 UNWIND (各自一个事务)
+     *
+     * @return 写回的点 id
+     */
+    private List<Long> write(String label, Assignment assignment, Assignment previous) {
+        String cypher = String.format(
+            "UNWIND $rows AS row " +
+            "MATCH (n:`%s`) WHERE id(n) = row.id " +
+            "SET n.community = row.community",
+            label
+        );
+        List<Long> written = new ArrayList<>();
+        List<Map<String, Object>> rows = new ArrayList<>(Math.min(writeBatchSize, assignment.ids().length));
+        for (int i = 0; i < assignment.ids().length; i++) {
+            long id = assignment.ids()[i];
+            int community = assignment.communities()[i];
+            if (previous != null && previous.of(id) == community) continue;
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", id);
+            row.put("community", community);
+            rows.add(row);
+            written.add(id);
+            if (rows.size() >= writeBatchSize) {
+                neo4jClient.query(cypher).bind(rows).to("rows").run();
+                rows = new ArrayList<>(writeBatchSize);
+            }
+        }
+        if (!rows.isEmpty()) {
+            neo4jClient.query(cypher).bind(rows).to("rows").run();
+        }
+        return written;
+    }
+
+    /**
+     * 运行指标：已划分的图谱数、划分耗时和迭代轮数、写回点数、多样化重排次数
+     */
+    public Map<String, Object> snapshot() {
+        long runCount = runs.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("graphs", assignments.size());
+        result.put("staleGraphs", stale.size());
+        result.put("pendingRuns", wanted.size());
+        result.put("runs", runCount);
+        result.put("avgRunMs", runCount == 0 ? 0.0 : runNanos.sum() / 1e6 / runCount);
+        result.put("avgIterations", runCount == 0 ? 0.0 : (double) iterations.sum() / runCount);
+        result.put("budgetExceeded", budgetExceeded.sum());
+        result.put("failures", failures.sum());
+        result.put("nodesWritten", nodesWritten.sum());
+        result.put("diversified", diversified.sum());
+        return result;
+    }
+}
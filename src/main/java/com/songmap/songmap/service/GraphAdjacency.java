@@ -0,0 +1,545 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.entity.Song;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * 单个图谱的内存邻接表 (CSR)
+ * <p>
+ * 节点按加载顺序编号 0..n-1，点统计放在并行的 int / long 数组里，id -> 编号用开放寻址哈希表。
+ * NEXT 边按 (起点, 终点) 排序后连续存放，出边用 outOffsets 切成行；入边另建一份 CSR
+ * (inOffsets + inEdges) 指回同一个边槽位，两个方向共享边计数数组。
+ * </p>
+ * <p>
+ * 建表之后新增的边追加在数组末尾，用 outHead/outNext (inHead/inNext) 链表挂在节点上，
+ * 攒到一定数量后整体重排成 CSR。节点编号在重排时保持不变。
+ * </p>
+ * 并发：读方法需在 {@link #read} 内调用，写方法自行持有写锁。
+ */
+final class GraphAdjacency {
+
+    static final long NO_TIME = Long.MIN_VALUE;
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // 追加边超过 CSR 边数的 1/8 (至少 1024 条) 时重排
+    private static final int MIN_COMPACT_THRESHOLD = 1024;
+
+    final Long graphId;
+    final String label;
+    final Long ownerId;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // ---------- 节点 ----------
+    private int nodeCount;
+    private long[] nodeIds;
+    private String[] names;
+    private String[] artists;
+    private int[] listenCount;
+    private int[] fullPlayCount;
+    private int[] skipCount;
+    private int[] userSelectCount;
+    private int[] randomSelectCount;
+    private long[] listenedAt; // epoch millis，NO_TIME 表示没有
+    private int[] outJumpTotal; // 出边 jumpCount 之和，随边增量维护
+    private double[] affinity;  // affinityAt 时刻的衰减亲和度
+    private long[] affinityAt;  // NO_TIME 表示没有
+
+    // id -> 节点编号 (值存编号 + 1，0 表示空槽)
+    private long[] slotKeys;
+    private int[] slotValues;
+
+    // ---------- 边 ----------
+    private int edgeCount;
+    private int[] edgeFrom;
+    private int[] edgeTo;
+    private int[] jumpCount;
+    private int[] edgeUserSelect;
+    private int[] edgeRandomSelect;
+    private double[] edgeAffinity;
+    private long[] edgeAffinityAt;
+
+    // CSR：前 csrEdges 个槽位按 (from, to) 有序，覆盖前 csrNodes 个节点
+    private int csrNodes;
+    private int csrEdges;
+    private int[] outOffsets = new int[1];
+    private int[] inOffsets = new int[1];
+    private int[] inEdges = new int[0];
+
+    // 重排之后追加的边：节点 -> 链表头槽位，槽位 -> 下一个槽位，-1 结束
+    private int[] outHead;
+    private int[] inHead;
+    private int[] outNext;
+    private int[] inNext;
+
+    // 每次增量更新加一，派生快照据此判断是否过期
+    private long version;
+
+    /**
+     * 邻居回调：node 为邻居编号，edge 为边槽位 (可用于 {@link #edgeAffinity})，outgoing 表示 当前 -> 邻居
+     */
+    interface NeighborVisitor {
+        void visit(int node, int edge, boolean outgoing, int jump, int userSelect, int randomSelect);
+    }
+
+    interface EdgeVisitor {
+        void visit(int from, int to, int jump, int userSelect, int randomSelect);
+    }
+
+    GraphAdjacency(Long graphId, String label, Long ownerId, int expectedNodes, int expectedEdges) {
+        this.graphId = graphId;
+        this.label = label;
+        this.ownerId = ownerId;
+
+        int n = Math.max(expectedNodes, 16);
+        nodeIds = new long[n];
+        names = new String[n];
+        artists = new String[n];
+        listenCount = new int[n];
+        fullPlayCount = new int[n];
+        skipCount = new int[n];
+        userSelectCount = new int[n];
+        randomSelectCount = new int[n];
+        listenedAt = new long[n];
+        outJumpTotal = new int[n];
+        affinity = new double[n];
+        affinityAt = new long[n];
+        outHead = filled(n);
+        inHead = filled(n);
+
+        int m = Math.max(expectedEdges, 16);
+        edgeFrom = new int[m];
+        edgeTo = new int[m];
+        jumpCount = new int[m];
+        edgeUserSelect = new int[m];
+        edgeRandomSelect = new int[m];
+        edgeAffinity = new double[m];
+        edgeAffinityAt = new long[m];
+        outNext = new int[m];
+        inNext = new int[m];
+
+        int slots = Integer.highestOneBit(Math.max(n, 8) * 2 - 1) << 1;
+        slotKeys = new long[slots];
+        slotValues = new int[slots];
+    }
+
+    <T> T read(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ================= 读 =================
+
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    int edgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * 缓存预算按 点数 + 边数 计
+     */
+    long weight() {
+        return (long) nodeCount + edgeCount;
+    }
+
+    long version() {
+        return version;
+    }
+
+    /**
+     * 遍历全部边 (CSR 部分与追加部分)
+     */
+    void forEachEdge(EdgeVisitor visitor) {
+        for (int e = 0; e < edgeCount; e++) {
+            visitor.visit(edgeFrom[e], edgeTo[e], jumpCount[e], edgeUserSelect[e], edgeRandomSelect[e]);
+        }
+    }
+
+    int indexOf(long id) {
+        int mask = slotKeys.length - 1;
+        int i = mix(id) & mask;
+        while (true) {
+            int v = slotValues[i];
+            if (v == 0) return -1;
+            if (slotKeys[i] == id) return v - 1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    long nodeId(int node) {
+        return nodeIds[node];
+    }
+
+    String artist(int node) {
+        return artists[node];
+    }
+
+    int userSelectCount(int node) {
+        return userSelectCount[node];
+    }
+
+    int randomSelectCount(int node) {
+        return randomSelectCount[node];
+    }
+
+    long listenedAt(int node) {
+        return listenedAt[node];
+    }
+
+    /**
+     * 衰减到 nowMillis 的点亲和度
+     */
+    double affinity(int node, long nowMillis) {
+        return SongScorer.decay(affinity[node], affinityAt[node], nowMillis);
+    }
+
+    double edgeAffinity(int edge, long nowMillis) {
+        return SongScorer.decay(edgeAffinity[edge], edgeAffinityAt[edge], nowMillis);
+    }
+
+    Song toSong(int node) {
+        Song s = new Song();
+        s.setId(nodeIds[node]);
+        s.setName(names[node]);
+        s.setArtist(artists[node]);
+        s.setListenCount(listenCount[node]);
+        s.setFullPlayCount(fullPlayCount[node]);
+        s.setSkipCount(skipCount[node]);
+        s.setUserSelectCount(userSelectCount[node]);
+        s.setRandomSelectCount(randomSelectCount[node]);
+        s.setOutJumpTotal(outJumpTotal[node]);
+        s.setAffinity(affinity[node]);
+        s.setAffinityAt(affinityAt[node] == NO_TIME ? null : affinityAt[node]);
+        long at = listenedAt[node];
+        s.setListenedAt(at == NO_TIME ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(at), ZONE));
+        return s;
+    }
+
+    /**
+     * 先遍历出边再遍历入边，与原 findAllNeighbors 的顺序一致
+     *
+     * @return 当前歌曲不在该图谱中时返回 false
+     */
+    boolean forEachNeighbor(long songId, NeighborVisitor visitor) {
+        int node = indexOf(songId);
+        if (node < 0) return false;
+
+        if (node < csrNodes) {
+            for (int e = outOffsets[node], end = outOffsets[node + 1]; e < end; e++) {
+                visitor.visit(edgeTo[e], e, true, jumpCount[e], edgeUserSelect[e], edgeRandomSelect[e]);
+            }
+        }
+        for (int e = outHead[node]; e >= 0; e = outNext[e]) {
+            visitor.visit(edgeTo[e], e, true, jumpCount[e], edgeUserSelect[e], edgeRandomSelect[e]);
+        }
+
+        if (node < csrNodes) {
+            for (int k = inOffsets[node], end = inOffsets[node + 1]; k < end; k++) {
+                int e = inEdges[k];
+                visitor.visit(edgeFrom[e], e, false, jumpCount[e], edgeUserSelect[e], edgeRandomSelect[e]);
+            }
+        }
+        for (int e = inHead[node]; e >= 0; e = inNext[e]) {
+            visitor.visit(edgeFrom[e], e, false, jumpCount[e], edgeUserSelect[e], edgeRandomSelect[e]);
+        }
+        return true;
+    }
+
+    private int findEdge(int from, int to) {
+        if (from < csrNodes) {
+            int lo = outOffsets[from], hi = outOffsets[from + 1];
+            if (lo < hi) {
+                int pos = Arrays.binarySearch(edgeTo, lo, hi, to);
+                if (pos >= 0) return pos;
+            }
+        }
+        for (int e = outHead[from]; e >= 0; e = outNext[e]) {
+            if (edgeTo[e] == to) return e;
+        }
+        return -1;
+    }
+
+    // ================= 加载 (单线程，发布前调用) =================
+
+    int addNode(long id, String name, String artist, int listens, int fullPlays, int skips,
+                int userSelects, int randomSelects, long at, double affinityValue, long affinityMillis) {
+        int existing = indexOf(id);
+        if (existing >= 0) return existing;
+
+        ensureNodeCapacity(nodeCount + 1);
+        int node = nodeCount;
+        nodeIds[node] = id;
+        names[node] = name;
+        artists[node] = artist;
+        listenCount[node] = listens;
+        fullPlayCount[node] = fullPlays;
+        skipCount[node] = skips;
+        userSelectCount[node] = userSelects;
+        randomSelectCount[node] = randomSelects;
+        listenedAt[node] = at;
+        outJumpTotal[node] = 0;
+        affinity[node] = affinityValue;
+        affinityAt[node] = affinityMillis;
+        outHead[node] = -1;
+        inHead[node] = -1;
+        putIndex(id, node);
+        nodeCount++;
+        return node;
+    }
+
+    int addEdge(int from, int to, int jumps, int userSelects, int randomSelects,
+                double affinityValue, long affinityMillis) {
+        ensureEdgeCapacity(edgeCount + 1);
+        int e = edgeCount++;
+        edgeFrom[e] = from;
+        edgeTo[e] = to;
+        jumpCount[e] = jumps;
+        outJumpTotal[from] += jumps;
+        edgeUserSelect[e] = userSelects;
+        edgeRandomSelect[e] = randomSelects;
+        edgeAffinity[e] = affinityValue;
+        edgeAffinityAt[e] = affinityMillis;
+        outNext[e] = outHead[from];
+        outHead[from] = e;
+        inNext[e] = inHead[to];
+        inHead[to] = e;
+        return e;
+    }
+
+    /**
+     * 叠加 PlayCounterAccumulator 中尚未刷盘的点增量
+     */
+    void addPendingNode(long id, long listens, long fullPlays, long skips,
+                        long userSelects, long randomSelects, long atMillis) {
+        int node = indexOf(id);
+        if (node < 0) return;
+        listenCount[node] += (int) listens;
+        fullPlayCount[node] += (int) fullPlays;
+        skipCount[node] += (int) skips;
+        userSelectCount[node] += (int) userSelects;
+        randomSelectCount[node] += (int) randomSelects;
+        if (atMillis > 0 && atMillis > listenedAt[node]) listenedAt[node] = atMillis;
+        addAffinity(affinity, affinityAt, node,
+                userSelects * RankWeights.W_USER_SELECT - randomSelects * RankWeights.W_RANDOM,
+                atMillis > 0 ? atMillis : System.currentTimeMillis());
+    }
+
+    void addPendingEdge(long fromId, long toId, long jumps, long userSelects, long randomSelects) {
+        int from = indexOf(fromId), to = indexOf(toId);
+        if (from < 0 || to < 0) return;
+        int e = findEdge(from, to);
+        if (e < 0) e = addEdge(from, to, 0, 0, 0, 0, NO_TIME);
+        jumpCount[e] += (int) jumps;
+        outJumpTotal[from] += (int) jumps;
+        edgeUserSelect[e] += (int) userSelects;
+        edgeRandomSelect[e] += (int) randomSelects;
+        // 未刷的边增量不带时间，按加载时刻计，与刷盘时的误差在一个刷盘周期以内
+        addAffinity(edgeAffinity, edgeAffinityAt, e, jumps * RankWeights.W_JUMP
+                + userSelects * RankWeights.W_USER_SELECT - randomSelects * RankWeights.W_RANDOM,
+                System.currentTimeMillis());
+    }
+
+    // ================= 增量更新 =================
+
+    /**
+     * 按顺序应用一批已落库的听歌，语义与写路径的 Cypher 一致
+     */
+    void applyListens(List<ListenAppliedEvent.Listen> listens) {
+        lock.writeLock().lock();
+        try {
+            for (ListenAppliedEvent.Listen l : listens) {
+                applyListen(l);
+            }
+            version++;
+            if (edgeCount - csrEdges > Math.max(MIN_COMPACT_THRESHOLD, csrEdges >> 3)) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void applyListen(ListenAppliedEvent.Listen l) {
+        long at = l.listenedAt() == null
+                ? System.currentTimeMillis()
+                : l.listenedAt().atZone(ZONE).toInstant().toEpochMilli();
+        int node = addNode(l.songId(), l.name(), l.artist(), 0, 0, 0, 0, 0, at, 0, NO_TIME);
+        if (l.artist() != null) artists[node] = l.artist();
+        listenCount[node]++;
+        if (l.isFullPlay()) fullPlayCount[node]++;
+        if (l.isSkip()) skipCount[node]++;
+        if (l.isRandom()) randomSelectCount[node]++;
+        else userSelectCount[node]++;
+        listenedAt[node] = at;
+        addAffinity(affinity, affinityAt, node, SongScorer.affinityGain(l.isRandom(), false), at);
+
+        if (l.prevId() == null) return;
+        int prev = indexOf(l.prevId());
+        if (prev < 0 || prev == node) return;
+        int e = findEdge(prev, node);
+        if (e < 0) e = addEdge(prev, node, 0, 0, 0, 0, NO_TIME);
+        jumpCount[e]++;
+        outJumpTotal[prev]++;
+        if (l.isRandom()) edgeRandomSelect[e]++;
+        else edgeUserSelect[e]++;
+        addAffinity(edgeAffinity, edgeAffinityAt, e, SongScorer.affinityGain(l.isRandom(), true), at);
+    }
+
+    /**
+     * 与写路径的 ListenCypher.decayAffinity 相同：先衰减到较晚的时间再相加，乱序写入结果一致
+     */
+    private static void addAffinity(double[] values, long[] ats, int i, double gain, long at) {
+        if (ats[i] == NO_TIME || at >= ats[i]) {
+            values[i] = SongScorer.decay(values[i], ats[i], at) + gain;
+            ats[i] = at;
+        } else {
+            values[i] += SongScorer.decay(gain, at, ats[i]);
+        }
+    }
+
+    /**
+     * 把所有边重排成 CSR：先按终点、再按起点做两趟稳定计数排序，O(n + m)
+     */
+    void compact() {
+        int n = nodeCount, m = edgeCount;
+
+        int[] byTo = countingSort(edgeTo, null, n, m);
+        int[] order = countingSort(edgeFrom, byTo, n, m);
+
+        edgeFrom = permute(edgeFrom, order, m);
+        edgeTo = permute(edgeTo, order, m);
+        jumpCount = permute(jumpCount, order, m);
+        edgeUserSelect = permute(edgeUserSelect, order, m);
+        edgeRandomSelect = permute(edgeRandomSelect, order, m);
+        edgeAffinity = permute(edgeAffinity, order, m);
+        edgeAffinityAt = permute(edgeAffinityAt, order, m);
+
+        // 出边：槽位已按起点有序，直接切行
+        outOffsets = offsets(edgeFrom, n, m);
+        // 入边：按终点稳定排序，同一行内保持起点有序
+        inEdges = countingSort(edgeTo, null, n, m);
+        inOffsets = offsets(edgeTo, n, m);
+
+        Arrays.fill(outHead, 0, n, -1);
+        Arrays.fill(inHead, 0, n, -1);
+        csrNodes = n;
+        csrEdges = m;
+    }
+
+    private static int[] countingSort(int[] keys, int[] input, int n, int m) {
+        int[] start = offsets(keys, n, m);
+        int[] out = new int[m];
+        for (int i = 0; i < m; i++) {
+            int slot = input == null ? i : input[i];
+            out[start[keys[slot]]++] = slot;
+        }
+        return out;
+    }
+
+    private static int[] offsets(int[] keys, int n, int m) {
+        int[] off = new int[n + 1];
+        for (int i = 0; i < m; i++) off[keys[i] + 1]++;
+        for (int i = 0; i < n; i++) off[i + 1] += off[i];
+        return off;
+    }
+
+    private static int[] permute(int[] src, int[] order, int m) {
+        int[] dst = new int[src.length];
+        for (int i = 0; i < m; i++) dst[i] = src[order[i]];
+        return dst;
+    }
+
+    private static double[] permute(double[] src, int[] order, int m) {
+        double[] dst = new double[src.length];
+        for (int i = 0; i < m; i++) dst[i] = src[order[i]];
+        return dst;
+    }
+
+    private static long[] permute(long[] src, int[] order, int m) {
+        long[] dst = new long[src.length];
+        for (int i = 0; i < m; i++) dst[i] = src[order[i]];
+        return dst;
+    }
+
+    // ================= 容量与哈希 =================
+
+    private void ensureNodeCapacity(int need) {
+        if (need <= nodeIds.length) return;
+        int cap = Math.max(need, nodeIds.length + (nodeIds.length >> 1));
+        nodeIds = Arrays.copyOf(nodeIds, cap);
+        names = Arrays.copyOf(names, cap);
+        artists = Arrays.copyOf(artists, cap);
+        listenCount = Arrays.copyOf(listenCount, cap);
+        fullPlayCount = Arrays.copyOf(fullPlayCount, cap);
+        skipCount = Arrays.copyOf(skipCount, cap);
+        userSelectCount = Arrays.copyOf(userSelectCount, cap);
+        randomSelectCount = Arrays.copyOf(randomSelectCount, cap);
+        listenedAt = Arrays.copyOf(listenedAt, cap);
+        outJumpTotal = Arrays.copyOf(outJumpTotal, cap);
+        affinity = Arrays.copyOf(affinity, cap);
+        affinityAt = Arrays.copyOf(affinityAt, cap);
+        outHead = Arrays.copyOf(outHead, cap);
+        inHead = Arrays.copyOf(inHead, cap);
+    }
+
+    private void ensureEdgeCapacity(int need) {
+        if (need <= edgeFrom.length) return;
+        int cap = Math.max(need, edgeFrom.length + (edgeFrom.length >> 1));
+        edgeFrom = Arrays.copyOf(edgeFrom, cap);
+        edgeTo = Arrays.copyOf(edgeTo, cap);
+        jumpCount = Arrays.copyOf(jumpCount, cap);
+        edgeUserSelect = Arrays.copyOf(edgeUserSelect, cap);
+        edgeRandomSelect = Arrays.copyOf(edgeRandomSelect, cap);
+        edgeAffinity = Arrays.copyOf(edgeAffinity, cap);
+        edgeAffinityAt = Arrays.copyOf(edgeAffinityAt, cap);
+        outNext = Arrays.copyOf(outNext, cap);
+        inNext = Arrays.copyOf(inNext, cap);
+    }
+
+    private void putIndex(long id, int node) {
+        // 负载因子保持在 0.5 以下
+        if ((nodeCount + 1) * 2 > slotKeys.length) rehash(slotKeys.length * 2);
+        insert(slotKeys, slotValues, id, node + 1);
+    }
+
+    private void rehash(int size) {
+        long[] keys = new long[size];
+        int[] values = new int[size];
+        for (int i = 0; i < slotKeys.length; i++) {
+            if (slotValues[i] != 0) insert(keys, values, slotKeys[i], slotValues[i]);
+        }
+        slotKeys = keys;
+        slotValues = values;
+    }
+
+    private static void insert(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != 0) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int[] filled(int size) {
+        int[] a = new int[size];
+        Arrays.fill(a, -1);
+        return a;
+    }
+}
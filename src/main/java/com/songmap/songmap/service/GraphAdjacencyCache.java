@@ -0,0 +1,285 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.ZoneId;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按图谱缓存的内存邻接表
+ * <p>
+ * 推荐时第一次访问某个图谱才从 Neo4j 整体加载一次 ({@link GraphAdjacency})，
+ * 之后由 {@link ListenAppliedEvent} 增量更新、{@link GraphChangedEvent} 整体失效，推荐打分不再访问数据库。
+ * 加载放在该图谱的听歌车道上执行，加载期间不会有听歌穿插，读到的是一致的快照。
+ * </p>
+ * <p>
+ * 缓存总量按 点数 + 边数 计预算，超出预算或堆内存吃紧时按 LRU 淘汰，被淘汰的图谱下次访问时重新加载。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphAdjacencyCache {
+
+    private final Driver driver;
+    private final GraphInfoRepository graphInfoRepository;
+    private final GraphListenSequencer listenSequencer;
+    private final PlayCounterAccumulator counterAccumulator;
+
+    @Value("${songmap.adjacency.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.adjacency.max-entries:5000000}")
+    private long maxEntries;
+
+    @Value("${songmap.adjacency.heap-watermark:0.85}")
+    private double heapWatermark;
+
+    // accessOrder = true 的 LinkedHashMap，迭代顺序即 LRU 顺序
+    private final LinkedHashMap<Long, GraphAdjacency> graphs = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public GraphAdjacencyCache(Driver driver,
+                               GraphInfoRepository graphInfoRepository,
+                               GraphListenSequencer listenSequencer,
+                               PlayCounterAccumulator counterAccumulator) {
+        this.driver = driver;
+        this.graphInfoRepository = graphInfoRepository;
+        this.listenSequencer = listenSequencer;
+        this.counterAccumulator = counterAccumulator;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 取图谱的邻接表，不在缓存中时加载；同时校验图谱归属
+     */
+    GraphAdjacency get(Long userId, Long graphId) {
+        GraphAdjacency adjacency = peek(graphId);
+        if (adjacency != null) {
+            hits.increment();
+        } else {
+            // 排在该图谱车道上加载；排队期间可能已被别的请求加载好
+            adjacency = listenSequencer.execute(graphId, () -> {
+                GraphAdjacency loaded = peek(graphId);
+                return loaded != null ? loaded : load(userId, graphId);
+            });
+        }
+        if (!adjacency.ownerId.equals(userId)) {
+            throw new IllegalArgumentException("Graph not found or access denied");
+        }
+        return adjacency;
+    }
+
+    private GraphAdjacency peek(Long graphId) {
+        synchronized (graphs) {
+            return graphs.get(graphId);
+        }
+    }
+
+    private GraphAdjacency load(Long userId, Long graphId) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        String label = graph.getNodeLabel();
+        long start = System.nanoTime();
+
+        // 读库与叠加未刷增量作为一次读，与计数刷盘交错时由计数缓冲重读
+        GraphAdjacency adjacency = counterAccumulator.read(graphId, () -> {
+            GraphAdjacency adj;
+            try (Session session = driver.session()) {
+                int nodeHint = session.run(String.format("MATCH (n:`%s`) RETURN count(n) AS c", label))
+                        .single().get("c").asInt();
+                adj = new GraphAdjacency(graphId, label, userId, nodeHint, nodeHint * 2);
+                loadNodes(session, adj);
+                loadEdges(session, adj);
+            }
+            counterAccumulator.forEachPending(graphId, adj::addPendingNode, adj::addPendingEdge);
+            adj.compact();
+            return adj;
+        });
+
+        long elapsed = System.nanoTime() - start;
+        loads.increment();
+        loadNanos.add(elapsed);
+        synchronized (graphs) {
+            graphs.put(graphId, adjacency);
+        }
+        enforceBudget(graphId);
+        log.info("Loaded adjacency for graph {}: {} nodes, {} edges in {} ms",
+                graphId, adjacency.nodeCount(), adjacency.edgeCount(), elapsed / 1_000_000);
+        return adjacency;
+    }
+
+    private void loadNodes(Session session, GraphAdjacency adj) {
+        String cypher = String.format(
+            "MATCH (n:`%s`) " +
+            "RETURN id(n) AS id, n.name AS name, n.artist AS artist, n.listenCount AS listenCount, " +
+            "       n.fullPlayCount AS fullPlayCount, n.skipCount AS skipCount, " +
+            "       n.userSelectCount AS userSelectCount, n.randomSelectCount AS randomSelectCount, " +
+            "       n.listenedAt AS listenedAt, n.affinity AS affinity, n.affinityAt AS affinityAt",
+            adj.label
+        );
+        Result result = session.run(cypher);
+        while (result.hasNext()) {
+            Record r = result.next();
+            adj.addNode(r.get("id").asLong(),
+                    r.get("name").isNull() ? null : r.get("name").asString(),
+                    r.get("artist").isNull() ? null : r.get("artist").asString(),
+                    intOf(r.get("listenCount")), intOf(r.get("fullPlayCount")), intOf(r.get("skipCount")),
+                    intOf(r.get("userSelectCount")), intOf(r.get("randomSelectCount")),
+                    millisOf(r.get("listenedAt")),
+                    doubleOf(r.get("affinity")), timeOf(r.get("affinityAt")));
+        }
+    }
+
+    private void loadEdges(Session session, GraphAdjacency adj) {
+        String cypher = String.format(
+            "MATCH (a:`%1$s`)-[r:NEXT]->(b:`%1$s`) " +
+            "RETURN id(a) AS fromId, id(b) AS toId, r.jumpCount AS jumpCount, " +
+            "       r.userSelectCount AS userSelectCount, r.randomSelectCount AS randomSelectCount, " +
+            "       r.affinity AS affinity, r.affinityAt AS affinityAt",
+            adj.label
+        );
+        Result result = session.run(cypher);
+        while (result.hasNext()) {
+            Record r = result.next();
+            int from = adj.indexOf(r.get("fromId").asLong());
+            int to = adj.indexOf(r.get("toId").asLong());
+            if (from < 0 || to < 0) continue;
+            adj.addEdge(from, to, intOf(r.get("jumpCount")),
+                    intOf(r.get("userSelectCount")), intOf(r.get("randomSelectCount")),
+                    doubleOf(r.get("affinity")), timeOf(r.get("affinityAt")));
+        }
+    }
+
+    private int intOf(org.neo4j.driver.Value v) {
+        return v.isNull() ? 0 : v.asNumber().intValue();
+    }
+
+    private double doubleOf(org.neo4j.driver.Value v) {
+        return v.isNull() ? 0 : v.asNumber().doubleValue();
+    }
+
+    private long timeOf(org.neo4j.driver.Value v) {
+        return v.isNull() ? GraphAdjacency.NO_TIME : v.asNumber().longValue();
+    }
+
+    private long millisOf(org.neo4j.driver.Value v) {
+        if (v.isNull()) return GraphAdjacency.NO_TIME;
+        try {
+            return v.asLocalDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return GraphAdjacency.NO_TIME;
+        }
+    }
+
+    // ================= 增量更新与失效 =================
+
+    /**
+     * 听歌事务提交后同步更新已加载的邻接表 (仍在该图谱车道线程上，顺序与写入一致)
+     */
+    @Order(0)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        GraphAdjacency adjacency = peek(event.graphId());
+        if (adjacency == null) return;
+        try {
+            adjacency.applyListens(event.listens());
+        } catch (RuntimeException e) {
+            log.warn("Failed to apply listens to adjacency of graph {}, dropping it: {}", event.graphId(), e.getMessage());
+            evict(event.graphId());
+            return;
+        }
+        enforceBudget(event.graphId());
+    }
+
+    /**
+     * 图谱数据被非听歌路径修改时整体丢弃，下次访问重新加载
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        synchronized (graphs) {
+            if (event.graphId() == null) graphs.clear();
+            else graphs.remove(event.graphId());
+        }
+    }
+
+    private void evict(Long graphId) {
+        synchronized (graphs) {
+            graphs.remove(graphId);
+        }
+    }
+
+    /**
+     * 超出预算或堆使用超过水位时，从最久未访问的图谱开始淘汰 (keep 不淘汰)
+     */
+    private void enforceBudget(Long keep) {
+        synchronized (graphs) {
+            long total = 0;
+            for (GraphAdjacency adj : graphs.values()) total += adj.weight();
+
+            Iterator<Map.Entry<Long, GraphAdjacency>> it = graphs.entrySet().iterator();
+            while (it.hasNext() && (total > maxEntries || heapTight())) {
+                Map.Entry<Long, GraphAdjacency> eldest = it.next();
+                if (eldest.getKey().equals(keep)) continue;
+                total -= eldest.getValue().weight();
+                it.remove();
+                evictions.increment();
+                log.info("Evicted adjacency of graph {}", eldest.getKey());
+            }
+        }
+    }
+
+    private boolean heapTight() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        return used > rt.maxMemory() * heapWatermark;
+    }
+
+    /**
+     * 运行指标：缓存的图谱、点边规模、命中 / 加载 / 淘汰次数
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> perGraph = new LinkedHashMap<>();
+        long total = 0;
+        synchronized (graphs) {
+            for (GraphAdjacency adj : graphs.values()) {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("nodes", adj.nodeCount());
+                m.put("edges", adj.edgeCount());
+                perGraph.put(String.valueOf(adj.graphId), m);
+                total += adj.weight();
+            }
+        }
+        long loadCount = loads.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("entries", total);
+        result.put("maxEntries", maxEntries);
+        result.put("hits", hits.sum());
+        result.put("loads", loadCount);
+        result.put("avgLoadMs", loadCount == 0 ? 0.0 : loadNanos.sum() / 1e6 / loadCount);
+        result.put("evictions", evictions.sum());
+        result.put("graphs", perGraph);
+        return result;
+    }
+}
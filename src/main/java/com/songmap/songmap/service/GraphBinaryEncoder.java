@@ -0,0 +1,189 @@
+package com.songmap.songmap.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 图谱数据的紧凑二进制列式编码 (application/vnd.songmap.graph)，比 JSON 小一个数量级，前端可直接套 TypedArray
+ * <p>
+ * 小端序。开头 8 字节：魔数 "SMG1" + 4 字节保留。之后是一串帧，每帧 8 字节帧头 (1 字节类型 + 3 字节保留 + int32 行数)，
+ * 帧体由若干列组成，每列补齐到 8 字节，所以 int64 / int32 / float32 列都能按偏移直接建视图：
+ * <pre>
+ * 1 STRINGS  int32 byteLength[n], 随后 UTF-8 字节         字符串表追加 n 项，编号按出现顺序从 0 连续递增
+ * 2 NODES    int64 id[n], int32 name[n], int32 artist[n], uint16 symbolSize[n], int32 category[n]
+ * 3 LINKS    int32 source[n], int32 target[n], int32 value[n], float32 probability[n]
+ * 4 END      (n = 0) int64 version, int64 nodes, int64 links
+ * </pre>
+ * name / artist 是字符串表编号 (-1 表示没有)，字符串帧总在第一次引用它的点帧之前；
+ * 点按出现顺序从 0 编号，边的 source / target 是点编号，所有点帧在边帧之前。没有 END 帧说明数据不完整。
+ * </p>
+ * <p>
+ * 按 {@link #BLOCK_ROWS} 行一帧边读游标边写，不建中间 DTO。点必须按 id 升序写入 (查询 ORDER BY id)，
+ * 边的端点用二分查找换成点编号，全程只保留一个 long[] 的点 id 和字符串去重表。
+ * </p>
+ */
+final class GraphBinaryEncoder {
+
+    static final int BLOCK_ROWS = 4096;
+
+    private static final byte[] MAGIC = {'S', 'M', 'G', '1', 0, 0, 0, 0};
+    private static final byte STRINGS = 1, NODES = 2, LINKS = 3, END = 4;
+
+    private final OutputStream out;
+
+    // 已写出的点 id (升序)，下标即点编号
+    private long[] nodeIds = new long[BLOCK_ROWS];
+    private int nodeCount;
+    private long linkCount;
+
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<byte[]> pendingStrings = new ArrayList<>();
+
+    // 当前块
+    private int rows;
+    private final int[] nameCol = new int[BLOCK_ROWS];
+    private final int[] artistCol = new int[BLOCK_ROWS];
+    private final int[] sizeCol = new int[BLOCK_ROWS];
+    private final int[] categoryCol = new int[BLOCK_ROWS];
+    private final int[] sourceCol = new int[BLOCK_ROWS];
+    private final int[] targetCol = new int[BLOCK_ROWS];
+    private final int[] valueCol = new int[BLOCK_ROWS];
+    private final float[] probabilityCol = new float[BLOCK_ROWS];
+    private boolean linksStarted;
+
+    GraphBinaryEncoder(OutputStream out) throws IOException {
+        this.out = out;
+        out.write(MAGIC);
+    }
+
+    long nodes() {
+        return nodeCount;
+    }
+
+    long links() {
+        return linkCount;
+    }
+
+    void node(long id, String name, String artist, int symbolSize, int category) throws IOException {
+        if (linksStarted) throw new IllegalStateException("nodes must be written before links");
+        if (nodeCount > 0 && id <= nodeIds[nodeCount - 1]) {
+            throw new IllegalStateException("nodes must be written in ascending id order");
+        }
+        if (nodeCount == nodeIds.length) nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+        nodeIds[nodeCount++] = id;
+        nameCol[rows] = intern(name);
+        artistCol[rows] = intern(artist);
+        sizeCol[rows] = symbolSize;
+        categoryCol[rows] = category;
+        if (++rows == BLOCK_ROWS) flushNodes();
+    }
+
+    /**
+     * @return 端点不在已写出的点里时返回 false (跳过)
+     */
+    boolean link(long sourceId, long targetId, int value, double probability) throws IOException {
+        if (!linksStarted) {
+            flushNodes();
+            linksStarted = true;
+        }
+        int source = Arrays.binarySearch(nodeIds, 0, nodeCount, sourceId);
+        int target = Arrays.binarySearch(nodeIds, 0, nodeCount, targetId);
+        if (source < 0 || target < 0) return false;
+        sourceCol[rows] = source;
+        targetCol[rows] = target;
+        valueCol[rows] = value;
+        probabilityCol[rows] = (float) probability;
+        linkCount++;
+        if (++rows == BLOCK_ROWS) flushLinks();
+        return true;
+    }
+
+    void end(long version) throws IOException {
+        if (linksStarted) flushLinks();
+        else flushNodes();
+        ByteBuffer buf = frame(END, 0, 24);
+        buf.putLong(version).putLong(nodeCount).putLong(linkCount);
+        write(buf);
+        out.flush();
+    }
+
+    private int intern(String s) {
+        if (s == null) return -1;
+        return strings.computeIfAbsent(s, k -> {
+            pendingStrings.add(k.getBytes(StandardCharsets.UTF_8));
+            return strings.size();
+        });
+    }
+
+    private void flushNodes() throws IOException {
+        if (!pendingStrings.isEmpty()) {
+            int n = pendingStrings.size();
+            int bytes = 0;
+            for (byte[] s : pendingStrings) bytes += s.length;
+            ByteBuffer buf = frame(STRINGS, n, pad(4L * n) + pad(bytes));
+            for (byte[] s : pendingStrings) buf.putInt(s.length);
+            align(buf);
+            for (byte[] s : pendingStrings) buf.put(s);
+            align(buf);
+            write(buf);
+            pendingStrings.clear();
+        }
+        if (rows == 0) return;
+        int n = rows;
+        ByteBuffer buf = frame(NODES, n, pad(8L * n) + 3 * pad(4L * n) + pad(2L * n));
+        for (int i = nodeCount - n; i < nodeCount; i++) buf.putLong(nodeIds[i]);
+        for (int i = 0; i < n; i++) buf.putInt(nameCol[i]);
+        align(buf);
+        for (int i = 0; i < n; i++) buf.putInt(artistCol[i]);
+        align(buf);
+        for (int i = 0; i < n; i++) buf.putShort((short) Math.min(sizeCol[i], 0xFFFF));
+        align(buf);
+        for (int i = 0; i < n; i++) buf.putInt(categoryCol[i]);
+        align(buf);
+        write(buf);
+        rows = 0;
+    }
+
+    private void flushLinks() throws IOException {
+        if (rows == 0) return;
+        int n = rows;
+        ByteBuffer buf = frame(LINKS, n, 4 * pad(4L * n));
+        for (int i = 0; i < n; i++) buf.putInt(sourceCol[i]);
+        align(buf);
+        for (int i = 0; i < n; i++) buf.putInt(targetCol[i]);
+        align(buf);
+        for (int i = 0; i < n; i++) buf.putInt(valueCol[i]);
+        align(buf);
+        for (int i = 0; i < n; i++) buf.putFloat(probabilityCol[i]);
+        align(buf);
+        write(buf);
+        rows = 0;
+    }
+
+    private static ByteBuffer frame(byte type, int rows, int bodyBytes) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + bodyBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(type).put((byte) 0).put((byte) 0).put((byte) 0).putInt(rows);
+        return buf;
+    }
+
+    private static int pad(long bytes) {
+        return (int) ((bytes + 7) & ~7L);
+    }
+
+    private static void align(ByteBuffer buf) {
+        while ((buf.position() & 7) != 0) buf.put((byte) 0);
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        out.write(buf.array(), 0, buf.position());
+        out.flush();
+    }
+}
@@ -0,0 +1,396 @@
+package com.songmap.songmap.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 图谱的修改版本号 + 有界变更日志，支撑 /api/graph/data 的 ETag 和增量同步 (since=版本号)
+ * <p>
+ * 每次修改 (听歌、删点、删边、属性批量修改、计数刷盘、社区重算) 在事务提交后把版本号加一，
+ * 并在该图谱的环形缓冲里记下受影响的 id：变化的点、出边变化的起点 (转移概率的分母变了，整组出边都要重发)、
+ * 删掉的点和边。只记 id 不记内容，增量查询时再按 id 读当前状态。
+ * </p>
+ * <p>
+ * 缓冲满了丢最旧的记录，早于最旧记录的 since 只能全量重发；影响面太大的修改 (全局属性修改等) 直接重置日志。
+ * 缓冲按需从 {@link #INITIAL_SLOTS} 翻倍增长到 capacity，只被读过的图谱几乎不占内存；
+ * 超过 idle-ms 没有读写的日志整个移除，下次用到时新建的日志要求全量，和重启后一样。
+ * 版本号以启动时的毫秒时间戳左移 10 位为起点，重启后仍单调递增，客户端手里重启前的版本号会落在新日志之前而触发全量。
+ * 日志在本实例内存中；其他实例的修改经 {@link GraphDataCache} 的 Redis 广播到达后按 {@link #remoteChanged} 重置。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphChangeLog {
+
+    @Value("${songmap.graph.changelog.capacity:10000}")
+    private int capacity;
+
+    @Value("${songmap.graph.changelog.idle-ms:1800000}")
+    private long idleMs;
+
+    static final int INITIAL_SLOTS = 16;
+
+    private final Map<Long, Log> logs = new ConcurrentHashMap<>();
+    // 本实例的修改提交后的回调 (graphId 为 null 表示所有图谱)
+    private final List<Consumer<Long>> listeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder mutations = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+    private final LongAdder deltas = new LongAdder();
+    private final LongAdder fullFallbacks = new LongAdder();
+    private final LongAdder remoteResets = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private enum Kind { NODE, OUT_LINKS, NODE_REMOVED, LINK_REMOVED }
+
+    /**
+     * since 之后的变更 (已去重)
+     *
+     * @param reset         since 太旧或不属于本日志，只能全量重发；此时其余集合为空
+     * @param nodes         新增或变化的点
+     * @param linkSources   出边有新增或变化的起点 (应重发它们的全部出边)
+     * @param removedNodes  删掉的点 (连带删掉与之相连的边)
+     * @param removedLinks  删掉的边 [from, to]
+     */
+    public record Delta(long version, boolean reset, Set<Long> nodes, Set<Long> linkSources,
+                        Set<Long> removedNodes, List<long[]> removedLinks) {
+    }
+
+    /**
+     * 单个图谱的日志：同步块保护，环形缓冲按版本号递增
+     */
+    private final class Log {
+        long version = System.currentTimeMillis() << 10;
+        // 能回答的最小 since：比它更早的变更已被丢弃或日志已重置
+        long floor = version;
+        long[] versions = new long[0];
+        long[] first = new long[0];
+        long[] second = new long[0];
+        Kind[] kinds = new Kind[0];
+        int head, size;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        int slot(int k) {
+            return (head + k) % versions.length;
+        }
+
+        void append(Kind kind, long a, long b) {
+            if (size == versions.length && size < capacity) grow();
+            if (size == capacity) {
+                floor = versions[head];
+                head = (head + 1) % capacity;
+                size--;
+            }
+            int slot = slot(size);
+            versions[slot] = version;
+            kinds[slot] = kind;
+            first[slot] = a;
+            second[slot] = b;
+            size++;
+        }
+
+        // 按环形顺序展开到新数组，head 归零
+        void grow() {
+            int length = (int) Math.min(capacity, Math.max(INITIAL_SLOTS, (long) versions.length * 2));
+            long[] v = new long[length], f = new long[length], sc = new long[length];
+            Kind[] k = new Kind[length];
+            for (int i = 0; i < size; i++) {
+                int from = slot(i);
+                v[i] = versions[from];
+                f[i] = first[from];
+                sc[i] = second[from];
+                k[i] = kinds[from];
+            }
+            versions = v;
+            first = f;
+            second = sc;
+            kinds = k;
+            head = 0;
+        }
+
+        void reset() {
+            version++;
+            floor = version;
+            head = 0;
+            size = 0;
+            // 重置后缓冲从头再长，不保留上一轮撑大的数组
+            if (versions.length > INITIAL_SLOTS) {
+                versions = new long[0];
+                first = new long[0];
+                second = new long[0];
+                kinds = new Kind[0];
+            }
+        }
+    }
+
+    /**
+     * 注册修改回调：本实例上每次版本号变化 (事务提交后) 调用一次，远端广播导致的重置不回调
+     */
+    public void addListener(Consumer<Long> listener) {
+        listeners.add(listener);
+    }
+
+    private void changed(Long graphId) {
+        for (Consumer<Long> listener : listeners) {
+            try {
+                listener.accept(graphId);
+            } catch (RuntimeException e) {
+                log.warn("Graph change listener failed for graph {}: {}", graphId, e.getMessage());
+            }
+        }
+    }
+
+    private Log log(Long graphId) {
+        Log l = logs.computeIfAbsent(graphId, k -> new Log());
+        l.lastAccess = System.currentTimeMillis();
+        return l;
+    }
+
+    /**
+     * 移除长时间没有读写的日志。被移除后才到的修改只会落在旧对象上，
+     * 下次读取新建的日志要求全量，不会漏掉变更
+     */
+    @Scheduled(fixedDelayString = "${songmap.graph.changelog.evict-interval-ms:60000}")
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMs;
+        logs.forEach((graphId, l) -> {
+            if (l.lastAccess < cutoff && logs.remove(graphId, l)) evicted.increment();
+        });
+    }
+
+    /**
+     * 当前版本号 (没有日志时新建，版本号即起点)
+     */
+    public long version(Long graphId) {
+        Log l = log(graphId);
+        synchronized (l) {
+            return l.version;
+        }
+    }
+
+    // ================= 记录 =================
+
+    /**
+     * 听歌 (单条、批量、导入)：歌曲点变化，上一首的出边变化
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        Log l = log(event.graphId());
+        synchronized (l) {
+            l.version++;
+            for (ListenAppliedEvent.Listen listen : event.listens()) {
+                l.append(Kind.NODE, listen.songId(), 0);
+                if (listen.prevId() != null) l.append(Kind.OUT_LINKS, listen.prevId(), 0);
+            }
+        }
+        mutations.increment();
+        changed(event.graphId());
+    }
+
+    /**
+     * 计数刷盘：缓冲的计数写进库之后点和出边的展示数据才变
+     */
+    public void countersFlushed(Long graphId, Collection<Long> nodeIds, Collection<Long> linkSources) {
+        TransactionHooks.afterCommit(() -> {
+            Log l = log(graphId);
+            synchronized (l) {
+                l.version++;
+                for (Long id : nodeIds) l.append(Kind.NODE, id, 0);
+                for (Long id : linkSources) l.append(Kind.OUT_LINKS, id, 0);
+            }
+            mutations.increment();
+            changed(graphId);
+        });
+    }
+
+    /**
+     * 删点：指向它的边的起点 outJumpTotal 也变了
+     */
+    public void nodeRemoved(Long graphId, long nodeId, Collection<Long> sources) {
+        TransactionHooks.afterCommit(() -> {
+            Log l = log(graphId);
+            synchronized (l) {
+                l.version++;
+                l.append(Kind.NODE_REMOVED, nodeId, 0);
+                for (Long id : sources) l.append(Kind.OUT_LINKS, id, 0);
+            }
+            mutations.increment();
+            changed(graphId);
+        });
+    }
+
+    public void linkRemoved(Long graphId, long fromId, long toId) {
+        TransactionHooks.afterCommit(() -> {
+            Log l = log(graphId);
+            synchronized (l) {
+                l.version++;
+                l.append(Kind.LINK_REMOVED, fromId, toId);
+                l.append(Kind.OUT_LINKS, fromId, 0);
+            }
+            mutations.increment();
+            changed(graphId);
+        });
+    }
+
+    /**
+     * 一批点的展示属性变了 (如重算社区后的 category)：记成 NODE；
+     * 超过半个缓冲时会挤掉大部分历史，不如直接重置让客户端全量
+     */
+    public void nodesChanged(Long graphId, Collection<Long> nodeIds) {
+        if (nodeIds.isEmpty()) return;
+        if (nodeIds.size() > capacity / 2) {
+            reset(graphId);
+            return;
+        }
+        TransactionHooks.afterCommit(() -> {
+            Log l = log(graphId);
+            synchronized (l) {
+                l.version++;
+                for (Long id : nodeIds) l.append(Kind.NODE, id, 0);
+            }
+            mutations.increment();
+            changed(graphId);
+        });
+    }
+
+    /**
+     * 影响面太大的修改 (如大范围重算社区)：版本号加一并清空日志，客户端下次全量
+     */
+    public void reset(Long graphId) {
+        TransactionHooks.afterCommit(() -> {
+            Log l = log(graphId);
+            synchronized (l) {
+                l.reset();
+            }
+            resets.increment();
+            changed(graphId);
+        });
+    }
+
+    /**
+     * 跨图谱的全局修改 (属性批量修改、数据版本迭代)：重置所有图谱的日志
+     */
+    public void resetAll() {
+        TransactionHooks.afterCommit(() -> {
+            for (Log l : logs.values()) {
+                synchronized (l) {
+                    l.reset();
+                }
+            }
+            resets.increment();
+            changed(null);
+        });
+    }
+
+    /**
+     * 图谱已删除
+     */
+    public void drop(Long graphId) {
+        TransactionHooks.afterCommit(() -> {
+            logs.remove(graphId);
+            changed(graphId);
+        });
+    }
+
+    /**
+     * 其他实例修改了图谱 (graphId 为 null 表示所有图谱)：本实例的日志缺了这些变更，只能重置
+     * 没有日志的图谱不用管，下次用到时新建的日志本来就要求全量
+     */
+    public void remoteChanged(Long graphId) {
+        if (graphId == null) {
+            for (Log l : logs.values()) {
+                synchronized (l) {
+                    l.reset();
+                }
+            }
+        } else {
+            Log l = logs.get(graphId);
+            if (l == null) return;
+            synchronized (l) {
+                l.reset();
+            }
+        }
+        remoteResets.increment();
+    }
+
+    // ================= 查询 =================
+
+    /**
+     * since 之后的变更；since 早于日志能回答的范围 (或来自别的实例 / 重启前的未来版本) 时返回 reset
+     */
+    public Delta changesSince(Long graphId, long since) {
+        Log l = log(graphId);
+        Set<Long> nodes = new LinkedHashSet<>();
+        Set<Long> linkSources = new LinkedHashSet<>();
+        Set<Long> removedNodes = new LinkedHashSet<>();
+        List<long[]> removedLinks = new ArrayList<>();
+        long version;
+        synchronized (l) {
+            version = l.version;
+            if (since < l.floor || since > l.version) {
+                fullFallbacks.increment();
+                return new Delta(version, true, Set.of(), Set.of(), Set.of(), List.of());
+            }
+            for (int k = 0; k < l.size; k++) {
+                int slot = l.slot(k);
+                if (l.versions[slot] <= since) continue;
+                long a = l.first[slot];
+                switch (l.kinds[slot]) {
+                    case NODE -> {
+                        nodes.add(a);
+                        removedNodes.remove(a);
+                    }
+                    case OUT_LINKS -> linkSources.add(a);
+                    case NODE_REMOVED -> {
+                        nodes.remove(a);
+                        linkSources.remove(a);
+                        removedNodes.add(a);
+                    }
+                    case LINK_REMOVED -> removedLinks.add(new long[]{a, l.second[slot]});
+                }
+            }
+        }
+        deltas.increment();
+        return new Delta(version, false, nodes, linkSources, removedNodes, removedLinks);
+    }
+
+    /**
+     * 运行指标：有日志的图谱数、修改 / 重置次数、增量与全量回退次数
+     */
+    public Map<String, Object> snapshot() {
+        long entries = 0, slots = 0;
+        for (Log l : logs.values()) {
+            synchronized (l) {
+                entries += l.size;
+                slots += l.versions.length;
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("graphs", logs.size());
+        result.put("entries", entries);
+        result.put("slots", slots);
+        result.put("capacityPerGraph", capacity);
+        result.put("mutations", mutations.sum());
+        result.put("resets", resets.sum());
+        result.put("remoteResets", remoteResets.sum());
+        result.put("evicted", evicted.sum());
+        result.put("deltas", deltas.sum());
+        result.put("fullFallbacks", fullFallbacks.sum());
+        return result;
+    }
+}
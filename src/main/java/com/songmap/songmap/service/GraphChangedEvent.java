@@ -0,0 +1,14 @@
+package com.songmap.songmap.service;
+
+/**
+ * 图谱数据被非听歌路径修改 (删点、删边、删图谱、批量改属性、数据迁移) 的事件 (事务提交后分发)
+ * 各类内存 / Redis 派生缓存收到后整体失效
+ *
+ * @param graphId 为 null 表示影响所有图谱 (例如按歌名跨图谱删边)
+ */
+public record GraphChangedEvent(Long graphId) {
+
+    public static GraphChangedEvent all() {
+        return new GraphChangedEvent(null);
+    }
+}
@@ -0,0 +1,206 @@
+package com.songmap.songmap.service;
+
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * /api/graph/data 全量响应的进程内缓存：按图谱缓存序列化好的 JSON 字节
+ * <p>
+ * 每个条目带着生成时的图谱修改版本号 ({@link GraphChangeLog})，版本号一变 (听歌、删点删边、属性修改、计数刷盘、社区重算)
+ * 条目即作废，所以只有真正改到该图谱的写入才会让它失效。按总字节数 LRU 淘汰，单个超过 max-entry-bytes 的图谱不缓存。
+ * </p>
+ * <p>
+ * 多实例：本实例的每次修改提交后在 Redis 频道上广播 "实例ID:图谱ID" (所有图谱为 "*")，
+ * 其他实例收到后重置该图谱的修改日志 (版本号加一)，于是它们的缓存条目和增量日志一起作废。
+ * 广播或订阅失败只记日志 (订阅会定时重试)，其间其他实例可能返回旧数据。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphDataCache {
+
+    private static final String ALL = "*";
+
+    private final GraphChangeLog changeLog;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${songmap.graph.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.graph.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${songmap.graph.cache.max-entry-bytes:16777216}")
+    private long maxEntryBytes;
+
+    @Value("${songmap.graph.cache.channel:songmap:graph:changed}")
+    private String channel;
+
+    private final String instanceId = IdUtil.fastSimpleUUID();
+    private volatile boolean subscribeFailureLogged;
+
+    // graphId -> 条目，按访问顺序；整体由 this 同步
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private record Entry(long version, byte[] payload) {
+    }
+
+    public GraphDataCache(GraphChangeLog changeLog, StringRedisTemplate redisTemplate,
+                          RedisMessageListenerContainer listenerContainer) {
+        this.changeLog = changeLog;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void start() {
+        changeLog.addListener(this::publish);
+        listenerContainer.addMessageListener(this::onMessage, new ChannelTopic(channel));
+    }
+
+    /**
+     * 订阅广播频道：订阅容器不随应用自动启动 (Redis 不可用时不影响启动)，在这里反复尝试直到连上
+     */
+    @Scheduled(fixedDelayString = "${songmap.graph.cache.subscribe-retry-ms:5000}")
+    public void subscribe() {
+        if (listenerContainer.isListening()) return;
+        try {
+            // 上次启动失败时容器仍处于 running 状态，要先停掉才能重新订阅
+            if (listenerContainer.isRunning()) listenerContainer.stop();
+            listenerContainer.start();
+            subscribeFailureLogged = false;
+            log.info("Subscribed to graph change channel {}", channel);
+        } catch (RuntimeException e) {
+            errors.increment();
+            if (!subscribeFailureLogged) {
+                subscribeFailureLogged = true;
+                log.warn("Failed to subscribe to graph change channel {}, will retry: {}", channel, e.getMessage());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return 缓存的 JSON；没有或版本号已变时返回 null
+     */
+    public byte[] get(Long graphId) {
+        if (!enabled) return null;
+        long version = changeLog.version(graphId);
+        synchronized (this) {
+            Entry e = entries.get(graphId);
+            if (e != null && e.version() == version) {
+                hits.increment();
+                return e.payload();
+            }
+            if (e != null) remove(graphId);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param version 生成 payload 前取到的版本号，期间有修改时条目在下次读取时自然作废
+     */
+    public void put(Long graphId, long version, byte[] payload) {
+        if (!enabled || payload.length > maxEntryBytes) return;
+        synchronized (this) {
+            remove(graphId);
+            entries.put(graphId, new Entry(version, payload));
+            totalBytes += payload.length;
+            Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                totalBytes -= it.next().getValue().payload().length;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Long graphId) {
+        Entry e = entries.remove(graphId);
+        if (e != null) totalBytes -= e.payload().length;
+    }
+
+    // ================= 跨实例广播 =================
+
+    // 本实例的修改：本地条目靠版本号作废，这里只通知其他实例
+    private void publish(Long graphId) {
+        try {
+            redisTemplate.convertAndSend(channel, instanceId + ":" + (graphId == null ? ALL : graphId));
+            published.increment();
+        } catch (RuntimeException e) {
+            errors.increment();
+            log.warn("Failed to broadcast change of graph {}: {}", graphId, e.getMessage());
+        }
+    }
+
+    private void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int sep = body.lastIndexOf(':');
+        if (sep < 0 || body.substring(0, sep).equals(instanceId)) return;
+        String target = body.substring(sep + 1);
+        try {
+            Long graphId = ALL.equals(target) ? null : Long.valueOf(target);
+            changeLog.remoteChanged(graphId);
+            synchronized (this) {
+                if (graphId == null) {
+                    entries.clear();
+                    totalBytes = 0;
+                } else {
+                    remove(graphId);
+                }
+            }
+            received.increment();
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring malformed graph change message: {}", body);
+        }
+    }
+
+    /**
+     * 运行指标：条目数与字节数、命中率、淘汰次数、广播收发次数
+     */
+    public synchronized Map<String, Object> snapshot() {
+        long h = hits.sum(), m = misses.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("entries", entries.size());
+        result.put("bytes", totalBytes);
+        result.put("maxBytes", maxBytes);
+        result.put("hits", h);
+        result.put("misses", m);
+        result.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+        result.put("evictions", evictions.sum());
+        result.put("published", published.sum());
+        result.put("received", received.sum());
+        result.put("subscribed", listenerContainer.isListening());
+        result.put("errors", errors.sum());
+        return result;
+    }
+}
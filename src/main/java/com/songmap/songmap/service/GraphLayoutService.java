@@ -0,0 +1,745 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.GraphDataDTO;
+import com.songmap.songmap.dto.GraphViewDTO;
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端布局 + 视口子图
+ * <p>
+ * 每个图谱在服务端用 {@link BarnesHutLayout} 算好二维坐标并缓存 (LRU)，连同点的展示属性和出边一起放在内存里，
+ * 视口查询不再访问数据库。第一次查看时同步计算 (受时间预算限制)；之后有听歌或修改时标记过时，
+ * 由定时任务从上一次的坐标热启动：老点保持原位，新点放在已有邻居的质心附近，只跑少量几轮。
+ * 热启动不重新读整张图：按 {@link GraphChangeLog} 上次布局以来的增量，只读变化的点和出边有变化的起点的出边，
+ * 其余沿用上一次的快照；日志答不上来 (重置过、太旧) 时才全量读图。
+ * 超出时间预算没跑完的布局在下一轮继续优化，但没有新变化时最多连续继续 max-continuations 轮，
+ * 之后停在当前结果上，直到图谱再有变化。
+ * </p>
+ * <p>
+ * 视口查询按 x 有序数组二分定位，视口内的点不超过 maxNodes 时逐个返回；
+ * 否则把视口划成 √maxNodes × √maxNodes 的网格，同一格里的点合并成一个聚合点，边也按格子合并，
+ * 所以返回的点数和边数只取决于视口参数，与图谱大小无关。放大 (视口变小) 后格子变小，自然看到更多细节。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphLayoutService {
+
+    private final Driver driver;
+    private final GraphInfoRepository graphInfoRepository;
+    private final GraphChangeLog changeLog;
+
+    @Value("${songmap.layout.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.layout.iterations:300}")
+    private int iterations;
+
+    @Value("${songmap.layout.incremental-iterations:60}")
+    private int incrementalIterations;
+
+    @Value("${songmap.layout.theta:1.0}")
+    private double theta;
+
+    @Value("${songmap.layout.time-budget-ms:10000}")
+    private long timeBudgetMs;
+
+    @Value("${songmap.layout.max-continuations:5}")
+    private int maxContinuations;
+
+    @Value("${songmap.layout.parallelism:0}")
+    private int parallelism;
+
+    @Value("${songmap.layout.max-graphs:8}")
+    private int maxGraphs;
+
+    @Value("${songmap.layout.view.max-nodes:500}")
+    private int defaultMaxNodes;
+
+    @Value("${songmap.layout.view.max-nodes-limit:5000}")
+    private int maxNodesLimit;
+
+    @Value("${songmap.layout.view.max-links:2000}")
+    private int maxLinks;
+
+    private ForkJoinPool pool;
+
+    // graphId -> 布局，accessOrder = true 即 LRU
+    private final LinkedHashMap<Long, Layout> layouts = new LinkedHashMap<>(16, 0.75f, true);
+    // 计算锁，同一图谱同时只算一次
+    private final Map<Long, Object> locks = new ConcurrentHashMap<>();
+    // 有听歌或修改、需要热启动重算的图谱
+    private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+    // 上次超出时间预算没跑完、需要接着跑的图谱
+    private final Set<Long> unfinished = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder computes = new LongAdder();
+    private final LongAdder computeNanos = new LongAdder();
+    private final LongAdder budgetExceeded = new LongAdder();
+    private final LongAdder continuationsCapped = new LongAdder();
+    private final LongAdder fullLoads = new LongAdder();
+    private final LongAdder incrementalLoads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder views = new LongAdder();
+    private final LongAdder aggregatedViews = new LongAdder();
+    private final LongAdder viewNanos = new LongAdder();
+
+    /**
+     * 一个图谱的布局快照 (不可变)：点按加载顺序编号，out* 是出边 CSR，byX 是按 x 排序的点编号
+     * version 是读图时变更日志的版本号，下一次热启动从这里取增量；unfinishedRuns 是没有新变化时连续没跑完的轮数
+     */
+    private static final class Layout {
+        final Long ownerId;
+        final String label;
+        final long version;
+        final int unfinishedRuns;
+        final long builtAt = System.currentTimeMillis();
+        final int n;
+        final long[] ids;
+        final String[] names, artists;
+        final int[] listenCount, community, outJumpTotal;
+        final float[] x, y;
+        final int[] outOffsets, outTargets, outJump;
+        final float[] outWeight;
+        final int[] byX;
+        final float[] sortedX;
+        final float minX, minY, maxX, maxY;
+
+        Layout(Long ownerId, String label, long version, int unfinishedRuns, NodeTable nodes,
+               int[] outOffsets, int[] outTargets, int[] outJump, float[] outWeight, float[] x, float[] y) {
+            this.ownerId = ownerId;
+            this.label = label;
+            this.version = version;
+            this.unfinishedRuns = unfinishedRuns;
+            this.n = nodes.size;
+            this.ids = Arrays.copyOf(nodes.ids, n);
+            this.names = Arrays.copyOf(nodes.names, n);
+            this.artists = Arrays.copyOf(nodes.artists, n);
+            this.listenCount = Arrays.copyOf(nodes.listenCount, n);
+            this.community = Arrays.copyOf(nodes.community, n);
+            this.outJumpTotal = Arrays.copyOf(nodes.outJumpTotal, n);
+            this.outOffsets = outOffsets;
+            this.outTargets = outTargets;
+            this.outJump = outJump;
+            this.outWeight = outWeight;
+            this.x = x;
+            this.y = y;
+
+            this.byX = new int[n];
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingDouble(i -> x[i]));
+            this.sortedX = new float[n];
+            float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE, x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+            for (int k = 0; k < n; k++) {
+                int i = order[k];
+                byX[k] = i;
+                sortedX[k] = x[i];
+                x0 = Math.min(x0, x[i]);
+                y0 = Math.min(y0, y[i]);
+                x1 = Math.max(x1, x[i]);
+                y1 = Math.max(y1, y[i]);
+            }
+            this.minX = n == 0 ? 0 : x0;
+            this.minY = n == 0 ? 0 : y0;
+            this.maxX = n == 0 ? 0 : x1;
+            this.maxY = n == 0 ? 0 : y1;
+        }
+    }
+
+    /**
+     * 加载时的点表 (可增长)
+     */
+    private static final class NodeTable {
+        int size;
+        long[] ids = new long[1024];
+        String[] names = new String[1024], artists = new String[1024];
+        int[] listenCount = new int[1024], community = new int[1024], outJumpTotal = new int[1024];
+
+        void add(long id, String name, String artist, int listens, int comm, int outTotal) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                names = Arrays.copyOf(names, capacity);
+                artists = Arrays.copyOf(artists, capacity);
+                listenCount = Arrays.copyOf(listenCount, capacity);
+                community = Arrays.copyOf(community, capacity);
+                outJumpTotal = Arrays.copyOf(outJumpTotal, capacity);
+            }
+            ids[size] = id;
+            names[size] = name;
+            artists[size] = artist;
+            listenCount[size] = listens;
+            community[size] = comm;
+            outJumpTotal[size] = outTotal;
+            size++;
+        }
+
+        // 增量加载：已有的点原地更新，新点追加
+        void put(Map<Long, Integer> index, long id, String name, String artist, int listens, int comm, int outTotal) {
+            Integer i = index.get(id);
+            if (i == null) {
+                index.put(id, size);
+                add(id, name, artist, listens, comm, outTotal);
+                return;
+            }
+            names[i] = name;
+            artists[i] = artist;
+            listenCount[i] = listens;
+            community[i] = comm;
+            outJumpTotal[i] = outTotal;
+        }
+    }
+
+    /**
+     * 加载时的 NEXT 边 (点编号，可增长)
+     */
+    private static final class EdgeTable {
+        int m;
+        int[] from = new int[1024], to = new int[1024], jump = new int[1024];
+        float[] weight = new float[1024];
+
+        void add(int a, int b, int jumpCount, float w) {
+            if (m == from.length) {
+                from = Arrays.copyOf(from, m * 2);
+                to = Arrays.copyOf(to, m * 2);
+                jump = Arrays.copyOf(jump, m * 2);
+                weight = Arrays.copyOf(weight, m * 2);
+            }
+            from[m] = a;
+            to[m] = b;
+            jump[m] = jumpCount;
+            weight[m] = w;
+            m++;
+        }
+    }
+
+    public GraphLayoutService(Driver driver, GraphInfoRepository graphInfoRepository, GraphChangeLog changeLog) {
+        this.driver = driver;
+        this.graphInfoRepository = graphInfoRepository;
+        this.changeLog = changeLog;
+    }
+
+    @PostConstruct
+    public void start() {
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // ================= 视口查询 =================
+
+    /**
+     * 取视口内的子图 (调用方已校验图谱归属)
+     *
+     * @param minX     视口范围，为 null 时取整张图
+     * @param maxNodes 最多返回的点数，为 null 时取 songmap.layout.view.max-nodes
+     */
+    public GraphViewDTO view(Long userId, Long graphId, String label, Double minX, Double minY, Double maxX, Double maxY,
+                             Integer maxNodes) {
+        int budget = maxNodes == null ? defaultMaxNodes : maxNodes;
+        if (budget <= 0 || budget > maxNodesLimit) {
+            throw new IllegalArgumentException("maxNodes must be between 1 and " + maxNodesLimit);
+        }
+        Layout layout = layout(userId, graphId, label);
+        long start = System.nanoTime();
+
+        double x0 = minX == null ? layout.minX : minX;
+        double y0 = minY == null ? layout.minY : minY;
+        double x1 = maxX == null ? layout.maxX : maxX;
+        double y1 = maxY == null ? layout.maxY : maxY;
+        if (x1 < x0 || y1 < y0) throw new IllegalArgumentException("Invalid viewport");
+
+        // 1. 按 x 二分定位，再按 y 过滤
+        int from = lowerBound(layout.sortedX, (float) x0);
+        int[] visible = new int[Math.min(layout.n, 1024)];
+        int visibleCount = 0;
+        for (int k = from; k < layout.n && layout.sortedX[k] <= x1; k++) {
+            int i = layout.byX[k];
+            if (layout.y[i] < y0 || layout.y[i] > y1) continue;
+            if (visibleCount == visible.length) visible = Arrays.copyOf(visible, visibleCount * 2);
+            visible[visibleCount++] = i;
+        }
+        visible = Arrays.copyOf(visible, visibleCount);
+
+        GraphViewDTO result = visibleCount <= budget
+                ? detailed(layout, visible, x0, y0, x1, y1)
+                : aggregated(layout, visible, budget, x0, y0, x1, y1);
+        result.setMinX(layout.minX);
+        result.setMinY(layout.minY);
+        result.setMaxX(layout.maxX);
+        result.setMaxY(layout.maxY);
+        result.setVisibleNodes(visibleCount);
+        result.setLayoutBuiltAt(layout.builtAt);
+
+        views.increment();
+        if (result.isAggregated()) aggregatedViews.increment();
+        viewNanos.add(System.nanoTime() - start);
+        return result;
+    }
+
+    private static int lowerBound(float[] sorted, float value) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static boolean inside(Layout l, int i, double x0, double y0, double x1, double y1) {
+        return l.x[i] >= x0 && l.x[i] <= x1 && l.y[i] >= y0 && l.y[i] <= y1;
+    }
+
+    private GraphViewDTO detailed(Layout l, int[] visible, double x0, double y0, double x1, double y1) {
+        List<GraphViewDTO.ViewNode> nodes = new ArrayList<>(visible.length);
+        List<GraphDataDTO.LinkData> links = new ArrayList<>();
+        for (int i : visible) {
+            nodes.add(viewNode(l, i, String.valueOf(l.ids[i]), l.x[i], l.y[i], 1));
+            for (int k = l.outOffsets[i]; k < l.outOffsets[i + 1]; k++) {
+                int j = l.outTargets[k];
+                if (!inside(l, j, x0, y0, x1, y1)) continue;
+                links.add(new GraphDataDTO.LinkData(String.valueOf(l.ids[i]), String.valueOf(l.ids[j]),
+                        l.outJump[k], SongScorer.transitionProb(l.outJump[k], l.outJumpTotal[i])));
+            }
+        }
+        return new GraphViewDTO(0, 0, 0, 0, 0, false, 0, nodes, strongest(links));
+    }
+
+    /**
+     * 网格聚合：格子里只有一个点时仍按单个点返回
+     */
+    private GraphViewDTO aggregated(Layout l, int[] visible, int budget,
+                                    double x0, double y0, double x1, double y1) {
+        int g = Math.max(1, (int) Math.sqrt(budget));
+        double cellW = Math.max(1e-9, (x1 - x0) / g);
+        double cellH = Math.max(1e-9, (y1 - y0) / g);
+        int cells = g * g;
+        int[] count = new int[cells];
+        int[] rep = new int[cells];
+        double[] sumX = new double[cells], sumY = new double[cells];
+        long[] outTotal = new long[cells];
+        for (int i : visible) {
+            int c = cellOf(l, i, g, x0, y0, cellW, cellH);
+            if (count[c] == 0 || l.listenCount[i] > l.listenCount[rep[c]]) rep[c] = i;
+            count[c]++;
+            sumX[c] += l.x[i];
+            sumY[c] += l.y[i];
+            outTotal[c] += l.outJumpTotal[i];
+        }
+
+        String[] cellIds = new String[cells];
+        List<GraphViewDTO.ViewNode> nodes = new ArrayList<>();
+        for (int c = 0; c < cells; c++) {
+            if (count[c] == 0) continue;
+            int r = rep[c];
+            if (count[c] == 1) {
+                cellIds[c] = String.valueOf(l.ids[r]);
+                nodes.add(viewNode(l, r, cellIds[c], l.x[r], l.y[r], 1));
+            } else {
+                cellIds[c] = "cluster:" + c;
+                nodes.add(viewNode(l, r, cellIds[c], sumX[c] / count[c], sumY[c] / count[c], count[c]));
+            }
+        }
+
+        // 边按 (起点格子, 终点格子) 合并，格子内部的边不画
+        Map<Long, long[]> merged = new HashMap<>();
+        for (int i : visible) {
+            int ci = cellOf(l, i, g, x0, y0, cellW, cellH);
+            for (int k = l.outOffsets[i]; k < l.outOffsets[i + 1]; k++) {
+                int j = l.outTargets[k];
+                if (!inside(l, j, x0, y0, x1, y1)) continue;
+                int cj = cellOf(l, j, g, x0, y0, cellW, cellH);
+                if (ci == cj) continue;
+                merged.computeIfAbsent((long) ci * cells + cj, key -> new long[1])[0] += l.outJump[k];
+            }
+        }
+        List<GraphDataDTO.LinkData> links = new ArrayList<>(merged.size());
+        merged.forEach((key, jump) -> {
+            int ci = (int) (key / cells), cj = (int) (key % cells);
+            double prob = outTotal[ci] <= 0 ? 0.0 : Math.min(1.0, (double) jump[0] / outTotal[ci]);
+            links.add(new GraphDataDTO.LinkData(cellIds[ci], cellIds[cj], (int) Math.min(Integer.MAX_VALUE, jump[0]), prob));
+        });
+        return new GraphViewDTO(0, 0, 0, 0, 0, true, 0, nodes, strongest(links));
+    }
+
+    private static int cellOf(Layout l, int i, int g, double x0, double y0, double cellW, double cellH) {
+        int cx = Math.min(g - 1, (int) ((l.x[i] - x0) / cellW));
+        int cy = Math.min(g - 1, (int) ((l.y[i] - y0) / cellH));
+        return cy * g + cx;
+    }
+
+    private GraphViewDTO.ViewNode viewNode(Layout l, int i, String id, double x, double y, int count) {
+        GraphDataDTO.NodeData data = GraphService.nodeData(String.valueOf(l.ids[i]), l.names[i], l.artists[i],
+                l.listenCount[i], l.community[i] < 0 ? null : l.community[i]);
+        // 聚合点的大小按点数的对数增长
+        int symbolSize = count == 1 ? data.getSymbolSize() : Math.min(20 + (int) (8 * Math.log(count)), 80);
+        return new GraphViewDTO.ViewNode(id, data.getName(), data.getArtist(), x, y, symbolSize, data.getCategory(), count);
+    }
+
+    // 边太多时只留跳转次数最多的 max-links 条
+    private List<GraphDataDTO.LinkData> strongest(List<GraphDataDTO.LinkData> links) {
+        if (links.size() <= maxLinks) return links;
+        links.sort(Comparator.comparingInt(GraphDataDTO.LinkData::getValue).reversed());
+        return new ArrayList<>(links.subList(0, maxLinks));
+    }
+
+    // ================= 布局计算 =================
+
+    private Layout cached(Long graphId) {
+        synchronized (layouts) {
+            return layouts.get(graphId);
+        }
+    }
+
+    private Layout layout(Long userId, Long graphId, String label) {
+        Layout layout = cached(graphId);
+        if (layout == null) {
+            synchronized (locks.computeIfAbsent(graphId, k -> new Object())) {
+                layout = cached(graphId);
+                if (layout == null) layout = compute(userId, graphId, label, null);
+            }
+        }
+        if (!layout.ownerId.equals(userId)) throw new IllegalArgumentException("Graph not found or access denied");
+        return layout;
+    }
+
+    private Layout compute(Long userId, Long graphId, String label, Layout previous) {
+        // 先清标记、取版本号再读图，计算期间的新听歌会重新标记，也会出现在下一轮的增量里
+        stale.remove(graphId);
+        unfinished.remove(graphId);
+        long start = System.nanoTime();
+        long version = changeLog.version(graphId);
+        GraphChangeLog.Delta delta = previous == null ? null : changeLog.changesSince(graphId, previous.version);
+
+        NodeTable nodes = new NodeTable();
+        Map<Long, Integer> index = new HashMap<>();
+        EdgeTable edges = new EdgeTable();
+        boolean changed;
+        if (delta == null || delta.reset()) {
+            changed = true;
+            fullLoads.increment();
+            try (Session session = driver.session()) {
+                loadNodes(session.run(String.format(NODES_QUERY, label, "")), nodes, index);
+                loadEdges(session.run(String.format(EDGES_QUERY, label, "")), index, edges);
+            }
+        } else {
+            version = delta.version();
+            changed = !delta.nodes().isEmpty() || !delta.linkSources().isEmpty() || !delta.removedNodes().isEmpty();
+            incrementalLoads.increment();
+            loadChanges(previous, delta, label, nodes, index, edges);
+        }
+        int n = nodes.size;
+        int[] from = edges.from, to = edges.to, jump = edges.jump;
+        int m = edges.m;
+
+        // 1. 出边 CSR (视口查询用) 和无向加权图 (布局用)
+        int[] outOffsets = new int[n + 1];
+        int[] undirectedOffsets = new int[n + 1];
+        for (int e = 0; e < m; e++) {
+            outOffsets[from[e] + 1]++;
+            if (from[e] != to[e]) {
+                undirectedOffsets[from[e] + 1]++;
+                undirectedOffsets[to[e] + 1]++;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            outOffsets[v + 1] += outOffsets[v];
+            undirectedOffsets[v + 1] += undirectedOffsets[v];
+        }
+        int[] outTargets = new int[m], outJump = new int[m];
+        float[] outWeight = new float[m];
+        int[] neighbors = new int[undirectedOffsets[n]];
+        float[] weights = new float[undirectedOffsets[n]];
+        int[] outCursor = Arrays.copyOf(outOffsets, n);
+        int[] cursor = Arrays.copyOf(undirectedOffsets, n);
+        for (int e = 0; e < m; e++) {
+            int k = outCursor[from[e]]++;
+            outTargets[k] = to[e];
+            outJump[k] = jump[e];
+            float w = edges.weight[e];
+            outWeight[k] = w;
+            if (from[e] == to[e]) continue;
+            k = cursor[from[e]]++;
+            neighbors[k] = to[e];
+            weights[k] = w;
+            k = cursor[to[e]]++;
+            neighbors[k] = from[e];
+            weights[k] = w;
+        }
+        BarnesHutLayout.Graph graph = new BarnesHutLayout.Graph(n, undirectedOffsets, neighbors, weights);
+
+        // 2. 初始坐标：老点沿用上次的位置，新点放到已定位邻居的质心附近
+        float[] x = new float[n], y = new float[n];
+        int placed = previous == null ? 0 : warmStart(previous, nodes, graph, x, y, new Random(graphId));
+        boolean warm = placed > n / 2;
+        if (!warm) {
+            Random random = new Random(graphId);
+            double side = BarnesHutLayout.K * Math.sqrt(Math.max(1, n));
+            for (int i = 0; i < n; i++) {
+                x[i] = (float) ((random.nextDouble() - 0.5) * side);
+                y[i] = (float) ((random.nextDouble() - 0.5) * side);
+            }
+        }
+
+        // 3. 力导向迭代
+        BarnesHutLayout.Result run = BarnesHutLayout.run(graph, x, y, warm ? incrementalIterations : iterations,
+                BarnesHutLayout.startTemperature(n, warm), theta, pool, start + timeBudgetMs * 1_000_000);
+        int unfinishedRuns = 0;
+        if (run.budgetExceeded()) {
+            // 没跑完的布局下一轮定时任务接着热启动；没有新变化时最多连续接 max-continuations 轮
+            budgetExceeded.increment();
+            unfinishedRuns = changed || previous == null ? 1 : previous.unfinishedRuns + 1;
+            if (unfinishedRuns <= maxContinuations) {
+                unfinished.add(graphId);
+            } else {
+                continuationsCapped.increment();
+                log.info("Layout of graph {} still unfinished after {} continuations, keeping it until the graph changes",
+                        graphId, maxContinuations);
+            }
+        }
+
+        Layout layout = new Layout(userId, label, version, unfinishedRuns, nodes, outOffsets, outTargets, outJump,
+                outWeight, x, y);
+        synchronized (layouts) {
+            layouts.put(graphId, layout);
+            Iterator<Long> it = layouts.keySet().iterator();
+            while (layouts.size() > maxGraphs && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        computes.increment();
+        computeNanos.add(elapsed);
+        log.info("Computed {} layout for graph {}: {} nodes, {} edges, {} iterations in {} ms",
+                warm ? "incremental" : "full", graphId, n, m, run.iterations(), elapsed / 1_000_000);
+        return layout;
+    }
+
+    // 第二个参数是 WHERE 子句，全量读图时为空
+    private static final String NODES_QUERY =
+            "MATCH (n:`%1$s`) %2$s" +
+            "RETURN id(n) AS id, n.name AS name, n.artist AS artist, n.listenCount AS listenCount, " +
+            "       n.community AS community, n.outJumpTotal AS outJumpTotal";
+
+    private static final String EDGES_QUERY =
+            "MATCH (a:`%1$s`)-[r:NEXT]->(b:`%1$s`) %2$s" +
+            "RETURN id(a) AS fromId, id(b) AS toId, r.jumpCount AS jumpCount, r.weight AS weight";
+
+    private static void loadNodes(Result rows, NodeTable nodes, Map<Long, Integer> index) {
+        while (rows.hasNext()) {
+            Record r = rows.next();
+            nodes.put(index, r.get("id").asLong(),
+                    r.get("name").isNull() ? null : r.get("name").asString(),
+                    r.get("artist").isNull() ? null : r.get("artist").asString(),
+                    r.get("listenCount").isNull() ? 0 : r.get("listenCount").asInt(),
+                    r.get("community").isNull() ? -1 : r.get("community").asInt(),
+                    r.get("outJumpTotal").isNull() ? 0 : r.get("outJumpTotal").asInt());
+        }
+    }
+
+    /**
+     * 边权重同 r.weight，下限 0.1
+     */
+    private static void loadEdges(Result rows, Map<Long, Integer> index, EdgeTable edges) {
+        while (rows.hasNext()) {
+            Record r = rows.next();
+            Integer a = index.get(r.get("fromId").asLong());
+            Integer b = index.get(r.get("toId").asLong());
+            if (a == null || b == null) continue;
+            double w = r.get("weight").isNull() ? 0 : r.get("weight").asNumber().doubleValue();
+            edges.add(a, b, r.get("jumpCount").isNull() ? 0 : r.get("jumpCount").asInt(), (float) Math.max(0.1, w));
+        }
+    }
+
+    /**
+     * 增量读图：上一次的快照去掉删掉的点，只从库里读变化的点 (连同出边有变化的起点，它们的 outJumpTotal 也变了)
+     * 和这些起点的全部出边；其余点的出边原样沿用。删边一定伴随起点的出边变化，所以不用单独处理
+     */
+    private void loadChanges(Layout previous, GraphChangeLog.Delta delta, String label,
+                             NodeTable nodes, Map<Long, Integer> index, EdgeTable edges) {
+        for (int i = 0; i < previous.n; i++) {
+            if (delta.removedNodes().contains(previous.ids[i])) continue;
+            index.put(previous.ids[i], nodes.size);
+            nodes.add(previous.ids[i], previous.names[i], previous.artists[i], previous.listenCount[i],
+                    previous.community[i], previous.outJumpTotal[i]);
+        }
+        Set<Long> reload = new HashSet<>(delta.nodes());
+        reload.addAll(delta.linkSources());
+        if (!reload.isEmpty()) {
+            try (Session session = driver.session()) {
+                loadNodes(session.run(String.format(NODES_QUERY, label, "WHERE id(n) IN $ids "),
+                        Map.of("ids", List.copyOf(reload))), nodes, index);
+                if (!delta.linkSources().isEmpty()) {
+                    loadEdges(session.run(String.format(EDGES_QUERY, label, "WHERE id(a) IN $ids "),
+                            Map.of("ids", List.copyOf(delta.linkSources()))), index, edges);
+                }
+            }
+        }
+        for (int i = 0; i < previous.n; i++) {
+            Integer a = index.get(previous.ids[i]);
+            if (a == null || delta.linkSources().contains(previous.ids[i])) continue;
+            for (int k = previous.outOffsets[i]; k < previous.outOffsets[i + 1]; k++) {
+                Integer b = index.get(previous.ids[previous.outTargets[k]]);
+                if (b == null) continue;
+                edges.add(a, b, previous.outJump[k], previous.outWeight[k]);
+            }
+        }
+    }
+
+    /**
+     * 热启动：复制老点的坐标，新点取已定位邻居的质心加一点抖动 (没有邻居的放在布局范围内随机位置)
+     *
+     * @return 沿用了老坐标的点数
+     */
+    private static int warmStart(Layout previous, NodeTable nodes, BarnesHutLayout.Graph graph,
+                                 float[] x, float[] y, Random random) {
+        Map<Long, Integer> old = new HashMap<>(previous.n * 2);
+        for (int i = 0; i < previous.n; i++) old.put(previous.ids[i], i);
+        int n = nodes.size;
+        boolean[] known = new boolean[n];
+        int placed = 0;
+        for (int i = 0; i < n; i++) {
+            Integer p = old.get(nodes.ids[i]);
+            if (p == null) continue;
+            x[i] = previous.x[p];
+            y[i] = previous.y[p];
+            known[i] = true;
+            placed++;
+        }
+        for (int i = 0; i < n; i++) {
+            if (known[i]) continue;
+            double sx = 0, sy = 0;
+            int c = 0;
+            for (int k = graph.offsets()[i]; k < graph.offsets()[i + 1]; k++) {
+                int j = graph.neighbors()[k];
+                if (!known[j]) continue;
+                sx += x[j];
+                sy += y[j];
+                c++;
+            }
+            if (c > 0) {
+                x[i] = (float) (sx / c + (random.nextDouble() - 0.5) * BarnesHutLayout.K);
+                y[i] = (float) (sy / c + (random.nextDouble() - 0.5) * BarnesHutLayout.K);
+            } else {
+                x[i] = (float) (previous.minX + random.nextDouble() * (previous.maxX - previous.minX));
+                y[i] = (float) (previous.minY + random.nextDouble() * (previous.maxY - previous.minY));
+            }
+        }
+        return placed;
+    }
+
+    // ================= 增量更新 =================
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        if (enabled && cached(event.graphId()) != null) stale.add(event.graphId());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        if (!enabled) return;
+        synchronized (layouts) {
+            if (event.graphId() == null) stale.addAll(layouts.keySet());
+            else if (layouts.containsKey(event.graphId())) stale.add(event.graphId());
+        }
+    }
+
+    /**
+     * 已缓存且过时 (或上次没跑完) 的布局按增量读图，从上一次的坐标热启动
+     */
+    @Scheduled(fixedDelayString = "${songmap.layout.refresh-interval-ms:30000}")
+    public void refresh() {
+        if (!enabled || (stale.isEmpty() && unfinished.isEmpty())) return;
+        Set<Long> graphIds = new HashSet<>(stale);
+        graphIds.addAll(unfinished);
+        for (Long graphId : graphIds) {
+            Layout previous = cached(graphId);
+            if (previous == null) {
+                stale.remove(graphId);
+                unfinished.remove(graphId);
+                continue;
+            }
+            synchronized (locks.computeIfAbsent(graphId, k -> new Object())) {
+                try {
+                    if (graphInfoRepository.findByIdAndUserId(graphId, previous.ownerId).isEmpty()) {
+                        // 图谱已删除
+                        stale.remove(graphId);
+                        unfinished.remove(graphId);
+                        synchronized (layouts) {
+                            layouts.remove(graphId);
+                        }
+                        locks.remove(graphId);
+                        continue;
+                    }
+                    compute(previous.ownerId, graphId, previous.label, previous);
+                } catch (RuntimeException e) {
+                    failures.increment();
+                    log.warn("Failed to refresh layout of graph {}: {}", graphId, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 运行指标：缓存的布局数、计算次数和耗时、视口查询次数和耗时
+     */
+    public Map<String, Object> snapshot() {
+        long computeCount = computes.sum();
+        long viewCount = views.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        synchronized (layouts) {
+            result.put("layouts", layouts.size());
+        }
+        result.put("staleLayouts", stale.size());
+        result.put("unfinishedLayouts", unfinished.size());
+        result.put("computes", computeCount);
+        result.put("avgComputeMs", computeCount == 0 ? 0.0 : computeNanos.sum() / 1e6 / computeCount);
+        result.put("budgetExceeded", budgetExceeded.sum());
+        result.put("continuationsCapped", continuationsCapped.sum());
+        result.put("fullLoads", fullLoads.sum());
+        result.put("incrementalLoads", incrementalLoads.sum());
+        result.put("failures", failures.sum());
+        result.put("views", viewCount);
+        result.put("aggregatedViews", aggregatedViews.sum());
+        result.put("avgViewMicros", viewCount == 0 ? 0.0 : viewNanos.sum() / 1e3 / viewCount);
+        return result;
+    }
+}
@@ -0,0 +1,169 @@
+package com.songmap.songmap.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 按图谱串行化的听歌执行器 (Keyed Actor)
+ * <p>
+ * addSong 先读 Redis 里的 "上一首"，最后再写回历史。同一图谱的两次听歌并发执行时
+ * 会读到同一个上一首，连出错误的 NEXT 边。这里给每个图谱一条 "车道"：
+ * 同一图谱的任务严格按提交顺序一个接一个执行，不同图谱的车道在线程池里完全并行。
+ * 车道空闲后自动回收，不占常驻线程。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphListenSequencer {
+
+    @Value("${songmap.listen.sequencer.threads:0}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+    // 全部车道累计 (车道回收后单图谱的统计随之丢弃，这里保留总量)
+    private final LaneStats total = new LaneStats();
+
+    private static class Lane {
+        final Queue<Job<?>> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // 统计挂在车道上，随车道一起回收，不会因为图谱越来越多而无限增长
+        final LaneStats stats = new LaneStats();
+    }
+
+    private static class LaneStats {
+        final AtomicInteger depth = new AtomicInteger();
+        final LongAdder executed = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void executed(long wait) {
+            waitNanos.add(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+            executed.increment();
+        }
+
+        Map<String, Object> toMap() {
+            long count = executed.sum();
+            Map<String, Object> m = new HashMap<>();
+            m.put("queueDepth", depth.get());
+            m.put("executed", count);
+            m.put("avgWaitMs", count == 0 ? 0.0 : waitNanos.sum() / 1e6 / count);
+            m.put("maxWaitMs", maxWaitNanos.get() / 1e6);
+            return m;
+        }
+    }
+
+    private record Job<T>(Supplier<T> task, CompletableFuture<T> future, long enqueuedAt) {
+        void run() {
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger seq = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(size, r -> {
+            Thread t = new Thread(r, "listen-lane-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 在该图谱的车道上执行任务并等待结果，业务异常原样抛出
+     */
+    public <T> T execute(Long graphId, Supplier<T> task) {
+        try {
+            return submit(graphId, task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(Long graphId, Supplier<T> task) {
+        Job<T> job = new Job<>(task, new CompletableFuture<>(), System.nanoTime());
+        total.depth.incrementAndGet();
+
+        // compute 对同一个 key 是原子的，与车道回收互斥
+        Lane lane = lanes.compute(graphId, (k, l) -> {
+            Lane target = l == null ? new Lane() : l;
+            target.stats.depth.incrementAndGet();
+            target.queue.add(job);
+            return target;
+        });
+
+        if (lane.scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain(graphId, lane));
+        }
+        return job.future();
+    }
+
+    private void drain(Long graphId, Lane lane) {
+        while (true) {
+            Job<?> job;
+            while ((job = lane.queue.poll()) != null) {
+                long wait = System.nanoTime() - job.enqueuedAt();
+                lane.stats.depth.decrementAndGet();
+                total.depth.decrementAndGet();
+                job.run();
+                lane.stats.executed(wait);
+                total.executed(wait);
+            }
+            lane.scheduled.set(false);
+            // 释放调度权后再检查一次，防止漏掉刚入队的任务
+            if (lane.queue.isEmpty() || !lane.scheduled.compareAndSet(false, true)) break;
+        }
+        lanes.computeIfPresent(graphId, (k, l) -> l.queue.isEmpty() && !l.scheduled.get() ? null : l);
+    }
+
+    /**
+     * 运行指标：全部车道累计的排队深度、已执行数、平均 / 最大等待时间，以及当前活跃车道各自的同类指标
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> perGraph = new LinkedHashMap<>();
+        lanes.forEach((graphId, lane) -> perGraph.put(String.valueOf(graphId), lane.stats.toMap()));
+
+        Map<String, Object> result = new LinkedHashMap<>(total.toMap());
+        result.put("activeLanes", lanes.size());
+        result.put("graphs", perGraph);
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.songmap.songmap.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.springframework.stereotype.Service;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 图谱专属 Label 的索引维护
+ * <p>
+ * 每个图谱的节点都带一个 G_u... 专属 Label，听歌时按 (name, artist) 查找节点，
+ * 没有索引就会扫描整个 Label。这里负责给每个 Label 建 (name, artist) 组合索引。
+ * Neo4j 不允许在同一个事务里既写数据又改 Schema，所以建索引走独立的 Driver Session，
+ * 如果当前处于事务中则推迟到事务提交之后执行。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphSchemaService {
+
+    private final Driver driver;
+
+    // 本进程内已确认建过索引的 Label，避免每次听歌都发一次 DDL
+    private final Set<String> ensuredLabels = ConcurrentHashMap.newKeySet();
+    private volatile boolean appliedEventSchemaEnsured;
+
+    public GraphSchemaService(Driver driver) {
+        this.driver = driver;
+    }
+
+    public void ensureIndexes(String label) {
+        if (ensuredLabels.contains(label)) return;
+
+        TransactionHooks.afterCommit(() -> createIndexes(label));
+    }
+
+    /**
+     * 批量上传去重用的 AppliedEvent 节点：(graphId, eventId) 唯一约束 + appliedAt 索引 (过期清理用)
+     */
+    public void ensureAppliedEventSchema() {
+        if (appliedEventSchemaEnsured) return;
+
+        TransactionHooks.afterCommit(this::createAppliedEventSchema);
+    }
+
+    private void createAppliedEventSchema() {
+        if (appliedEventSchemaEnsured) return;
+        try (Session session = driver.session()) {
+            session.run("CREATE CONSTRAINT applied_event_key IF NOT EXISTS " +
+                        "FOR (a:AppliedEvent) REQUIRE (a.graphId, a.eventId) IS UNIQUE").consume();
+            session.run("CREATE INDEX applied_event_at IF NOT EXISTS FOR (a:AppliedEvent) ON (a.appliedAt)").consume();
+            appliedEventSchemaEnsured = true;
+            log.info("Ensured AppliedEvent constraint and index");
+        } catch (Exception e) {
+            log.warn("Failed to create AppliedEvent schema: {}", e.getMessage());
+        }
+    }
+
+    private void createIndexes(String label) {
+        if (ensuredLabels.contains(label)) return;
+        String cypher = String.format(
+            "CREATE INDEX IF NOT EXISTS FOR (n:`%s`) ON (n.name, n.artist)",
+            label
+        );
+        try (Session session = driver.session()) {
+            session.run(cypher).consume();
+            ensuredLabels.add(label);
+            log.info("Ensured (name, artist) index for label: {}", label);
+        } catch (Exception e) {
+            // 建索引失败不影响听歌本身，下次再试
+            log.warn("Failed to create index for label {}: {}", label, e.getMessage());
+        }
+    }
+}
@@ -6,12 +6,26 @@ import com.songmap.songmap.entity.User;
 import com.songmap.songmap.repository.GraphInfoRepository;
 import com.songmap.songmap.repository.UserRepository;
 import lombok.extern.slf4j.Slf4j;
+import com.songmap.songmap.dto.CloneJobDTO;
+import com.songmap.songmap.dto.GraphCreatedDTO;
 import com.songmap.songmap.dto.GraphDataDTO; // 导入 DTO
+import com.songmap.songmap.dto.GraphDeltaDTO;
+import com.songmap.songmap.dto.GraphSummaryDTO;
+import com.songmap.songmap.dto.GraphViewDTO;
 import org.springframework.data.neo4j.core.schema.Node; // 如果有用到
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.neo4j.core.Neo4jClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tools.jackson.core.JsonGenerator;
+import tools.jackson.databind.ObjectMapper;
 
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -22,6 +36,18 @@ public class GraphService {
     private final GraphInfoRepository graphInfoRepository;
     private final UserRepository userRepository;
     private final Neo4jClient neo4jClient;
+    private final Driver driver;
+    private final ObjectMapper objectMapper;
+    private final GraphSchemaService graphSchemaService;
+    private final PlayCounterAccumulator counterAccumulator;
+    private final CommunityDetectionService communityService;
+    private final GraphLayoutService layoutService;
+    private final GraphChangeLog changeLog;
+    private final GraphDataCache graphDataCache;
+    private final GraphStatsService statsService;
+    private final TemplateCloneService cloneService;
+    private final SongEmbeddingService embeddingService;
+    private final ApplicationEventPublisher eventPublisher;
 
     // 预设一些好看的渐变色给前端用
     private static final String[] COVER_COLORS = {
@@ -32,10 +58,39 @@ public class GraphService {
         "linear-gradient(135deg, #667eea 0%, #764ba2 100%)"
     };
 
-    public GraphService(GraphInfoRepository graphInfoRepository, UserRepository userRepository, Neo4jClient neo4jClient) {
+    // 流式导出每输出这么多行 flush 一次，客户端可以边收边画
+    private static final int STREAM_FLUSH_ROWS = 1000;
+
+    // 流式导出 (NDJSON / 二进制) 共用的点查询，二进制版本再追加 ORDER BY
+    private static final String NODES_QUERY =
+            "MATCH (n:`%s`) " +
+            "RETURN id(n) AS id, n.name AS name, n.artist AS artist, " +
+            "       n.listenCount AS listenCount, n.community AS community ";
+
+    // 【新增】二进制列式格式的媒体类型，按 Accept 协商
+    public static final String BINARY_MEDIA_TYPE = "application/vnd.songmap.graph";
+
+    public GraphService(GraphInfoRepository graphInfoRepository, UserRepository userRepository, Neo4jClient neo4jClient,
+                        Driver driver, ObjectMapper objectMapper, GraphSchemaService graphSchemaService, PlayCounterAccumulator counterAccumulator,
+                        CommunityDetectionService communityService, GraphLayoutService layoutService,
+                        GraphChangeLog changeLog, GraphDataCache graphDataCache, GraphStatsService statsService,
+                        TemplateCloneService cloneService, SongEmbeddingService embeddingService,
+                        ApplicationEventPublisher eventPublisher) {
         this.graphInfoRepository = graphInfoRepository;
         this.userRepository = userRepository;
         this.neo4jClient = neo4jClient;
+        this.driver = driver;
+        this.objectMapper = objectMapper;
+        this.graphSchemaService = graphSchemaService;
+        this.counterAccumulator = counterAccumulator;
+        this.communityService = communityService;
+        this.layoutService = layoutService;
+        this.changeLog = changeLog;
+        this.graphDataCache = graphDataCache;
+        this.statsService = statsService;
+        this.cloneService = cloneService;
+        this.embeddingService = embeddingService;
+        this.eventPublisher = eventPublisher;
     }
 
     /**
@@ -47,6 +102,10 @@ public class GraphService {
                 .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
 
         String label = graph.getNodeLabel();
+        // 【新增】节点按社区着色：还没划分或已过时的图谱排进社区划分任务
+        communityService.request(userId, graphId);
+        // 【新增】先取版本号再查数据：查询期间的修改版本号更大，客户端下次增量时会再拿到
+        long version = changeLog.version(graphId);
 
         // 2. 执行动态 Cypher 查询
         // 查出该 label 下的所有点，以及它们之间的关系
@@ -71,26 +130,228 @@ public class GraphService {
                 mapNode(row.get("m"), nodeMap);
                 
                 // 处理边
-                // 注意：Neo4j 的 InternalRelationship 获取 id 和 start/end 比较麻烦
-                // 这里我们假设 fetch() 返回的是 Map 结构的属性或实体
-                // 简单起见，我们重新映射一下 ID
-                
-                org.neo4j.driver.types.Node sourceNode = (org.neo4j.driver.types.Node) row.get("n");
-                org.neo4j.driver.types.Node targetNode = (org.neo4j.driver.types.Node) row.get("m");
-                org.neo4j.driver.types.Relationship rel = (org.neo4j.driver.types.Relationship) row.get("r");
-                
-                // 获取边权重 (jumpCount)
-                int weight = rel.get("jumpCount").isNull() ? 1 : rel.get("jumpCount").asInt();
-                
-                links.add(new GraphDataDTO.LinkData(
-                    String.valueOf(sourceNode.id()), 
-                    String.valueOf(targetNode.id()), 
-                    weight
-                ));
+                links.add(linkData(row));
             }
         });
 
-        return new GraphDataDTO(new ArrayList<>(nodeMap.values()), links);
+        return new GraphDataDTO(new ArrayList<>(nodeMap.values()), links, version);
+    }
+
+    /**
+     * 【缓存】getGraphData 序列化后的 JSON，图谱没有修改时直接返回缓存的字节，不再扫描整个 label
+     */
+    public byte[] getGraphDataJson(Long userId, Long graphId) {
+        graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
+        byte[] cached = graphDataCache.get(graphId);
+        if (cached != null) {
+            communityService.request(userId, graphId);
+            return cached;
+        }
+        GraphDataDTO data = getGraphData(userId, graphId);
+        byte[] payload = objectMapper.writeValueAsBytes(data);
+        graphDataCache.put(graphId, data.getVersion(), payload);
+        return payload;
+    }
+
+    /**
+     * 【增量同步】since 之后新增 / 变化 / 删除的点和边
+     * 只记 id 的变更日志决定哪些点和起点要重发，内容按 id 读当前状态；since 超出日志范围时退回全量 (reset = true)
+     */
+    public GraphDeltaDTO getGraphDelta(Long userId, Long graphId, long since) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
+
+        GraphChangeLog.Delta delta = changeLog.changesSince(graphId, since);
+        if (delta.reset()) {
+            GraphDataDTO full = getGraphData(userId, graphId);
+            return new GraphDeltaDTO(full.getVersion(), true, full.getNodes(), List.of(), full.getLinks(),
+                    List.of(), List.of());
+        }
+
+        String label = graph.getNodeLabel();
+        Map<String, GraphDataDTO.NodeData> nodeMap = new HashMap<>();
+        if (!delta.nodes().isEmpty()) {
+            neo4jClient.query(String.format("MATCH (n:`%s`) WHERE id(n) IN $ids RETURN n", label))
+                    .bind(delta.nodes()).to("ids")
+                    .fetch().all()
+                    .forEach(row -> mapNode(row.get("n"), nodeMap));
+        }
+        List<GraphDataDTO.LinkData> links = new ArrayList<>();
+        if (!delta.linkSources().isEmpty()) {
+            neo4jClient.query(String.format(
+                            "MATCH (n:`%1$s`)-[r:NEXT]->(m:`%1$s`) WHERE id(n) IN $ids RETURN n, r, m", label))
+                    .bind(delta.linkSources()).to("ids")
+                    .fetch().all()
+                    .forEach(row -> links.add(linkData(row)));
+        }
+
+        return new GraphDeltaDTO(
+                delta.version(),
+                false,
+                new ArrayList<>(nodeMap.values()),
+                delta.linkSources().stream().map(String::valueOf).toList(),
+                links,
+                delta.removedNodes().stream().map(String::valueOf).toList(),
+                delta.removedLinks().stream()
+                        .map(l -> new GraphDeltaDTO.LinkRef(String.valueOf(l[0]), String.valueOf(l[1])))
+                        .toList());
+    }
+
+    /**
+     * 图谱当前的修改版本号 (ETag)
+     */
+    public long getGraphVersion(Long userId, Long graphId) {
+        graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
+        return changeLog.version(graphId);
+    }
+
+    /**
+     * 【流式导出】getGraphData 的流式版本，输出 NDJSON (application/x-ndjson)
+     * 点和边分两条查询直接从驱动游标逐行写出，每个点只输出一次，内存占用与图谱大小无关：
+     * <pre>
+     * {"type":"node","id":"1","name":"晴天","artist":"周杰伦","symbolSize":24,"category":1}
+     * ...
+     * {"type":"link","source":"1","target":"2","value":3,"probability":0.5}
+     * ...
+     * {"type":"end","nodes":1000,"links":5000,"version":...}
+     * </pre>
+     * 最后一行 end 用来让客户端判断数据是否完整，version 同 getGraphData，可用于之后的增量同步。归属校验在返回前完成，出错时仍是普通的错误响应
+     */
+    public StreamingResponseBody streamGraphData(Long userId, Long graphId) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
+        String label = graph.getNodeLabel();
+        communityService.request(userId, graphId);
+        long version = changeLog.version(graphId);
+
+        return out -> {
+            long start = System.nanoTime();
+            long nodes = 0, links = 0;
+            try (Session session = driver.session();
+                 JsonGenerator gen = objectMapper.writer().withRootValueSeparator("\n").createGenerator(out)) {
+                Result nodeRows = streamNodes(session, label);
+                while (nodeRows.hasNext()) {
+                    Record r = nodeRows.next();
+                    GraphDataDTO.NodeData node = nodeData(String.valueOf(r.get("id").asLong()),
+                            r.get("name").isNull() ? null : r.get("name").asString(),
+                            r.get("artist").isNull() ? null : r.get("artist").asString(),
+                            r.get("listenCount").isNull() ? 0 : r.get("listenCount").asInt(),
+                            r.get("community").isNull() ? null : r.get("community").asInt());
+                    gen.writeStartObject();
+                    gen.writeStringProperty("type", "node");
+                    gen.writeStringProperty("id", node.getId());
+                    gen.writeStringProperty("name", node.getName());
+                    gen.writeStringProperty("artist", node.getArtist());
+                    gen.writeNumberProperty("symbolSize", node.getSymbolSize());
+                    gen.writeNumberProperty("category", node.getCategory());
+                    gen.writeEndObject();
+                    if (++nodes % STREAM_FLUSH_ROWS == 0) gen.flush();
+                }
+
+                Result linkRows = streamLinks(session, label);
+                while (linkRows.hasNext()) {
+                    Record r = linkRows.next();
+                    int jumpCount = r.get("jumpCount").isNull() ? 0 : r.get("jumpCount").asInt();
+                    int outJumpTotal = r.get("outJumpTotal").isNull() ? 0 : r.get("outJumpTotal").asInt();
+                    gen.writeStartObject();
+                    gen.writeStringProperty("type", "link");
+                    gen.writeStringProperty("source", String.valueOf(r.get("source").asLong()));
+                    gen.writeStringProperty("target", String.valueOf(r.get("target").asLong()));
+                    gen.writeNumberProperty("value", r.get("jumpCount").isNull() ? 1 : jumpCount);
+                    gen.writeNumberProperty("probability", SongScorer.transitionProb(jumpCount, outJumpTotal));
+                    gen.writeEndObject();
+                    if (++links % STREAM_FLUSH_ROWS == 0) gen.flush();
+                }
+
+                gen.writeStartObject();
+                gen.writeStringProperty("type", "end");
+                gen.writeNumberProperty("nodes", nodes);
+                gen.writeNumberProperty("links", links);
+                gen.writeNumberProperty("version", version);
+                gen.writeEndObject();
+                gen.writeRaw('\n');
+            }
+            log.info("Streamed graph {}: {} nodes, {} links in {} ms",
+                    graphId, nodes, links, (System.nanoTime() - start) / 1_000_000);
+        };
+    }
+
+    /**
+     * 【二进制导出】getGraphData 的紧凑二进制列式版本 (application/vnd.songmap.graph，格式见 GraphBinaryEncoder)
+     * 同样直接从驱动游标分块写出；点名和歌手进去重的字符串表，边的端点是点编号而不是字符串 ID
+     */
+    public StreamingResponseBody streamGraphBinary(Long userId, Long graphId) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
+        String label = graph.getNodeLabel();
+        communityService.request(userId, graphId);
+        long version = changeLog.version(graphId);
+
+        return out -> {
+            long start = System.nanoTime();
+            GraphBinaryEncoder encoder = new GraphBinaryEncoder(out);
+            try (Session session = driver.session()) {
+                Result nodeRows = streamNodesById(session, label);
+                while (nodeRows.hasNext()) {
+                    Record r = nodeRows.next();
+                    String artist = r.get("artist").isNull() ? null : r.get("artist").asString();
+                    encoder.node(r.get("id").asLong(),
+                            r.get("name").isNull() ? null : r.get("name").asString(),
+                            artist == null ? "Unknown" : artist,
+                            symbolSize(r.get("listenCount").isNull() ? 0 : r.get("listenCount").asInt()),
+                            category(r.get("community").isNull() ? null : r.get("community").asInt()));
+                }
+
+                Result linkRows = streamLinks(session, label);
+                while (linkRows.hasNext()) {
+                    Record r = linkRows.next();
+                    int jumpCount = r.get("jumpCount").isNull() ? 0 : r.get("jumpCount").asInt();
+                    int outJumpTotal = r.get("outJumpTotal").isNull() ? 0 : r.get("outJumpTotal").asInt();
+                    encoder.link(r.get("source").asLong(), r.get("target").asLong(),
+                            r.get("jumpCount").isNull() ? 1 : jumpCount,
+                            SongScorer.transitionProb(jumpCount, outJumpTotal));
+                }
+                encoder.end(version);
+            }
+            log.info("Streamed binary graph {}: {} nodes, {} links in {} ms",
+                    graphId, encoder.nodes(), encoder.links(), (System.nanoTime() - start) / 1_000_000);
+        };
+    }
+
+    // 不排序：NDJSON 逐行写出，排序要等全部点读完才能吐第一行
+    private Result streamNodes(Session session, String label) {
+        return session.run(String.format(NODES_QUERY, label));
+    }
+
+    // 按 id 升序：二进制格式靠它把边的端点二分换成点编号
+    private Result streamNodesById(Session session, String label) {
+        return session.run(String.format(NODES_QUERY + "ORDER BY id", label));
+    }
+
+
+    private Result streamLinks(Session session, String label) {
+        return session.run(String.format(
+            "MATCH (a:`%1$s`)-[r:NEXT]->(b:`%1$s`) " +
+            "RETURN id(a) AS source, id(b) AS target, r.jumpCount AS jumpCount, a.outJumpTotal AS outJumpTotal",
+            label
+        ));
+    }
+
+    /**
+     * 【视口子图】只返回视口矩形内的点和边，坐标由服务端布局算好；点太多时按网格聚合
+     * 返回的数据量只取决于视口参数 (maxNodes)，与图谱大小无关
+     */
+    public GraphViewDTO getGraphView(Long userId, Long graphId, Double minX, Double minY, Double maxX, Double maxY,
+                                     Integer maxNodes) {
+        if (!layoutService.isEnabled()) {
+            throw new IllegalArgumentException("Server-side layout is disabled (songmap.layout.enabled=false)");
+        }
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("图谱不存在或无权访问"));
+        communityService.request(userId, graphId);
+        return layoutService.view(userId, graphId, graph.getNodeLabel(), minX, minY, maxX, maxY, maxNodes);
     }
 
     // 辅助方法：将 Neo4j Driver Node 映射为 DTO
@@ -100,70 +361,58 @@ public class GraphService {
             String id = String.valueOf(node.id());
             
             if (!nodeMap.containsKey(id)) {
-                String name = node.get("name").asString();
-                String artist = node.get("artist").isNull() ? "Unknown" : node.get("artist").asString();
-                
-                // 计算节点大小：基础大小 20 + 听歌次数 * 2
-                int listenCount = node.get("listenCount").isNull() ? 0 : node.get("listenCount").asInt();
-                int symbolSize = Math.min(20 + listenCount * 2, 60); // 上限 60
-                
-                // 简单分类：听过超过 10 次算热门
-                int category = listenCount > 10 ? 1 : 0;
-
-                nodeMap.put(id, new GraphDataDTO.NodeData(id, name, artist, symbolSize, category));
+                nodeMap.put(id, nodeData(id, node.get("name").asString(),
+                        node.get("artist").isNull() ? null : node.get("artist").asString(),
+                        node.get("listenCount").isNull() ? 0 : node.get("listenCount").asInt(),
+                        node.get("community").isNull() ? null : node.get("community").asInt()));
             }
         }
     }
 
-    /**
-     * 初始化模板数据
-     * 逻辑：查找所有带有 :base_Song 标签的节点和它们之间的关系，
-     * 复制一份，并给新节点打上当前图谱的专属 Label (uniqueLabel)
-     */
-    private void initTemplateData(String uniqueLabel) {
-        // 使用 APOC 插件会更简单，但为了兼容性，我们用纯 Cypher 实现
-        // 逻辑分为两步：
-        // 1. 复制节点：查出所有 base_Song，创建新节点，复制属性，打上 uniqueLabel
-        // 2. 复制关系：查出 base_Song 之间的关系，在对应的新节点之间建立同样的关系
-
-        // Step 1: 复制节点
-        // 我们假设 base_Song 里的 name+artist 是唯一的，可以作为临时标识
-        String copyNodesCypher = String.format(
-            "MATCH (source:base_Song) " +
-            "CREATE (target:Song:%s) " +
-            "SET target = properties(source), " + // 复制所有属性
-            "    target.isTemplateCopy = true, " + // 可选：标记一下来源
-            // 重新初始化统计数据（可选，如果不希望继承热度）
-            "    target.listenCount = 0, " +
-            "    target.fullPlayCount = 0, " +
-            "    target.skipCount = 0, " +
-            "    target.userSelectCount = 0, " +
-            "    target.randomSelectCount = 0 " +
-            "RETURN count(target)",
-            "`" + uniqueLabel + "`" // 动态 Label
-        );
-        
-        neo4jClient.query(copyNodesCypher).run();
+    // 辅助方法：将一行 (n)-[r]->(m) 映射为边 DTO
+    private GraphDataDTO.LinkData linkData(Map<String, Object> row) {
+        org.neo4j.driver.types.Node sourceNode = (org.neo4j.driver.types.Node) row.get("n");
+        org.neo4j.driver.types.Node targetNode = (org.neo4j.driver.types.Node) row.get("m");
+        org.neo4j.driver.types.Relationship rel = (org.neo4j.driver.types.Relationship) row.get("r");
 
-        // Step 2: 复制关系
-        // 这一步比较 tricky，我们需要找到“新创建的节点A”和“新创建的节点B”，
-        // 前提是它们对应的“原节点A”和“原节点B”之间有关系。
-        // 我们可以利用 name 和 artist 来进行匹配（假设它们是主键）。
-        
-        String copyEdgesCypher = String.format(
-            "MATCH (sourceA:base_Song)-[r:NEXT]->(sourceB:base_Song) " +
-            "MATCH (targetA:Song:%1$s {name: sourceA.name, artist: sourceA.artist}) " +
-            "MATCH (targetB:Song:%1$s {name: sourceB.name, artist: sourceB.artist}) " +
-            "MERGE (targetA)-[newR:NEXT]->(targetB) " +
-            "SET newR = properties(r), " + // 复制边属性
-            "    newR.jumpCount = 1, " + // 重置权重（可选）
-            "    newR.userSelectCount = 0 ",
-            "`" + uniqueLabel + "`"
+        // 获取边权重 (jumpCount)
+        int weight = rel.get("jumpCount").isNull() ? 1 : rel.get("jumpCount").asInt();
+        // 【新增】转移概率 = jumpCount / 起点 outJumpTotal
+        int outJumpTotal = sourceNode.get("outJumpTotal").isNull() ? 0 : sourceNode.get("outJumpTotal").asInt();
+
+        return new GraphDataDTO.LinkData(
+            String.valueOf(sourceNode.id()),
+            String.valueOf(targetNode.id()),
+            weight,
+            SongScorer.transitionProb(rel.get("jumpCount").isNull() ? 0 : rel.get("jumpCount").asInt(), outJumpTotal)
         );
+    }
 
-        neo4jClient.query(copyEdgesCypher).run();
-        
-        log.info("Initialized template data for label: {}", uniqueLabel);
+    static GraphDataDTO.NodeData nodeData(String id, String name, String artist, int listenCount, Integer community) {
+        return new GraphDataDTO.NodeData(id, name, artist == null ? "Unknown" : artist,
+                symbolSize(listenCount), category(community));
+    }
+
+    // 计算节点大小：基础大小 20 + 听歌次数 * 2
+    static int symbolSize(int listenCount) {
+        return Math.min(20 + listenCount * 2, 60); // 上限 60
+    }
+
+    // 【修改】分类 = 社区编号 + 1 (社区按大小降序编号)，0 表示还没划分社区的歌
+    static int category(Integer community) {
+        return community == null ? 0 : community + 1;
+    }
+
+    /**
+     * 立即重新划分图谱的社区并写回节点
+     *
+     * @return 社区个数
+     */
+    public int detectCommunities(Long userId, Long graphId) {
+        if (!communityService.isEnabled()) {
+            throw new IllegalArgumentException("Community detection is disabled (songmap.community.enabled=false)");
+        }
+        return communityService.detect(userId, graphId);
     }
 
     /**
@@ -173,11 +422,22 @@ public class GraphService {
         return graphInfoRepository.findAllByUserId(userId);
     }
 
+    /**
+     * 【新增】图谱列表 + 每个图谱的统计：一次列表查询 + 一次 Redis 管道，不扫描任何图谱
+     */
+    public List<GraphSummaryDTO> getUserGraphSummaries(Long userId) {
+        List<GraphInfo> graphs = getUserGraphs(userId);
+        Map<Long, GraphSummaryDTO.Stats> stats = statsService.get(graphs.stream().map(GraphInfo::getId).toList());
+        return graphs.stream()
+                .map(g -> new GraphSummaryDTO(g, stats.get(g.getId())))
+                .collect(Collectors.toList());
+    }
+
     /**
      * 创建新图谱
      */
     @Transactional
-    public GraphInfo createGraph(Long userId, String type, String customName) {
+    public GraphCreatedDTO createGraph(Long userId, String type, String customName) {
         User user = userRepository.findById(userId)
                 .orElseThrow(() -> new IllegalArgumentException("User not found"));
 
@@ -197,18 +457,55 @@ public class GraphService {
         String color = COVER_COLORS[new Random().nextInt(COVER_COLORS.length)];
 
         GraphInfo graph = new GraphInfo(name, uniqueLabel, type, color);
-        
+        // 【修改】模板图谱的数据在后台复制，复制完成前是 INITIALIZING
+        boolean template = "template".equals(type);
+        graph.setStatus(template ? GraphInfo.STATUS_INITIALIZING : GraphInfo.STATUS_READY);
+
         // 2. 建立 User -> GraphInfo 的关系
         user.getGraphs().add(graph);
         userRepository.save(user); // 级联保存 GraphInfo
 
-        // 3. 如果是模板，需要初始化数据
-        if ("template".equals(type)) {
-            initTemplateData(uniqueLabel);
+        // 3. 给专属 Label 建 (name, artist) 索引 (事务提交后执行，Schema 变更不能和写数据同事务)
+        graphSchemaService.ensureIndexes(uniqueLabel);
+
+        // 4. 【修改】如果是模板，登记后台克隆任务 (事务提交后开始)，请求直接返回任务号
+        String jobId = null;
+        if (template) {
+            jobId = cloneService.submit(userId, graph.getId(), uniqueLabel, false);
+        } else {
+            statsService.initialize(graph.getId(), 0, 0);
         }
 
-        log.info("Created graph [{}] for user [{}], Label: {}", graph.getId(), userId, uniqueLabel);
-        return graph;
+        log.info("Created graph [{}] for user [{}], Label: {}, clone job: {}", graph.getId(), userId, uniqueLabel, jobId);
+        return new GraphCreatedDTO(graph, jobId);
+    }
+
+    /**
+     * 【新增】重试失败的模板克隆：图谱回到 INITIALIZING，后台先清掉上次复制了一半的节点再从头复制
+     * (失败之后在这张图里新加的歌也会一起清掉)
+     */
+    @Transactional
+    public GraphCreatedDTO retryClone(Long userId, Long graphId) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        if (!"template".equals(graph.getType()) || !GraphInfo.STATUS_FAILED.equals(graph.getStatus())) {
+            throw new IllegalArgumentException("Only a failed template graph can be retried");
+        }
+        graph.setStatus(GraphInfo.STATUS_INITIALIZING);
+        graph.setUpdatedAt(LocalDateTime.now());
+        graphInfoRepository.save(graph);
+        counterAccumulator.dropGraph(graphId);
+
+        String jobId = cloneService.submit(userId, graphId, graph.getNodeLabel(), true);
+        log.info("Retrying template clone for graph [{}] of user [{}], clone job: {}", graphId, userId, jobId);
+        return new GraphCreatedDTO(graph, jobId);
+    }
+
+    /**
+     * 【新增】模板克隆任务的进度
+     */
+    public CloneJobDTO getCloneJob(Long userId, String jobId) {
+        return cloneService.getJob(userId, jobId);
     }
 
     /**
@@ -222,42 +519,13 @@ public class GraphService {
 
         // 2. 删除节点 (SDN 会自动删除 User -> GraphInfo 的关系)
         graphInfoRepository.delete(graph);
+        cloneService.cancel(graphId);
+        counterAccumulator.dropGraph(graphId);
+        changeLog.drop(graphId);
+        statsService.drop(graphId);
+        embeddingService.drop(graphId);
+        eventPublisher.publishEvent(new GraphChangedEvent(graphId));
         
         log.info("Deleted GraphInfo [{}] for user [{}]", graphId, userId);
     }
-
-    /**
-     * 初始化模板数据
-     * 直接使用 Cypher 批量创建节点，并打上 uniqueLabel
-     */
-    private void initTemplateData(String label) {
-        // 这里我们创建一个简单的 流行 -> 周杰伦 -> 夜曲 的结构
-        // 注意：我们在 Cypher 中使用 apoc 或者字符串拼接来动态添加 Label
-        // 由于 SDN 不支持动态 Label 参数，我们需要用 String.format (注意防注入，这里 label 是系统生成的，相对安全)
-        
-        String cypher = String.format(
-            "CREATE (g:Genre {name: '流行', %1$s: true}) " +
-            "CREATE (a:Artist {name: '周杰伦', %1$s: true}) " +
-            "CREATE (s:Song {name: '夜曲', artist: '周杰伦', %1$s: true}) " +
-            "MERGE (g)-[:Oi]->(a) " +
-            "MERGE (a)-[:Oi]->(s)",
-            "`" + label + "`" // 给 label 加上反引号，防止特殊字符报错
-        );
-        
-        // 这里只是为了演示“专属Label”的概念。
-        // 实际上，我们通常给节点打两个 Label：
-        // 1. 通用 Label (如 Song) -> 用于类型查询
-        // 2. 专用 Label (如 G_u1_xyz) -> 用于范围隔离
-        
-        String templateCypher = String.format(
-            "CREATE (s1:Song:%1$s {name: '夜曲', artist: '周杰伦', listenCount: 0}) " +
-            "CREATE (s2:Song:%1$s {name: '七里香', artist: '周杰伦', listenCount: 0}) " +
-            "CREATE (s3:Song:%1$s {name: '晴天', artist: '周杰伦', listenCount: 0}) " +
-            "CREATE (s1)-[:NEXT {jumpCount: 1}]->(s2) " +
-            "CREATE (s2)-[:NEXT {jumpCount: 1}]->(s3) ",
-            "`" + label + "`"
-        );
-
-        neo4jClient.query(templateCypher).run();
-    }
 }
\ No newline at end of file
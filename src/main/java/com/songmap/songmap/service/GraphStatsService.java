@@ -0,0 +1,395 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.GraphSummaryDTO;
+import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.neo4j.core.Neo4jClient;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 图谱列表卡片上的统计 (歌曲数、边数、总播放次数、播放最多的歌)，存在 Redis hash "graph:stats:{graphId}"
+ * <p>
+ * 听歌、删点、删边、模板克隆在事务提交后用 Lua 脚本原子地增量更新，O(1)，不扫描图谱；
+ * 图谱列表只需一次 Neo4j 列表查询 + 一次 Redis 管道读取，与图谱个数和大小无关。
+ * </p>
+ * <p>
+ * 还没有统计 (老图谱、Redis 数据丢失) 或增量无法维护 (播放最多的歌被删除、属性批量修改) 的图谱标记为过期，
+ * 由定时任务按整个 label 聚合重算；另有低频的全量对账修正累积误差。
+ * hash 不存在时增量脚本什么都不做，避免写出只有增量的残缺统计。
+ * </p>
+ * <p>
+ * 每个增量脚本都会给 "graph:stats:{graphId}:seq" 加一 (hash 不存在时也加)。重算先读 seq 再聚合，
+ * 最后用脚本比较 seq，没变才覆盖；变了说明聚合期间有增量提交 (聚合结果里可能有也可能没有它)，重新读一遍，
+ * 重试 {@link #MAX_RECOMPUTE_ATTEMPTS} 次仍冲突就留给下一轮。增量在事务提交之后才执行，
+ * 所以 seq 没变意味着聚合看到的提交恰好都已反映 (或被覆盖)，不会丢增量也不会重复。
+ * </p>
+ */
+@Slf4j
+@Service
+public class GraphStatsService {
+
+    private static final String SONGS = "songs", LINKS = "links", LISTENS = "listens";
+    private static final String TOP_ID = "topSongId", TOP_NAME = "topSongName", TOP_LISTENS = "topSongListens";
+    private static final String UPDATED_AT = "reconciledAt";
+
+    private static final int MAX_RECOMPUTE_ATTEMPTS = 3;
+
+    // KEYS[1] = hash, KEYS[2] = seq；ARGV = songs 增量, links 增量, listens 增量, [候选最热歌曲 id, name, listenCount]
+    private static final String LUA_APPLY =
+            "redis.call('INCR', KEYS[2]); " +
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end; " +
+            "redis.call('HINCRBY', KEYS[1], 'songs', ARGV[1]); " +
+            "redis.call('HINCRBY', KEYS[1], 'links', ARGV[2]); " +
+            "redis.call('HINCRBY', KEYS[1], 'listens', ARGV[3]); " +
+            "if #ARGV >= 6 then " +
+            "  local top = tonumber(redis.call('HGET', KEYS[1], 'topSongListens') or '-1'); " +
+            "  if tonumber(ARGV[6]) > top or redis.call('HGET', KEYS[1], 'topSongId') == ARGV[4] then " +
+            "    redis.call('HSET', KEYS[1], 'topSongId', ARGV[4], 'topSongName', ARGV[5], 'topSongListens', ARGV[6]); " +
+            "  end; " +
+            "end; " +
+            "return 1;";
+
+    // KEYS[1] = hash, KEYS[2] = seq；ARGV = 被删歌曲 id, 连带删掉的边数, 它的 listenCount；被删的是最热歌曲时返回 2 (需要重算)
+    private static final String LUA_REMOVE_SONG =
+            "redis.call('INCR', KEYS[2]); " +
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end; " +
+            "redis.call('HINCRBY', KEYS[1], 'songs', -1); " +
+            "redis.call('HINCRBY', KEYS[1], 'links', -tonumber(ARGV[2])); " +
+            "redis.call('HINCRBY', KEYS[1], 'listens', -tonumber(ARGV[3])); " +
+            "if redis.call('HGET', KEYS[1], 'topSongId') == ARGV[1] then return 2 end; " +
+            "return 1;";
+
+    // KEYS[1] = hash, KEYS[2] = seq；ARGV = 重算前读到的 seq, 字段1, 值1, ...；seq 变过时不覆盖，返回 0
+    private static final String LUA_OVERWRITE =
+            "if (redis.call('GET', KEYS[2]) or '0') ~= ARGV[1] then return 0 end; " +
+            "redis.call('HSET', KEYS[1], unpack(ARGV, 2)); " +
+            "return 1;";
+
+    private static final DefaultRedisScript<Long> APPLY_SCRIPT = new DefaultRedisScript<>(LUA_APPLY, Long.class);
+    private static final DefaultRedisScript<Long> REMOVE_SONG_SCRIPT =
+            new DefaultRedisScript<>(LUA_REMOVE_SONG, Long.class);
+    private static final DefaultRedisScript<Long> OVERWRITE_SCRIPT = new DefaultRedisScript<>(LUA_OVERWRITE, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final Neo4jClient neo4jClient;
+    private final GraphInfoRepository graphInfoRepository;
+    private final PlayCounterAccumulator counterAccumulator;
+
+    @Value("${songmap.graph.stats.enabled:true}")
+    private boolean enabled;
+
+    // 等待重算的图谱
+    private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder increments = new LongAdder();
+    private final LongAdder recomputed = new LongAdder();
+    private final LongAdder drifted = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public GraphStatsService(StringRedisTemplate redisTemplate, Neo4jClient neo4jClient,
+                             GraphInfoRepository graphInfoRepository, PlayCounterAccumulator counterAccumulator) {
+        this.redisTemplate = redisTemplate;
+        this.neo4jClient = neo4jClient;
+        this.graphInfoRepository = graphInfoRepository;
+        this.counterAccumulator = counterAccumulator;
+    }
+
+    private String key(Long graphId) {
+        return "graph:stats:" + graphId;
+    }
+
+    private String seqKey(Long graphId) {
+        return "graph:stats:" + graphId + ":seq";
+    }
+
+    // ================= 读取 =================
+
+    /**
+     * 批量读取统计 (一次管道)；还没有统计的图谱排进重算，返回的 stats 为 null
+     */
+    public Map<Long, GraphSummaryDTO.Stats> get(List<Long> graphIds) {
+        Map<Long, GraphSummaryDTO.Stats> result = new HashMap<>();
+        if (!enabled || graphIds.isEmpty()) return result;
+        try {
+            List<Object> hashes = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection c = (StringRedisConnection) connection;
+                for (Long id : graphIds) c.hGetAll(key(id));
+                return null;
+            });
+            for (int i = 0; i < graphIds.size(); i++) {
+                Long graphId = graphIds.get(i);
+                if (hashes.get(i) instanceof Map<?, ?> h && !h.isEmpty()) {
+                    result.put(graphId, toStats(h));
+                } else {
+                    stale.add(graphId);
+                }
+            }
+        } catch (RuntimeException e) {
+            errors.increment();
+            log.warn("Failed to read graph stats: {}", e.getMessage());
+        }
+        return result;
+    }
+
+    private GraphSummaryDTO.Stats toStats(Map<?, ?> h) {
+        Object topId = h.get(TOP_ID);
+        return new GraphSummaryDTO.Stats(
+                parseLong(h.get(SONGS)),
+                parseLong(h.get(LINKS)),
+                parseLong(h.get(LISTENS)),
+                topId == null || topId.toString().isEmpty() ? null : topId.toString(),
+                (String) h.get(TOP_NAME),
+                parseLong(h.get(TOP_LISTENS)),
+                parseLong(h.get(UPDATED_AT)));
+    }
+
+    private static long parseLong(Object v) {
+        return v == null || v.toString().isEmpty() ? 0 : Long.parseLong(v.toString());
+    }
+
+    // ================= 增量 =================
+
+    /**
+     * 听歌：新建的点 / 边计数，播放次数加上本批条数，批内 listenCount 最大的歌参与最热歌曲比较
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        if (!enabled || event.listens().isEmpty()) return;
+        long songs = 0, links = 0;
+        ListenAppliedEvent.Listen top = null;
+        for (ListenAppliedEvent.Listen l : event.listens()) {
+            if (l.songCreated()) songs++;
+            if (l.linkCreated()) links++;
+            if (top == null || l.listenCount() > top.listenCount()) top = l;
+        }
+        apply(event.graphId(), songs, links, event.listens().size(),
+                String.valueOf(top.songId()), top.name(), String.valueOf(top.listenCount()));
+    }
+
+    /**
+     * 删掉了一个点及与它相连的 links 条边
+     */
+    public void songRemoved(Long graphId, long songId, long links, long listens) {
+        if (!enabled) return;
+        TransactionHooks.afterCommit(() -> {
+            try {
+                Long r = redisTemplate.execute(REMOVE_SONG_SCRIPT, List.of(key(graphId), seqKey(graphId)),
+                        String.valueOf(songId), String.valueOf(links), String.valueOf(listens));
+                if (r != null && r == 2) stale.add(graphId);
+                increments.increment();
+            } catch (RuntimeException e) {
+                failed(graphId, e);
+            }
+        });
+    }
+
+    public void linkRemoved(Long graphId) {
+        if (!enabled) return;
+        TransactionHooks.afterCommit(() -> apply(graphId, 0, -1, 0));
+    }
+
+    /**
+     * 新图谱 (空图谱或模板克隆)：直接写入完整统计，之后全靠增量
+     */
+    public void initialize(Long graphId, long songs, long links) {
+        if (!enabled) return;
+        TransactionHooks.afterCommit(() -> {
+            try {
+                redisTemplate.opsForHash().putAll(key(graphId), Map.of(
+                        SONGS, String.valueOf(songs), LINKS, String.valueOf(links), LISTENS, "0",
+                        TOP_ID, "", TOP_NAME, "", TOP_LISTENS, "0",
+                        UPDATED_AT, String.valueOf(System.currentTimeMillis())));
+                // 与增量一样推进 seq，此前开始的重算不会覆盖它
+                redisTemplate.opsForValue().increment(seqKey(graphId));
+            } catch (RuntimeException e) {
+                failed(graphId, e);
+            }
+        });
+    }
+
+    /**
+     * 增量无法维护的修改 (graphId 为 null 表示所有图谱)：下次定时任务重算
+     */
+    public void markStale(Long graphId) {
+        if (!enabled) return;
+        TransactionHooks.afterCommit(() -> {
+            if (graphId != null) {
+                stale.add(graphId);
+            } else {
+                graphInfoRepository.findAll().forEach(g -> stale.add(g.getId()));
+            }
+        });
+    }
+
+    public void drop(Long graphId) {
+        TransactionHooks.afterCommit(() -> {
+            stale.remove(graphId);
+            try {
+                redisTemplate.delete(List.of(key(graphId), seqKey(graphId)));
+            } catch (RuntimeException e) {
+                errors.increment();
+                log.warn("Failed to drop stats of graph {}: {}", graphId, e.getMessage());
+            }
+        });
+    }
+
+    private void apply(Long graphId, long songs, long links, long listens, String... top) {
+        List<String> args = new ArrayList<>(6);
+        args.add(String.valueOf(songs));
+        args.add(String.valueOf(links));
+        args.add(String.valueOf(listens));
+        args.addAll(List.of(top));
+        try {
+            redisTemplate.execute(APPLY_SCRIPT, List.of(key(graphId), seqKey(graphId)), args.toArray());
+            increments.increment();
+        } catch (RuntimeException e) {
+            failed(graphId, e);
+        }
+    }
+
+    // 增量丢了就只能重算
+    private void failed(Long graphId, RuntimeException e) {
+        errors.increment();
+        stale.add(graphId);
+        log.warn("Failed to update stats of graph {}: {}", graphId, e.getMessage());
+    }
+
+    // ================= 重算 / 对账 =================
+
+    @Scheduled(fixedDelayString = "${songmap.graph.stats.refresh-interval-ms:10000}")
+    public void refresh() {
+        if (!enabled || stale.isEmpty()) return;
+        for (Long graphId : List.copyOf(stale)) {
+            stale.remove(graphId);
+            graphInfoRepository.findById(graphId).ifPresent(g -> recompute(g, false));
+        }
+    }
+
+    /**
+     * 全量对账：逐个图谱按 label 聚合，与 Redis 里的增量结果不一致时覆盖并计数
+     */
+    @Scheduled(fixedDelayString = "${songmap.graph.stats.reconcile-interval-ms:3600000}",
+               initialDelayString = "${songmap.graph.stats.reconcile-interval-ms:3600000}")
+    public void reconcile() {
+        if (!enabled) return;
+        long start = System.nanoTime();
+        int graphs = 0;
+        long before = drifted.sum();
+        for (GraphInfo g : graphInfoRepository.findAll()) {
+            recompute(g, true);
+            graphs++;
+        }
+        log.info("Reconciled stats of {} graphs in {} ms, {} drifted",
+                graphs, (System.nanoTime() - start) / 1_000_000, drifted.sum() - before);
+    }
+
+    private void recompute(GraphInfo graph, boolean compare) {
+        Long graphId = graph.getId();
+        try {
+            for (int attempt = 0; attempt < MAX_RECOMPUTE_ATTEMPTS; attempt++) {
+                String seq = redisTemplate.opsForValue().get(seqKey(graphId));
+                // 聚合和未刷盘增量一起读，期间有刷盘把增量从一边挪到另一边时计数缓冲会重读
+                Map<String, String> fields = counterAccumulator.read(graphId, () -> aggregate(graph));
+
+                Map<Object, Object> current = compare ? redisTemplate.opsForHash().entries(key(graphId)) : Map.of();
+                fields.put(UPDATED_AT, String.valueOf(System.currentTimeMillis()));
+                List<String> args = new ArrayList<>(1 + fields.size() * 2);
+                args.add(seq == null ? "0" : seq);
+                fields.forEach((f, v) -> {
+                    args.add(f);
+                    args.add(v);
+                });
+                Long written = redisTemplate.execute(OVERWRITE_SCRIPT, List.of(key(graphId), seqKey(graphId)),
+                        args.toArray());
+                if (written == null || written == 0) {
+                    // 聚合期间有增量提交，重新读
+                    conflicts.increment();
+                    continue;
+                }
+
+                if (compare) {
+                    boolean same = !current.isEmpty();
+                    for (String f : List.of(SONGS, LINKS, LISTENS)) {
+                        same &= Objects.equals(current.get(f), fields.get(f));
+                    }
+                    if (!same) {
+                        drifted.increment();
+                        log.debug("Stats of graph {} drifted: {} -> {}", graphId, current, fields);
+                    }
+                }
+                recomputed.increment();
+                return;
+            }
+            stale.add(graphId);
+            log.debug("Stats of graph {} kept changing during recompute, retrying next round", graphId);
+        } catch (RuntimeException e) {
+            errors.increment();
+            log.warn("Failed to recompute stats of graph {}: {}", graphId, e.getMessage());
+        }
+    }
+
+    /**
+     * 按整个 label 聚合 (需在 counterAccumulator.read 内调用)
+     */
+    private Map<String, String> aggregate(GraphInfo graph) {
+        String cypher = String.format(
+            "CALL { MATCH (n:`%1$s`) RETURN count(n) AS songs, sum(coalesce(n.listenCount, 0)) AS listens } " +
+            "CALL { MATCH (:`%1$s`)-[r:NEXT]->(:`%1$s`) RETURN count(r) AS links } " +
+            "OPTIONAL MATCH (t:`%1$s`) " +
+            "WITH songs, listens, links, t ORDER BY coalesce(t.listenCount, 0) DESC LIMIT 1 " +
+            "RETURN songs, links, listens, id(t) AS topId, t.name AS topName, " +
+            "       coalesce(t.listenCount, 0) AS topListens",
+            graph.getNodeLabel());
+        Map<String, Object> row = neo4jClient.query(cypher).fetch().one().orElseThrow();
+
+        // 开启计数缓冲时加上还没刷盘的播放次数，与听歌时的增量口径一致
+        long[] pending = new long[1];
+        counterAccumulator.forEachPending(graph.getId(),
+                (nodeId, listen, fullPlay, skip, userSelect, randomSelect, at) -> pending[0] += listen,
+                (fromId, toId, jump, userSelect, randomSelect) -> { });
+
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put(SONGS, String.valueOf(((Number) row.get("songs")).longValue()));
+        fields.put(LINKS, String.valueOf(((Number) row.get("links")).longValue()));
+        fields.put(LISTENS, String.valueOf(((Number) row.get("listens")).longValue() + pending[0]));
+        fields.put(TOP_ID, row.get("topId") == null ? "" : row.get("topId").toString());
+        fields.put(TOP_NAME, row.get("topName") == null ? "" : (String) row.get("topName"));
+        fields.put(TOP_LISTENS, String.valueOf(((Number) row.get("topListens")).longValue()));
+        return fields;
+    }
+
+    /**
+     * 运行指标：增量更新次数、重算次数 (及因并发增量重读的次数)、对账发现的偏差次数、待重算图谱数
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("increments", increments.sum());
+        result.put("recomputed", recomputed.sum());
+        result.put("drifted", drifted.sum());
+        result.put("conflicts", conflicts.sum());
+        result.put("stale", stale.size());
+        result.put("errors", errors.sum());
+        return result;
+    }
+}
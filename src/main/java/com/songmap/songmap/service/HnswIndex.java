@@ -0,0 +1,402 @@
+package com.songmap.songmap.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.LongPredicate;
+
+/**
+ * 近似最近邻索引 (HNSW，余弦相似度)
+ * <p>
+ * 整个索引是一块定长布局的 ByteBuffer：构建时在堆上写，落盘后以只读内存映射重新打开，
+ * 查询直接读映射区里的向量和邻居表，启动时不需要反序列化，也不占堆内存。
+ * </p>
+ * <pre>
+ * header(64) | ids long[n] | vectors float[n*dim] | levels int[n] | upperBlock int[n]
+ *            | level0 (count + 2M 个邻居) int[n*(2M+1)] | 上层 (count + M 个邻居) int[blocks*(M+1)]
+ *            | features: (short 长度 + UTF-8 名称 + float[dim]) * featureCount
+ * </pre>
+ * 向量在写入前已归一化，相似度即点积。features 是附带的特征向量 (如歌手)，不参与近邻搜索。
+ */
+final class HnswIndex {
+
+    private static final int MAGIC = 0x534D4857;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int MAX_LEVEL = 16;
+
+    record Hit(long id, double similarity) {
+    }
+
+    private final ByteBuffer buf;
+    private final int n;
+    private final int dim;
+    private final int m;
+    private final long graphId;
+    private final long builtAt;
+    private final int idsOff;
+    private final int vecOff;
+    private final int levelOff;
+    private final int upperOff;
+    private final int l0Off;
+    private final int upRegionOff;
+
+    // 查询入口：id -> 节点编号、特征名 -> 向量，打开时从 buffer 建一次
+    private final Map<Long, Integer> nodeOf;
+    private final Map<String, float[]> features;
+
+    private HnswIndex(ByteBuffer buf) {
+        this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IllegalStateException("Not an HNSW index file");
+        }
+        n = buf.getInt(8);
+        dim = buf.getInt(12);
+        m = buf.getInt(16);
+        graphId = buf.getLong(32);
+        builtAt = buf.getLong(40);
+        idsOff = HEADER_BYTES;
+        vecOff = idsOff + 8 * n;
+        levelOff = vecOff + 4 * n * dim;
+        upperOff = levelOff + 4 * n;
+        l0Off = upperOff + 4 * n;
+        upRegionOff = l0Off + 4 * n * (2 * m + 1);
+
+        nodeOf = new HashMap<>(Math.max(16, n * 2));
+        for (int i = 0; i < n; i++) nodeOf.put(buf.getLong(idsOff + 8 * i), i);
+
+        features = new HashMap<>();
+        int pos = buf.getInt(48);
+        int featureCount = buf.getInt(28);
+        for (int f = 0; f < featureCount; f++) {
+            int len = buf.getShort(pos) & 0xFFFF;
+            byte[] name = new byte[len];
+            buf.get(pos + 2, name);
+            pos += 2 + len;
+            float[] v = new float[dim];
+            for (int d = 0; d < dim; d++) v[d] = buf.getFloat(pos + 4 * d);
+            pos += 4 * dim;
+            features.put(new String(name, StandardCharsets.UTF_8), v);
+        }
+    }
+
+    int size() {
+        return n;
+    }
+
+    long graphId() {
+        return graphId;
+    }
+
+    long builtAt() {
+        return builtAt;
+    }
+
+    long byteSize() {
+        return buf.capacity();
+    }
+
+    /**
+     * @return 该歌曲的向量副本，不在索引中时返回 null
+     */
+    float[] vector(long id) {
+        Integer node = nodeOf.get(id);
+        if (node == null) return null;
+        float[] v = new float[dim];
+        for (int d = 0; d < dim; d++) v[d] = buf.getFloat(vecOff + 4 * (node * dim + d));
+        return v;
+    }
+
+    float[] feature(String name) {
+        float[] v = features.get(name);
+        return v == null ? null : v.clone();
+    }
+
+    // ================= 查询 =================
+
+    /**
+     * @param skip 为 true 的 id 不进结果 (仍可作为搜索路径)
+     * @return 按相似度降序的最多 k 个结果
+     */
+    List<Hit> search(float[] query, int k, int ef, LongPredicate skip) {
+        List<Hit> hits = new ArrayList<>();
+        int entry = buf.getInt(24);
+        if (entry < 0 || k <= 0) return hits;
+        float[] q = normalized(query);
+
+        int ep = entry;
+        for (int level = buf.getInt(20); level > 0; level--) ep = greedy(q, ep, level);
+        int[] found = searchLayer(q, ep, Math.max(ef, k), 0, new int[n], 1);
+
+        for (int node : found) {
+            long id = buf.getLong(idsOff + 8 * node);
+            if (skip != null && skip.test(id)) continue;
+            hits.add(new Hit(id, similarity(q, node)));
+            if (hits.size() == k) break;
+        }
+        return hits;
+    }
+
+    private int greedy(float[] q, int ep, int level) {
+        double best = similarity(q, ep);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int base = slot(ep, level);
+            for (int i = 0, c = buf.getInt(base); i < c; i++) {
+                int other = buf.getInt(base + 4 * (i + 1));
+                double s = similarity(q, other);
+                if (s > best) {
+                    best = s;
+                    ep = other;
+                    improved = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * 单层 beam 搜索，返回按相似度降序的最多 ef 个节点
+     *
+     * @param visited 与 stamp 配合的访问标记，避免每次清空
+     */
+    private int[] searchLayer(float[] q, int ep, int ef, int level, int[] visited, int stamp) {
+        // candidates：相似度高的先出；results：相似度低的在堆顶，便于淘汰
+        PriorityQueue<double[]> candidates = new PriorityQueue<>((a, b) -> Double.compare(b[0], a[0]));
+        PriorityQueue<double[]> results = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        double s0 = similarity(q, ep);
+        candidates.add(new double[]{s0, ep});
+        results.add(new double[]{s0, ep});
+        visited[ep] = stamp;
+
+        while (!candidates.isEmpty()) {
+            double[] c = candidates.poll();
+            if (results.size() >= ef && c[0] < results.peek()[0]) break;
+            int base = slot((int) c[1], level);
+            for (int i = 0, cnt = buf.getInt(base); i < cnt; i++) {
+                int other = buf.getInt(base + 4 * (i + 1));
+                if (visited[other] == stamp) continue;
+                visited[other] = stamp;
+                double s = similarity(q, other);
+                if (results.size() < ef || s > results.peek()[0]) {
+                    candidates.add(new double[]{s, other});
+                    results.add(new double[]{s, other});
+                    if (results.size() > ef) results.poll();
+                }
+            }
+        }
+
+        int[] out = new int[results.size()];
+        for (int i = out.length - 1; i >= 0; i--) out[i] = (int) results.poll()[1];
+        return out;
+    }
+
+    private double similarity(float[] q, int node) {
+        int off = vecOff + 4 * node * dim;
+        double s = 0;
+        for (int d = 0; d < dim; d++) s += q[d] * buf.getFloat(off + 4 * d);
+        return s;
+    }
+
+    /**
+     * 节点在某一层的邻居槽位 (字节偏移)：首个 int 是邻居数，其后是邻居编号
+     */
+    private int slot(int node, int level) {
+        if (level == 0) return l0Off + 4 * node * (2 * m + 1);
+        int block = buf.getInt(upperOff + 4 * node) + level - 1;
+        return upRegionOff + 4 * block * (m + 1);
+    }
+
+    private static float[] normalized(float[] v) {
+        double norm = 0;
+        for (float x : v) norm += x * x;
+        norm = Math.sqrt(norm);
+        float[] out = new float[v.length];
+        if (norm == 0) return out;
+        for (int i = 0; i < v.length; i++) out[i] = (float) (v[i] / norm);
+        return out;
+    }
+
+    // ================= 构建 =================
+
+    /**
+     * 在堆上构建索引
+     *
+     * @param vectors  与 ids 一一对应，不要求已归一化
+     * @param features 附带的特征向量，只存不搜
+     */
+    static HnswIndex build(long graphId, long[] ids, float[][] vectors, Map<String, float[]> features,
+                           int m, int efConstruction, long seed) {
+        int n = ids.length;
+        int dim = vectors.length == 0 ? 0 : vectors[0].length;
+        Random random = new Random(seed);
+
+        // 1. 先抽好每个点的层数，布局里上层槽位的位置随之确定
+        double ml = 1.0 / Math.log(Math.max(m, 2));
+        int[] levels = new int[n];
+        int[] upperBlock = new int[n];
+        int blocks = 0;
+        for (int i = 0; i < n; i++) {
+            levels[i] = Math.min(MAX_LEVEL, (int) (-Math.log(1.0 - random.nextDouble()) * ml));
+            upperBlock[i] = levels[i] == 0 ? -1 : blocks;
+            blocks += levels[i];
+        }
+
+        List<byte[]> featureNames = new ArrayList<>();
+        List<float[]> featureVectors = new ArrayList<>();
+        int featureBytes = 0;
+        for (Map.Entry<String, float[]> f : features.entrySet()) {
+            byte[] name = f.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) continue;
+            featureNames.add(name);
+            featureVectors.add(f.getValue());
+            featureBytes += 2 + name.length + 4 * dim;
+        }
+
+        long size = (long) HEADER_BYTES + 8L * n + 4L * n * dim + 8L * n
+                + 4L * n * (2 * m + 1) + 4L * blocks * (m + 1) + featureBytes;
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Index too large: " + size + " bytes");
+
+        ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, n);
+        buf.putInt(12, dim);
+        buf.putInt(16, m);
+        buf.putInt(20, 0);
+        buf.putInt(24, -1);
+        buf.putInt(28, featureNames.size());
+        buf.putLong(32, graphId);
+        buf.putLong(40, System.currentTimeMillis());
+
+        int idsOff = HEADER_BYTES;
+        int vecOff = idsOff + 8 * n;
+        int levelOff = vecOff + 4 * n * dim;
+        int upperOff = levelOff + 4 * n;
+        int featOff = upperOff + 4 * n + 4 * n * (2 * m + 1) + 4 * blocks * (m + 1);
+        buf.putInt(48, featOff);
+        for (int i = 0; i < n; i++) {
+            buf.putLong(idsOff + 8 * i, ids[i]);
+            float[] v = normalized(vectors[i]);
+            for (int d = 0; d < dim; d++) buf.putFloat(vecOff + 4 * (i * dim + d), v[d]);
+            buf.putInt(levelOff + 4 * i, levels[i]);
+            buf.putInt(upperOff + 4 * i, upperBlock[i]);
+        }
+        int pos = featOff;
+        for (int f = 0; f < featureNames.size(); f++) {
+            byte[] name = featureNames.get(f);
+            buf.putShort(pos, (short) name.length);
+            buf.put(pos + 2, name);
+            pos += 2 + name.length;
+            float[] v = normalized(featureVectors.get(f));
+            for (int d = 0; d < dim; d++) buf.putFloat(pos + 4 * d, v[d]);
+            pos += 4 * dim;
+        }
+
+        // 2. 逐个插入 (邻居表全为 0 即空，无需初始化)
+        HnswIndex index = new HnswIndex(buf);
+        int[] visited = new int[n];
+        for (int i = 0; i < n; i++) {
+            index.insert(i, levels[i], efConstruction, visited, i + 1);
+        }
+        return index;
+    }
+
+    private void insert(int node, int level, int efConstruction, int[] visited, int stamp) {
+        int entry = buf.getInt(24);
+        if (entry < 0) {
+            buf.putInt(24, node);
+            buf.putInt(20, level);
+            return;
+        }
+        float[] q = new float[dim];
+        for (int d = 0; d < dim; d++) q[d] = buf.getFloat(vecOff + 4 * (node * dim + d));
+
+        int maxLevel = buf.getInt(20);
+        int ep = entry;
+        for (int l = maxLevel; l > level; l--) ep = greedy(q, ep, l);
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            // 每层用新的 stamp，与之后插入的点错开
+            int[] found = searchLayer(q, ep, efConstruction, l, visited, stamp * (MAX_LEVEL + 1) + l);
+            int cap = l == 0 ? 2 * m : m;
+            int take = Math.min(m, found.length);
+            for (int i = 0; i < take; i++) {
+                link(node, found[i], l, cap);
+                link(found[i], node, l, cap);
+            }
+            ep = found[0];
+        }
+        if (level > maxLevel) {
+            buf.putInt(20, level);
+            buf.putInt(24, node);
+        }
+    }
+
+    /**
+     * 给 from 加一条到 to 的边；满了就在 (原邻居 + to) 中只保留与 from 最相似的 cap 个
+     */
+    private void link(int from, int to, int level, int cap) {
+        int base = slot(from, level);
+        int count = buf.getInt(base);
+        for (int i = 0; i < count; i++) {
+            if (buf.getInt(base + 4 * (i + 1)) == to) return;
+        }
+        if (count < cap) {
+            buf.putInt(base + 4 * (count + 1), to);
+            buf.putInt(base, count + 1);
+            return;
+        }
+        float[] q = new float[dim];
+        for (int d = 0; d < dim; d++) q[d] = buf.getFloat(vecOff + 4 * (from * dim + d));
+        int worst = -1;
+        double worstSim = similarity(q, to);
+        for (int i = 0; i < count; i++) {
+            double s = similarity(q, buf.getInt(base + 4 * (i + 1)));
+            if (s < worstSim) {
+                worstSim = s;
+                worst = i;
+            }
+        }
+        if (worst >= 0) buf.putInt(base + 4 * (worst + 1), to);
+    }
+
+    // ================= 持久化 =================
+
+    /**
+     * 先写临时文件再原子替换，替换后已映射旧文件的读者不受影响
+     */
+    void writeTo(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer dup = buf.duplicate();
+            dup.clear();
+            while (dup.hasRemaining()) ch.write(dup);
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 以只读内存映射打开索引文件
+     */
+    static HnswIndex map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new HnswIndex(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.songmap.songmap.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热门歌曲 (出 / 入度很大的节点) 的剪枝邻居索引
+ * <p>
+ * 普通歌曲每次按 r.weight 在库里取每个方向最强的 K 条边；度数超过阈值的热门歌曲把这 K 个邻居的 id 记在内存里，
+ * 之后按 id 直接回表取这 K 条边，不用每次都在数据库里对上千条边排序。
+ * </p>
+ * <p>
+ * 听歌只会让边权重单调增加 (随机选中也是 +W_JUMP -W_RANDOM > 0)。每个方向记下建索引时第 K 名的权重，
+ * 它是所有非成员边权重的上界；之后每条非成员边各自累计增量，一旦 上界 + 增量 超过成员中的最小权重，
+ * 说明它可能已挤进 Top-K，该歌曲的索引作废，下次读取时重建。每次听歌的维护是 O(K)。
+ * </p>
+ */
+@Slf4j
+@Service
+public class HubNeighborIndex {
+
+    // 单个方向跟踪的非成员边数上限，超出直接作废重建
+    private static final int MAX_TRACKED_OUTSIDERS = 4096;
+
+    @Value("${songmap.recommend.hub.degree-threshold:500}")
+    private long degreeThreshold;
+
+    @Value("${songmap.recommend.hub.max-entries:10000}")
+    private int maxEntries;
+
+    // songId -> 索引，accessOrder = true 即 LRU
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private static final class Direction {
+        final long[] ids;
+        final double[] weights;
+        final double outsiderBound;
+        final Map<Long, Double> outsiderGain = new HashMap<>();
+
+        Direction(long[] ids, double[] weights) {
+            this.ids = ids;
+            this.weights = weights;
+            double min = Double.MAX_VALUE;
+            for (double w : weights) min = Math.min(min, w);
+            this.outsiderBound = weights.length == 0 ? 0 : min;
+        }
+
+        /**
+         * @return false 表示非成员边可能已挤进 Top-K
+         */
+        boolean apply(long otherId, double gain) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == otherId) {
+                    weights[i] += gain;
+                    return true;
+                }
+            }
+            double total = outsiderGain.merge(otherId, gain, Double::sum);
+            if (outsiderGain.size() > MAX_TRACKED_OUTSIDERS) return false;
+            double min = Double.MAX_VALUE;
+            for (double w : weights) min = Math.min(min, w);
+            return weights.length != 0 && outsiderBound + total <= min;
+        }
+    }
+
+    private record Entry(Long graphId, Direction out, Direction in) {
+    }
+
+    /**
+     * 度数超过阈值才值得建索引
+     */
+    public boolean isHub(long outDegree, long inDegree) {
+        return Math.max(outDegree, inDegree) > degreeThreshold;
+    }
+
+    /**
+     * @return [出边邻居 id, 入边邻居 id]，按权重降序；未建索引或已作废时返回 null
+     */
+    public long[][] members(Long songId) {
+        synchronized (entries) {
+            Entry e = entries.get(songId);
+            if (e == null) return null;
+            hits.increment();
+            return new long[][]{e.out().ids.clone(), e.in().ids.clone()};
+        }
+    }
+
+    /**
+     * 记录一首热门歌曲两个方向的 Top-K 邻居及当时的边权重 (按权重降序)
+     */
+    public void put(Long graphId, Long songId, long[] outIds, double[] outWeights, long[] inIds, double[] inWeights) {
+        synchronized (entries) {
+            entries.put(songId, new Entry(graphId, new Direction(outIds, outWeights), new Direction(inIds, inWeights)));
+            builds.increment();
+            Iterator<Long> it = entries.keySet().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 每条听歌让 prev -> song 这条边的权重增加，同步更新两端的索引
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        synchronized (entries) {
+            if (entries.isEmpty()) return;
+            for (ListenAppliedEvent.Listen l : event.listens()) {
+                if (l.prevId() == null) continue;
+                double gain = RankWeights.W_JUMP
+                        + (l.isRandom() ? -RankWeights.W_RANDOM : RankWeights.W_USER_SELECT);
+                Entry from = entries.get(l.prevId());
+                if (from != null && !from.out().apply(l.songId(), gain)) invalidate(l.prevId());
+                Entry to = entries.get(l.songId());
+                if (to != null && !to.in().apply(l.prevId(), gain)) invalidate(l.songId());
+            }
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        synchronized (entries) {
+            if (event.graphId() == null) entries.clear();
+            else entries.values().removeIf(e -> e.graphId().equals(event.graphId()));
+        }
+    }
+
+    private void invalidate(Long songId) {
+        entries.remove(songId);
+        invalidations.increment();
+        log.debug("Invalidated hub neighbor index of song {}", songId);
+    }
+
+    /**
+     * 运行指标：索引条数、命中 / 重建 / 作废次数
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (entries) {
+            result.put("entries", entries.size());
+        }
+        result.put("degreeThreshold", degreeThreshold);
+        result.put("hits", hits.sum());
+        result.put("builds", builds.sum());
+        result.put("invalidations", invalidations.sum());
+        return result;
+    }
+}
@@ -0,0 +1,25 @@
+package com.songmap.songmap.service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 听歌已写入图谱的事件 (事务提交后分发)
+ * 内存中的派生结构 (邻接表、推荐缓存等) 靠它做增量更新，不需要回查 Neo4j
+ *
+ * @param listens 按听歌顺序排列
+ */
+public record ListenAppliedEvent(Long graphId, List<Listen> listens) {
+
+    /**
+     * @param prevId      本次连线的上一首 id，没有连线时为 null
+     * @param songCreated 这次听歌新建了歌曲节点
+     * @param linkCreated 这次听歌新建了 prevId -> songId 的边
+     * @param listenCount 写入后库里的 listenCount (开启计数缓冲时不含未刷盘的增量)
+     */
+    public record Listen(long songId, String name, String artist, Long prevId,
+                         boolean isRandom, boolean isFullPlay, boolean isSkip,
+                         LocalDateTime listenedAt,
+                         boolean songCreated, boolean linkCreated, long listenCount) {
+    }
+}
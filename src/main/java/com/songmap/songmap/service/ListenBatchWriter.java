@@ -0,0 +1,274 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ListenEventDTO;
+import com.songmap.songmap.entity.Song;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.neo4j.core.Neo4jClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 听歌事件批量写入器
+ * 把同一图谱的一串听歌事件合并成两条 UNWIND Cypher (节点 + 边)，
+ * 结果与逐条调用 MusicGraphService.addSong 一致
+ * <p>
+ * 带 eventId 的事件在同一事务里登记为 AppliedEvent 节点，已登记过的跳过：
+ * 写入和去重标记一起提交或一起回滚，客户端重试、异步队列重试都不会重复计数。
+ * 登记保留 {@link #APPLIED_EVENT_TTL_DAYS} 天，之后由定时任务清理。
+ * </p>
+ */
+@Slf4j
+@Service
+public class ListenBatchWriter {
+
+    private final Neo4jClient neo4jClient;
+    private final MusicHistoryService musicHistoryService;
+    private final GraphSchemaService graphSchemaService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${songmap.history.limit:100}")
+    private int historyLimit;
+
+    // 已应用过的客户端事件 ID，保留一段时间用于识别重试
+    static final long APPLIED_EVENT_TTL_DAYS = 7;
+
+    // 每次最多删这么多个过期的 AppliedEvent，删不完下一轮继续
+    private static final int PURGE_BATCH = 10000;
+
+    public ListenBatchWriter(Neo4jClient neo4jClient,
+                             MusicHistoryService musicHistoryService,
+                             GraphSchemaService graphSchemaService,
+                             ApplicationEventPublisher eventPublisher) {
+        this.neo4jClient = neo4jClient;
+        this.musicHistoryService = musicHistoryService;
+        this.graphSchemaService = graphSchemaService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * 按顺序写入同一图谱的一批听歌事件
+     *
+     * @return 与 events 一一对应的歌曲节点 (仅含 id / name)；eventId 已应用过 (或本批内重复) 的位置为 null
+     */
+    @Transactional
+    public List<Song> write(Long graphId, String label, List<ListenEventDTO> events) {
+        if (events.isEmpty()) return new ArrayList<>();
+
+        // 0. 登记 eventId，跳过已应用过的
+        Set<Integer> duplicates = claimEvents(graphId, events);
+        if (duplicates.isEmpty()) return writeEvents(graphId, label, events);
+        List<ListenEventDTO> fresh = new ArrayList<>(events.size() - duplicates.size());
+        for (int i = 0; i < events.size(); i++) {
+            if (!duplicates.contains(i)) fresh.add(events.get(i));
+        }
+        List<Song> written = fresh.isEmpty() ? List.of() : writeEvents(graphId, label, fresh);
+        List<Song> songs = new ArrayList<>(events.size());
+        int k = 0;
+        for (int i = 0; i < events.size(); i++) {
+            songs.add(duplicates.contains(i) ? null : written.get(k++));
+        }
+        return songs;
+    }
+
+    /**
+     * @return 重复事件的下标 (之前已应用过，或与本批前面的事件 eventId 相同)
+     */
+    private Set<Integer> claimEvents(Long graphId, List<ListenEventDTO> events) {
+        Set<String> eventIds = new LinkedHashSet<>();
+        Set<Integer> duplicates = new HashSet<>();
+        for (int i = 0; i < events.size(); i++) {
+            String eventId = events.get(i).getEventId();
+            if (eventId != null && !eventIds.add(eventId)) duplicates.add(i);
+        }
+        if (eventIds.isEmpty()) return duplicates;
+        graphSchemaService.ensureAppliedEventSchema();
+
+        Set<String> applied = new HashSet<>();
+        neo4jClient.query(ListenCypher.claimEvents())
+                .bind(new ArrayList<>(eventIds)).to("eventIds")
+                .bind(graphId).to("graphId")
+                .bind(System.currentTimeMillis()).to("now")
+                .bind(UUID.randomUUID().toString()).to("token")
+                .fetch()
+                .all()
+                .forEach(r -> {
+                    if (!(Boolean) r.get("claimed")) applied.add((String) r.get("eventId"));
+                });
+        for (int i = 0; i < events.size(); i++) {
+            if (applied.contains(events.get(i).getEventId())) duplicates.add(i);
+        }
+        return duplicates;
+    }
+
+    /**
+     * 清理过期的 AppliedEvent 登记
+     */
+    @Scheduled(fixedDelayString = "${songmap.listen.applied-event-purge-interval-ms:3600000}")
+    public void purgeAppliedEvents() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(APPLIED_EVENT_TTL_DAYS);
+        try {
+            long deleted = neo4jClient.query(
+                            "MATCH (a:AppliedEvent) WHERE a.appliedAt < $cutoff " +
+                            "WITH a LIMIT $limit DELETE a RETURN count(*) AS deleted")
+                    .bind(cutoff).to("cutoff")
+                    .bind(PURGE_BATCH).to("limit")
+                    .fetchAs(Long.class).one().orElse(0L);
+            if (deleted > 0) log.info("Purged {} expired applied listen events", deleted);
+        } catch (Exception e) {
+            log.warn("Failed to purge applied listen events: {}", e.getMessage());
+        }
+    }
+
+    private List<Song> writeEvents(Long graphId, String label, List<ListenEventDTO> events) {
+        graphSchemaService.ensureIndexes(label);
+
+        // 1. 链条起点：该图谱的上一首
+        Long lastSongId = musicHistoryService.getLastListenedSongId(graphId);
+
+        // 2. 节点：查找 / 复用 Unknown / 创建，并累加点统计
+        boolean[] songCreated = new boolean[events.size()];
+        long[] listenCounts = new long[events.size()];
+        List<Song> songs = writeNodes(label, events, songCreated, listenCounts);
+
+        // 3. 边：在 Java 侧按顺序还原 NEXT 链，同一条边的增量合并后一次写入
+        boolean[] linkCreated = new boolean[events.size()];
+        Long[] prevIds = writeEdges(label, events, songs, lastSongId, linkCreated);
+
+        // 4. Redis 历史一次性追加
+        musicHistoryService.updateHistoryBatch(graphId, songs, historyLimit);
+
+        // 5. 通知内存派生结构 (事务提交后生效)
+        List<ListenAppliedEvent.Listen> applied = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            ListenEventDTO e = events.get(i);
+            Song s = songs.get(i);
+            applied.add(new ListenAppliedEvent.Listen(s.getId(), s.getName(), ListenCypher.artistOf(e),
+                    prevIds[i], e.isRandom(), e.isFullPlay(), e.isSkip(), e.getListenedAt(),
+                    songCreated[i], linkCreated[i], listenCounts[i]));
+        }
+        eventPublisher.publishEvent(new ListenAppliedEvent(graphId, applied));
+
+        log.debug("Batch wrote {} listens into graph {}", events.size(), graphId);
+        return songs;
+    }
+
+    /**
+     * @param created      输出：第 i 个事件是否新建了节点
+     * @param listenCounts 输出：第 i 个事件写入后该节点的 listenCount
+     */
+    private List<Song> writeNodes(String label, List<ListenEventDTO> events, boolean[] created, long[] listenCounts) {
+        List<Map<String, Object>> rows = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            rows.add(ListenCypher.eventRow(i, events.get(i)));
+        }
+
+        Collection<Map<String, Object>> result = neo4jClient.query(ListenCypher.batchUpsertNodes(label))
+                .bind(rows).to("events")
+                .fetch()
+                .all();
+
+        Song[] songs = new Song[events.size()];
+        for (Map<String, Object> r : result) {
+            Song s = new Song();
+            s.setId(((Number) r.get("id")).longValue());
+            s.setName((String) r.get("name"));
+            int idx = ((Number) r.get("idx")).intValue();
+            songs[idx] = s;
+            created[idx] = (Boolean) r.get("created");
+            listenCounts[idx] = ((Number) r.get("listenCount")).longValue();
+        }
+        for (Song s : songs) {
+            if (s == null) throw new RuntimeException("Failed to upsert node");
+        }
+        return List.of(songs);
+    }
+
+    /**
+     * @param created 输出：第 i 个事件是否新建了边 (同一条新边只记在第一次连线的事件上)
+     * @return 每个事件实际连线的上一首 id，没有连线为 null
+     */
+    private Long[] writeEdges(String label, List<ListenEventDTO> events, List<Song> songs, Long lastSongId,
+                              boolean[] created) {
+        Map<String, Map<String, Object>> merged = new LinkedHashMap<>();
+        Long[] linkedFrom = new Long[events.size()];
+        Long prevId = lastSongId;
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < events.size(); i++) {
+            ListenEventDTO e = events.get(i);
+            Long currId = songs.get(i).getId();
+
+            // 与 addSong 相同：上一首存在、不强制断连、不是自环
+            if (prevId != null && !e.isForceNewChain() && !currId.equals(prevId)) {
+                int first = i;
+                Map<String, Object> edge = merged.computeIfAbsent(prevId + "->" + currId, k -> {
+                    Map<String, Object> row = newEdgeRow();
+                    row.put("firstIdx", first);
+                    return row;
+                });
+                edge.put("fromId", prevId);
+                edge.put("toId", currId);
+                edge.merge("jumpInc", 1, (a, b) -> (Integer) a + (Integer) b);
+                edge.merge("userSelectInc", e.isRandom() ? 0 : 1, (a, b) -> (Integer) a + (Integer) b);
+                edge.merge("randomSelectInc", e.isRandom() ? 1 : 0, (a, b) -> (Integer) a + (Integer) b);
+                mergeAffinity(edge, SongScorer.affinityGain(e.isRandom(), true), e.getListenedAt() == null ? now
+                        : e.getListenedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                linkedFrom[i] = prevId;
+            }
+            prevId = currId;
+        }
+
+        if (merged.isEmpty()) return linkedFrom;
+
+        Collection<Map<String, Object>> result = neo4jClient.query(ListenCypher.batchUpsertEdges(label))
+                .bind(new ArrayList<>(merged.values())).to("edges")
+                .fetch()
+                .all();
+        for (Map<String, Object> r : result) {
+            if (!(Boolean) r.get("created")) continue;
+            Map<String, Object> edge = merged.get(r.get("fromId") + "->" + r.get("toId"));
+            if (edge != null) created[(Integer) edge.get("firstIdx")] = true;
+        }
+        return linkedFrom;
+    }
+
+    /**
+     * 同一条边的多次亲和度增量合并成 "在 atMillis 时刻的一个增量"：统一衰减到其中最晚的时间再相加
+     */
+    private void mergeAffinity(Map<String, Object> edge, double gain, long atMillis) {
+        double inc = (Double) edge.get("affinityInc");
+        Long at = (Long) edge.get("atMillis");
+        if (at == null || atMillis >= at) {
+            edge.put("affinityInc", (at == null ? 0 : SongScorer.decay(inc, at, atMillis)) + gain);
+            edge.put("atMillis", atMillis);
+        } else {
+            edge.put("affinityInc", inc + SongScorer.decay(gain, atMillis, at));
+        }
+    }
+
+    private Map<String, Object> newEdgeRow() {
+        Map<String, Object> edge = new HashMap<>();
+        edge.put("jumpInc", 0);
+        edge.put("userSelectInc", 0);
+        edge.put("randomSelectInc", 0);
+        edge.put("affinityInc", 0.0);
+        return edge;
+    }
+}
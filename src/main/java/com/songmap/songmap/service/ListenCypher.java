@@ -0,0 +1,248 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ListenEventDTO;
+
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 听歌写入路径用到的 Cypher 模板
+ * 同步接口、异步队列、批量导入共用同一套语义：
+ * 先找 name + artist 完全匹配的节点，其次复用 artist='Unknown' 的同名节点，都没有才 CREATE
+ */
+final class ListenCypher {
+
+    private ListenCypher() {
+    }
+
+    /**
+     * 把一条听歌事件转成 Cypher 参数 e
+     * {idx, name, artist, listenedAt, atMillis, fullPlayInc, skipInc, userSelectInc, randomSelectInc}
+     */
+    static Map<String, Object> eventRow(int idx, ListenEventDTO e) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("idx", idx);
+        row.put("name", e.getName());
+        row.put("artist", artistOf(e));
+        row.put("listenedAt", e.getListenedAt());
+        row.put("atMillis", e.getListenedAt() == null ? System.currentTimeMillis()
+                : e.getListenedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        row.put("fullPlayInc", e.isFullPlay() ? 1 : 0);
+        row.put("skipInc", e.isSkip() ? 1 : 0);
+        row.put("userSelectInc", e.isRandom() ? 0 : 1);
+        row.put("randomSelectInc", e.isRandom() ? 1 : 0);
+        return row;
+    }
+
+    /**
+     * NEXT 边上预存的权重 r.weight 的计算式，与 {@link SongScorer#interaction} 一致
+     * 每次改动 jumpCount / userSelectCount / randomSelectCount 后都要重新 SET，按权重取 Top-K 邻居时依赖它
+     *
+     * @param r 关系变量名
+     */
+    static String edgeWeight(String r) {
+        return String.format(Locale.ROOT,
+            "coalesce(%1$s.userSelectCount, 0) * %2$s + coalesce(%1$s.jumpCount, 0) * %3$s " +
+            "- coalesce(%1$s.randomSelectCount, 0) * %4$s",
+            r, RankWeights.W_USER_SELECT, RankWeights.W_JUMP, RankWeights.W_RANDOM);
+    }
+
+    /**
+     * 指数衰减亲和度的 SET 片段：v.affinity 是 v.affinityAt 时刻的值，写入时先衰减到 at 再加上 gain，一次乘法
+     * 乱序到达的旧事件 (at 早于 affinityAt) 则把 gain 衰减到 affinityAt 再加，结果与按时间顺序写入一致
+     *
+     * @param v    点或关系变量名
+     * @param gain 本次增量的表达式
+     * @param at   本次增量的时间 (epoch millis) 表达式
+     */
+    static String decayAffinity(String v, String gain, String at) {
+        return String.format(Locale.ROOT,
+            "%1$s.affinity = CASE WHEN %1$s.affinityAt IS NULL OR %3$s >= %1$s.affinityAt " +
+            "  THEN coalesce(%1$s.affinity, 0.0) * exp((coalesce(%1$s.affinityAt, %3$s) - %3$s) / %4$.1f) + %2$s " +
+            "  ELSE coalesce(%1$s.affinity, 0.0) + %2$s * exp((%3$s - %1$s.affinityAt) / %4$.1f) END, " +
+            "%1$s.affinityAt = CASE WHEN %1$s.affinityAt IS NULL OR %3$s >= %1$s.affinityAt " +
+            "  THEN %3$s ELSE %1$s.affinityAt END",
+            v, gain, at, RankWeights.AFFINITY_TAU_MS);
+    }
+
+    /**
+     * 单条听歌事件 e 的亲和度增量表达式，与 {@link SongScorer#affinityGain} 一致
+     */
+    private static String eventAffinityGain(boolean withEdge) {
+        return String.format(Locale.ROOT, "(%s + e.userSelectInc * %s - e.randomSelectInc * %s)",
+            withEdge ? RankWeights.W_JUMP : 0.0, RankWeights.W_USER_SELECT, RankWeights.W_RANDOM);
+    }
+
+    /**
+     * NEXT 边的一阶马尔可夫转移概率 P(to | from) = r.jumpCount / from.outJumpTotal
+     * 起点上维护的 outJumpTotal 是所有出边 jumpCount 之和，读的时候 O(1)，不用再聚合兄弟边
+     *
+     * @param r    关系变量名
+     * @param from 起点变量名
+     */
+    static String transitionProb(String r, String from) {
+        return String.format(
+            "CASE WHEN coalesce(%2$s.outJumpTotal, 0) > 0 " +
+            "THEN toFloat(coalesce(%1$s.jumpCount, 0)) / %2$s.outJumpTotal ELSE 0.0 END",
+            r, from);
+    }
+
+    /**
+     * 按出边重新汇总 outJumpTotal，用于回填和直接改写 jumpCount 之后的修正
+     * 听歌写路径里是 O(1) 增量维护，不走这里
+     *
+     * @param label 图谱标签，为 null 时处理所有 Song
+     */
+    static String recomputeOutJumpTotals(String label) {
+        return String.format(
+            "MATCH (a:`%s`) " +
+            "OPTIONAL MATCH (a)-[r:NEXT]->() " +
+            "WITH a, sum(coalesce(r.jumpCount, 0)) AS total " +
+            "SET a.outJumpTotal = total",
+            label == null ? "Song" : label);
+    }
+
+    /**
+     * 歌手为空时按 Unknown 处理
+     */
+    static String artistOf(ListenEventDTO e) {
+        return (e.getArtist() == null || e.getArtist().isEmpty()) ? "Unknown" : e.getArtist();
+    }
+
+    /**
+     * 节点查找 / 复用 / 创建 + 点统计累加，输入变量 e，输出变量 song、created (是否新建)
+     * 查找条件写成 artist IN [...]，这样能命中 (name, artist) 组合索引
+     *
+     * @param writeCounters false 时计数交给 PlayCounterAccumulator，已有节点只在需要补全歌手时才写
+     */
+    private static String upsertNodeCall(String label, boolean writeCounters) {
+        String counters = writeCounters
+            ? "  SET song.listenCount = coalesce(song.listenCount, 0) + 1, " +
+              // 只往前推：导入历史记录 / 离线补传的旧时间不能把 listenedAt 改回去
+              "      song.listenedAt = CASE WHEN song.listenedAt IS NULL OR coalesce(e.listenedAt, localdatetime()) > song.listenedAt " +
+              "                             THEN coalesce(e.listenedAt, localdatetime()) ELSE song.listenedAt END, " +
+              "      song.fullPlayCount = coalesce(song.fullPlayCount, 0) + e.fullPlayInc, " +
+              "      song.skipCount = coalesce(song.skipCount, 0) + e.skipInc, " +
+              "      song.userSelectCount = coalesce(song.userSelectCount, 0) + e.userSelectInc, " +
+              "      song.randomSelectCount = coalesce(song.randomSelectCount, 0) + e.randomSelectInc, " +
+              "      song.artist = e.artist, " + // 如果之前是 Unknown 会被覆盖为真名
+              "      " + decayAffinity("song", eventAffinityGain(false), "e.atMillis") + " "
+            : "  FOREACH (_ IN CASE WHEN song.artist <> e.artist THEN [1] ELSE [] END | SET song.artist = e.artist) ";
+
+        return String.format(
+            "CALL { " +
+            "  WITH e " +
+            "  OPTIONAL MATCH (n:`%1$s`) " +
+            "  WHERE n.name = e.name AND n.artist IN [e.artist, 'Unknown'] " +
+            "  WITH e, n ORDER BY CASE WHEN n.artist = e.artist THEN 1 ELSE 2 END LIMIT 1 " + // 优先匹配确切歌手
+            "  CALL { " +
+            "    WITH e, n WITH e, n WHERE n IS NULL " +
+            "    CREATE (c:Song:`%1$s` {name: e.name, artist: e.artist, " +
+            "            listenCount: 0, fullPlayCount: 0, skipCount: 0, userSelectCount: 0, randomSelectCount: 0, outJumpTotal: 0, " +
+            "            listenedAt: coalesce(e.listenedAt, localdatetime())}) " +
+            "    RETURN c AS song, true AS created " +
+            "    UNION " +
+            "    WITH n WITH n WHERE n IS NOT NULL " +
+            "    RETURN n AS song, false AS created " +
+            "  } " +
+            "%2$s" +
+            "  RETURN song, created " +
+            "} ",
+            label, counters
+        );
+    }
+
+    /**
+     * 单条听歌一次往返完成：找点 / 复用 Unknown / 建点 / 累加计数 / 连 NEXT 边
+     * 参数 $event: eventRow(...)，$lastId: 上一首 id (为 null 或强制断连时不连线)
+     *
+     * @param writeCounters false 时只保证点和边存在，计数由 PlayCounterAccumulator 异步刷入
+     */
+    static String upsertListen(String label, boolean writeCounters) {
+        String edgeSet = writeCounters
+            ? "  ON CREATE SET " +
+              "     r.jumpCount = 1, " +
+              "     r.userSelectCount = e.userSelectInc, " +
+              "     r.randomSelectCount = e.randomSelectInc " +
+              "  ON MATCH SET " +
+              "     r.jumpCount = coalesce(r.jumpCount, 0) + 1, " +
+              "     r.userSelectCount = coalesce(r.userSelectCount, 0) + e.userSelectInc, " +
+              "     r.randomSelectCount = coalesce(r.randomSelectCount, 0) + e.randomSelectInc " +
+              "  SET r.weight = " + edgeWeight("r") + ", " +
+              "      prev.outJumpTotal = coalesce(prev.outJumpTotal, 0) + 1, " +
+              "      " + decayAffinity("r", eventAffinityGain(true), "e.atMillis") + " "
+            : "  ON CREATE SET r.jumpCount = 0, r.userSelectCount = 0, r.randomSelectCount = 0, r.weight = 0.0 ";
+
+        return "WITH $event AS e " +
+               upsertNodeCall(label, writeCounters) +
+               String.format(
+                   "WITH e, song, created " +
+                   "OPTIONAL MATCH (prev:`%1$s`) WHERE id(prev) = $lastId AND prev <> song " +
+                   "OPTIONAL MATCH (prev)-[old:NEXT]->(song) " +
+                   "FOREACH (_ IN CASE WHEN prev IS NULL THEN [] ELSE [1] END | " +
+                   "  MERGE (prev)-[r:NEXT]->(song) " +
+                   "%2$s" +
+                   ") " +
+                   "RETURN id(song) AS id, song.name AS name, song.artist AS artist, prev IS NOT NULL AS linked, " +
+                   "       created, prev IS NOT NULL AND old IS NULL AS linkCreated, " +
+                   "       coalesce(song.listenCount, 0) AS listenCount",
+                   label, edgeSet
+               );
+    }
+
+    /**
+     * 批量写节点：按事件顺序逐条执行子查询，后面的事件能看到前面事件创建的节点
+     * 参数 $events: [eventRow(...)]
+     */
+    static String batchUpsertNodes(String label) {
+        return "UNWIND $events AS e " +
+               upsertNodeCall(label, true) +
+               "RETURN e.idx AS idx, id(song) AS id, song.name AS name, created, " +
+               "       coalesce(song.listenCount, 0) AS listenCount";
+    }
+
+    /**
+     * 登记已应用的客户端事件 ID (与听歌写入同一事务，回滚时一起撤销)
+     * 参数 $eventIds (已去重)、$graphId、$now、$token (本次写入的随机标记)
+     * 每个 ID 返回一行 {eventId, claimed}，claimed=false 表示之前已经应用过
+     * (graphId, eventId) 上有唯一约束，并发的两次重试中后提交的一方会等前一方提交后读到已存在的节点
+     */
+    static String claimEvents() {
+        return "UNWIND $eventIds AS eventId " +
+               "MERGE (a:AppliedEvent {graphId: $graphId, eventId: eventId}) " +
+               "ON CREATE SET a.appliedAt = $now, a.token = $token " +
+               "RETURN eventId, a.token = $token AS claimed";
+    }
+
+    /**
+     * 批量写 NEXT 边：同一对 (from, to) 的增量已在 Java 侧合并
+     * 参数 $edges: [{fromId, toId, jumpInc, userSelectInc, randomSelectInc, affinityInc, atMillis}]
+     * affinityInc 是合并后已衰减到 atMillis 的亲和度增量
+     * 每条边返回一行 {fromId, toId, created}
+     */
+    static String batchUpsertEdges(String label) {
+        return String.format(
+            "UNWIND $edges AS e " +
+            "MATCH (prev:`%1$s`) WHERE id(prev) = e.fromId " +
+            "MATCH (curr:`%1$s`) WHERE id(curr) = e.toId " +
+            "OPTIONAL MATCH (prev)-[old:NEXT]->(curr) " +
+            "WITH e, prev, curr, old IS NULL AS created " +
+            "MERGE (prev)-[r:NEXT]->(curr) " +
+            "ON CREATE SET " +
+            "   r.jumpCount = e.jumpInc, " +
+            "   r.userSelectCount = e.userSelectInc, " +
+            "   r.randomSelectCount = e.randomSelectInc " +
+            "ON MATCH SET " +
+            "   r.jumpCount = coalesce(r.jumpCount, 0) + e.jumpInc, " +
+            "   r.userSelectCount = coalesce(r.userSelectCount, 0) + e.userSelectInc, " +
+            "   r.randomSelectCount = coalesce(r.randomSelectCount, 0) + e.randomSelectInc " +
+            "SET r.weight = %2$s, " +
+            "    prev.outJumpTotal = coalesce(prev.outJumpTotal, 0) + e.jumpInc, " +
+            "    %3$s " +
+            "RETURN e.fromId AS fromId, e.toId AS toId, created",
+            label, edgeWeight("r"), decayAffinity("r", "e.affinityInc", "e.atMillis")
+        );
+    }
+}
@@ -0,0 +1,283 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ListenEventDTO;
+import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 历史听歌记录批量导入
+ * <p>
+ * 逐行流式解析 CSV / NDJSON，不把整个文件读进内存；每攒够一批就交给
+ * {@link ListenBatchWriter} 用 UNWIND 写入，NEXT 链与计数语义和 addSong 完全一致。
+ * 每批提交后把已处理行数写进 Redis 作为断点，导入中断后可用 resume=true 从断点继续
+ * (需要重新上传同一个文件)。
+ * </p>
+ * CSV 第一行为表头，支持的列：name, artist, timestamp, isRandom, isFullPlay, isSkip, newChain
+ */
+@Slf4j
+@Service
+public class ListenImportService {
+
+    private final GraphInfoRepository graphInfoRepository;
+    private final ListenBatchWriter listenBatchWriter;
+    private final GraphListenSequencer listenSequencer;
+    private final StringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${songmap.import.batch-size:5000}")
+    private int batchSize;
+
+    public enum Format { CSV, NDJSON }
+
+    public ListenImportService(GraphInfoRepository graphInfoRepository,
+                               ListenBatchWriter listenBatchWriter,
+                               GraphListenSequencer listenSequencer,
+                               StringRedisTemplate redisTemplate,
+                               ObjectMapper objectMapper) {
+        this.graphInfoRepository = graphInfoRepository;
+        this.listenBatchWriter = listenBatchWriter;
+        this.listenSequencer = listenSequencer;
+        this.redisTemplate = redisTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    private String checkpointKey(Long graphId) {
+        return "import:graph:" + graphId;
+    }
+
+    /**
+     * 导入听歌记录
+     *
+     * @param resume true 时跳过上次已提交的行，从断点继续
+     * @return 导入报告 (行数、耗时、吞吐)
+     */
+    public Map<String, Object> importListens(Long userId, Long graphId, InputStream in, String format, boolean resume) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        if (graph.isInitializing()) {
+            throw new IllegalStateException("Graph is still initializing");
+        }
+        Format fmt;
+        try {
+            fmt = Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported import format: " + format);
+        }
+        return runImport(graphId, graph.getNodeLabel(), in, fmt, resume);
+    }
+
+    public Map<Object, Object> getStatus(Long userId, Long graphId) {
+        graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        return redisTemplate.opsForHash().entries(checkpointKey(graphId));
+    }
+
+    private Map<String, Object> runImport(Long graphId, String label, InputStream in, Format format, boolean resume) {
+        String key = checkpointKey(graphId);
+        long skipRows = 0;
+        if (resume) {
+            Object committed = redisTemplate.opsForHash().get(key, "rows");
+            skipRows = committed == null ? 0 : Long.parseLong(committed.toString());
+        } else {
+            redisTemplate.delete(key);
+        }
+        redisTemplate.opsForHash().put(key, "status", "RUNNING");
+        redisTemplate.opsForHash().put(key, "startedAt", LocalDateTime.now().toString());
+
+        long start = System.nanoTime();
+        long rows = 0, imported = 0, invalid = 0, batches = 0;
+        List<ListenEventDTO> batch = new ArrayList<>(batchSize);
+        String[] header = null;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                if (format == Format.CSV && header == null) {
+                    header = parseCsvLine(line.replace("\uFEFF", ""));
+                    continue;
+                }
+                rows++;
+                if (rows <= skipRows) continue;
+
+                ListenEventDTO event = format == Format.CSV ? parseCsvRow(header, line) : parseJsonRow(line);
+                if (event == null) {
+                    invalid++;
+                    continue;
+                }
+                batch.add(event);
+
+                if (batch.size() >= batchSize) {
+                    imported += writeBatch(graphId, label, batch);
+                    batches++;
+                    checkpoint(key, rows, imported);
+                    log.info("Import graph {}: {} rows committed ({} rows/s)", graphId, rows, rate(imported, start));
+                }
+            }
+            if (!batch.isEmpty()) {
+                imported += writeBatch(graphId, label, batch);
+                batches++;
+            }
+            checkpoint(key, rows, imported);
+            redisTemplate.opsForHash().put(key, "status", "DONE");
+        } catch (IOException e) {
+            redisTemplate.opsForHash().put(key, "status", "FAILED");
+            throw new UncheckedIOException("Failed to read import stream", e);
+        } catch (RuntimeException e) {
+            redisTemplate.opsForHash().put(key, "status", "FAILED");
+            throw e;
+        }
+
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("graphId", graphId);
+        report.put("format", format.name());
+        report.put("resumedFrom", skipRows);
+        report.put("rowsRead", rows);
+        report.put("imported", imported);
+        report.put("invalid", invalid);
+        report.put("batches", batches);
+        report.put("elapsedMs", elapsedMs);
+        report.put("rowsPerSec", rate(imported, start));
+        log.info("Import graph {} finished: {}", graphId, report);
+        return report;
+    }
+
+    private int writeBatch(Long graphId, String label, List<ListenEventDTO> batch) {
+        List<ListenEventDTO> events = new ArrayList<>(batch);
+        batch.clear();
+        // 与在线听歌共用图谱车道，导入期间的实时听歌不会把链条打乱
+        listenSequencer.execute(graphId, () -> listenBatchWriter.write(graphId, label, events));
+        return events.size();
+    }
+
+    private void checkpoint(String key, long rows, long imported) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("rows", String.valueOf(rows));
+        fields.put("imported", String.valueOf(imported));
+        fields.put("updatedAt", LocalDateTime.now().toString());
+        redisTemplate.opsForHash().putAll(key, fields);
+    }
+
+    private long rate(long count, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0 ? count : Math.round(count / seconds);
+    }
+
+    // ================= 解析 =================
+
+    private ListenEventDTO parseJsonRow(String line) {
+        try {
+            JsonNode node = objectMapper.readTree(line);
+            Map<String, String> fields = new HashMap<>();
+            for (Map.Entry<String, JsonNode> entry : node.properties()) {
+                if (!entry.getValue().isNull()) fields.put(entry.getKey(), entry.getValue().asString());
+            }
+            return toEvent(fields);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private ListenEventDTO parseCsvRow(String[] header, String line) {
+        String[] values = parseCsvLine(line);
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 0; i < header.length && i < values.length; i++) {
+            fields.put(header[i].trim(), values[i]);
+        }
+        return toEvent(fields);
+    }
+
+    private ListenEventDTO toEvent(Map<String, String> fields) {
+        String name = first(fields, "name", "song", "title");
+        if (name == null || name.isBlank()) return null;
+
+        ListenEventDTO e = new ListenEventDTO();
+        e.setName(name.trim());
+        String artist = first(fields, "artist", "singer");
+        e.setArtist(artist == null || artist.isBlank() ? "Unknown" : artist.trim());
+        e.setRandom(Boolean.parseBoolean(first(fields, "isRandom", "random")));
+        String fullPlay = first(fields, "isFullPlay", "fullPlay");
+        e.setFullPlay(fullPlay == null || Boolean.parseBoolean(fullPlay));
+        e.setSkip(Boolean.parseBoolean(first(fields, "isSkip", "skip")));
+        e.setForceNewChain(Boolean.parseBoolean(first(fields, "newChain", "forceNewChain")));
+        try {
+            e.setListenedAt(parseTime(first(fields, "timestamp", "listenedAt", "time")));
+        } catch (RuntimeException ex) {
+            return null;
+        }
+        return e;
+    }
+
+    private String first(Map<String, String> fields, String... keys) {
+        for (String k : keys) {
+            String v = fields.get(k);
+            if (v != null) return v;
+        }
+        return null;
+    }
+
+    // 支持 ISO 本地时间 (2024-01-01T08:00:00) 或毫秒时间戳
+    private LocalDateTime parseTime(String value) {
+        if (value == null || value.isBlank()) return null;
+        String v = value.trim();
+        if (v.chars().allMatch(Character::isDigit)) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(v)), ZoneId.systemDefault());
+        }
+        return LocalDateTime.parse(v.replace(' ', 'T'));
+    }
+
+    // 简单 CSV 行解析：支持双引号包裹和 "" 转义 (不支持字段内换行)
+    private String[] parseCsvLine(String line) {
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        cur.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    cur.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        out.add(cur.toString());
+        return out.toArray(new String[0]);
+    }
+}
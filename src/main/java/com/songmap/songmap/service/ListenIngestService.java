@@ -0,0 +1,266 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ListenEventDTO;
+import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import tools.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步听歌写入管道 (Write-Behind)
+ * <p>
+ * 听歌事件先进入有界内存队列，由单独的刷盘线程按图谱分组、按到达顺序批量写入 Neo4j。
+ * 单线程消费保证了同一图谱内的事件顺序；队列满时 submit 返回 false 作为背压信号；
+ * 应用关闭时会把队列中剩余的事件全部刷完再退出。
+ * </p>
+ * <p>
+ * 已经确认给客户端的事件不能丢：写库失败时原地按指数退避重试 (重试期间后面的事件等着，顺序不乱)，
+ * 重试用尽后整批追加到 Redis 死信列表 (每条一个 JSON：graphId / label / event)，留待排查后重放。
+ * </p>
+ */
+@Slf4j
+@Service
+public class ListenIngestService {
+
+    private final GraphInfoRepository graphInfoRepository;
+    private final ListenBatchWriter listenBatchWriter;
+    private final GraphListenSequencer listenSequencer;
+    private final StringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${songmap.ingest.async.enabled:false}")
+    private boolean enabled;
+
+    @Value("${songmap.ingest.queue-capacity:10000}")
+    private int queueCapacity;
+
+    // 单次刷盘最多处理的事件数
+    @Value("${songmap.ingest.flush-size:500}")
+    private int flushSize;
+
+    // 队列空闲时最长等待多久刷一次
+    @Value("${songmap.ingest.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    // 队列满时调用方最多阻塞等待的时间
+    @Value("${songmap.ingest.offer-timeout-ms:50}")
+    private long offerTimeoutMs;
+
+    // 写库失败后的重试次数与首次退避，之后每次翻倍
+    @Value("${songmap.ingest.max-retries:3}")
+    private int maxRetries;
+
+    @Value("${songmap.ingest.retry-backoff-ms:200}")
+    private long retryBackoffMs;
+
+    @Value("${songmap.ingest.dead-letter-key:listen:ingest:dead-letter}")
+    private String deadLetterKey;
+
+    private BlockingQueue<PendingListen> queue;
+    private Thread flusher;
+    private volatile boolean stopping = false;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    // 死信也写不进去 (Redis 同时不可用)，只剩日志里的 JSON
+    private final AtomicLong lost = new AtomicLong();
+
+    private record PendingListen(Long graphId, String label, ListenEventDTO event) {
+    }
+
+    public ListenIngestService(GraphInfoRepository graphInfoRepository,
+                               ListenBatchWriter listenBatchWriter,
+                               GraphListenSequencer listenSequencer,
+                               StringRedisTemplate redisTemplate,
+                               ObjectMapper objectMapper) {
+        this.graphInfoRepository = graphInfoRepository;
+        this.listenBatchWriter = listenBatchWriter;
+        this.listenSequencer = listenSequencer;
+        this.redisTemplate = redisTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) return;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        flusher = new Thread(this::runFlushLoop, "listen-ingest-flusher");
+        flusher.start();
+        log.info("Async listen ingestion enabled: capacity={}, flushSize={}, interval={}ms",
+                queueCapacity, flushSize, flushIntervalMs);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 投递一条听歌事件
+     *
+     * @return false 表示队列已满 (背压)，调用方应稍后重试
+     */
+    public boolean submit(Long userId, Long graphId, ListenEventDTO event) {
+        if (!enabled || stopping) {
+            throw new IllegalStateException("Async listen ingestion is not running");
+        }
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        if (graph.isInitializing()) {
+            throw new IllegalStateException("Graph is still initializing");
+        }
+
+        try {
+            if (queue.offer(new PendingListen(graphId, graph.getNodeLabel(), event), offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                accepted.incrementAndGet();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        m.put("queueDepth", getQueueDepth());
+        m.put("accepted", accepted.get());
+        m.put("rejected", rejected.get());
+        m.put("flushed", flushed.get());
+        m.put("failed", failed.get());
+        m.put("retried", retried.get());
+        m.put("deadLettered", deadLettered.get());
+        m.put("lost", lost.get());
+        m.put("deadLetterSize", enabled ? deadLetterSize() : 0);
+        return m;
+    }
+
+    private void runFlushLoop() {
+        List<PendingListen> buffer = new ArrayList<>(flushSize);
+        while (!stopping || !queue.isEmpty()) {
+            try {
+                PendingListen first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                buffer.add(first);
+                queue.drainTo(buffer, flushSize - 1);
+                flush(buffer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                buffer.clear();
+            }
+        }
+        log.info("Listen ingest flusher stopped, flushed={}, failed={}", flushed.get(), failed.get());
+    }
+
+    private void flush(List<PendingListen> buffer) {
+        // 按图谱分组，组内保持到达顺序
+        Map<Long, List<PendingListen>> byGraph = new LinkedHashMap<>();
+        for (PendingListen p : buffer) {
+            byGraph.computeIfAbsent(p.graphId(), k -> new ArrayList<>()).add(p);
+        }
+
+        byGraph.forEach((graphId, items) -> {
+            List<ListenEventDTO> events = new ArrayList<>(items.size());
+            for (PendingListen p : items) events.add(p.event());
+            long backoff = retryBackoffMs;
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    // 与同步听歌共用图谱车道，保证 "上一首" 读写不交错
+                    listenSequencer.execute(graphId, () -> listenBatchWriter.write(graphId, items.get(0).label(), events));
+                    flushed.addAndGet(events.size());
+                    return;
+                } catch (Exception e) {
+                    if (attempt >= maxRetries || !sleep(backoff)) {
+                        failed.addAndGet(events.size());
+                        log.error("Failed to flush {} listens for graph {} after {} attempts: {}",
+                                events.size(), graphId, attempt + 1, e.getMessage(), e);
+                        deadLetter(items);
+                        return;
+                    }
+                    retried.incrementAndGet();
+                    log.warn("Failed to flush {} listens for graph {}, retrying in {} ms: {}",
+                            events.size(), graphId, backoff, e.getMessage());
+                    backoff *= 2;
+                }
+            }
+        });
+    }
+
+    /**
+     * 退避等待；关闭过程中被打断时不再重试，直接进死信
+     */
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void deadLetter(List<PendingListen> items) {
+        List<String> entries = new ArrayList<>(items.size());
+        for (PendingListen p : items) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("graphId", p.graphId());
+            entry.put("label", p.label());
+            entry.put("event", p.event());
+            entries.add(objectMapper.writeValueAsString(entry));
+        }
+        try {
+            redisTemplate.opsForList().rightPushAll(deadLetterKey, entries);
+            deadLettered.addAndGet(entries.size());
+        } catch (Exception e) {
+            lost.addAndGet(entries.size());
+            log.error("Failed to dead-letter {} listens ({}), events: {}", entries.size(), e.getMessage(), entries);
+        }
+    }
+
+    private long deadLetterSize() {
+        try {
+            Long size = redisTemplate.opsForList().size(deadLetterKey);
+            return size == null ? 0 : size;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher == null) return;
+        // 不打断刷盘线程 (可能正在写库)，最多等一个 flush 周期它就会发现 stopping
+        stopping = true;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.songmap.songmap.service;
 
+import com.songmap.songmap.dto.ListenBatchResultDTO;
+import com.songmap.songmap.dto.ListenEventDTO;
 import com.songmap.songmap.dto.NeighborItemDTO;
+import com.songmap.songmap.dto.NodeDetailDTO;
+import com.songmap.songmap.dto.PlaylistDTO;
 import com.songmap.songmap.dto.ScoredSongDTO;
 import com.songmap.songmap.entity.GraphInfo;
 import com.songmap.songmap.entity.Song;
@@ -9,17 +13,24 @@ import com.songmap.songmap.repository.SongRepository;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.neo4j.core.Neo4jClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -33,20 +44,103 @@ public class MusicGraphService {
     private final GraphInfoRepository graphInfoRepository;
     private final MusicHistoryService musicHistoryService;
     private final Neo4jClient neo4jClient;
+    private final GraphSchemaService graphSchemaService;
+    private final PlayCounterAccumulator counterAccumulator;
+    private final ListenBatchWriter listenBatchWriter;
+    private final GraphAdjacencyCache adjacencyCache;
+    private final RecommendationCache recommendationCache;
+    private final PersonalizedPageRankService pageRankService;
+    private final HubNeighborIndex hubIndex;
+    private final SpeculativeRecommender speculativeRecommender;
+    private final SongEmbeddingService embeddingService;
+    private final CommunityDetectionService communityService;
+    private final GraphChangeLog changeLog;
+    private final GraphStatsService statsService;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Value("${songmap.history.limit:100}")
     private int historyLimit;
 
+    @Value("${songmap.recommend.default-limit:20}")
+    private int defaultRecommendLimit;
+
+    @Value("${songmap.recommend.neighbor-limit:50}")
+    private int neighborLimit;
+
+    @Value("${songmap.recommend.batch.max-seeds:100}")
+    private int maxBatchSeeds;
+
+    @Value("${songmap.playlist.default-length:30}")
+    private int defaultPlaylistLength;
+
+    @Value("${songmap.playlist.max-length:200}")
+    private int maxPlaylistLength;
+
+    @Value("${songmap.playlist.beam-width:8}")
+    private int defaultBeamWidth;
+
+    @Value("${songmap.playlist.max-beam-width:64}")
+    private int maxBeamWidth;
+
+    @Value("${songmap.playlist.time-budget-ms:200}")
+    private long playlistTimeBudgetMs;
+
+    @Value("${songmap.playlist.step-minutes:4}")
+    private long playlistStepMinutes;
+
+    @Value("${songmap.playlist.prefetch-hops:3}")
+    private int prefetchHops;
+
+    @Value("${songmap.playlist.prefetch-max-nodes:2000}")
+    private int prefetchMaxNodes;
+
+    @Value("${songmap.recommend.ppr.history-seeds:3}")
+    private int historySeeds;
+
+    @Value("${songmap.recommend.affinity.enabled:false}")
+    private boolean rankByAffinity;
+
+    @Value("${songmap.embedding.fallback-min-results:3}")
+    private int similarMinResults;
+
+    private static final Set<String> EDGE_COUNTER_KEYS = Set.of("jumpCount", "userSelectCount", "randomSelectCount");
+
     private static final Pattern SAFE_KEY_PATTERN = Pattern.compile("^[a-zA-Z0-9_]+$");
 
     public MusicGraphService(SongRepository songRepository,
                              GraphInfoRepository graphInfoRepository,
                              MusicHistoryService musicHistoryService,
-                             Neo4jClient neo4jClient) {
+                             Neo4jClient neo4jClient,
+                             GraphSchemaService graphSchemaService,
+                             PlayCounterAccumulator counterAccumulator,
+                             ListenBatchWriter listenBatchWriter,
+                             GraphAdjacencyCache adjacencyCache,
+                             RecommendationCache recommendationCache,
+                             PersonalizedPageRankService pageRankService,
+                             HubNeighborIndex hubIndex,
+                             SpeculativeRecommender speculativeRecommender,
+                             SongEmbeddingService embeddingService,
+                             CommunityDetectionService communityService,
+                             GraphChangeLog changeLog,
+                             GraphStatsService statsService,
+                             ApplicationEventPublisher eventPublisher) {
         this.songRepository = songRepository;
         this.graphInfoRepository = graphInfoRepository;
         this.musicHistoryService = musicHistoryService;
         this.neo4jClient = neo4jClient;
+        this.graphSchemaService = graphSchemaService;
+        this.counterAccumulator = counterAccumulator;
+        this.listenBatchWriter = listenBatchWriter;
+        this.adjacencyCache = adjacencyCache;
+        this.recommendationCache = recommendationCache;
+        this.pageRankService = pageRankService;
+        this.hubIndex = hubIndex;
+        this.speculativeRecommender = speculativeRecommender;
+        this.embeddingService = embeddingService;
+        this.communityService = communityService;
+        this.changeLog = changeLog;
+        this.statsService = statsService;
+        this.eventPublisher = eventPublisher;
     }
 
     /**
@@ -60,146 +154,148 @@ public class MusicGraphService {
         
         GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
                 .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        if (graph.isInitializing()) {
+            throw new IllegalStateException("Graph is still initializing");
+        }
         
         String label = graph.getNodeLabel();
 
         // 2. 获取该图谱的上一首
         Long lastSongId = musicHistoryService.getLastListenedSongId(graphId);
 
-        // 3. 【核心修改】智能查找或创建节点
+        // 3. 【核心修改】一次往返完成：智能查找或创建节点 + 累加计数 + 连线
         // 逻辑：
         // A. 优先找 name + artist 完全匹配的
         // B. 其次找 name 匹配且 artist='Unknown' 的 (说明之前存的时候不知道歌手，现在知道了，就复用它)
         // C. 如果都找不到，才 CREATE
-        
-        String findCypher = String.format(
-            "MATCH (n:`%s`) " +
-            "WHERE n.name = $name AND (n.artist = $artist OR n.artist = 'Unknown') " +
-            "RETURN n " +
-            "ORDER BY CASE WHEN n.artist = $artist THEN 1 ELSE 2 END " + // 优先匹配确切歌手
-            "LIMIT 1",
-            label
-        );
+        // D. 上一首存在且不强制断连，且不是自环时，MERGE NEXT 边
+        // 查找走 (name, artist) 组合索引，延迟与图谱大小无关
+        graphSchemaService.ensureIndexes(label);
 
-        Map<String, Object> params = new HashMap<>();
-        params.put("name", name);
-        params.put("artist", artist);
-        
-        // 尝试查找现有节点
-        Song existingNode = neo4jClient.query(findCypher)
-                .bindAll(params)
-                .fetchAs(Song.class)
-                .mappedBy((typeSystem, record) -> {
-                    Song s = new Song();
-                    s.setId(record.get(0).asNode().id());
-                    s.setName(record.get(0).asNode().get("name").asString());
-                    if (!record.get(0).asNode().get("artist").isNull()) {
-                        s.setArtist(record.get(0).asNode().get("artist").asString());
-                    }
-                    return s;
-                })
-                .one()
-                .orElse(null);
+        ListenEventDTO event = new ListenEventDTO(name, artist, isRandom, isFullPlay, isSkip, forceNewChain, null);
+        // 开启计数缓冲时，热点节点 / 边的计数改为内存累加，这里只保证点和边存在
+        boolean buffered = counterAccumulator.isEnabled();
+        boolean[] linked = new boolean[1];
+        // 【新增】是否新建了点 / 边、写入后的 listenCount，给图谱统计做增量
+        boolean[] created = new boolean[2];
+        long[] listenCount = new long[1];
 
-        Song currentSong;
-        
-        if (existingNode != null) {
-            // --- 情况 A/B: 节点已存在 (可能是完全匹配，也可能是 Unknown) ---
-            log.info("合并至现有节点: id={}, name={}", existingNode.getId(), existingNode.getName());
-            
-            String updateCypher = String.format(
-                "MATCH (n) WHERE id(n) = $id " +
-                "SET n.listenCount = coalesce(n.listenCount, 0) + 1, " +
-                "    n.listenedAt = localdatetime(), " + // 【修复】使用 localdatetime() 避免 500 错误
-                "    n.fullPlayCount = coalesce(n.fullPlayCount, 0) + $fullPlayInc, " +
-                "    n.skipCount = coalesce(n.skipCount, 0) + $skipInc, " +
-                "    n.userSelectCount = coalesce(n.userSelectCount, 0) + $userSelectInc, " +
-                "    n.randomSelectCount = coalesce(n.randomSelectCount, 0) + $randomSelectInc, " +
-                "    n.artist = $artist " + // 【关键】强制更新作者（如果是 Unknown 会被覆盖为真名）
-                "RETURN n",
-                label
-            );
-            
-            params.put("id", existingNode.getId());
-            params.put("fullPlayInc", isFullPlay ? 1 : 0);
-            params.put("skipInc", isSkip ? 1 : 0);
-            params.put("userSelectInc", isRandom ? 0 : 1);
-            params.put("randomSelectInc", isRandom ? 1 : 0);
-            
-            neo4jClient.query(updateCypher).bindAll(params).run();
-            currentSong = existingNode; 
-            
-        } else {
-            // --- 情况 C: 节点不存在，创建新节点 ---
-            log.info("创建新节点: name={}, artist={}", name, artist);
-            
-            String createCypher = String.format(
-                "CREATE (n:Song:`%s` {name: $name, artist: $artist}) " +
-                "SET n.listenCount = 1, " +
-                "    n.listenedAt = localdatetime(), " + // 【修复】使用 localdatetime()
-                "    n.fullPlayCount = $fullPlayInc, " +
-                "    n.skipCount = $skipInc, " +
-                "    n.userSelectCount = $userSelectInc, " +
-                "    n.randomSelectCount = $randomSelectInc " +
-                "RETURN n", 
-                label
-            );
-            
-            params.put("fullPlayInc", isFullPlay ? 1 : 0);
-            params.put("skipInc", isSkip ? 1 : 0);
-            params.put("userSelectInc", isRandom ? 0 : 1);
-            params.put("randomSelectInc", isRandom ? 1 : 0);
-
-            currentSong = neo4jClient.query(createCypher)
-                .bindAll(params)
+        Song currentSong = neo4jClient.query(ListenCypher.upsertListen(label, !buffered))
+                .bind(ListenCypher.eventRow(0, event)).to("event")
+                .bind(forceNewChain ? null : lastSongId).to("lastId")
                 .fetchAs(Song.class)
                 .mappedBy((typeSystem, record) -> {
                     Song s = new Song();
-                    s.setId(record.get(0).asNode().id());
-                    s.setName(record.get(0).asNode().get("name").asString());
+                    s.setId(record.get("id").asLong());
+                    s.setName(record.get("name").asString());
+                    s.setArtist(record.get("artist").asString());
+                    linked[0] = record.get("linked").asBoolean();
+                    created[0] = record.get("created").asBoolean();
+                    created[1] = record.get("linkCreated").asBoolean();
+                    listenCount[0] = record.get("listenCount").asLong();
                     return s;
                 })
                 .one()
-                .orElseThrow(() -> new RuntimeException("Failed to create node"));
-        }
-
-        // 4. 处理连线 (仅当上一首存在且不强制断连，且不是自环时)
-        if (lastSongId != null && !forceNewChain && !currentSong.getId().equals(lastSongId)) {
-            String edgeCypher = String.format(
-                "MATCH (prev:`%s`), (curr:`%s`) " +
-                "WHERE id(prev) = $lastId AND id(curr) = $currId " +
-                "MERGE (prev)-[r:NEXT]->(curr) " +
-                "ON CREATE SET " +
-                "   r.jumpCount = 1, " +
-                "   r.userSelectCount = $userSelectInc, " +
-                "   r.randomSelectCount = $randomSelectInc " +
-                "ON MATCH SET " +
-                "   r.jumpCount = coalesce(r.jumpCount, 0) + 1, " +
-                "   r.userSelectCount = coalesce(r.userSelectCount, 0) + $userSelectInc, " +
-                "   r.randomSelectCount = coalesce(r.randomSelectCount, 0) + $randomSelectInc",
-                label, label
-            );
-            
-            neo4jClient.query(edgeCypher)
-                .bind(lastSongId).to("lastId")
-                .bind(currentSong.getId()).to("currId")
-                .bind(isRandom ? 0 : 1).to("userSelectInc")
-                .bind(isRandom ? 1 : 0).to("randomSelectInc")
-                .run();
+                .orElseThrow(() -> new RuntimeException("Failed to upsert node"));
+
+        log.info("听歌写入节点: id={}, name={}, artist={}", currentSong.getId(), currentSong.getName(), currentSong.getArtist());
+
+        if (buffered) {
+            counterAccumulator.recordListen(graphId, label, currentSong.getId(), linked[0] ? lastSongId : null,
+                    isRandom, isFullPlay, isSkip);
         }
 
-        // 5. 更新 Redis 历史 (带 graphId)
+        // 4. 更新 Redis 历史 (带 graphId)
         musicHistoryService.updateHistory(graphId, currentSong.getId(), currentSong.getName(), historyLimit);
 
+        // 5. 通知内存派生结构 (事务提交后生效)
+        eventPublisher.publishEvent(new ListenAppliedEvent(graphId, List.of(new ListenAppliedEvent.Listen(
+                currentSong.getId(), currentSong.getName(), currentSong.getArtist(), linked[0] ? lastSongId : null,
+                isRandom, isFullPlay, isSkip, null, created[0], created[1], listenCount[0]))));
+
+        // 6. 客户端紧接着就会请求刚听这首的推荐，提交后在后台先算好
+        Long songId = currentSong.getId();
+        speculativeRecommender.speculate(userId, graphId, songId, lastSongId, defaultRecommendLimit,
+                () -> computeRecommendations(userId, graphId, songId, lastSongId, defaultRecommendLimit, true));
+
         return currentSong;
     }
 
+    /**
+     * 【批量听歌】按顺序应用客户端离线期间积攒的听歌事件
+     * 所有事件在一个事务里用 UNWIND 批量写入，Redis 历史只在最后更新一次；
+     * 带 eventId 的事件重复上传会被识别为 DUPLICATE (去重标记与写入同一事务提交)，客户端可以放心重试整批
+     */
+    public ListenBatchResultDTO addSongBatch(Long userId, Long graphId, List<ListenEventDTO> events) {
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        if (graph.isInitializing()) {
+            throw new IllegalStateException("Graph is still initializing");
+        }
+        if (events == null) events = new ArrayList<>();
+
+        // 1. 逐条分类：非法 / 待写入
+        ListenBatchResultDTO.Outcome[] outcomes = new ListenBatchResultDTO.Outcome[events.size()];
+        List<ListenEventDTO> toWrite = new ArrayList<>();
+        List<Integer> toWriteIdx = new ArrayList<>();
+        int applied = 0, duplicates = 0, invalid = 0;
+
+        for (int i = 0; i < events.size(); i++) {
+            ListenEventDTO e = events.get(i);
+            if (e == null || e.getName() == null || e.getName().isBlank()) {
+                outcomes[i] = new ListenBatchResultDTO.Outcome(i, e == null ? null : e.getEventId(), "INVALID", null,
+                        "Song name must not be empty");
+                invalid++;
+            } else {
+                toWrite.add(e);
+                toWriteIdx.add(i);
+            }
+        }
+
+        // 2. 一个事务批量写入 (去重标记 + 节点 + 边 + 历史)，已应用过的 eventId 返回 null
+        List<Song> songs = listenBatchWriter.write(graphId, graph.getNodeLabel(), toWrite);
+        for (int k = 0; k < songs.size(); k++) {
+            int i = toWriteIdx.get(k);
+            String eventId = events.get(i).getEventId();
+            if (songs.get(k) == null) {
+                outcomes[i] = new ListenBatchResultDTO.Outcome(i, eventId, "DUPLICATE", null, "Event already applied");
+                duplicates++;
+            } else {
+                outcomes[i] = new ListenBatchResultDTO.Outcome(i, eventId, "APPLIED", songs.get(k).getId(), null);
+                applied++;
+            }
+        }
+
+        log.info("用户 {} 向图谱 {} 批量上传 {} 条听歌: applied={}, duplicates={}, invalid={}",
+                userId, graphId, events.size(), applied, duplicates, invalid);
+        return new ListenBatchResultDTO(applied, duplicates, invalid, List.of(outcomes));
+    }
+
     @Transactional
     public void deleteConnection(String fromName, String toName) {
         Assert.hasText(fromName, "From-name must not be empty");
         Assert.hasText(toName, "To-name must not be empty");
         
+        // 【新增】删之前先查出被删的边落在哪些图谱，记进各图谱的变更日志和统计
+        Collection<Map<String, Object>> removed = neo4jClient.query(
+                        "MATCH (a:Song {name: $from})-[:NEXT]->(b:Song {name: $to}) " +
+                        "RETURN id(a) AS fromId, id(b) AS toId, [l IN labels(a) WHERE l <> 'Song'] AS labels")
+                .bind(fromName).to("from").bind(toName).to("to")
+                .fetch().all();
+
         songRepository.deleteRelationship(fromName, toName);
+        for (Map<String, Object> row : removed) {
+            long fromId = ((Number) row.get("fromId")).longValue();
+            long toId = ((Number) row.get("toId")).longValue();
+            for (Object label : (List<?>) row.get("labels")) {
+                graphInfoRepository.findByNodeLabel((String) label).ifPresent(g -> {
+                    changeLog.linkRemoved(g.getId(), fromId, toId);
+                    statsService.linkRemoved(g.getId());
+                });
+            }
+        }
+        // 按歌名删边不区分图谱，所有图谱的派生缓存都要失效
+        eventPublisher.publishEvent(GraphChangedEvent.all());
         log.info("Deleted relationship between [{}] and [{}]", fromName, toName);
     }
 
@@ -209,14 +305,38 @@ public class MusicGraphService {
 
         GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
                 .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        if (graph.isInitializing()) {
+            throw new IllegalStateException("Graph is still initializing");
+        }
         
         String label = graph.getNodeLabel();
 
-        String cypher = String.format("MATCH (n:`%s`) WHERE n.name = $name DETACH DELETE n", label);
+        // 删点前先把指向它的入边从各自起点的 outJumpTotal 里扣掉
+        String cypher = String.format(
+            "MATCH (n:`%s`) WHERE n.name = $name " +
+            "OPTIONAL MATCH (s)-[r:NEXT]->(n) WHERE s <> n " +
+            "FOREACH (_ IN CASE WHEN r IS NULL THEN [] ELSE [1] END | " +
+            "  SET s.outJumpTotal = coalesce(s.outJumpTotal, 0) - coalesce(r.jumpCount, 0)) " +
+            "WITH n, collect(DISTINCT id(s)) AS sources " +
+            "WITH n, id(n) AS removedId, sources, " +
+            "     COUNT { (n)-[:NEXT]-() } AS links, coalesce(n.listenCount, 0) AS listens " +
+            "DETACH DELETE n " +
+            "RETURN removedId, sources, links, listens", label);
         
-        neo4jClient.query(cypher)
+        Collection<Map<String, Object>> removed = neo4jClient.query(cypher)
                 .bind(songName).to("name")
-                .run();
+                .fetch().all();
+        // 【新增】记进变更日志：删掉的点，以及出边 (转移概率) 随之变化的起点
+        for (Map<String, Object> row : removed) {
+            List<Long> sources = ((List<?>) row.get("sources")).stream()
+                    .map(id -> ((Number) id).longValue())
+                    .toList();
+            long removedId = ((Number) row.get("removedId")).longValue();
+            changeLog.nodeRemoved(graphId, removedId, sources);
+            statsService.songRemoved(graphId, removedId, ((Number) row.get("links")).longValue(),
+                    ((Number) row.get("listens")).longValue());
+        }
+        eventPublisher.publishEvent(new GraphChangedEvent(graphId));
                 
         log.info("用户 {} 从图谱 {} 中删除了歌曲: {}", userId, graphId, songName);
     }
@@ -229,6 +349,12 @@ public class MusicGraphService {
         Object typedValue = parseValue(type, valueStr);
         String cypher = String.format("MATCH (n:Song) SET n.`%s` = $val", key);
         neo4jClient.query(cypher).bind(typedValue).to("val").run();
+        // 全局修改，所有图谱都只能全量重发
+        changeLog.resetAll();
+        // 可能改到 listenCount / name，统计只能重算
+        statsService.markStale(null);
+        // 计数可能被改写：邻接表、推荐缓存等派生数据全部失效
+        eventPublisher.publishEvent(GraphChangedEvent.all());
         log.info("Batch added node property: key={}, type={}", key, type);
     }
 
@@ -237,6 +363,12 @@ public class MusicGraphService {
         validatePropertyKey(key);
         String cypher = String.format("MATCH (n:Song) REMOVE n.`%s`", key);
         neo4jClient.query(cypher).run();
+        // 全局修改，所有图谱都只能全量重发
+        changeLog.resetAll();
+        // 可能改到 listenCount / name，统计只能重算
+        statsService.markStale(null);
+        // 计数可能被改写：邻接表、推荐缓存等派生数据全部失效
+        eventPublisher.publishEvent(GraphChangedEvent.all());
         log.warn("Batch removed node property: key={}", key);
     }
 
@@ -244,19 +376,39 @@ public class MusicGraphService {
     public void addEdgeProperty(String key, String type, String valueStr) {
         validatePropertyKey(key);
         Object typedValue = parseValue(type, valueStr);
-        String cypher = String.format("MATCH ()-[r:NEXT]->() SET r.`%s` = $val", key);
+        String cypher = String.format("MATCH ()-[r:NEXT]->() SET r.`%s` = $val", key) + refreshEdgeWeight(key);
         neo4jClient.query(cypher).bind(typedValue).to("val").run();
+        refreshOutJumpTotals(key);
+        // 全局修改，所有图谱都只能全量重发
+        changeLog.resetAll();
+        // 计数可能被改写：邻接表、推荐缓存等派生数据全部失效
+        eventPublisher.publishEvent(GraphChangedEvent.all());
         log.info("Batch added edge property: key={}, type={}", key, type);
     }
 
     @Transactional
     public void removeEdgeProperty(String key) {
         validatePropertyKey(key);
-        String cypher = String.format("MATCH ()-[r:NEXT]->() REMOVE r.`%s`", key);
+        String cypher = String.format("MATCH ()-[r:NEXT]->() REMOVE r.`%s`", key) + refreshEdgeWeight(key);
         neo4jClient.query(cypher).run();
+        refreshOutJumpTotals(key);
+        // 全局修改，所有图谱都只能全量重发
+        changeLog.resetAll();
+        // 计数可能被改写：邻接表、推荐缓存等派生数据全部失效
+        eventPublisher.publishEvent(GraphChangedEvent.all());
         log.warn("Batch removed edge property: key={}", key);
     }
 
+    // 改动的是计数字段时，连带重算预存的 r.weight
+    private String refreshEdgeWeight(String key) {
+        return EDGE_COUNTER_KEYS.contains(key) ? " SET r.weight = " + ListenCypher.edgeWeight("r") : "";
+    }
+
+    // 直接改写 jumpCount 时，起点上增量维护的 outJumpTotal 需要整体重算
+    private void refreshOutJumpTotals(String key) {
+        if ("jumpCount".equals(key)) neo4jClient.query(ListenCypher.recomputeOutJumpTotals(null)).run();
+    }
+
     private void validatePropertyKey(String key) {
         Assert.hasText(key, "Property key must not be empty");
         if (!SAFE_KEY_PATTERN.matcher(key).matches()) {
@@ -282,85 +434,807 @@ public class MusicGraphService {
     // ================= 查询功能 =================
 
     public Object queryNode(Long id, String name, String artist, boolean detail) {
-        if (id != null) {
-            if (detail) return songRepository.findNodeDetailById(id).orElseThrow();
-            else return songRepository.findById(id).orElseThrow();
-        } else {
-            Assert.hasText(name, "Query name cannot be empty");
-            if (artist == null) artist = "Unknown";
-            if (detail) return songRepository.findNodeDetailByName(name, artist).orElseThrow();
-            else return songRepository.findByNameAndArtist(name, artist).orElseThrow();
+        // 叠加内存中尚未刷盘的计数，保证读到的统计是精确值
+        return counterAccumulator.read(() -> {
+            if (id != null) {
+                if (detail) return withPendingCounters(songRepository.findNodeDetailById(id).orElseThrow());
+                else return withPendingCounters(songRepository.findById(id).orElseThrow());
+            } else {
+                Assert.hasText(name, "Query name cannot be empty");
+                String queryArtist = artist == null ? "Unknown" : artist;
+                if (detail) return withPendingCounters(songRepository.findNodeDetailByName(name, queryArtist).orElseThrow());
+                else return withPendingCounters(songRepository.findByNameAndArtist(name, queryArtist).orElseThrow());
+            }
+        });
+    }
+
+    private Song withPendingCounters(Song song) {
+        counterAccumulator.applyTo(song);
+        return song;
+    }
+
+    private NodeDetailDTO withPendingCounters(NodeDetailDTO detail) {
+        Song self = detail.getSelf();
+        counterAccumulator.applyTo(self);
+        detail.setOutgoing(withPendingEdges(detail.getOutgoing(), self, "target", true));
+        detail.setIncoming(withPendingEdges(detail.getIncoming(), self, "source", false));
+        return detail;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> withPendingEdges(List<Map<String, Object>> entries, Song self,
+                                                       String otherKey, boolean outgoing) {
+        if (entries == null) return null;
+        List<Map<String, Object>> result = new ArrayList<>(entries.size());
+        for (Map<String, Object> entry : entries) {
+            Object other = entry.get(otherKey);
+            Long otherId = other instanceof Song ? ((Song) other).getId() : null;
+            if (other instanceof Song) counterAccumulator.applyTo((Song) other);
+            Map<String, Object> copy = new HashMap<>(entry);
+            Map<String, Object> edge = (Map<String, Object>) entry.get("edge");
+            edge = outgoing
+                    ? counterAccumulator.applyToEdge(edge, self.getId(), otherId)
+                    : counterAccumulator.applyToEdge(edge, otherId, self.getId());
+            copy.put("edge", withTransitionProb(edge, outgoing ? self : (Song) other));
+            result.add(copy);
         }
+        return result;
+    }
+
+    // 出边转移概率 = jumpCount / 起点 outJumpTotal，两者都已叠加未刷增量
+    private Map<String, Object> withTransitionProb(Map<String, Object> edge, Song from) {
+        if (edge == null || from == null) return edge;
+        Map<String, Object> result = new HashMap<>(edge);
+        result.put("transitionProb", SongScorer.transitionProb(getInt(edge, "jumpCount"),
+                from.getOutJumpTotal() == null ? 0 : from.getOutJumpTotal()));
+        return result;
     }
 
     public Object queryEdge(Long id, String fromName, String toName, boolean detail) {
         if (id != null) {
             if (detail) return songRepository.findEdgeDetailById(id).orElseThrow();
-            else return neo4jClient.query("MATCH ()-[r:NEXT]->() WHERE id(r) = $id RETURN properties(r)").bind(id).to("id").fetchAs(Map.class).one().orElseThrow();
+            else return neo4jClient.query("MATCH (s)-[r:NEXT]->() WHERE id(r) = $id RETURN r {.*, transitionProb: " + ListenCypher.transitionProb("r", "s") + "}").bind(id).to("id").fetchAs(Map.class).one().orElseThrow();
         } else {
             Assert.hasText(fromName, "From-name empty");
             Assert.hasText(toName, "To-name empty");
             if (detail) return songRepository.findEdgeDetailByNames(fromName, toName).orElseThrow();
-            else return neo4jClient.query("MATCH (s:Song {name: $from})-[r:NEXT]->(t:Song {name: $to}) RETURN properties(r)")
+            else return neo4jClient.query("MATCH (s:Song {name: $from})-[r:NEXT]->(t:Song {name: $to}) RETURN r {.*, transitionProb: " + ListenCypher.transitionProb("r", "s") + "}")
                     .bind(fromName).to("from").bind(toName).to("to").fetchAs(Map.class).one().orElseThrow();
         }
     }
 
     @Transactional
     public String initVersionUpdate() {
+        // 给旧数据补上预存的边权重 r.weight
+        neo4jClient.query("MATCH ()-[r:NEXT]->() WHERE r.weight IS NULL SET r.weight = " + ListenCypher.edgeWeight("r"))
+                .run();
+        // 补上节点的出边 jumpCount 总和 outJumpTotal (转移概率的分母)
+        neo4jClient.query(ListenCypher.recomputeOutJumpTotals(null)).run();
+        changeLog.resetAll();
+        eventPublisher.publishEvent(GraphChangedEvent.all());
         return "数据版本迭代完成";
     }
 
-    public List<ScoredSongDTO> recommendNextSongs(Long currentSongId, Long lastSongId) {
-        List<NeighborItemDTO> neighbors = songRepository.findAllNeighbors(currentSongId);
-        if (neighbors == null || neighbors.isEmpty()) return new ArrayList<>();
+    /**
+     * 【多跳推荐】个性化 PageRank：以当前歌曲和最近几首历史为起点随机游走，可推荐两三跳之外的歌
+     * @param recentIds 最近的历史 (不含当前歌曲)，按时间倒序，第一个即上一首
+     * @param diversify 是否做跨社区多样化重排
+     */
+    public List<ScoredSongDTO> recommendMultiHop(Long userId, Long graphId, Long currentSongId, List<Long> recentIds,
+                                                 Integer limit, boolean explain, boolean diversify) {
+        int k = limit == null ? defaultRecommendLimit : limit;
+        if (k <= 0) throw new IllegalArgumentException("limit must be positive");
 
-        List<ScoredSongDTO> candidates = new ArrayList<>();
-        LocalDateTime now = LocalDateTime.now();
+        List<Long> seeds = new ArrayList<>();
+        seeds.add(currentSongId);
+        seeds.addAll(recentIds.subList(0, Math.min(historySeeds, recentIds.size())));
+        Long lastSongId = recentIds.isEmpty() ? null : recentIds.get(0);
+        if (diversify && communityService.isEnabled()) {
+            List<ScoredSongDTO> candidates = pageRankService.recommend(userId, graphId, seeds, lastSongId,
+                    communityService.candidateLimit(k), explain);
+            return communityService.diversify(userId, graphId, candidates, k, explain);
+        }
+        return pageRankService.recommend(userId, graphId, seeds, lastSongId, k, explain);
+    }
 
-        for (NeighborItemDTO item : neighbors) {
-            Song candidateNode = item.getNode();
-            if (candidateNode == null) continue;
-            Map<String, Object> edgeProps = item.getEdge();
+    /**
+     * 【推荐】对当前歌曲的正向 / 反向邻居打分，返回分数最高的 limit 首
+     * 默认走内存邻接表 (GraphAdjacencyCache)，不访问 Neo4j；关闭后回退到查库 (每个方向按边权重取 Top-K)。
+     * 开启 Redis 物化缓存时先查缓存，未命中再算出与时间无关的 Top-N 写回。
+     * 开启 songmap.recommend.affinity.enabled 后按近期亲和度 (指数衰减) 而不是累计计数打分，
+     * 亲和度随写入一次乘法更新到最新，读取时再衰减到当前时间，不扫描历史
+     *
+     * @param limit     返回条数，为 null 时取 songmap.recommend.default-limit
+     * @param explain   是否生成打分说明 (只为返回的 Top-K 生成)
+     * @param diversify 是否做跨社区多样化重排：多取几首候选，同一社区的歌逐首降权
+     */
+    public List<ScoredSongDTO> recommendNextSongs(Long userId, Long graphId, Long currentSongId, Long lastSongId,
+                                                  Integer limit, boolean explain, boolean diversify) {
+        int k = limit == null ? defaultRecommendLimit : limit;
+        if (k <= 0) throw new IllegalArgumentException("limit must be positive");
+
+        if (diversify && communityService.isEnabled()) {
+            List<ScoredSongDTO> candidates = recommendTopK(userId, graphId, currentSongId, lastSongId,
+                    communityService.candidateLimit(k), explain);
+            return communityService.diversify(userId, graphId, candidates, k, explain);
+        }
+        return recommendTopK(userId, graphId, currentSongId, lastSongId, k, explain);
+    }
+
+    private List<ScoredSongDTO> recommendTopK(Long userId, Long graphId, Long currentSongId, Long lastSongId,
+                                              int k, boolean explain) {
+        // 听歌时已预计算过且 (当前歌曲, 上一首) 对得上，直接返回
+        List<ScoredSongDTO> speculated = speculativeRecommender.take(userId, graphId, currentSongId, lastSongId, k, explain);
+        if (speculated != null) return speculated;
+        return computeRecommendations(userId, graphId, currentSongId, lastSongId, k, explain);
+    }
+
+    private List<ScoredSongDTO> computeRecommendations(Long userId, Long graphId, Long currentSongId, Long lastSongId,
+                                                       int k, boolean explain) {
+        List<ScoredSongDTO> ranked = rankNextSongs(userId, graphId, currentSongId, lastSongId, k, explain);
+        return withSimilarSongs(userId, graphId, currentSongId, lastSongId, ranked, k, explain);
+    }
 
-            double edgeScore = calculateInteraction(
-                getInt(edgeProps, "userSelectCount"),
-                getInt(edgeProps, "jumpCount"),
-                getInt(edgeProps, "randomSelectCount")
-            );
-            double nodeScore = calculateInteraction(
-                candidateNode.getUserSelectCount(), 0, candidateNode.getRandomSelectCount()
-            );
-
-            double baseScore = edgeScore + (nodeScore * 0.2);
-            if (baseScore < 0.1) baseScore = 0.1;
-
-            double dirFactor = RankWeights.DIR_FORWARD;
-            if ("IN".equals(item.getDirection())) dirFactor = RankWeights.DIR_BACKWARD;
-            if (lastSongId != null && candidateNode.getId().equals(lastSongId)) dirFactor = RankWeights.DIR_REPEAT;
-
-            double freshnessFactor = 1.0;
-            if (candidateNode.getListenedAt() != null) {
-                // 使用 LocalDateTime 计算时间差，避免时区报错
-                long minutesDiff = java.time.temporal.ChronoUnit.MINUTES.between(candidateNode.getListenedAt(), now);
-                freshnessFactor = 1.0 - Math.exp(-RankWeights.COOLING_LAMBDA * minutesDiff);
+    private List<ScoredSongDTO> rankNextSongs(Long userId, Long graphId, Long currentSongId, Long lastSongId,
+                                              int k, boolean explain) {
+        // 缓存只存 Top-N，要的比 N 多时直接现算
+        if (recommendationCache.isEnabled() && k <= recommendationCache.size()) {
+            recommendationCache.checkOwner(userId, graphId);
+            List<RecommendationCache.Entry> entries = recommendationCache.get(graphId, currentSongId);
+            if (entries == null) {
+                long generation = recommendationCache.generation(graphId);
+                entries = materialize(userId, graphId, currentSongId, recommendationCache.size());
+                recommendationCache.put(graphId, currentSongId, generation, entries);
             }
+            return rankEntries(entries, lastSongId, k, explain);
+        }
+
+        long now = System.currentTimeMillis();
+        if (!adjacencyCache.isEnabled()) {
+            GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                    .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+            return rankNeighbors(fetchNeighbors(graph, currentSongId), lastSongId, now, k, explain);
+        }
+
+        GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+        return rankAdjacency(adjacency, currentSongId, lastSongId, now, k, explain);
+    }
+
+    /**
+     * 【冷启动】图邻居不足 fallback-min-results 首时，用向量近邻 (SongEmbeddingService) 补足到 k 首
+     * 补上的歌排在图邻居之后：分数 = 最后一个图邻居的分数 * 余弦相似度
+     */
+    private List<ScoredSongDTO> withSimilarSongs(Long userId, Long graphId, Long currentSongId, Long lastSongId,
+                                                 List<ScoredSongDTO> ranked, int k, boolean explain) {
+        if (!embeddingService.isEnabled() || ranked.size() >= Math.min(k, similarMinResults)) return ranked;
+
+        Set<Long> seen = new HashSet<>();
+        for (ScoredSongDTO dto : ranked) seen.add(dto.getSong().getId());
+        if (lastSongId != null) seen.add(lastSongId);
+        Map<Long, Song> current = songsById(userId, graphId, List.of(currentSongId));
+        String artist = current.containsKey(currentSongId) ? current.get(currentSongId).getArtist() : null;
 
-            double finalScore = baseScore * dirFactor * freshnessFactor;
+        List<HnswIndex.Hit> hits = embeddingService.similar(userId, graphId, currentSongId, artist,
+                k - ranked.size(), seen::contains);
+        if (hits.isEmpty()) return ranked;
+
+        Map<Long, Song> songs = songsById(userId, graphId, hits.stream().map(HnswIndex.Hit::id).toList());
+        double ceiling = ranked.isEmpty() ? 1.0 : ranked.get(ranked.size() - 1).getScore();
+        List<ScoredSongDTO> result = new ArrayList<>(ranked);
+        for (HnswIndex.Hit hit : hits) {
+            Song song = songs.get(hit.id());
+            if (song == null) continue; // 建索引之后被删掉的歌
             ScoredSongDTO dto = new ScoredSongDTO();
-            dto.setSong(candidateNode);
-            dto.setScore(finalScore);
-            dto.setReason(String.format("Base:%.1f * Dir:%.1f * Fresh:%.2f", baseScore, dirFactor, freshnessFactor));
-            candidates.add(dto);
+            dto.setSong(song);
+            dto.setScore(ceiling * Math.max(0, hit.similarity()));
+            if (explain) dto.setReason(String.format("Similar:%.2f", hit.similarity()));
+            result.add(dto);
+        }
+        return result;
+    }
+
+    /**
+     * 按 id 取歌曲 (只含本图谱的)：优先读内存邻接表，关闭时查库
+     */
+    private Map<Long, Song> songsById(Long userId, Long graphId, List<Long> ids) {
+        Map<Long, Song> result = new HashMap<>();
+        if (adjacencyCache.isEnabled()) {
+            GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+            adjacency.read(() -> {
+                for (Long id : ids) {
+                    int node = adjacency.indexOf(id);
+                    if (node >= 0) result.put(id, adjacency.toSong(node));
+                }
+                return null;
+            });
+            return result;
+        }
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        String cypher = String.format("MATCH (n:`%s`) WHERE id(n) IN $ids RETURN n", graph.getNodeLabel());
+        neo4jClient.query(cypher).bind(ids).to("ids")
+                .fetchAs(Song.class)
+                .mappedBy((typeSystem, record) -> songOf(record.get("n").asNode()))
+                .all()
+                .forEach(s -> result.put(s.getId(), s));
+        return result;
+    }
+
+    /**
+     * 【批量推荐】一次为多首种子歌曲出推荐，用于 "接下来播放" / "相关歌曲" 等一屏多首的面板
+     * 归属校验只做一次；邻居用一条 UNWIND 查询取回 (或直接读内存邻接表)，各种子并行打分
+     *
+     * @param lastSongId 上一首，对所有种子统一做回头路降权
+     * @return 种子 id -> 排好序的推荐列表，顺序与请求一致 (重复的种子只算一次)
+     */
+    public Map<Long, List<ScoredSongDTO>> recommendBatch(Long userId, Long graphId, List<Long> currentSongIds,
+                                                         Long lastSongId, Integer limit, boolean explain) {
+        int k = limit == null ? defaultRecommendLimit : limit;
+        if (k <= 0) throw new IllegalArgumentException("limit must be positive");
+        if (currentSongIds == null || currentSongIds.isEmpty()) {
+            throw new IllegalArgumentException("currentIds must not be empty");
+        }
+        if (currentSongIds.size() > maxBatchSeeds) {
+            throw new IllegalArgumentException("Too many currentIds, at most " + maxBatchSeeds);
+        }
+        List<Long> seeds = new ArrayList<>(new LinkedHashSet<>(currentSongIds));
+        long now = System.currentTimeMillis();
+        List<List<ScoredSongDTO>> ranked;
+
+        if (recommendationCache.isEnabled() && k <= recommendationCache.size()) {
+            recommendationCache.checkOwner(userId, graphId);
+            List<List<RecommendationCache.Entry>> entries = new ArrayList<>(
+                    seeds.parallelStream().map(seed -> recommendationCache.get(graphId, seed)).toList());
+
+            List<Long> missing = new ArrayList<>();
+            for (int i = 0; i < seeds.size(); i++) {
+                if (entries.get(i) == null) missing.add(seeds.get(i));
+            }
+            if (!missing.isEmpty()) {
+                long generation = recommendationCache.generation(graphId);
+                Map<Long, List<RecommendationCache.Entry>> computed =
+                        materializeBatch(userId, graphId, missing, recommendationCache.size());
+                for (int i = 0; i < seeds.size(); i++) {
+                    if (entries.get(i) != null) continue;
+                    List<RecommendationCache.Entry> e = computed.get(seeds.get(i));
+                    recommendationCache.put(graphId, seeds.get(i), generation, e);
+                    entries.set(i, e);
+                }
+            }
+            ranked = entries.parallelStream().map(e -> rankEntries(e, lastSongId, k, explain)).toList();
+        } else if (!adjacencyCache.isEnabled()) {
+            GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                    .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+            Map<Long, List<NeighborItemDTO>> neighbors = fetchNeighborsBatch(graph.getNodeLabel(), seeds);
+            ranked = seeds.parallelStream()
+                    .map(seed -> rankNeighbors(neighbors.get(seed), lastSongId, now, k, explain))
+                    .toList();
+        } else {
+            GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+            ranked = seeds.parallelStream()
+                    .map(seed -> rankAdjacency(adjacency, seed, lastSongId, now, k, explain))
+                    .toList();
+        }
+
+        Map<Long, List<ScoredSongDTO>> result = new LinkedHashMap<>();
+        for (int i = 0; i < seeds.size(); i++) {
+            result.put(seeds.get(i), ranked.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * 【连续歌单】一次请求生成从 startSongId 出发的 N 首连续播放路径
+     * 在推荐打分上做 beam search (见 {@link PlaylistBeamSearch})；开启内存邻接表时直接在其上搜索，
+     * 否则先按 BFS 预取起点周围 k 跳的子图 (每跳一条 UNWIND 查询)，之后整个搜索不再访问数据库
+     *
+     * @param previousId 起始歌曲之前刚播放的那首，不会出现在歌单里
+     * @param length     歌单长度，为 null 时取 songmap.playlist.default-length
+     * @param beamWidth  保留的候选路径数，为 null 时取 songmap.playlist.beam-width
+     */
+    public PlaylistDTO generatePlaylist(Long userId, Long graphId, Long startSongId, Long previousId,
+                                        Integer length, Integer beamWidth, boolean explain) {
+        int n = length == null ? defaultPlaylistLength : length;
+        if (n <= 0 || n > maxPlaylistLength) {
+            throw new IllegalArgumentException("length must be between 1 and " + maxPlaylistLength);
+        }
+        int width = beamWidth == null ? defaultBeamWidth : beamWidth;
+        if (width <= 0 || width > maxBeamWidth) {
+            throw new IllegalArgumentException("beamWidth must be between 1 and " + maxBeamWidth);
         }
-        Collections.sort(candidates);
+        long now = System.currentTimeMillis();
+        long stepMillis = playlistStepMinutes * 60_000;
+        long deadline = System.nanoTime() + playlistTimeBudgetMs * 1_000_000;
+
+        if (adjacencyCache.isEnabled()) {
+            GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+            return adjacency.read(() -> {
+                PlaylistBeamSearch.Result r = PlaylistBeamSearch.search(
+                        (songId, visitor) -> adjacency.forEachNeighbor(songId,
+                                (node, edge, outgoing, jump, userSelect, randomSelect) -> visitor.visit(adjacency.nodeId(node),
+                                        !outgoing,
+                                        SongScorer.baseScore(userSelect, jump, randomSelect,
+                                                adjacency.userSelectCount(node), adjacency.randomSelectCount(node)),
+                                        adjacency.listenedAt(node))),
+                        startSongId, previousId, n, width, now, stepMillis, deadline);
+                return toPlaylist(startSongId, r, id -> adjacency.toSong(adjacency.indexOf(id)), explain);
+            });
+        }
+
+        GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+        Map<Long, List<NeighborItemDTO>> subgraph = fetchNeighborhood(graph, startSongId);
+        Map<Long, Song> songs = new HashMap<>();
+        subgraph.values().forEach(items -> items.forEach(item -> songs.put(item.getNode().getId(), item.getNode())));
+
+        PlaylistBeamSearch.Result r = PlaylistBeamSearch.search((songId, visitor) -> {
+            for (NeighborItemDTO item : subgraph.getOrDefault(songId, List.of())) {
+                Song node = item.getNode();
+                Map<String, Object> edge = item.getEdge();
+                visitor.visit(node.getId(), "IN".equals(item.getDirection()),
+                        SongScorer.baseScore(getInt(edge, "userSelectCount"), getInt(edge, "jumpCount"),
+                                getInt(edge, "randomSelectCount"),
+                                orZero(node.getUserSelectCount()), orZero(node.getRandomSelectCount())),
+                        node.getListenedAt() == null ? SongScorer.NO_TIME
+                                : node.getListenedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            }
+        }, startSongId, previousId, n, width, now, stepMillis, deadline);
+        return toPlaylist(startSongId, r, songs::get, explain);
+    }
+
+    private PlaylistDTO toPlaylist(Long startSongId, PlaylistBeamSearch.Result r,
+                                   java.util.function.LongFunction<Song> songs, boolean explain) {
+        List<ScoredSongDTO> result = new ArrayList<>(r.steps().size());
+        for (PlaylistBeamSearch.Step step : r.steps()) {
+            ScoredSongDTO dto = new ScoredSongDTO();
+            dto.setSong(songs.apply(step.songId()));
+            dto.setScore(step.score());
+            if (explain) dto.setReason(step.reason());
+            result.add(dto);
+        }
+        PlaylistDTO playlist = new PlaylistDTO();
+        playlist.setStartId(startSongId);
+        playlist.setSongs(result);
+        playlist.setTotalScore(r.totalScore());
+        playlist.setComplete(r.complete());
+        playlist.setBudgetExceeded(r.budgetExceeded());
+        return playlist;
+    }
+
+    /**
+     * 从起点按 BFS 预取 prefetch-hops 跳以内的邻居表 (每个方向同样只取权重最大的 K 条)，最多 prefetch-max-nodes 个点
+     * 最外一圈的点没有邻居表，搜索走到那里即为死胡同
+     */
+    private Map<Long, List<NeighborItemDTO>> fetchNeighborhood(GraphInfo graph, Long startSongId) {
+        Map<Long, List<NeighborItemDTO>> subgraph = new HashMap<>();
+        List<Long> frontier = List.of(startSongId);
+        for (int hop = 0; hop < prefetchHops && !frontier.isEmpty() && subgraph.size() < prefetchMaxNodes; hop++) {
+            List<Long> batch = frontier.subList(0, Math.min(frontier.size(), prefetchMaxNodes - subgraph.size()));
+            subgraph.putAll(fetchNeighborsBatch(graph.getNodeLabel(), batch));
+
+            Set<Long> next = new LinkedHashSet<>();
+            for (Long id : batch) {
+                for (NeighborItemDTO item : subgraph.get(id)) {
+                    Long other = item.getNode().getId();
+                    if (!subgraph.containsKey(other)) next.add(other);
+                }
+            }
+            frontier = new ArrayList<>(next);
+        }
+        return subgraph;
+    }
+
+    private List<ScoredSongDTO> rankNeighbors(List<NeighborItemDTO> neighbors, Long lastSongId, long now,
+                                              int k, boolean explain) {
+        ScoredCandidates candidates = scoreNeighbors(neighbors, lastSongId, now, false);
+        int[] top = candidates.top(k);
+        List<ScoredSongDTO> result = new ArrayList<>(top.length);
+        for (int i : top) {
+            result.add(toScoredSong(neighbors.get(candidates.ref(i)).getNode(), candidates, i, explain));
+        }
+        return result;
+    }
+
+    private List<ScoredSongDTO> rankAdjacency(GraphAdjacency adjacency, Long currentSongId, Long lastSongId,
+                                              long now, int k, boolean explain) {
+        return adjacency.read(() -> {
+            ScoredCandidates candidates = scoreNeighbors(adjacency, currentSongId, lastSongId, now, false);
+            int[] top = candidates.top(k);
+            List<ScoredSongDTO> result = new ArrayList<>(top.length);
+            for (int i : top) {
+                result.add(toScoredSong(adjacency.toSong(candidates.ref(i)), candidates, i, explain));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 算出与时间无关的 Top-N (base * dir，不含新鲜度和回头路降权)，供 Redis 物化
+     * 按亲和度排序时 base 是物化时刻的衰减值；所有候选按同一速率衰减，缓存期内相对顺序不变
+     */
+    private List<RecommendationCache.Entry> materialize(Long userId, Long graphId, Long currentSongId, int n) {
+        if (!adjacencyCache.isEnabled()) {
+            GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                    .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+            return materializeNeighbors(fetchNeighbors(graph, currentSongId), n);
+        }
+        return materializeAdjacency(adjacencyCache.get(userId, graphId), currentSongId, n);
+    }
+
+    /**
+     * 批量版 materialize：未命中的种子一次查库 (或读邻接表)，并行算出各自的 Top-N
+     */
+    private Map<Long, List<RecommendationCache.Entry>> materializeBatch(Long userId, Long graphId,
+                                                                        List<Long> seeds, int n) {
+        List<List<RecommendationCache.Entry>> lists;
+        if (!adjacencyCache.isEnabled()) {
+            GraphInfo graph = graphInfoRepository.findByIdAndUserId(graphId, userId)
+                    .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+            Map<Long, List<NeighborItemDTO>> neighbors = fetchNeighborsBatch(graph.getNodeLabel(), seeds);
+            lists = seeds.parallelStream().map(seed -> materializeNeighbors(neighbors.get(seed), n)).toList();
+        } else {
+            GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+            lists = seeds.parallelStream().map(seed -> materializeAdjacency(adjacency, seed, n)).toList();
+        }
+        Map<Long, List<RecommendationCache.Entry>> result = new HashMap<>();
+        for (int i = 0; i < seeds.size(); i++) {
+            result.put(seeds.get(i), lists.get(i));
+        }
+        return result;
+    }
+
+    private List<RecommendationCache.Entry> materializeNeighbors(List<NeighborItemDTO> neighbors, int n) {
+        ScoredCandidates candidates = scoreNeighbors(neighbors, null, System.currentTimeMillis(), true);
+        List<RecommendationCache.Entry> entries = new ArrayList<>();
+        for (int i : candidates.top(n)) {
+            Song song = neighbors.get(candidates.ref(i)).getNode();
+            entries.add(new RecommendationCache.Entry(song.getId(), candidates.isIncoming(i), candidates.base(i),
+                    song.getName(), song.getArtist(), song.getListenedAt() == null ? SongScorer.NO_TIME
+                    : song.getListenedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                    counts(song)));
+        }
+        return entries;
+    }
+
+    private List<RecommendationCache.Entry> materializeAdjacency(GraphAdjacency adjacency, Long currentSongId, int n) {
+        return adjacency.read(() -> {
+            ScoredCandidates candidates = scoreNeighbors(adjacency, currentSongId, null, System.currentTimeMillis(), true);
+            List<RecommendationCache.Entry> entries = new ArrayList<>();
+            for (int i : candidates.top(n)) {
+                int node = candidates.ref(i);
+                Song song = adjacency.toSong(node);
+                entries.add(new RecommendationCache.Entry(song.getId(), candidates.isIncoming(i), candidates.base(i),
+                        song.getName(), song.getArtist(), adjacency.listenedAt(node), counts(song)));
+            }
+            return entries;
+        });
+    }
+
+    private static int[] counts(Song song) {
+        return new int[]{orZero(song.getListenCount()), orZero(song.getFullPlayCount()), orZero(song.getSkipCount()),
+                orZero(song.getUserSelectCount()), orZero(song.getRandomSelectCount())};
+    }
+
+    /**
+     * 在缓存的 Top-N 上补上读取时才能确定的两项：新鲜度衰减、回头路降权
+     */
+    private List<ScoredSongDTO> rankEntries(List<RecommendationCache.Entry> entries, Long lastSongId, int k, boolean explain) {
+        long now = System.currentTimeMillis();
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        for (int i = 0; i < entries.size(); i++) {
+            RecommendationCache.Entry e = entries.get(i);
+            candidates.add(i, e.base(),
+                    SongScorer.dirFactor(e.incoming(), lastSongId != null && e.songId() == lastSongId),
+                    SongScorer.freshness(e.listenedAt(), now));
+        }
+
+        int[] top = candidates.top(k);
+        List<ScoredSongDTO> result = new ArrayList<>(top.length);
+        for (int i : top) {
+            RecommendationCache.Entry e = entries.get(candidates.ref(i));
+            // 缓存条目带着物化时的点计数，命中和未命中返回的字段一致
+            Song song = new Song();
+            song.setId(e.songId());
+            song.setName(e.name());
+            song.setArtist(e.artist());
+            song.setListenedAt(e.listenedAt() == SongScorer.NO_TIME ? null
+                    : LocalDateTime.ofInstant(Instant.ofEpochMilli(e.listenedAt()), ZoneId.systemDefault()));
+            song.setListenCount(e.counts()[0]);
+            song.setFullPlayCount(e.counts()[1]);
+            song.setSkipCount(e.counts()[2]);
+            song.setUserSelectCount(e.counts()[3]);
+            song.setRandomSelectCount(e.counts()[4]);
+            result.add(toScoredSong(song, candidates, i, explain));
+        }
+        return result;
+    }
+
+    /**
+     * 邻接表打分 (需在 adjacency.read 内调用)
+     * 开启 songmap.recommend.affinity.enabled 时 base 改用衰减到 now 的亲和度，而不是累计计数
+     *
+     * @param timeIndependent true 时不算新鲜度和回头路降权 (物化用)
+     */
+    private ScoredCandidates scoreNeighbors(GraphAdjacency adjacency, Long currentSongId, Long lastSongId,
+                                            long now, boolean timeIndependent) {
+        long lastId = lastSongId == null ? Long.MIN_VALUE : lastSongId;
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        adjacency.forEachNeighbor(currentSongId, (node, edge, outgoing, jump, userSelect, randomSelect) -> candidates.add(node,
+                rankByAffinity
+                        ? SongScorer.affinityBase(adjacency.edgeAffinity(edge, now), adjacency.affinity(node, now))
+                        : SongScorer.baseScore(userSelect, jump, randomSelect,
+                                adjacency.userSelectCount(node), adjacency.randomSelectCount(node)),
+                SongScorer.dirFactor(!outgoing, adjacency.nodeId(node) == lastId),
+                timeIndependent ? 1.0 : SongScorer.freshness(adjacency.listenedAt(node), now)));
         return candidates;
     }
 
-    private double calculateInteraction(int userSelect, int jump, int randomSelect) {
-        return (userSelect * RankWeights.W_USER_SELECT) 
-             + (jump * RankWeights.W_JUMP) 
-             - (randomSelect * RankWeights.W_RANDOM);
+    /**
+     * 取当前歌曲的邻居并叠加未刷盘的计数增量
+     * neighbor-limit > 0 时每个方向只取 r.weight 最大的 K 条，热门歌曲经 HubNeighborIndex 按 id 回表；
+     * 为 0 时退回 findAllNeighbors 取全部邻居
+     */
+    private List<NeighborItemDTO> fetchNeighbors(GraphInfo graph, Long currentSongId) {
+        List<NeighborItemDTO> neighbors = counterAccumulator.read(graph.getId(), () -> {
+            if (neighborLimit <= 0) {
+                return withPendingNeighbors(songRepository.findAllNeighbors(currentSongId), currentSongId);
+            }
+            long[][] members = hubIndex.members(currentSongId);
+            if (members != null) {
+                return withPendingNeighbors(
+                        fetchNeighborsByIds(graph.getNodeLabel(), currentSongId, members), currentSongId);
+            }
+
+            long[] degree = new long[2];
+            List<NeighborItemDTO> items = withPendingNeighbors(
+                    fetchTopNeighbors(graph.getNodeLabel(), currentSongId, degree), currentSongId);
+            if (hubIndex.isHub(degree[0], degree[1])) indexHub(graph.getId(), currentSongId, items);
+            return items;
+        });
+        return neighbors == null ? new ArrayList<>() : neighbors;
+    }
+
+    private List<NeighborItemDTO> withPendingNeighbors(List<NeighborItemDTO> items, Long currentSongId) {
+        if (items != null && counterAccumulator.isEnabled()) {
+            for (NeighborItemDTO item : items) {
+                if (item.getNode() == null) continue;
+                counterAccumulator.applyTo(item.getNode());
+                item.setEdge("IN".equals(item.getDirection())
+                        ? counterAccumulator.applyToEdge(item.getEdge(), item.getNode().getId(), currentSongId)
+                        : counterAccumulator.applyToEdge(item.getEdge(), currentSongId, item.getNode().getId()));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * 每个方向按 r.weight 取最强的 K 条边，顺带取出 / 入度 (degree[0] / degree[1]) 判断是否热门歌曲
+     */
+    @SuppressWarnings("unchecked")
+    private List<NeighborItemDTO> fetchTopNeighbors(String label, Long songId, long[] degree) {
+        String cypher = String.format(
+            "MATCH (current:`%1$s`) WHERE id(current) = $songId " +
+            "CALL { " +
+            "  WITH current " +
+            "  MATCH (current)-[r:NEXT]->(other:`%1$s`) " +
+            "  WITH r, other ORDER BY coalesce(r.weight, 0.0) DESC LIMIT $k " +
+            "  RETURN collect({edge: properties(r), node: other}) AS outs " +
+            "} " +
+            "CALL { " +
+            "  WITH current " +
+            "  MATCH (other:`%1$s`)-[r:NEXT]->(current) " +
+            "  WITH r, other ORDER BY coalesce(r.weight, 0.0) DESC LIMIT $k " +
+            "  RETURN collect({edge: properties(r), node: other}) AS ins " +
+            "} " +
+            "RETURN outs, ins, " +
+            "       COUNT { (current)-[:NEXT]->() } AS outDegree, COUNT { (current)<-[:NEXT]-() } AS inDegree",
+            label
+        );
+        return neo4jClient.query(cypher)
+                .bind(songId).to("songId")
+                .bind(neighborLimit).to("k")
+                .fetchAs(List.class)
+                .mappedBy((typeSystem, record) -> {
+                    degree[0] = record.get("outDegree").asLong();
+                    degree[1] = record.get("inDegree").asLong();
+                    return toNeighborItems(record);
+                })
+                .one()
+                .orElse(new ArrayList<>());
+    }
+
+    /**
+     * 按索引里记下的邻居 id 回表：从邻居一侧做 expand-into，不展开热门歌曲的全部边
+     */
+    @SuppressWarnings("unchecked")
+    private List<NeighborItemDTO> fetchNeighborsByIds(String label, Long songId, long[][] members) {
+        String cypher = String.format(
+            "MATCH (current:`%1$s`) WHERE id(current) = $songId " +
+            "CALL { " +
+            "  WITH current " +
+            "  UNWIND $outIds AS oid " +
+            "  MATCH (other:`%1$s`) WHERE id(other) = oid " +
+            "  MATCH (current)-[r:NEXT]->(other) " +
+            "  RETURN collect({edge: properties(r), node: other}) AS outs " +
+            "} " +
+            "CALL { " +
+            "  WITH current " +
+            "  UNWIND $inIds AS iid " +
+            "  MATCH (other:`%1$s`) WHERE id(other) = iid " +
+            "  MATCH (other)-[r:NEXT]->(current) " +
+            "  RETURN collect({edge: properties(r), node: other}) AS ins " +
+            "} " +
+            "RETURN outs, ins",
+            label
+        );
+        return neo4jClient.query(cypher)
+                .bind(songId).to("songId")
+                .bind(members[0]).to("outIds")
+                .bind(members[1]).to("inIds")
+                .fetchAs(List.class)
+                .mappedBy((typeSystem, record) -> toNeighborItems(record))
+                .one()
+                .orElse(new ArrayList<>());
+    }
+
+    private List<NeighborItemDTO> toNeighborItems(org.neo4j.driver.Record record) {
+        List<NeighborItemDTO> items = new ArrayList<>();
+        addNeighborItems(items, record.get("outs"), "OUT");
+        addNeighborItems(items, record.get("ins"), "IN");
+        return items;
+    }
+
+    private void addNeighborItems(List<NeighborItemDTO> items, org.neo4j.driver.Value rows, String direction) {
+        for (org.neo4j.driver.Value row : rows.values()) {
+            NeighborItemDTO item = new NeighborItemDTO();
+            item.setDirection(direction);
+            item.setEdge(new HashMap<>(row.get("edge").asMap()));
+            item.setNode(songOf(row.get("node").asNode()));
+            items.add(item);
+        }
+    }
+
+    // 把热门歌曲两个方向的 Top-K 邻居和当前边权重记入剪枝索引
+    private void indexHub(Long graphId, Long songId, List<NeighborItemDTO> items) {
+        List<NeighborItemDTO> outs = new ArrayList<>();
+        List<NeighborItemDTO> ins = new ArrayList<>();
+        for (NeighborItemDTO item : items) {
+            ("IN".equals(item.getDirection()) ? ins : outs).add(item);
+        }
+        hubIndex.put(graphId, songId, neighborIds(outs), edgeWeights(outs), neighborIds(ins), edgeWeights(ins));
+    }
+
+    private long[] neighborIds(List<NeighborItemDTO> items) {
+        long[] ids = new long[items.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = items.get(i).getNode().getId();
+        return ids;
+    }
+
+    private double[] edgeWeights(List<NeighborItemDTO> items) {
+        double[] weights = new double[items.size()];
+        for (int i = 0; i < weights.length; i++) {
+            Map<String, Object> edge = items.get(i).getEdge();
+            weights[i] = SongScorer.interaction(getInt(edge, "userSelectCount"), getInt(edge, "jumpCount"),
+                    getInt(edge, "randomSelectCount"));
+        }
+        return weights;
+    }
+
+    // fetchNeighborsBatch 的一行：种子 id + 它的一个邻居
+    private record SeedNeighbor(long seedId, NeighborItemDTO item) {
+    }
+
+    /**
+     * 一条 UNWIND 查询取回多首种子歌曲的邻居 (每个方向按 r.weight 最多取 K 条)，并叠加未刷盘的计数增量
+     * @return 种子 id -> 邻居列表 (没有邻居的种子对应空列表)
+     */
+    private Map<Long, List<NeighborItemDTO>> fetchNeighborsBatch(String label, List<Long> seeds) {
+        String cypher = String.format(
+            "UNWIND $ids AS sid " +
+            "MATCH (current:`%1$s`) WHERE id(current) = sid " +
+            "CALL { " +
+            "  WITH current " +
+            "  MATCH (current)-[r:NEXT]->(other:`%1$s`) " +
+            "  WITH r, other ORDER BY coalesce(r.weight, 0.0) DESC LIMIT $k " +
+            "  RETURN 'OUT' AS direction, r, other " +
+            "  UNION " +
+            "  WITH current " +
+            "  MATCH (other:`%1$s`)-[r:NEXT]->(current) " +
+            "  WITH r, other ORDER BY coalesce(r.weight, 0.0) DESC LIMIT $k " +
+            "  RETURN 'IN' AS direction, r, other " +
+            "} " +
+            "RETURN sid AS seedId, direction, properties(r) AS edge, other AS node",
+            label
+        );
+
+        return counterAccumulator.read(() -> {
+            Map<Long, List<NeighborItemDTO>> result = new HashMap<>();
+            for (Long seed : seeds) result.put(seed, new ArrayList<>());
+
+            Collection<SeedNeighbor> rows = neo4jClient.query(cypher)
+                    .bind(seeds).to("ids")
+                    .bind(neighborLimit > 0 ? neighborLimit : Integer.MAX_VALUE).to("k")
+                    .fetchAs(SeedNeighbor.class)
+                    .mappedBy((typeSystem, record) -> {
+                        NeighborItemDTO item = new NeighborItemDTO();
+                        item.setDirection(record.get("direction").asString());
+                        item.setEdge(new HashMap<>(record.get("edge").asMap()));
+                        item.setNode(songOf(record.get("node").asNode()));
+                        return new SeedNeighbor(record.get("seedId").asLong(), item);
+                    })
+                    .all();
+            for (SeedNeighbor row : rows) {
+                result.get(row.seedId()).add(row.item());
+            }
+
+            result.forEach((seed, items) -> withPendingNeighbors(items, seed));
+            return result;
+        });
+    }
+
+    private Song songOf(org.neo4j.driver.types.Node node) {
+        Song s = new Song();
+        s.setId(node.id());
+        s.setName(node.get("name").isNull() ? null : node.get("name").asString());
+        s.setArtist(node.get("artist").isNull() ? null : node.get("artist").asString());
+        s.setListenedAt(node.get("listenedAt").isNull() ? null : node.get("listenedAt").asLocalDateTime());
+        s.setListenCount(intOrZero(node.get("listenCount")));
+        s.setFullPlayCount(intOrZero(node.get("fullPlayCount")));
+        s.setSkipCount(intOrZero(node.get("skipCount")));
+        s.setUserSelectCount(intOrZero(node.get("userSelectCount")));
+        s.setRandomSelectCount(intOrZero(node.get("randomSelectCount")));
+        s.setOutJumpTotal(intOrZero(node.get("outJumpTotal")));
+        s.setAffinity(node.get("affinity").isNull() ? 0.0 : node.get("affinity").asNumber().doubleValue());
+        s.setAffinityAt(node.get("affinityAt").isNull() ? null : node.get("affinityAt").asNumber().longValue());
+        return s;
+    }
+
+    private int intOrZero(org.neo4j.driver.Value v) {
+        return v.isNull() ? 0 : v.asNumber().intValue();
+    }
+
+    private ScoredCandidates scoreNeighbors(List<NeighborItemDTO> neighbors, Long lastSongId,
+                                            long now, boolean timeIndependent) {
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        for (int i = 0; i < neighbors.size(); i++) {
+            NeighborItemDTO item = neighbors.get(i);
+            Song candidateNode = item.getNode();
+            if (candidateNode == null) continue;
+            Map<String, Object> edgeProps = item.getEdge();
+
+            candidates.add(i,
+                    rankByAffinity
+                            ? SongScorer.affinityBase(decayedAffinity(edgeProps, now),
+                                    SongScorer.decay(candidateNode.getAffinity() == null ? 0 : candidateNode.getAffinity(),
+                                            candidateNode.getAffinityAt() == null ? SongScorer.NO_TIME
+                                                    : candidateNode.getAffinityAt(), now))
+                            : SongScorer.baseScore(getInt(edgeProps, "userSelectCount"), getInt(edgeProps, "jumpCount"),
+                                    getInt(edgeProps, "randomSelectCount"),
+                                    orZero(candidateNode.getUserSelectCount()), orZero(candidateNode.getRandomSelectCount())),
+                    SongScorer.dirFactor("IN".equals(item.getDirection()), candidateNode.getId().equals(lastSongId)),
+                    timeIndependent || candidateNode.getListenedAt() == null ? 1.0
+                            : SongScorer.freshness(candidateNode.getListenedAt().atZone(ZoneId.systemDefault())
+                                    .toInstant().toEpochMilli(), now));
+        }
+        return candidates;
+    }
+
+    private double decayedAffinity(Map<String, Object> edgeProps, long now) {
+        if (edgeProps == null || !(edgeProps.get("affinity") instanceof Number value)) return 0;
+        Object at = edgeProps.get("affinityAt");
+        return SongScorer.decay(value.doubleValue(), at instanceof Number n ? n.longValue() : SongScorer.NO_TIME, now);
+    }
+
+    private ScoredSongDTO toScoredSong(Song song, ScoredCandidates candidates, int i, boolean explain) {
+        ScoredSongDTO dto = new ScoredSongDTO();
+        dto.setSong(song);
+        dto.setScore(candidates.score(i));
+        if (explain) dto.setReason(candidates.reason(i));
+        return dto;
+    }
+
+    private static int orZero(Integer value) {
+        return value == null ? 0 : value;
     }
 
     private int getInt(Map<String, Object> map, String key) {
@@ -1,5 +1,6 @@
 package com.songmap.songmap.service;
 
+import com.songmap.songmap.entity.Song;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
@@ -7,6 +8,7 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -44,6 +46,39 @@ public class MusicHistoryService {
         redisTemplate.execute(REDIS_SCRIPT, Collections.singletonList(key), entry, limitStr);
     }
 
+    // 批量版本：按顺序追加多条记录，只走一次 Redis
+    private static final String LUA_SCRIPT_LRU_BATCH =
+            "local limit = tonumber(ARGV[1]); " +
+            "for i = 2, #ARGV do " +
+            "  redis.call('LREM', KEYS[1], 0, ARGV[i]); " +
+            "  redis.call('LPUSH', KEYS[1], ARGV[i]); " +
+            "end; " +
+            "redis.call('LTRIM', KEYS[1], 0, limit); " +
+            "return 1;";
+
+    private static final DefaultRedisScript<Long> REDIS_SCRIPT_BATCH =
+            new DefaultRedisScript<>(LUA_SCRIPT_LRU_BATCH, Long.class);
+
+    public void updateHistoryBatch(Long graphId, List<Song> songs, int limit) {
+        if (songs == null || songs.isEmpty()) return;
+        String key = getHistoryKey(graphId);
+
+        // 只有最近的 limit 首不同歌曲会留在列表里：从后往前去重，超大批次也只推 limit 条
+        LinkedHashSet<String> recent = new LinkedHashSet<>();
+        for (int i = songs.size() - 1; i >= 0 && recent.size() < limit; i--) {
+            Song song = songs.get(i);
+            if (song.getId() == null) continue;
+            recent.add(song.getId() + SEPARATOR + song.getName());
+        }
+        List<String> args = new ArrayList<>(recent.size() + 1);
+        args.add(String.valueOf(limit - 1));
+        List<String> ordered = new ArrayList<>(recent);
+        Collections.reverse(ordered); // 旧的先推，最新的最后 LPUSH 到表头
+        args.addAll(ordered);
+
+        redisTemplate.execute(REDIS_SCRIPT_BATCH, Collections.singletonList(key), args.toArray());
+    }
+
     public Long getLastListenedSongId(Long graphId) {
         String key = getHistoryKey(graphId);
         String entry = redisTemplate.opsForList().index(key, 0);
@@ -0,0 +1,328 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ScoredSongDTO;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多跳推荐：个性化 PageRank / 带重启的随机游走 (RWR)
+ * <p>
+ * 从当前歌曲和最近几首历史出发随机游走，每一步以 alpha 的概率回到起点。
+ * 转移权重沿用一跳打分：正向 u->v 为 base(边, v) * DIR_FORWARD，反向走边为 base * DIR_BACKWARD，
+ * 所以两三跳之外的歌也能浮上来，没有出边的死胡同会把概率质量还给起点，而不是返回空列表。
+ * </p>
+ * <p>
+ * 在内存邻接表的快照 (按目标点聚合的转移 CSR) 上做幂迭代，每轮按节点区间用 fork-join 并行拉取，
+ * 收敛或超出时间预算即停止。最终分数 = 访问概率 * 回头路降权 * 新鲜度。
+ * </p>
+ */
+@Slf4j
+@Service
+public class PersonalizedPageRankService {
+
+    private static final int TASK_THRESHOLD = 4096;
+
+    private final GraphAdjacencyCache adjacencyCache;
+
+    @Value("${songmap.recommend.ppr.alpha:0.15}")
+    private double alpha;
+
+    @Value("${songmap.recommend.ppr.max-iterations:30}")
+    private int maxIterations;
+
+    @Value("${songmap.recommend.ppr.tolerance:1e-6}")
+    private double tolerance;
+
+    @Value("${songmap.recommend.ppr.time-budget-ms:50}")
+    private long timeBudgetMs;
+
+    @Value("${songmap.recommend.ppr.parallelism:0}")
+    private int parallelism;
+
+    @Value("${songmap.recommend.ppr.snapshot-max-age-ms:30000}")
+    private long snapshotMaxAgeMs;
+
+    @Value("${songmap.recommend.ppr.max-snapshots:8}")
+    private int maxSnapshots;
+
+    private ForkJoinPool pool;
+
+    // graphId -> 转移快照，LRU
+    private final LinkedHashMap<Long, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder budgetExceeded = new LongAdder();
+    private final LongAdder iterations = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+
+    /**
+     * 转移矩阵快照：into[v] 区间内是所有能一步走到 v 的 (来源点, 转移概率)
+     */
+    private record Snapshot(GraphAdjacency source, long version, long builtAt, int n,
+                            int[] offsets, int[] from, float[] prob, boolean[] dangling) {
+    }
+
+    public PersonalizedPageRankService(GraphAdjacencyCache adjacencyCache) {
+        this.adjacencyCache = adjacencyCache;
+    }
+
+    @PostConstruct
+    public void start() {
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @param seedIds 起点：当前歌曲在前，之后是最近的历史 (越近权重越大)
+     */
+    public List<ScoredSongDTO> recommend(Long userId, Long graphId, List<Long> seedIds, Long lastSongId,
+                                         int k, boolean explain) {
+        if (!adjacencyCache.isEnabled()) {
+            throw new IllegalArgumentException("mode=ppr requires songmap.adjacency.enabled=true");
+        }
+        GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+        long start = System.nanoTime();
+        long deadline = start + timeBudgetMs * 1_000_000;
+
+        Snapshot snap = snapshot(graphId, adjacency, seedIds);
+        int n = snap.n();
+
+        // 1. 重启向量：当前歌曲权重 1，历史依次减半
+        double[] restart = new double[n];
+        int[] seedNodes = adjacency.read(() -> seedIds.stream()
+                .mapToInt(id -> id == null ? -1 : adjacency.indexOf(id)).toArray());
+        double weight = 1.0, total = 0;
+        for (int node : seedNodes) {
+            if (node >= 0 && node < n) {
+                restart[node] += weight;
+                total += weight;
+            }
+            weight *= 0.5;
+        }
+        if (total == 0) return new ArrayList<>();
+        for (int i = 0; i < n; i++) restart[i] /= total;
+
+        // 2. 幂迭代
+        double[] rank = restart.clone();
+        double[] next = new double[n];
+        int iter = 0;
+        boolean outOfTime = false;
+        while (iter < maxIterations) {
+            double danglingMass = 0;
+            for (int u = 0; u < n; u++) {
+                if (snap.dangling()[u]) danglingMass += rank[u];
+            }
+            DoubleAdder delta = new DoubleAdder();
+            pool.invoke(new PullTask(snap, rank, next, restart, danglingMass, alpha, delta, 0, n));
+            double[] t = rank;
+            rank = next;
+            next = t;
+            iter++;
+            if (delta.sum() < tolerance) break;
+            if (System.nanoTime() > deadline) {
+                outOfTime = true;
+                break;
+            }
+        }
+
+        runs.increment();
+        iterations.add(iter);
+        runNanos.add(System.nanoTime() - start);
+        if (outOfTime) budgetExceeded.increment();
+
+        // 3. 合并方向 / 新鲜度系数，取 Top-K (不推荐当前歌曲自己)
+        long now = System.currentTimeMillis();
+        long lastId = lastSongId == null ? Long.MIN_VALUE : lastSongId;
+        double[] scores = rank;
+        int excluded = seedNodes[0];
+        return adjacency.read(() -> {
+            ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+            for (int v = 0; v < n; v++) {
+                if (v == excluded || scores[v] <= 0) continue;
+                candidates.add(v, scores[v] * 100,
+                        adjacency.nodeId(v) == lastId ? RankWeights.DIR_REPEAT : RankWeights.DIR_FORWARD,
+                        SongScorer.freshness(adjacency.listenedAt(v), now));
+            }
+            int[] top = candidates.top(k);
+            List<ScoredSongDTO> result = new ArrayList<>(top.length);
+            for (int i : top) {
+                ScoredSongDTO dto = new ScoredSongDTO();
+                dto.setSong(adjacency.toSong(candidates.ref(i)));
+                dto.setScore(candidates.score(i));
+                if (explain) dto.setReason("PPR " + candidates.reason(i));
+                result.add(dto);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 一轮拉取：next[v] = alpha * s[v] + (1 - alpha) * (Σ rank[u] * P(u, v) + dangling * s[v])
+     */
+    private static final class PullTask extends RecursiveAction {
+        private final Snapshot snap;
+        private final double[] rank, next, restart;
+        private final double danglingMass, alpha;
+        private final DoubleAdder delta;
+        private final int lo, hi;
+
+        PullTask(Snapshot snap, double[] rank, double[] next, double[] restart, double danglingMass,
+                 double alpha, DoubleAdder delta, int lo, int hi) {
+            this.snap = snap;
+            this.rank = rank;
+            this.next = next;
+            this.restart = restart;
+            this.danglingMass = danglingMass;
+            this.alpha = alpha;
+            this.delta = delta;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > TASK_THRESHOLD) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new PullTask(snap, rank, next, restart, danglingMass, alpha, delta, lo, mid),
+                          new PullTask(snap, rank, next, restart, danglingMass, alpha, delta, mid, hi));
+                return;
+            }
+            int[] offsets = snap.offsets();
+            int[] from = snap.from();
+            float[] prob = snap.prob();
+            double localDelta = 0;
+            for (int v = lo; v < hi; v++) {
+                double sum = 0;
+                for (int k = offsets[v], end = offsets[v + 1]; k < end; k++) {
+                    sum += rank[from[k]] * prob[k];
+                }
+                double value = alpha * restart[v] + (1 - alpha) * (sum + danglingMass * restart[v]);
+                localDelta += Math.abs(value - rank[v]);
+                next[v] = value;
+            }
+            delta.add(localDelta);
+        }
+    }
+
+    // ================= 快照 =================
+
+    private Snapshot snapshot(Long graphId, GraphAdjacency adjacency, List<Long> seedIds) {
+        synchronized (snapshots) {
+            Snapshot snap = snapshots.get(graphId);
+            if (snap != null && snap.source() == adjacency && !stale(snap, adjacency, seedIds)) return snap;
+        }
+        Snapshot snap = adjacency.read(() -> build(adjacency));
+        synchronized (snapshots) {
+            snapshots.put(graphId, snap);
+            while (snapshots.size() > maxSnapshots) {
+                snapshots.remove(snapshots.keySet().iterator().next());
+            }
+        }
+        return snap;
+    }
+
+    // 有新的听歌且快照已超过最大年龄，或者起点歌曲是快照之后才出现的，就重建
+    private boolean stale(Snapshot snap, GraphAdjacency adjacency, List<Long> seedIds) {
+        return adjacency.read(() -> {
+            if (snap.version() != adjacency.version()
+                    && System.currentTimeMillis() - snap.builtAt() > snapshotMaxAgeMs) return true;
+            for (Long id : seedIds) {
+                if (id != null && adjacency.indexOf(id) >= snap.n()) return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * 把 NEXT 边展开成双向转移并按目标点聚合 (需在 adjacency.read 内调用)
+     */
+    private Snapshot build(GraphAdjacency adjacency) {
+        int n = adjacency.nodeCount();
+        int m = adjacency.edgeCount();
+        int[] offsets = new int[n + 1];
+        double[] outWeight = new double[n];
+
+        // 1. 每条边贡献两个转移：from -> to (正向)，to -> from (反向)
+        adjacency.forEachEdge((from, to, jump, userSelect, randomSelect) -> {
+            if (from == to) return;
+            offsets[to + 1]++;
+            offsets[from + 1]++;
+            outWeight[from] += forwardWeight(adjacency, to, jump, userSelect, randomSelect);
+            outWeight[to] += backwardWeight(adjacency, from, jump, userSelect, randomSelect);
+        });
+        for (int i = 0; i < n; i++) offsets[i + 1] += offsets[i];
+
+        // 2. 填入来源点和归一化后的转移概率
+        int[] cursor = offsets.clone();
+        int[] sources = new int[offsets[n]];
+        float[] prob = new float[offsets[n]];
+        adjacency.forEachEdge((from, to, jump, userSelect, randomSelect) -> {
+            if (from == to) return;
+            int k = cursor[to]++;
+            sources[k] = from;
+            prob[k] = (float) (forwardWeight(adjacency, to, jump, userSelect, randomSelect) / outWeight[from]);
+            k = cursor[from]++;
+            sources[k] = to;
+            prob[k] = (float) (backwardWeight(adjacency, from, jump, userSelect, randomSelect) / outWeight[to]);
+        });
+
+        boolean[] dangling = new boolean[n];
+        for (int i = 0; i < n; i++) dangling[i] = outWeight[i] == 0;
+
+        log.debug("Built PPR snapshot for graph {}: {} nodes, {} edges", adjacency.graphId, n, m);
+        return new Snapshot(adjacency, adjacency.version(), System.currentTimeMillis(), n,
+                offsets, sources, prob, dangling);
+    }
+
+    private static double forwardWeight(GraphAdjacency adj, int to, int jump, int userSelect, int randomSelect) {
+        return SongScorer.baseScore(userSelect, jump, randomSelect,
+                adj.userSelectCount(to), adj.randomSelectCount(to)) * RankWeights.DIR_FORWARD;
+    }
+
+    private static double backwardWeight(GraphAdjacency adj, int to, int jump, int userSelect, int randomSelect) {
+        return SongScorer.baseScore(userSelect, jump, randomSelect,
+                adj.userSelectCount(to), adj.randomSelectCount(to)) * RankWeights.DIR_BACKWARD;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        synchronized (snapshots) {
+            if (event.graphId() == null) snapshots.clear();
+            else snapshots.remove(event.graphId());
+        }
+    }
+
+    /**
+     * 运行指标：运行次数、平均迭代轮数 / 耗时、超出时间预算的次数
+     */
+    public Map<String, Object> snapshot() {
+        long count = runs.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("runs", count);
+        result.put("avgIterations", count == 0 ? 0.0 : (double) iterations.sum() / count);
+        result.put("avgMs", count == 0 ? 0.0 : runNanos.sum() / 1e6 / count);
+        result.put("budgetExceeded", budgetExceeded.sum());
+        synchronized (snapshots) {
+            result.put("cachedSnapshots", snapshots.size());
+        }
+        return result;
+    }
+}
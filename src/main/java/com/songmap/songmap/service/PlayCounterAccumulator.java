@@ -0,0 +1,465 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.entity.Song;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 点 / 边播放计数的内存累加层
+ * <p>
+ * 开启后，听歌接口不再对热点节点和边逐次执行 coalesce(...)+1，
+ * 而是把增量累加到按 (graph, nodeId) / (graph, fromId, toId) 分片的 LongAdder 上，
+ * 由定时任务把增量批量刷回 Neo4j。
+ * </p>
+ * <p>
+ * 刷盘不持有全局锁：每个图谱在自己的 map 槽位里 (partitions.compute) 把当前增量整体换成新的空表，
+ * 换下来的一批作为 "在途" 增量写库，提交后才丢弃，失败则并回当前增量。读路径同时叠加当前和在途增量，
+ * 不加锁；换表 / 丢弃前后各推进一次图谱的序号，{@link #read} 发现读的过程中序号变了就重读，
+ * 保证读到的 "数据库值 + 未刷增量" 恰好不重不漏。同一图谱的累加与换表在同一个槽位里互斥，只在内存里进行。
+ * 增量在听歌事务提交之后才记录：提交前刷盘匹配不到还不可见的新节点，回滚也不会留下多余的计数。
+ * </p>
+ */
+@Slf4j
+@Service
+public class PlayCounterAccumulator {
+
+    private final Driver driver;
+    private final GraphChangeLog changeLog;
+
+    @Value("${songmap.counters.buffered.enabled:false}")
+    private boolean enabled;
+
+    // 读的过程中遇到刷盘换表时最多读几次，最后一次的结果无论如何都返回
+    private static final int MAX_READ_ATTEMPTS = 3;
+    // 读之前图谱正处于写库窗口时最多等多久
+    private static final long MAX_READ_WAIT_NANOS = 50_000_000L;
+
+    // graphId -> 该图谱的未刷增量
+    private final Map<Long, GraphPartition> partitions = new ConcurrentHashMap<>();
+    // 所有图谱共用的换表序号 (刷盘串行，窗口不重叠)，不知道图谱的读 (按歌曲 id 查询) 用它
+    private final AtomicLong flushSeq = new AtomicLong();
+    // 只让刷盘彼此互斥 (定时任务与关闭时的最后一次刷盘)，累加和读都不碰它
+    private final ReentrantLock flushMutex = new ReentrantLock();
+    private final LongAdder readRetries = new LongAdder();
+
+    private record EdgeKey(long fromId, long toId) {
+    }
+
+    private static class NodeDelta {
+        final LongAdder listen = new LongAdder();
+        final LongAdder fullPlay = new LongAdder();
+        final LongAdder skip = new LongAdder();
+        final LongAdder userSelect = new LongAdder();
+        final LongAdder randomSelect = new LongAdder();
+        final AtomicLong listenedAt = new AtomicLong(); // epoch millis，取最大值
+        // 以该点为起点的未刷边 jump 之和，刷边时同步扣减，不单独写库 (边刷盘时已累加 outJumpTotal)
+        final LongAdder outJump = new LongAdder();
+
+        void add(NodeDelta other) {
+            listen.add(other.listen.sum());
+            fullPlay.add(other.fullPlay.sum());
+            skip.add(other.skip.sum());
+            userSelect.add(other.userSelect.sum());
+            randomSelect.add(other.randomSelect.sum());
+            outJump.add(other.outJump.sum());
+            listenedAt.accumulateAndGet(other.listenedAt.get(), Math::max);
+        }
+    }
+
+    private static class EdgeDelta {
+        final LongAdder jump = new LongAdder();
+        final LongAdder userSelect = new LongAdder();
+        final LongAdder randomSelect = new LongAdder();
+        final AtomicLong listenedAt = new AtomicLong(); // epoch millis，取最大值
+
+        void add(EdgeDelta other) {
+            jump.add(other.jump.sum());
+            userSelect.add(other.userSelect.sum());
+            randomSelect.add(other.randomSelect.sum());
+            listenedAt.accumulateAndGet(other.listenedAt.get(), Math::max);
+        }
+    }
+
+    /**
+     * 一批增量 (当前或在途)
+     */
+    private record Batch(Map<Long, NodeDelta> nodes, Map<EdgeKey, EdgeDelta> edges) {
+        Batch() {
+            this(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        }
+
+        boolean isEmpty() {
+            return nodes.isEmpty() && edges.isEmpty();
+        }
+    }
+
+    /**
+     * 以下字段只在 partitions 的该图谱槽位内 (compute / computeIfPresent) 修改
+     */
+    private static class GraphPartition {
+        final String label;
+        volatile Batch current = new Batch();
+        // 正在写库的一批，没有时为 null
+        volatile Batch inFlight;
+        // 换表 / 丢弃在途时各加一：奇数表示处于写库窗口
+        volatile long seq;
+
+        GraphPartition(String label) {
+            this.label = label;
+        }
+    }
+
+    public PlayCounterAccumulator(Driver driver, GraphChangeLog changeLog) {
+        this.driver = driver;
+        this.changeLog = changeLog;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次听歌的计数增量 (处于事务中时推迟到提交之后，回滚则不记)
+     *
+     * @param prevId 连线的上一首 id，没有连线时为 null
+     */
+    public void recordListen(Long graphId, String label, Long nodeId, Long prevId,
+                             boolean isRandom, boolean isFullPlay, boolean isSkip) {
+        // 在图谱槽位内累加，与该图谱的换表互斥，不会写进已经换下去的表
+        TransactionHooks.afterCommit(() -> partitions.compute(graphId, (k, p) -> {
+            GraphPartition target = p == null ? new GraphPartition(label) : p;
+            accumulate(target.current, nodeId, prevId, isRandom, isFullPlay, isSkip);
+            return target;
+        }));
+    }
+
+    private static void accumulate(Batch p, Long nodeId, Long prevId,
+                                   boolean isRandom, boolean isFullPlay, boolean isSkip) {
+        NodeDelta n = p.nodes.computeIfAbsent(nodeId, k -> new NodeDelta());
+        n.listen.increment();
+        if (isFullPlay) n.fullPlay.increment();
+        if (isSkip) n.skip.increment();
+        if (isRandom) n.randomSelect.increment();
+        else n.userSelect.increment();
+        n.listenedAt.accumulateAndGet(System.currentTimeMillis(), Math::max);
+
+        if (prevId != null) {
+            EdgeDelta e = p.edges.computeIfAbsent(new EdgeKey(prevId, nodeId), k -> new EdgeDelta());
+            e.jump.increment();
+            if (isRandom) e.randomSelect.increment();
+            else e.userSelect.increment();
+            e.listenedAt.accumulateAndGet(System.currentTimeMillis(), Math::max);
+            p.nodes.computeIfAbsent(prevId, k -> new NodeDelta()).outJump.increment();
+        }
+    }
+
+    /**
+     * 执行一次 "读库 + 叠加增量"，读的过程中有图谱换表或写库提交时重读，避免重复或遗漏计数
+     * 不知道涉及哪个图谱时用这个版本 (任一图谱刷盘都会触发重读)
+     */
+    public <T> T read(Supplier<T> reader) {
+        if (!enabled) return reader.get();
+        return readConsistent(flushSeq::get, reader);
+    }
+
+    /**
+     * 同上，只关心指定图谱的刷盘
+     */
+    public <T> T read(Long graphId, Supplier<T> reader) {
+        if (!enabled) return reader.get();
+        return readConsistent(() -> {
+            GraphPartition p = partitions.get(graphId);
+            return p == null ? 0 : p.seq;
+        }, reader);
+    }
+
+    private <T> T readConsistent(LongSupplier stamp, Supplier<T> reader) {
+        for (int attempt = 1; ; attempt++) {
+            long before = stamp.getAsLong();
+            // 正在写库：等它提交并丢弃在途增量，否则这次读大概率作废
+            long deadline = System.nanoTime() + MAX_READ_WAIT_NANOS;
+            while ((before & 1) == 1 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(100_000);
+                before = stamp.getAsLong();
+            }
+            T result = reader.get();
+            if (((before & 1) == 0 && stamp.getAsLong() == before) || attempt == MAX_READ_ATTEMPTS) {
+                return result;
+            }
+            readRetries.increment();
+        }
+    }
+
+    /**
+     * 把未刷的点增量叠加到 Song 上 (需在 {@link #read} 内调用)
+     */
+    public void applyTo(Song song) {
+        if (!enabled || song == null || song.getId() == null) return;
+        for (GraphPartition p : partitions.values()) {
+            NodeDelta d = p.current.nodes.get(song.getId());
+            Batch inFlight = p.inFlight;
+            NodeDelta f = inFlight == null ? null : inFlight.nodes.get(song.getId());
+            if (d == null && f == null) continue;
+            if (d != null) applyTo(song, d);
+            if (f != null) applyTo(song, f);
+            return;
+        }
+    }
+
+    private void applyTo(Song song, NodeDelta d) {
+        song.setListenCount(add(song.getListenCount(), d.listen));
+        song.setFullPlayCount(add(song.getFullPlayCount(), d.fullPlay));
+        song.setSkipCount(add(song.getSkipCount(), d.skip));
+        song.setUserSelectCount(add(song.getUserSelectCount(), d.userSelect));
+        song.setRandomSelectCount(add(song.getRandomSelectCount(), d.randomSelect));
+        song.setOutJumpTotal(add(song.getOutJumpTotal(), d.outJump));
+        long at = d.listenedAt.get();
+        if (at > 0) {
+            LocalDateTime pendingAt = LocalDateTime.ofInstant(Instant.ofEpochMilli(at), ZoneId.systemDefault());
+            if (song.getListenedAt() == null || song.getListenedAt().isBefore(pendingAt)) {
+                song.setListenedAt(pendingAt);
+            }
+        }
+    }
+
+    /**
+     * 返回叠加了未刷增量的边属性副本 (需在 {@link #read} 内调用)
+     */
+    public Map<String, Object> applyToEdge(Map<String, Object> edgeProps, Long fromId, Long toId) {
+        if (!enabled || edgeProps == null || fromId == null || toId == null) return edgeProps;
+        EdgeKey key = new EdgeKey(fromId, toId);
+        for (GraphPartition p : partitions.values()) {
+            EdgeDelta d = p.current.edges.get(key);
+            Batch inFlight = p.inFlight;
+            EdgeDelta f = inFlight == null ? null : inFlight.edges.get(key);
+            if (d == null && f == null) continue;
+            Map<String, Object> merged = new HashMap<>(edgeProps);
+            for (EdgeDelta delta : new EdgeDelta[]{d, f}) {
+                if (delta == null) continue;
+                merged.put("jumpCount", add(merged.get("jumpCount"), delta.jump));
+                merged.put("userSelectCount", add(merged.get("userSelectCount"), delta.userSelect));
+                merged.put("randomSelectCount", add(merged.get("randomSelectCount"), delta.randomSelect));
+            }
+            return merged;
+        }
+        return edgeProps;
+    }
+
+    /**
+     * 遍历某图谱尚未刷盘的增量 (需在 {@link #read} 内调用)，供内存派生结构加载时补齐
+     * 同一个点 / 边可能在当前和在途里各出现一次，访问者需按增量累加
+     */
+    public void forEachPending(Long graphId, PendingNodeVisitor nodeVisitor, PendingEdgeVisitor edgeVisitor) {
+        if (!enabled) return;
+        GraphPartition p = partitions.get(graphId);
+        if (p == null) return;
+        Batch inFlight = p.inFlight;
+        for (Batch batch : inFlight == null ? List.of(p.current) : List.of(p.current, inFlight)) {
+            batch.nodes.forEach((nodeId, d) -> nodeVisitor.visit(nodeId, d.listen.sum(), d.fullPlay.sum(),
+                    d.skip.sum(), d.userSelect.sum(), d.randomSelect.sum(), d.listenedAt.get()));
+            batch.edges.forEach((key, d) -> edgeVisitor.visit(key.fromId(), key.toId(),
+                    d.jump.sum(), d.userSelect.sum(), d.randomSelect.sum()));
+        }
+    }
+
+    public interface PendingNodeVisitor {
+        void visit(long nodeId, long listen, long fullPlay, long skip, long userSelect, long randomSelect, long listenedAtMillis);
+    }
+
+    public interface PendingEdgeVisitor {
+        void visit(long fromId, long toId, long jump, long userSelect, long randomSelect);
+    }
+
+    private int add(Object base, LongAdder delta) {
+        int b = base instanceof Number ? ((Number) base).intValue() : 0;
+        return b + delta.intValue();
+    }
+
+    @Scheduled(fixedDelayString = "${songmap.counters.flush-interval-ms:1000}")
+    public void flush() {
+        if (!enabled || partitions.isEmpty()) return;
+        flushMutex.lock();
+        try {
+            for (Long graphId : new ArrayList<>(partitions.keySet())) {
+                flushPartition(graphId);
+            }
+        } finally {
+            flushMutex.unlock();
+        }
+    }
+
+    private void flushPartition(Long graphId) {
+        // 1. 在槽位内换表：当前增量整体变为在途，没有增量的图谱直接移除
+        Batch[] taken = new Batch[1];
+        GraphPartition[] owner = new GraphPartition[1];
+        partitions.computeIfPresent(graphId, (k, p) -> {
+            if (p.current.isEmpty()) return null;
+            p.seq++;
+            flushSeq.incrementAndGet();
+            p.inFlight = p.current;
+            p.current = new Batch();
+            taken[0] = p.inFlight;
+            owner[0] = p;
+            return p;
+        });
+        Batch batch = taken[0];
+        if (batch == null) return;
+
+        // 2. 不持锁写库：点和边在同一个事务里，要么都落库要么都回滚
+        boolean written = write(graphId, owner[0].label, batch);
+
+        // 3. 提交后丢弃在途；失败则并回当前增量，下一轮重试。图谱已被删除时槽位不在了，什么都不做
+        boolean[] live = new boolean[1];
+        partitions.computeIfPresent(graphId, (k, p) -> {
+            if (p != owner[0]) return p;
+            if (!written) restore(p.current, batch);
+            p.inFlight = null;
+            p.seq++;
+            flushSeq.incrementAndGet();
+            live[0] = true;
+            return p;
+        });
+
+        // 【新增】计数此时才真正落库，展示数据 (listenCount、边的 value / 概率) 随之变化
+        if (written && live[0]) {
+            changeLog.countersFlushed(graphId, new ArrayList<>(batch.nodes.keySet()),
+                    batch.edges.keySet().stream().map(EdgeKey::fromId).distinct().toList());
+        }
+    }
+
+    /**
+     * @return 是否已提交
+     */
+    private boolean write(Long graphId, String label, Batch batch) {
+        // 亲和度增量由计数换算，一个刷盘周期内的衰减忽略不计，统一记在最近一次听歌的时间上
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> nodeRows = new ArrayList<>();
+        batch.nodes.forEach((nodeId, d) -> {
+            long at = d.listenedAt.get();
+            long listen = d.listen.sum();
+            // 只有 outJump 的条目 (只作为边的起点出现) 不写点，outJumpTotal 随边一起累加
+            if (at == 0 && listen == 0) return;
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", nodeId);
+            row.put("listenInc", listen);
+            row.put("fullPlayInc", d.fullPlay.sum());
+            row.put("skipInc", d.skip.sum());
+            row.put("userSelectInc", d.userSelect.sum());
+            row.put("randomSelectInc", d.randomSelect.sum());
+            row.put("listenedAt", at > 0 ? LocalDateTime.ofInstant(Instant.ofEpochMilli(at), ZoneId.systemDefault()) : null);
+            row.put("atMillis", at > 0 ? at : now);
+            row.put("affinityInc", affinityInc(0, d.userSelect.sum(), d.randomSelect.sum()));
+            nodeRows.add(row);
+        });
+
+        List<Map<String, Object>> edgeRows = new ArrayList<>();
+        batch.edges.forEach((key, d) -> {
+            long jump = d.jump.sum();
+            if (jump == 0) return;
+            long at = d.listenedAt.get();
+            Map<String, Object> row = new HashMap<>();
+            row.put("fromId", key.fromId());
+            row.put("toId", key.toId());
+            row.put("jumpInc", jump);
+            row.put("userSelectInc", d.userSelect.sum());
+            row.put("randomSelectInc", d.randomSelect.sum());
+            row.put("atMillis", at > 0 ? at : now);
+            row.put("affinityInc", affinityInc(jump, d.userSelect.sum(), d.randomSelect.sum()));
+            edgeRows.add(row);
+        });
+
+        if (nodeRows.isEmpty() && edgeRows.isEmpty()) return true;
+
+        String nodeCypher = String.format(
+            "UNWIND $rows AS d " +
+            "MATCH (n:`%1$s`) WHERE id(n) = d.id " +
+            "SET n.listenCount = coalesce(n.listenCount, 0) + d.listenInc, " +
+            "    n.fullPlayCount = coalesce(n.fullPlayCount, 0) + d.fullPlayInc, " +
+            "    n.skipCount = coalesce(n.skipCount, 0) + d.skipInc, " +
+            "    n.userSelectCount = coalesce(n.userSelectCount, 0) + d.userSelectInc, " +
+            "    n.randomSelectCount = coalesce(n.randomSelectCount, 0) + d.randomSelectInc, " +
+            "    n.listenedAt = CASE WHEN d.listenedAt IS NULL OR n.listenedAt > d.listenedAt " +
+            "                        THEN n.listenedAt ELSE d.listenedAt END, " +
+            "    %2$s",
+            label, ListenCypher.decayAffinity("n", "d.affinityInc", "d.atMillis")
+        );
+        try (Session session = driver.session()) {
+            session.executeWrite(tx -> {
+                if (!nodeRows.isEmpty()) {
+                    tx.run(nodeCypher, Map.of("rows", nodeRows)).consume();
+                }
+                if (!edgeRows.isEmpty()) {
+                    tx.run(ListenCypher.batchUpsertEdges(label), Map.of("edges", edgeRows)).consume();
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 事务回滚：点和边都没写进去，在途增量由调用方还回去
+            log.error("Failed to flush counters for graph {}: {}", graphId, e.getMessage());
+            return false;
+        }
+        log.debug("Flushed counters for graph {}: {} nodes, {} edges", graphId, nodeRows.size(), edgeRows.size());
+        return true;
+    }
+
+    private static void restore(Batch current, Batch failed) {
+        failed.nodes.forEach((id, d) -> current.nodes.merge(id, d, (live, back) -> {
+            live.add(back);
+            return live;
+        }));
+        failed.edges.forEach((key, d) -> current.edges.merge(key, d, (live, back) -> {
+            live.add(back);
+            return live;
+        }));
+    }
+
+    private double affinityInc(long jump, long userSelect, long randomSelect) {
+        return jump * RankWeights.W_JUMP + userSelect * RankWeights.W_USER_SELECT - randomSelect * RankWeights.W_RANDOM;
+    }
+
+    /**
+     * 图谱被删除时丢弃其未刷增量 (删除事务提交之后)
+     */
+    public void dropGraph(Long graphId) {
+        TransactionHooks.afterCommit(() -> partitions.remove(graphId));
+    }
+
+    /**
+     * 运行指标：有未刷增量的图谱数、因刷盘交错而重读的次数
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("graphs", partitions.size());
+        result.put("readRetries", readRetries.sum());
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 关闭前把剩余增量刷回去
+        flush();
+    }
+}
@@ -0,0 +1,118 @@
+package com.songmap.songmap.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 连续歌单生成：在推荐打分上做 beam search
+ * <p>
+ * 从起始歌曲出发模拟一段连续播放，每一步沿用 recommendNextSongs 的打分 (base * 方向 * 新鲜度)，
+ * 但约束作用在模拟出的路径上：路径里已经出现过的歌 (以及起始歌曲之前刚播放的那首) 不再选，
+ * 新鲜度按模拟时钟计算 (每一步往后推 stepMillis)。保留总分最高的 beamWidth 条路径，超出时间预算时返回当前最优。
+ * </p>
+ * <p>
+ * 纯算法，不访问数据库；邻居来源由调用方提供 (内存邻接表或预取的 k 跳子图)。
+ * </p>
+ */
+final class PlaylistBeamSearch {
+
+    private PlaylistBeamSearch() {
+    }
+
+    /**
+     * 邻居来源：遍历一首歌的全部候选 (正向 + 反向)
+     */
+    interface NeighborSource {
+        void forEachNeighbor(long songId, NeighborVisitor visitor);
+    }
+
+    interface NeighborVisitor {
+        /**
+         * @param base            与时间无关的基础分 ({@link SongScorer#baseScore})
+         * @param listenedAtMillis 候选上次播放时间，没有时为 {@link SongScorer#NO_TIME}
+         */
+        void visit(long songId, boolean incoming, double base, long listenedAtMillis);
+    }
+
+    /**
+     * 路径上的一步
+     */
+    record Step(long songId, double score, double base, double dir, double fresh) {
+        String reason() {
+            return SongScorer.reason(base, dir, fresh);
+        }
+    }
+
+    /**
+     * @param complete       是否生成了完整的 length 首
+     * @param budgetExceeded 是否因为超出时间预算提前结束
+     */
+    record Result(List<Step> steps, double totalScore, boolean complete, boolean budgetExceeded) {
+    }
+
+    // 路径以父指针链表示，扩展时不复制整条路径
+    private record State(long songId, State parent, int depth, double total, double score,
+                         double base, double dir, double fresh) {
+
+        boolean contains(long id) {
+            for (State s = this; s != null; s = s.parent) {
+                if (s.songId == id) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param previousId    起始歌曲之前刚播放的那首，同样不会出现在歌单里
+     * @param deadlineNanos System.nanoTime() 截止时间
+     */
+    static Result search(NeighborSource source, long startId, Long previousId, int length, int beamWidth,
+                         long nowMillis, long stepMillis, long deadlineNanos) {
+        long excludedId = previousId == null ? Long.MIN_VALUE : previousId;
+        List<State> beam = new ArrayList<>();
+        beam.add(new State(startId, null, 0, 0, 0, 0, 0, 0));
+        boolean budgetExceeded = false;
+
+        for (int step = 1; step <= length; step++) {
+            if (System.nanoTime() > deadlineNanos) {
+                budgetExceeded = true;
+                break;
+            }
+            long simulatedNow = nowMillis + step * stepMillis;
+            List<State> next = new ArrayList<>();
+
+            for (State state : beam) {
+                ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+                long[][] ids = {new long[16]};
+                source.forEachNeighbor(state.songId, (songId, incoming, base, listenedAt) -> {
+                    if (songId == excludedId || state.contains(songId)) return;
+                    int ref = candidates.size();
+                    if (ref == ids[0].length) ids[0] = Arrays.copyOf(ids[0], ref * 2);
+                    ids[0][ref] = songId;
+                    candidates.add(ref, base, SongScorer.dirFactor(incoming, false),
+                            SongScorer.freshness(listenedAt, simulatedNow));
+                });
+
+                // 每条路径只需展开自己最好的 beamWidth 个后继，更差的进不了下一轮
+                for (int i : candidates.top(beamWidth)) {
+                    next.add(new State(ids[0][candidates.ref(i)], state, state.depth + 1,
+                            state.total + candidates.score(i), candidates.score(i),
+                            candidates.base(i), candidates.dir(i), candidates.fresh(i)));
+                }
+            }
+
+            if (next.isEmpty()) break; // 所有路径都走进了死胡同
+            next.sort(Comparator.comparingDouble(State::total).reversed());
+            beam = next.size() > beamWidth ? new ArrayList<>(next.subList(0, beamWidth)) : next;
+        }
+
+        State top = beam.get(0);
+        Step[] steps = new Step[top.depth];
+        for (State s = top; s.parent != null; s = s.parent) {
+            steps[s.depth - 1] = new Step(s.songId, s.score, s.base, s.dir, s.fresh);
+        }
+        return new Result(List.of(steps), top.total, steps.length == length, budgetExceeded);
+    }
+}
@@ -14,4 +14,9 @@ public class RankWeights {
     // 冷却系数 (牛顿冷却定律)
     // 假设 0.01，意味着大约 60-100 分钟后新鲜度恢复得差不多
     public static final double COOLING_LAMBDA = 0.01; 
+
+    // 亲和度半衰期：30 天前的一次互动只剩一半分量
+    // 改动后库里已有的 affinity 会按新速率继续衰减，不需要迁移
+    public static final long AFFINITY_HALF_LIFE_MS = 30L * 24 * 3600 * 1000;
+    public static final double AFFINITY_TAU_MS = AFFINITY_HALF_LIFE_MS / Math.log(2);
 }
\ No newline at end of file
@@ -0,0 +1,344 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.repository.GraphInfoRepository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 推荐列表的 Redis 物化缓存
+ * <p>
+ * 每个 (图谱, 歌曲) 一个 ZSET，保存与时间无关的分数 base * dir 最高的 N 个邻居，
+ * 成员编码为 "邻居id:O" (正向) / "邻居id:I" (反向)。新鲜度依赖当前时间，
+ * 所以不进缓存：读取时按图谱级 hash 里的 listenedAt 现算 COOLING_LAMBDA 衰减，回头路降权也在读取时做。
+ * </p>
+ * <p>
+ * 失效是精确的：一次听歌 X (上一首 P) 只会改动 X 的点计数和 P->X 的边计数，
+ * 受影响的只有 X 和 P 自己的列表，以及所有包含 X 的列表 (由 ref:X 反向集合记录)。
+ * </p>
+ * 缓存的是 Top-N 而不是全部邻居：读取时的新鲜度衰减只会在这 N 个里重新排序。
+ */
+@Slf4j
+@Service
+public class RecommendationCache {
+
+    private static final String EMPTY_MARKER = "~"; // 没有邻居的歌也要缓存，用占位成员表示
+    private static final String FIELD_SEP = "\u001F";
+
+    private final StringRedisTemplate redisTemplate;
+    private final GraphInfoRepository graphInfoRepository;
+
+    @Value("${songmap.recommend.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.recommend.cache.size:100}")
+    private int size;
+
+    @Value("${songmap.recommend.cache.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    // 已校验过的图谱归属 (图谱归属不会变，删除时移除)
+    private final Map<Long, Long> owners = new ConcurrentHashMap<>();
+    // 本进程内每个图谱的失效代数，计算期间发生失效的结果不写回
+    private final Map<Long, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * 缓存条目
+     *
+     * @param base       与时间无关的基础分
+     * @param listenedAt epoch millis，{@link SongScorer#NO_TIME} 表示没有
+     * @param counts     点计数 {listen, fullPlay, skip, userSelect, randomSelect}，命中时原样返回给前端
+     */
+    public record Entry(long songId, boolean incoming, double base, String name, String artist, long listenedAt,
+                        int[] counts) {
+    }
+
+    private static final int COUNT_FIELDS = 5;
+
+    public RecommendationCache(StringRedisTemplate redisTemplate, GraphInfoRepository graphInfoRepository) {
+        this.redisTemplate = redisTemplate;
+        this.graphInfoRepository = graphInfoRepository;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private String listKey(Long graphId, long songId) {
+        return "rec:graph:" + graphId + ":song:" + songId;
+    }
+
+    private String refKey(Long graphId, long songId) {
+        return "rec:graph:" + graphId + ":ref:" + songId;
+    }
+
+    private String metaKey(Long graphId) {
+        return "rec:graph:" + graphId + ":meta";
+    }
+
+    private String keysKey(Long graphId) {
+        return "rec:graph:" + graphId + ":keys";
+    }
+
+    private static final String GRAPHS_KEY = "rec:graphs";
+
+    public void checkOwner(Long userId, Long graphId) {
+        Long owner = owners.get(graphId);
+        if (owner == null) {
+            graphInfoRepository.findByIdAndUserId(graphId, userId)
+                    .orElseThrow(() -> new IllegalArgumentException("Graph not found or access denied"));
+            owners.put(graphId, userId);
+        } else if (!owner.equals(userId)) {
+            throw new IllegalArgumentException("Graph not found or access denied");
+        }
+    }
+
+    public long generation(Long graphId) {
+        return generations.computeIfAbsent(graphId, k -> new AtomicLong()).get();
+    }
+
+    /**
+     * 读缓存列表 (按 base * dir 降序)
+     *
+     * @return 未命中返回 null
+     */
+    public List<Entry> get(Long graphId, long songId) {
+        try {
+            Set<ZSetOperations.TypedTuple<String>> tuples =
+                    redisTemplate.opsForZSet().reverseRangeWithScores(listKey(graphId, songId), 0, size);
+            if (tuples == null || tuples.isEmpty()) {
+                misses.increment();
+                return null;
+            }
+
+            List<String> members = new ArrayList<>(tuples.size());
+            List<Double> scores = new ArrayList<>(tuples.size());
+            List<Object> ids = new ArrayList<>(tuples.size());
+            for (ZSetOperations.TypedTuple<String> t : tuples) {
+                if (EMPTY_MARKER.equals(t.getValue())) continue;
+                members.add(t.getValue());
+                scores.add(t.getScore());
+                ids.add(t.getValue().substring(0, t.getValue().length() - 2));
+            }
+            List<Object> metas = ids.isEmpty() ? List.of() : redisTemplate.opsForHash().multiGet(metaKey(graphId), ids);
+
+            List<Entry> entries = new ArrayList<>(members.size());
+            for (int i = 0; i < members.size(); i++) {
+                Object meta = metas.get(i);
+                if (meta == null) {
+                    // 元数据已过期，整条列表按未命中处理
+                    misses.increment();
+                    return null;
+                }
+                String member = members.get(i);
+                boolean incoming = member.endsWith(":I");
+                double dir = SongScorer.dirFactor(incoming, false);
+                String[] f = meta.toString().split(FIELD_SEP, -1);
+                if (f.length < 3 + COUNT_FIELDS) {
+                    // 听歌后只刷新了 listenedAt、计数待重算 (或旧格式)，同样按未命中处理
+                    misses.increment();
+                    return null;
+                }
+                int[] counts = new int[COUNT_FIELDS];
+                for (int j = 0; j < COUNT_FIELDS; j++) counts[j] = Integer.parseInt(f[3 + j]);
+                entries.add(new Entry(Long.parseLong((String) ids.get(i)), incoming, scores.get(i) / dir,
+                        f[1], f[2], Long.parseLong(f[0]), counts));
+            }
+            hits.increment();
+            return entries;
+        } catch (RuntimeException e) {
+            errors.increment();
+            log.warn("Recommendation cache read failed for graph {} song {}: {}", graphId, songId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 写入一首歌的 Top-N 列表
+     *
+     * @param generation 计算开始前取到的 {@link #generation}，期间发生过失效则放弃写入
+     */
+    public void put(Long graphId, long songId, long generation, List<Entry> entries) {
+        if (generation(graphId) != generation) return;
+        String listKey = listKey(graphId, songId);
+        String metaKey = metaKey(graphId);
+        String keysKey = keysKey(graphId);
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection c = (StringRedisConnection) connection;
+                c.del(listKey);
+                c.zAdd(listKey, -1, EMPTY_MARKER);
+                for (Entry e : entries) {
+                    double dir = SongScorer.dirFactor(e.incoming(), false);
+                    c.zAdd(listKey, e.base() * dir, e.songId() + (e.incoming() ? ":I" : ":O"));
+                    c.hSet(metaKey, String.valueOf(e.songId()), meta(e.listenedAt(), e.name(), e.artist(), e.counts()));
+                    String ref = refKey(graphId, e.songId());
+                    c.sAdd(ref, String.valueOf(songId));
+                    c.expire(ref, ttlSeconds);
+                    c.sAdd(keysKey, ref);
+                }
+                c.expire(listKey, ttlSeconds);
+                c.expire(metaKey, ttlSeconds);
+                c.sAdd(keysKey, listKey, metaKey);
+                c.expire(keysKey, ttlSeconds);
+                c.sAdd(GRAPHS_KEY, String.valueOf(graphId));
+                return null;
+            });
+            // 写入过程中发生了失效：删掉刚写的列表，宁缺毋错
+            if (generation(graphId) != generation) redisTemplate.delete(listKey);
+        } catch (RuntimeException e) {
+            errors.increment();
+            log.warn("Recommendation cache write failed for graph {} song {}: {}", graphId, songId, e.getMessage());
+        }
+    }
+
+    /**
+     * 元数据：listenedAt、歌名、歌手，后面跟 {@link #COUNT_FIELDS} 个点计数；counts 为 null 时不带计数
+     */
+    private String meta(long listenedAt, String name, String artist, int[] counts) {
+        StringBuilder sb = new StringBuilder().append(listenedAt)
+                .append(FIELD_SEP).append(name == null ? "" : name)
+                .append(FIELD_SEP).append(artist == null ? "" : artist);
+        if (counts != null) {
+            for (int c : counts) sb.append(FIELD_SEP).append(c);
+        }
+        return sb.toString();
+    }
+
+    // ================= 失效 =================
+
+    /**
+     * 听歌提交后：刷新 X 的 listenedAt，删除 X、P 的列表以及所有包含 X 的列表
+     */
+    @Order(10) // 排在邻接表更新之后，失效后重新计算读到的一定是新数据
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        if (!enabled) return;
+        Long graphId = event.graphId();
+        generations.computeIfAbsent(graphId, k -> new AtomicLong()).incrementAndGet();
+        try {
+            // X 的点计数变了：X、P 自己的列表和所有包含 X 的列表都要删；包含 P 的列表不受影响
+            Set<Long> listened = new HashSet<>();
+            Set<String> stale = new HashSet<>();
+            for (ListenAppliedEvent.Listen l : event.listens()) {
+                listened.add(l.songId());
+                stale.add(listKey(graphId, l.songId()));
+                if (l.prevId() != null) stale.add(listKey(graphId, l.prevId()));
+            }
+            List<Long> songIds = new ArrayList<>(listened);
+
+            // 1. 取出所有包含这些歌的列表
+            List<Object> refs = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection c = (StringRedisConnection) connection;
+                for (Long id : songIds) c.sMembers(refKey(graphId, id));
+                return null;
+            });
+            for (int i = 0; i < songIds.size(); i++) {
+                stale.add(refKey(graphId, songIds.get(i)));
+                if (refs.get(i) instanceof Set<?> owners) {
+                    for (Object owner : owners) stale.add(listKey(graphId, Long.parseLong(owner.toString())));
+                }
+            }
+
+            // 2. 删除过期列表，并刷新元数据里的 listenedAt / 歌手
+            String metaKey = metaKey(graphId);
+            long now = System.currentTimeMillis();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection c = (StringRedisConnection) connection;
+                c.del(stale.toArray(new String[0]));
+                for (ListenAppliedEvent.Listen l : event.listens()) {
+                    long at = l.listenedAt() == null ? now
+                            : l.listenedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    // X 的计数刚变过，这里不带计数，下次读到按未命中重算
+                    c.hSet(metaKey, String.valueOf(l.songId()), meta(at, l.name(), l.artist(), null));
+                }
+                return null;
+            });
+            invalidated.add(stale.size());
+        } catch (RuntimeException e) {
+            // Redis 不可用时宁可整体丢弃，也不能留下过期列表
+            errors.increment();
+            log.warn("Recommendation cache invalidation failed for graph {}: {}", graphId, e.getMessage());
+            dropGraph(graphId);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        if (event.graphId() == null) {
+            owners.clear();
+            generations.values().forEach(AtomicLong::incrementAndGet);
+            try {
+                Set<String> graphIds = redisTemplate.opsForSet().members(GRAPHS_KEY);
+                if (graphIds != null) graphIds.forEach(id -> dropGraph(Long.valueOf(id)));
+            } catch (RuntimeException e) {
+                errors.increment();
+                log.warn("Recommendation cache invalidation failed: {}", e.getMessage());
+            }
+        } else {
+            owners.remove(event.graphId());
+            dropGraph(event.graphId());
+        }
+    }
+
+    private void dropGraph(Long graphId) {
+        generations.computeIfAbsent(graphId, k -> new AtomicLong()).incrementAndGet();
+        try {
+            Set<String> keys = redisTemplate.opsForSet().members(keysKey(graphId));
+            List<String> toDelete = new ArrayList<>();
+            if (keys != null) toDelete.addAll(keys);
+            toDelete.add(keysKey(graphId));
+            toDelete.add(metaKey(graphId));
+            redisTemplate.delete(toDelete);
+            redisTemplate.opsForSet().remove(GRAPHS_KEY, String.valueOf(graphId));
+            invalidated.add(toDelete.size());
+        } catch (RuntimeException e) {
+            errors.increment();
+            log.warn("Failed to drop recommendation cache of graph {}: {}", graphId, e.getMessage());
+        }
+    }
+
+    /**
+     * 运行指标：命中 / 未命中次数与命中率、失效的 key 数、Redis 异常次数
+     */
+    public Map<String, Object> snapshot() {
+        long h = hits.sum(), m = misses.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("size", size);
+        result.put("hits", h);
+        result.put("misses", m);
+        result.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+        result.put("missRatio", h + m == 0 ? 0.0 : (double) m / (h + m));
+        result.put("invalidatedKeys", invalidated.sum());
+        result.put("errors", errors.sum());
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package com.songmap.songmap.service;
+
+import java.util.Arrays;
+
+/**
+ * 推荐候选的打分缓冲区 + Top-K 选择
+ * <p>
+ * 候选只记录 (ref, base, dir, fresh) 四个基本类型，不为每个邻居创建 DTO；
+ * 选择用大小为 K 的小顶堆，O(n log K)。同分时先出现的候选排前面，与稳定排序结果一致。
+ * 缓冲区按线程复用 ({@link #forCurrentThread})，打分循环本身不分配内存。
+ * </p>
+ */
+final class ScoredCandidates {
+
+    private static final ThreadLocal<ScoredCandidates> BUFFERS = ThreadLocal.withInitial(ScoredCandidates::new);
+
+    private int size;
+    private int[] refs = new int[64];
+    private double[] scores = new double[64];
+    private double[] bases = new double[64];
+    private double[] dirs = new double[64];
+    private double[] freshes = new double[64];
+
+    /**
+     * 取当前线程的缓冲区并清空
+     */
+    static ScoredCandidates forCurrentThread() {
+        ScoredCandidates c = BUFFERS.get();
+        c.size = 0;
+        return c;
+    }
+
+    /**
+     * @param ref 调用方自己的候选引用 (节点编号或列表下标)
+     */
+    void add(int ref, double base, double dir, double fresh) {
+        if (size == refs.length) {
+            int cap = size * 2;
+            refs = Arrays.copyOf(refs, cap);
+            scores = Arrays.copyOf(scores, cap);
+            bases = Arrays.copyOf(bases, cap);
+            dirs = Arrays.copyOf(dirs, cap);
+            freshes = Arrays.copyOf(freshes, cap);
+        }
+        refs[size] = ref;
+        bases[size] = base;
+        dirs[size] = dir;
+        freshes[size] = fresh;
+        scores[size] = base * dir * fresh;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int ref(int i) {
+        return refs[i];
+    }
+
+    double score(int i) {
+        return scores[i];
+    }
+
+    double base(int i) {
+        return bases[i];
+    }
+
+    double dir(int i) {
+        return dirs[i];
+    }
+
+    double fresh(int i) {
+        return freshes[i];
+    }
+
+    /**
+     * 方向系数为反向系数即反向邻居 (只在不含回头路降权的打分里成立)
+     */
+    boolean isIncoming(int i) {
+        return dirs[i] == RankWeights.DIR_BACKWARD;
+    }
+
+    String reason(int i) {
+        return SongScorer.reason(bases[i], dirs[i], freshes[i]);
+    }
+
+    /**
+     * @return 分数最高的 k 个候选下标，按分数降序
+     */
+    int[] top(int k) {
+        int n = Math.min(k, size);
+        if (n <= 0) return new int[0];
+
+        // 小顶堆：堆顶是当前入选的最差候选
+        int[] heap = new int[n];
+        int heapSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (heapSize < n) {
+                heap[heapSize] = i;
+                siftUp(heap, heapSize++);
+            } else if (better(i, heap[0])) {
+                heap[0] = i;
+                siftDown(heap, heapSize);
+            }
+        }
+
+        // 依次弹出堆顶 (最差的先出)，倒着放即为降序
+        int[] result = new int[n];
+        for (int out = n - 1; out >= 0; out--) {
+            result[out] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize);
+        }
+        return result;
+    }
+
+    // 分数高者更好；同分时下标小 (先出现) 者更好
+    private boolean better(int a, int b) {
+        if (scores[a] != scores[b]) return scores[a] > scores[b];
+        return a < b;
+    }
+
+    private void siftUp(int[] heap, int pos) {
+        int item = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!better(heap[parent], item)) break;
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = item;
+    }
+
+    private void siftDown(int[] heap, int heapSize) {
+        if (heapSize == 0) return;
+        int pos = 0;
+        int item = heap[0];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && better(heap[child], heap[right])) child = right;
+            if (!better(item, heap[child])) break;
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = item;
+    }
+}
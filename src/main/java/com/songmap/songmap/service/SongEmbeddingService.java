@@ -0,0 +1,522 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.entity.GraphInfo;
+import com.songmap.songmap.repository.GraphInfoRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 歌曲向量 + 近似最近邻，用于冷启动推荐
+ * <p>
+ * 刚听的新歌没有 NEXT 边时 recommendNextSongs 没有候选。这里定期为用到的图谱训练歌曲向量：
+ * 在 NEXT 边 (正向 / 反向，权重与 PPR 的转移一致) 和 "歌曲 - 歌手" 特征边上做随机游走，
+ * 用 skip-gram + 负采样 (DeepWalk) 学习，同一歌手的歌因此互相靠近，没有边的新歌也能靠歌手向量定位。
+ * </p>
+ * <p>
+ * 向量写入 HNSW 索引并落盘到 songmap.embedding.directory，启动时直接内存映射已有的索引文件。
+ * 索引只在被查询过、且图谱有变化 (或还没有索引) 时由定时任务重建，重建期间继续用旧索引。
+ * 图谱删除后索引和文件一并删除：Neo4j 会复用节点 id，留着会把别人的歌推荐给新建的同 id 图谱。
+ * </p>
+ */
+@Slf4j
+@Service
+public class SongEmbeddingService {
+
+    private static final String UNKNOWN_ARTIST = "Unknown";
+    private static final Pattern FILE_PATTERN = Pattern.compile("graph-(\\d+)\\.hnsw");
+
+    private final GraphAdjacencyCache adjacencyCache;
+    private final GraphInfoRepository graphInfoRepository;
+
+    @Value("${songmap.embedding.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.embedding.directory:data/embeddings}")
+    private String directory;
+
+    @Value("${songmap.embedding.dimensions:32}")
+    private int dimensions;
+
+    @Value("${songmap.embedding.walks-per-node:5}")
+    private int walksPerNode;
+
+    @Value("${songmap.embedding.walk-length:20}")
+    private int walkLength;
+
+    @Value("${songmap.embedding.window:4}")
+    private int window;
+
+    @Value("${songmap.embedding.negative:3}")
+    private int negative;
+
+    @Value("${songmap.embedding.learning-rate:0.025}")
+    private double learningRate;
+
+    @Value("${songmap.embedding.feature-prob:0.2}")
+    private double featureProb;
+
+    @Value("${songmap.embedding.train-budget-ms:30000}")
+    private long trainBudgetMs;
+
+    @Value("${songmap.embedding.max-nodes:200000}")
+    private int maxNodes;
+
+    @Value("${songmap.embedding.hnsw.m:16}")
+    private int hnswM;
+
+    @Value("${songmap.embedding.hnsw.ef-construction:100}")
+    private int efConstruction;
+
+    @Value("${songmap.embedding.hnsw.ef-search:64}")
+    private int efSearch;
+
+    private Path dir;
+
+    private final Map<Long, HnswIndex> indexes = new ConcurrentHashMap<>();
+    // 有听歌或修改、索引已过时的图谱
+    private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+    // 被查询过、等待 (重新) 构建的图谱：graphId -> userId
+    private final Map<Long, Long> wanted = new ConcurrentHashMap<>();
+
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder buildNanos = new LongAdder();
+    private final LongAdder budgetExceeded = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder coldStarts = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+
+    public SongEmbeddingService(GraphAdjacencyCache adjacencyCache, GraphInfoRepository graphInfoRepository) {
+        this.adjacencyCache = adjacencyCache;
+        this.graphInfoRepository = graphInfoRepository;
+    }
+
+    /**
+     * 映射磁盘上已有的索引，重启后不用等重新训练
+     * 图谱已删除 (或 id 已被新图谱复用) 的索引文件直接删掉
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) return;
+        dir = Paths.get(directory);
+        Map<Long, HnswIndex> found = new HashMap<>();
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "graph-*.hnsw")) {
+                for (Path file : files) {
+                    Matcher matcher = FILE_PATTERN.matcher(file.getFileName().toString());
+                    if (!matcher.matches()) continue;
+                    try {
+                        found.put(Long.parseLong(matcher.group(1)), HnswIndex.map(file));
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("Skipping unreadable embedding index {}: {}", file, e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Embedding directory {} unavailable: {}", dir, e.getMessage());
+        }
+        if (!found.isEmpty()) keepLiveGraphs(found);
+        log.info("Mapped {} embedding indexes from {}", indexes.size(), dir);
+    }
+
+    private void keepLiveGraphs(Map<Long, HnswIndex> found) {
+        Map<Long, GraphInfo> graphs = new HashMap<>();
+        try {
+            graphInfoRepository.findAllById(found.keySet()).forEach(g -> graphs.put(g.getId(), g));
+        } catch (RuntimeException e) {
+            // 无法确认归属时一个都不用，被查询到时重新构建并覆盖文件
+            log.warn("Cannot verify embedding indexes, ignoring {} files: {}", found.size(), e.getMessage());
+            return;
+        }
+        found.forEach((graphId, index) -> {
+            GraphInfo graph = graphs.get(graphId);
+            // 图谱比索引新：id 被复用了，索引属于已删除的旧图谱
+            boolean live = graph != null && (graph.getCreatedAt() == null
+                    || graph.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() <= index.builtAt());
+            if (live) {
+                indexes.put(graphId, index);
+            } else {
+                deleteFile(graphId);
+            }
+        });
+    }
+
+    /**
+     * 图谱被删除：提交后丢弃索引并删除文件
+     */
+    public void drop(Long graphId) {
+        if (!enabled) return;
+        TransactionHooks.afterCommit(() -> {
+            wanted.remove(graphId);
+            stale.remove(graphId);
+            indexes.remove(graphId);
+            deleteFile(graphId);
+        });
+    }
+
+    private Path file(Long graphId) {
+        return dir.resolve("graph-" + graphId + ".hnsw");
+    }
+
+    private void deleteFile(Long graphId) {
+        try {
+            if (Files.deleteIfExists(file(graphId))) log.info("Deleted embedding index of graph {}", graphId);
+        } catch (IOException e) {
+            log.warn("Failed to delete embedding index of graph {}: {}", graphId, e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 按向量相似度找与 songId 最接近的歌
+     * 歌曲不在索引里 (比上次构建更新) 时退回到其歌手的向量；都没有则返回空列表
+     *
+     * @param skip 为 true 的 id 不进结果
+     */
+    List<HnswIndex.Hit> similar(Long userId, Long graphId, long songId, String artist, int k, LongPredicate skip) {
+        if (!enabled) return List.of();
+        HnswIndex index = indexes.get(graphId);
+        if (index == null || stale.contains(graphId)) wanted.put(graphId, userId);
+        if (index == null) return List.of();
+
+        long start = System.nanoTime();
+        float[] query = index.vector(songId);
+        if (query == null && artist != null && !artist.isEmpty() && !UNKNOWN_ARTIST.equals(artist)) {
+            query = index.feature(artist);
+            if (query != null) coldStarts.increment();
+        }
+        if (query == null) return List.of();
+
+        List<HnswIndex.Hit> hits = index.search(query, k, Math.max(efSearch, k),
+                id -> id == songId || (skip != null && skip.test(id)));
+        queries.increment();
+        queryNanos.add(System.nanoTime() - start);
+        return hits;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        if (enabled) stale.add(event.graphId());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        if (!enabled) return;
+        if (event.graphId() == null) stale.addAll(indexes.keySet());
+        else stale.add(event.graphId());
+    }
+
+    // ================= 构建 =================
+
+    @Scheduled(fixedDelayString = "${songmap.embedding.refresh-interval-ms:60000}")
+    public void refresh() {
+        if (!enabled || wanted.isEmpty()) return;
+        for (Long graphId : new ArrayList<>(wanted.keySet())) {
+            Long userId = wanted.remove(graphId);
+            if (userId == null || (indexes.containsKey(graphId) && !stale.contains(graphId))) continue;
+            try {
+                rebuild(userId, graphId);
+            } catch (RuntimeException e) {
+                failures.increment();
+                log.warn("Failed to build embeddings for graph {}: {}", graphId, e.getMessage());
+            }
+        }
+    }
+
+    private void rebuild(Long userId, Long graphId) {
+        if (!adjacencyCache.isEnabled()) {
+            log.debug("Embeddings need songmap.adjacency.enabled=true, skipping graph {}", graphId);
+            return;
+        }
+        GraphAdjacency adjacency = adjacencyCache.get(userId, graphId);
+        // 先清标记再取快照，训练期间的新听歌会重新标记
+        stale.remove(graphId);
+        WalkGraph graph = adjacency.read(() -> WalkGraph.of(adjacency, featureProb));
+        if (graph.songs > maxNodes) {
+            log.warn("Graph {} has {} songs, over songmap.embedding.max-nodes, skipping embeddings", graphId, graph.songs);
+            return;
+        }
+
+        long start = System.nanoTime();
+        SplittableRandom random = new SplittableRandom(graphId ^ start);
+        float[] vectors = train(graph, random, start + trainBudgetMs * 1_000_000);
+
+        // 没有任何边也没有歌手的孤立点学不到东西，不进索引
+        List<Long> ids = new ArrayList<>();
+        List<float[]> rows = new ArrayList<>();
+        for (int i = 0; i < graph.songs; i++) {
+            if (graph.offsets[i] == graph.offsets[i + 1]) continue;
+            ids.add(graph.ids[i]);
+            rows.add(row(vectors, i));
+        }
+        Map<String, float[]> artists = new HashMap<>();
+        for (int j = 0; j < graph.artists.length; j++) {
+            artists.put(graph.artists[j], row(vectors, graph.songs + j));
+        }
+
+        HnswIndex built = HnswIndex.build(graphId, ids.stream().mapToLong(Long::longValue).toArray(),
+                rows.toArray(new float[0][]), artists, hnswM, efConstruction, random.nextLong());
+        // 训练期间图谱可能被删除，不能再把索引写回去
+        if (!graphInfoRepository.existsById(graphId)) {
+            log.info("Graph {} was deleted while building embeddings, discarding", graphId);
+            return;
+        }
+        HnswIndex index = built;
+        Path file = file(graphId);
+        try {
+            built.writeTo(file);
+            index = HnswIndex.map(file);
+        } catch (IOException e) {
+            log.warn("Failed to persist embedding index of graph {}, keeping it in memory: {}", graphId, e.getMessage());
+        }
+        indexes.put(graphId, index);
+
+        long elapsed = System.nanoTime() - start;
+        builds.increment();
+        buildNanos.add(elapsed);
+        log.info("Built embeddings for graph {}: {} songs, {} artists in {} ms",
+                graphId, ids.size(), artists.size(), elapsed / 1_000_000);
+    }
+
+    private float[] row(float[] vectors, int node) {
+        float[] v = new float[dimensions];
+        System.arraycopy(vectors, node * dimensions, v, 0, dimensions);
+        return v;
+    }
+
+    /**
+     * skip-gram + 负采样：游走序列中窗口内的两点互为上下文，学习率线性衰减，超出时间预算提前结束
+     */
+    private float[] train(WalkGraph graph, SplittableRandom random, long deadlineNanos) {
+        int vocab = graph.vocab, dim = dimensions;
+        float[] in = new float[vocab * dim];
+        float[] out = new float[vocab * dim];
+        for (int i = 0; i < in.length; i++) in[i] = (float) ((random.nextDouble() - 0.5) / dim);
+        float[] grad = new float[dim];
+        int[] walk = new int[walkLength];
+        int[] order = new int[graph.songs];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+
+        long totalSteps = Math.max(1, (long) walksPerNode * graph.songs * walkLength);
+        long step = 0;
+        for (int pass = 0; pass < walksPerNode; pass++) {
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            for (int startNode : order) {
+                int len = graph.walk(startNode, walk, random);
+                if (len < 2) continue;
+                float lr = (float) Math.max(learningRate * 1e-4, learningRate * (1 - (double) step / totalSteps));
+                for (int i = 0; i < len; i++) {
+                    int shrink = random.nextInt(window);
+                    for (int j = Math.max(0, i - window + shrink); j <= Math.min(len - 1, i + window - shrink); j++) {
+                        if (j != i) update(in, out, grad, walk[i], walk[j], vocab, lr, random);
+                    }
+                }
+                step += len;
+                if (System.nanoTime() > deadlineNanos) {
+                    budgetExceeded.increment();
+                    return in;
+                }
+            }
+        }
+        return in;
+    }
+
+    private void update(float[] in, float[] out, float[] grad, int center, int context, int vocab, float lr,
+                        SplittableRandom random) {
+        int dim = dimensions;
+        int c = center * dim;
+        Arrays.fill(grad, 0);
+        for (int s = 0; s <= negative; s++) {
+            int target = s == 0 ? context : random.nextInt(vocab);
+            if (s > 0 && target == context) continue;
+            int t = target * dim;
+            double dot = 0;
+            for (int d = 0; d < dim; d++) dot += in[c + d] * out[t + d];
+            double sigmoid = dot > 6 ? 1 : dot < -6 ? 0 : 1 / (1 + Math.exp(-dot));
+            float g = (float) (((s == 0 ? 1 : 0) - sigmoid) * lr);
+            for (int d = 0; d < dim; d++) {
+                grad[d] += g * out[t + d];
+                out[t + d] += g * in[c + d];
+            }
+        }
+        for (int d = 0; d < dim; d++) in[c + d] += grad[d];
+    }
+
+    /**
+     * 游走用的加权图：前 songs 个点是歌曲，其后是歌手特征点
+     * 歌曲 -> 歌曲 按 NEXT 转移权重，歌曲 -> 歌手 占 featureProb (没有 NEXT 边时为 1)，歌手 -> 歌曲 均匀
+     */
+    private static final class WalkGraph {
+        final int songs;
+        final int vocab;
+        final long[] ids;
+        final String[] artists;
+        final int[] offsets;
+        final int[] targets;
+        final float[] cumulative;
+
+        private WalkGraph(int songs, long[] ids, String[] artists, int[] offsets, int[] targets, float[] cumulative) {
+            this.songs = songs;
+            this.vocab = songs + artists.length;
+            this.ids = ids;
+            this.artists = artists;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.cumulative = cumulative;
+        }
+
+        /**
+         * 需在 adjacency.read 内调用
+         */
+        static WalkGraph of(GraphAdjacency adjacency, double featureProb) {
+            int n = adjacency.nodeCount();
+            long[] ids = new long[n];
+            int[] artistOf = new int[n];
+            Map<String, Integer> artistIndex = new LinkedHashMap<>();
+            for (int i = 0; i < n; i++) {
+                ids[i] = adjacency.nodeId(i);
+                String a = adjacency.artist(i);
+                artistOf[i] = a == null || a.isEmpty() || UNKNOWN_ARTIST.equals(a)
+                        ? -1 : artistIndex.computeIfAbsent(a, k -> artistIndex.size());
+            }
+            int a = artistIndex.size();
+            int vocab = n + a;
+
+            // 1. 行大小：歌曲 = 双向 NEXT 边数 + 歌手边；歌手 = 旗下歌曲数
+            int[] offsets = new int[vocab + 1];
+            double[] edgeTotal = new double[n];
+            adjacency.forEachEdge((from, to, jump, userSelect, randomSelect) -> {
+                if (from == to) return;
+                offsets[from + 1]++;
+                offsets[to + 1]++;
+                double base = SongScorer.baseScore(userSelect, jump, randomSelect,
+                        adjacency.userSelectCount(to), adjacency.randomSelectCount(to));
+                edgeTotal[from] += base * RankWeights.DIR_FORWARD;
+                edgeTotal[to] += base * RankWeights.DIR_BACKWARD;
+            });
+            for (int i = 0; i < n; i++) {
+                if (artistOf[i] >= 0) {
+                    offsets[i + 1]++;
+                    offsets[n + artistOf[i] + 1]++;
+                }
+            }
+            for (int v = 0; v < vocab; v++) offsets[v + 1] += offsets[v];
+
+            // 2. 填目标和概率 (先存概率，最后每行转成累积分布)
+            int[] cursor = offsets.clone();
+            int[] targets = new int[offsets[vocab]];
+            float[] prob = new float[offsets[vocab]];
+            adjacency.forEachEdge((from, to, jump, userSelect, randomSelect) -> {
+                if (from == to) return;
+                double base = SongScorer.baseScore(userSelect, jump, randomSelect,
+                        adjacency.userSelectCount(to), adjacency.randomSelectCount(to));
+                double fromShare = artistOf[from] >= 0 ? 1 - featureProb : 1;
+                double toShare = artistOf[to] >= 0 ? 1 - featureProb : 1;
+                int k = cursor[from]++;
+                targets[k] = to;
+                prob[k] = edgeTotal[from] > 0 ? (float) (fromShare * base * RankWeights.DIR_FORWARD / edgeTotal[from]) : 0;
+                k = cursor[to]++;
+                targets[k] = from;
+                prob[k] = edgeTotal[to] > 0 ? (float) (toShare * base * RankWeights.DIR_BACKWARD / edgeTotal[to]) : 0;
+            });
+            for (int i = 0; i < n; i++) {
+                if (artistOf[i] < 0) continue;
+                int artistNode = n + artistOf[i];
+                int k = cursor[i]++;
+                targets[k] = artistNode;
+                prob[k] = (float) (edgeTotal[i] > 0 ? featureProb : 1);
+                k = cursor[artistNode]++;
+                targets[k] = i;
+                prob[k] = 1f / (offsets[artistNode + 1] - offsets[artistNode]);
+            }
+            for (int v = 0; v < vocab; v++) {
+                float sum = 0;
+                for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+                    sum += prob[k];
+                    prob[k] = sum;
+                }
+            }
+            return new WalkGraph(n, ids, artistIndex.keySet().toArray(new String[0]), offsets, targets, prob);
+        }
+
+        /**
+         * @return 实际游走长度 (遇到没有出边的点提前结束)
+         */
+        int walk(int start, int[] walk, SplittableRandom random) {
+            walk[0] = start;
+            int len = 1;
+            int cur = start;
+            while (len < walk.length) {
+                int lo = offsets[cur], hi = offsets[cur + 1];
+                if (lo == hi) break;
+                float r = (float) random.nextDouble() * cumulative[hi - 1];
+                int pos = Arrays.binarySearch(cumulative, lo, hi, r);
+                int k = pos >= 0 ? pos : Math.min(hi - 1, -pos - 1);
+                cur = targets[k];
+                walk[len++] = cur;
+            }
+            return len;
+        }
+    }
+
+    /**
+     * 运行指标：索引数量 / 大小、构建耗时、查询次数和耗时、冷启动查询次数
+     */
+    public Map<String, Object> snapshot() {
+        long indexed = 0, bytes = 0;
+        for (HnswIndex index : indexes.values()) {
+            indexed += index.size();
+            bytes += index.byteSize();
+        }
+        long buildCount = builds.sum();
+        long queryCount = queries.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("indexes", indexes.size());
+        result.put("indexedSongs", indexed);
+        result.put("indexBytes", bytes);
+        result.put("staleGraphs", stale.size());
+        result.put("pendingBuilds", wanted.size());
+        result.put("builds", buildCount);
+        result.put("avgBuildMs", buildCount == 0 ? 0.0 : buildNanos.sum() / 1e6 / buildCount);
+        result.put("budgetExceeded", budgetExceeded.sum());
+        result.put("failures", failures.sum());
+        result.put("queries", queryCount);
+        result.put("coldStarts", coldStarts.sum());
+        result.put("avgQueryMicros", queryCount == 0 ? 0.0 : queryNanos.sum() / 1e3 / queryCount);
+        return result;
+    }
+}
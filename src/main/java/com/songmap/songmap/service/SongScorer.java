@@ -0,0 +1,83 @@
+package com.songmap.songmap.service;
+
+/**
+ * 推荐打分公式
+ * finalScore = base * dir * fresh
+ * <ul>
+ *   <li>base：边互动分 + 0.2 * 目标点互动分，下限 0.1</li>
+ *   <li>dir：正向 1.0，反向 0.5，回到上一首 0.1</li>
+ *   <li>fresh：1 - e^(-λ·分钟)，刚听过的歌暂时降权</li>
+ * </ul>
+ * 全部是基本类型运算，热路径上不产生对象
+ */
+final class SongScorer {
+
+    static final long NO_TIME = GraphAdjacency.NO_TIME;
+
+    private SongScorer() {
+    }
+
+    static double interaction(int userSelect, int jump, int randomSelect) {
+        return (userSelect * RankWeights.W_USER_SELECT)
+             + (jump * RankWeights.W_JUMP)
+             - (randomSelect * RankWeights.W_RANDOM);
+    }
+
+    static double baseScore(int edgeUserSelect, int edgeJump, int edgeRandomSelect,
+                            int nodeUserSelect, int nodeRandomSelect) {
+        double edgeScore = interaction(edgeUserSelect, edgeJump, edgeRandomSelect);
+        double nodeScore = interaction(nodeUserSelect, 0, nodeRandomSelect);
+        double base = edgeScore + (nodeScore * 0.2);
+        return base < 0.1 ? 0.1 : base;
+    }
+
+    static double dirFactor(boolean incoming, boolean isLastSong) {
+        if (isLastSong) return RankWeights.DIR_REPEAT;
+        return incoming ? RankWeights.DIR_BACKWARD : RankWeights.DIR_FORWARD;
+    }
+
+    /**
+     * @param listenedAtMillis 候选歌曲上次播放时间，NO_TIME 表示从未记录
+     */
+    static double freshness(long listenedAtMillis, long nowMillis) {
+        if (listenedAtMillis == NO_TIME) return 1.0;
+        long minutesDiff = (nowMillis - listenedAtMillis) / 60_000;
+        return 1.0 - Math.exp(-RankWeights.COOLING_LAMBDA * minutesDiff);
+    }
+
+    /**
+     * 一阶马尔可夫转移概率 P(to | from)：边的 jumpCount / 起点的 outJumpTotal
+     */
+    static double transitionProb(int edgeJump, int outJumpTotal) {
+        return outJumpTotal > 0 ? (double) edgeJump / outJumpTotal : 0.0;
+    }
+
+    /**
+     * 单次听歌给点 / 边带来的亲和度增量，与 interaction 同一套权重
+     */
+    static double affinityGain(boolean isRandom, boolean withEdge) {
+        return (withEdge ? RankWeights.W_JUMP : 0)
+             + (isRandom ? -RankWeights.W_RANDOM : RankWeights.W_USER_SELECT);
+    }
+
+    /**
+     * 把 atMillis 时刻的亲和度衰减到 nowMillis：value * e^(-(now - at) / τ)
+     * 所有点和边按同一速率衰减，因此候选之间的相对大小不随时间变化
+     */
+    static double decay(double value, long atMillis, long nowMillis) {
+        if (value == 0 || atMillis == NO_TIME) return value;
+        return value * Math.exp((atMillis - nowMillis) / RankWeights.AFFINITY_TAU_MS);
+    }
+
+    /**
+     * 按衰减后的亲和度算基础分：边亲和度 + 0.2 * 目标点亲和度，下限 0.1 (与 baseScore 同构)
+     */
+    static double affinityBase(double edgeAffinity, double nodeAffinity) {
+        double base = edgeAffinity + (nodeAffinity * 0.2);
+        return base < 0.1 ? 0.1 : base;
+    }
+
+    static String reason(double base, double dir, double fresh) {
+        return String.format("Base:%.1f * Dir:%.1f * Fresh:%.2f", base, dir, fresh);
+    }
+}
@@ -0,0 +1,233 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.ScoredSongDTO;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 推荐预计算：听歌后顺手算好 "新的当前歌曲" 的推荐
+ * <p>
+ * 客户端每次 /listen 之后紧接着就会 /recommend 刚听的那首。addSong 提交后把这次推荐丢到后台线程算，
+ * 结果放进该图谱唯一的短期槽位；随后的 /recommend 只要 (用户, 当前歌曲, 上一首) 对得上就直接返回，
+ * 还在算的话最多等 wait-ms。
+ * </p>
+ * <p>
+ * 槽位在该图谱再有听歌 (包括批量 / 导入)、图谱被修改或超过 ttl-ms 时作废；从未被取用就作废的计为浪费。
+ * </p>
+ */
+@Slf4j
+@Service
+public class SpeculativeRecommender {
+
+    @Value("${songmap.recommend.speculative.enabled:true}")
+    private boolean enabled;
+
+    @Value("${songmap.recommend.speculative.ttl-ms:10000}")
+    private long ttlMs;
+
+    @Value("${songmap.recommend.speculative.wait-ms:100}")
+    private long waitMs;
+
+    @Value("${songmap.recommend.speculative.threads:2}")
+    private int threads;
+
+    @Value("${songmap.recommend.speculative.queue-capacity:64}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    private final Map<Long, Slot> slots = new ConcurrentHashMap<>();
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder computeNanos = new LongAdder();
+    private final LongAdder computed = new LongAdder();
+
+    private static final class Slot {
+        final Long userId;
+        final long songId;
+        final Long lastSongId;
+        final int limit;
+        final long createdAt = System.currentTimeMillis();
+        final CompletableFuture<List<ScoredSongDTO>> result = new CompletableFuture<>();
+        volatile boolean served;
+
+        Slot(Long userId, long songId, Long lastSongId, int limit) {
+            this.userId = userId;
+            this.songId = songId;
+            this.lastSongId = lastSongId;
+            this.limit = limit;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger seq = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "speculative-recommend-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 为图谱开始一次预计算，替换掉原来的槽位
+     * 处于事务中时推迟到提交之后，保证算的时候听歌已经落库、各级缓存已经更新
+     *
+     * @param limit     预计算的条数，之后请求不超过它的都能命中
+     * @param recommend 实际的推荐计算 (不能再查槽位)
+     */
+    public void speculate(Long userId, Long graphId, long songId, Long lastSongId, int limit,
+                          Supplier<List<ScoredSongDTO>> recommend) {
+        if (!enabled) return;
+        TransactionHooks.afterCommit(() -> submit(userId, graphId, songId, lastSongId, limit, recommend));
+    }
+
+    private void submit(Long userId, Long graphId, long songId, Long lastSongId, int limit,
+                        Supplier<List<ScoredSongDTO>> recommend) {
+        Slot slot = new Slot(userId, songId, lastSongId, limit);
+        retire(slots.put(graphId, slot));
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    slot.result.complete(recommend.get());
+                    computed.increment();
+                    computeNanos.add(System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    slot.result.completeExceptionally(e);
+                    drop(graphId, slot);
+                    log.debug("Speculative recommend failed for graph {} song {}: {}", graphId, songId, e.getMessage());
+                }
+            });
+            started.increment();
+        } catch (RejectedExecutionException e) {
+            // 后台线程忙不过来就不预测了，/recommend 照常现算
+            slots.remove(graphId, slot);
+            rejected.increment();
+        }
+    }
+
+    /**
+     * 槽位对得上时返回预计算的结果 (前 limit 条)，否则返回 null 由调用方现算
+     */
+    public List<ScoredSongDTO> take(Long userId, Long graphId, long songId, Long lastSongId, int limit,
+                                    boolean explain) {
+        if (!enabled) return null;
+        Slot slot = slots.get(graphId);
+        if (slot == null || !slot.userId.equals(userId) || slot.songId != songId
+                || !Objects.equals(slot.lastSongId, lastSongId) || limit > slot.limit) {
+            misses.increment();
+            return null;
+        }
+        if (System.currentTimeMillis() - slot.createdAt > ttlMs) {
+            drop(graphId, slot);
+            misses.increment();
+            return null;
+        }
+
+        List<ScoredSongDTO> result;
+        try {
+            result = slot.result.get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // 超时或预计算失败
+            misses.increment();
+            return null;
+        }
+        slot.served = true;
+        hits.increment();
+
+        // 结果按分数降序且选择是全序的，前 limit 条即 Top-limit；复制一份避免调用方改到槽位里的数据
+        List<ScoredSongDTO> copy = new ArrayList<>(Math.min(limit, result.size()));
+        for (ScoredSongDTO dto : result.subList(0, Math.min(limit, result.size()))) {
+            ScoredSongDTO c = new ScoredSongDTO();
+            c.setSong(dto.getSong());
+            c.setScore(dto.getScore());
+            if (explain) c.setReason(dto.getReason());
+            copy.add(c);
+        }
+        return copy;
+    }
+
+    /**
+     * 该图谱又有听歌写入 (含批量、导入)，原来的预计算已经过时
+     * 本次 addSong 自己的事件先于新槽位的建立处理，不会把刚开始的预计算作废
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onListenApplied(ListenAppliedEvent event) {
+        retire(slots.remove(event.graphId()));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onGraphChanged(GraphChangedEvent event) {
+        if (event.graphId() == null) {
+            slots.keySet().forEach(graphId -> retire(slots.remove(graphId)));
+        } else {
+            retire(slots.remove(event.graphId()));
+        }
+    }
+
+    private void drop(Long graphId, Slot slot) {
+        if (slots.remove(graphId, slot)) retire(slot);
+    }
+
+    private void retire(Slot slot) {
+        if (slot != null && !slot.served) wasted.increment();
+    }
+
+    /**
+     * 运行指标：预计算次数、命中率、浪费的预计算、平均耗时
+     */
+    public Map<String, Object> snapshot() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long computedCount = computed.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("started", started.sum());
+        result.put("hits", hitCount);
+        result.put("misses", missCount);
+        result.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        result.put("wasted", wasted.sum());
+        result.put("rejected", rejected.sum());
+        result.put("failed", failed.sum());
+        result.put("avgComputeMs", computedCount == 0 ? 0.0 : computeNanos.sum() / 1e6 / computedCount);
+        result.put("pendingSlots", slots.size());
+        return result;
+    }
+}
@@ -0,0 +1,481 @@
+package com.songmap.songmap.service;
+
+import com.songmap.songmap.dto.CloneJobDTO;
+import com.songmap.songmap.entity.GraphInfo;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 模板图谱的后台克隆
+ * <p>
+ * 创建模板图谱时只保存 GraphInfo (status=INITIALIZING) 并返回任务号，事务提交后由这里的线程池复制 base_Song 模板：
+ * 1. 按 id 游标分批复制节点，每批一个事务，返回 旧 id -> 新 id，攒成按旧 id 升序的两个 long[]；
+ * 2. 按源节点分批读模板的 NEXT 边，二分查找换成新 id，再按 id 直接 UNWIND 批量建边。
+ * 全程按 id 定位，不再按 (name, artist) 逐条回查新节点。
+ * 完成后重算 outJumpTotal、写入统计、把图谱置为 READY 并重置变更日志 (复制期间读到的半成品缓存随之失效)；
+ * 失败置为 FAILED，已复制的节点保留在专属 Label 下，用户重试 ({@link #submit} 带 purge) 时先清掉再从头复制。
+ * </p>
+ * <p>
+ * 任务进度只在本实例内存中，结束后保留 job-retention-ms 供查询；重启后查不到的任务以 GraphInfo.status 为准。
+ * 执行中的任务在 GraphInfo 上记下 cloneJob 并每批刷新 cloneHeartbeat，排队中的由定时清扫代为刷新；
+ * 实例重启或宕机后没人刷新的 INITIALIZING 图谱超过 orphan-timeout-ms 由清扫置为 FAILED，不会永远卡住。
+ * 被清扫 (或被重试抢走) 的旧任务下次刷新心跳时发现 cloneJob 不是自己，自行停下。
+ * </p>
+ */
+@Slf4j
+@Service
+public class TemplateCloneService {
+
+    @Value("${songmap.template.clone.batch-size:2000}")
+    private int batchSize;
+
+    @Value("${songmap.template.clone.threads:2}")
+    private int threads;
+
+    @Value("${songmap.template.clone.queue-capacity:32}")
+    private int queueCapacity;
+
+    @Value("${songmap.template.clone.job-retention-ms:3600000}")
+    private long jobRetentionMs;
+
+    @Value("${songmap.template.clone.orphan-timeout-ms:300000}")
+    private long orphanTimeoutMs;
+
+    private final Driver driver;
+    private final GraphStatsService statsService;
+    private final GraphChangeLog changeLog;
+    private final ApplicationEventPublisher eventPublisher;
+
+    private ThreadPoolExecutor executor;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder nodesCopied = new LongAdder();
+    private final LongAdder linksCopied = new LongAdder();
+    private final LongAdder cloneMillis = new LongAdder();
+    private final LongAdder orphaned = new LongAdder();
+
+    private static final String PENDING = "PENDING", RUNNING = "RUNNING", DONE = "DONE",
+            FAILED = "FAILED", CANCELLED = "CANCELLED";
+
+    private static final class Job {
+        final String id = UUID.randomUUID().toString();
+        final Long userId;
+        final Long graphId;
+        final String label;
+        final boolean purge;
+        volatile String status = PENDING;
+        volatile long nodesTotal, nodesCopied, linksTotal, linksCopied;
+        volatile String error;
+        volatile long startedAt, finishedAt;
+        volatile boolean cancelled;
+        volatile boolean claimed;
+
+        Job(Long userId, Long graphId, String label, boolean purge) {
+            this.userId = userId;
+            this.graphId = graphId;
+            this.label = label;
+            this.purge = purge;
+        }
+
+        CloneJobDTO toDTO() {
+            return new CloneJobDTO(id, graphId, status, nodesTotal, nodesCopied, linksTotal, linksCopied,
+                    error, startedAt, finishedAt);
+        }
+    }
+
+    private static final class CancelledException extends RuntimeException {
+    }
+
+    public TemplateCloneService(Driver driver, GraphStatsService statsService, GraphChangeLog changeLog,
+                                ApplicationEventPublisher eventPublisher) {
+        this.driver = driver;
+        this.statsService = statsService;
+        this.changeLog = changeLog;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger seq = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "template-clone-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 登记克隆任务，事务提交后 (GraphInfo 已落库且为 INITIALIZING) 才真正开始
+     *
+     * @param purge 重试失败的克隆：先删掉上次复制了一半的节点
+     * @return 任务号
+     */
+    public String submit(Long userId, Long graphId, String label, boolean purge) {
+        purgeFinished();
+        Job job = new Job(userId, graphId, label, purge);
+        jobs.put(job.id, job);
+        submitted.increment();
+        TransactionHooks.afterCommit(() -> {
+            try {
+                executor.execute(() -> run(job));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                fail(job, "Clone queue is full");
+            }
+        });
+        return job.id;
+    }
+
+    /**
+     * 任务进度 (只能查自己的任务)
+     */
+    public CloneJobDTO getJob(Long userId, String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null || !job.userId.equals(userId)) {
+            throw new IllegalArgumentException("Job not found or access denied");
+        }
+        return job.toDTO();
+    }
+
+    /**
+     * 图谱被删除：停掉它还没结束的克隆任务 (在下一批之前停下)
+     */
+    public void cancel(Long graphId) {
+        for (Job job : jobs.values()) {
+            if (job.graphId.equals(graphId)) job.cancelled = true;
+        }
+    }
+
+    /**
+     * 清扫孤儿克隆：先替本实例排队 / 执行中的任务刷新心跳，再把心跳超时的 INITIALIZING 图谱置为 FAILED
+     * (启动后 initial-delay 先跑一次，之后定时跑；多实例时每个实例都替自己的任务续命)
+     */
+    @Scheduled(initialDelayString = "${songmap.template.clone.sweep-initial-delay-ms:10000}",
+            fixedDelayString = "${songmap.template.clone.sweep-interval-ms:60000}")
+    public void sweepOrphans() {
+        long now = System.currentTimeMillis();
+        List<Long> local = jobs.values().stream().filter(j -> j.finishedAt == 0).map(j -> j.graphId).toList();
+        try (Session session = driver.session()) {
+            List<Long> ids = session.executeWrite(tx -> {
+                if (!local.isEmpty()) {
+                    tx.run("MATCH (g:GraphInfo) WHERE id(g) IN $ids AND g.status = $initializing " +
+                           "SET g.cloneHeartbeat = $now",
+                            Map.of("ids", local, "initializing", GraphInfo.STATUS_INITIALIZING, "now", now)).consume();
+                }
+                return tx.run("MATCH (g:GraphInfo) WHERE g.status = $initializing " +
+                              "AND coalesce(g.cloneHeartbeat, 0) < $cutoff " +
+                              "AND (g.createdAt IS NULL OR g.createdAt < $createdBefore) " +
+                              "SET g.status = $failed " +
+                              "RETURN id(g) AS id",
+                        Map.of("initializing", GraphInfo.STATUS_INITIALIZING, "failed", GraphInfo.STATUS_FAILED,
+                                "cutoff", now - orphanTimeoutMs,
+                                "createdBefore", LocalDateTime.now().minus(orphanTimeoutMs, ChronoUnit.MILLIS)))
+                        .list(r -> r.get("id").asLong());
+            });
+            if (!ids.isEmpty()) {
+                orphaned.add(ids.size());
+                log.warn("Marked {} orphaned template clones as FAILED: {}", ids.size(), ids);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to sweep orphaned template clones: {}", e.getMessage());
+        }
+    }
+
+    private void purgeFinished() {
+        long cutoff = System.currentTimeMillis() - jobRetentionMs;
+        jobs.values().removeIf(job -> job.finishedAt > 0 && job.finishedAt < cutoff);
+    }
+
+    // ================= 克隆 =================
+
+    private void run(Job job) {
+        job.startedAt = System.currentTimeMillis();
+        job.status = RUNNING;
+        boolean invalidate = true;
+        try (Session session = driver.session()) {
+            claim(session, job);
+            if (job.purge) deleteCopied(session, job);
+            Record totals = session.executeRead(tx -> tx.run(
+                    "RETURN COUNT { (:base_Song) } AS nodes, " +
+                    "COUNT { (:base_Song)-[:NEXT]->(:base_Song) } AS links").single());
+            job.nodesTotal = totals.get("nodes").asLong();
+            job.linksTotal = totals.get("links").asLong();
+
+            IdMap ids = copyNodes(session, job);
+            copyLinks(session, job, ids);
+
+            // 复制出来的边 jumpCount 都重置过，按新边汇总每个节点的 outJumpTotal
+            heartbeat(session, job);
+            session.executeWrite(tx -> tx.run(ListenCypher.recomputeOutJumpTotals(job.label)).consume());
+            // 克隆出来的图谱统计直接由复制结果得出 (播放次数都已清零)
+            statsService.initialize(job.graphId, job.nodesCopied, job.linksCopied);
+            setStatus(session, job, GraphInfo.STATUS_READY);
+
+            job.status = DONE;
+            job.finishedAt = System.currentTimeMillis();
+            completed.increment();
+            cloneMillis.add(job.finishedAt - job.startedAt);
+            log.info("Cloned template into graph {} (label {}): {} songs, {} links in {} ms",
+                    job.graphId, job.label, job.nodesCopied, job.linksCopied, job.finishedAt - job.startedAt);
+        } catch (CancelledException e) {
+            invalidate = false;
+            job.status = CANCELLED;
+            job.finishedAt = System.currentTimeMillis();
+            cancelled.increment();
+            log.info("Template clone for graph {} cancelled after {} songs", job.graphId, job.nodesCopied);
+        } catch (Exception e) {
+            log.error("Template clone for graph {} failed: {}", job.graphId, e.getMessage(), e);
+            fail(job, e.getMessage());
+        }
+        if (invalidate) {
+            // 复制期间可能有人读到了半成品 (并被缓存)，版本号前进后全部重新加载
+            changeLog.reset(job.graphId);
+            eventPublisher.publishEvent(new GraphChangedEvent(job.graphId));
+        }
+    }
+
+    private void fail(Job job, String error) {
+        job.status = FAILED;
+        job.error = error;
+        job.finishedAt = System.currentTimeMillis();
+        failed.increment();
+        try (Session session = driver.session()) {
+            setStatus(session, job, GraphInfo.STATUS_FAILED);
+        } catch (Exception e) {
+            log.warn("Failed to mark graph {} as FAILED: {}", job.graphId, e.getMessage());
+        }
+    }
+
+    // 只改自己认领的、仍在 INITIALIZING 的图谱 (没认领就被拒的任务不看 cloneJob)，不覆盖清扫或新任务的结果
+    private static void setStatus(Session session, Job job, String status) {
+        session.executeWrite(tx -> tx.run(
+                "MATCH (g:GraphInfo) WHERE id(g) = $id AND g.status = $initializing " +
+                "AND (NOT $claimed OR g.cloneJob = $job) " +
+                "SET g.status = $status",
+                Map.of("id", job.graphId, "initializing", GraphInfo.STATUS_INITIALIZING,
+                        "claimed", job.claimed, "job", job.id, "status", status)).consume());
+    }
+
+    /**
+     * 认领图谱：记下 cloneJob 并刷新心跳；图谱已删除或不再是 INITIALIZING (被清扫置为 FAILED) 时不执行
+     */
+    private static void claim(Session session, Job job) {
+        long claimed = session.executeWrite(tx -> tx.run(
+                "MATCH (g:GraphInfo) WHERE id(g) = $id AND g.status = $initializing " +
+                "SET g.cloneJob = $job, g.cloneHeartbeat = $now " +
+                "RETURN count(g)",
+                Map.of("id", job.graphId, "initializing", GraphInfo.STATUS_INITIALIZING, "job", job.id,
+                        "now", System.currentTimeMillis())).single().get(0).asLong());
+        if (claimed == 0) throw new CancelledException();
+        job.claimed = true;
+    }
+
+    /**
+     * 每批之前：检查取消并刷新心跳；图谱已被清扫或被重试的新任务接手时停下
+     */
+    private static void heartbeat(Session session, Job job) {
+        checkCancelled(job);
+        long alive = session.executeWrite(tx -> tx.run(
+                "MATCH (g:GraphInfo) WHERE id(g) = $id AND g.status = $initializing AND g.cloneJob = $job " +
+                "SET g.cloneHeartbeat = $now " +
+                "RETURN count(g)",
+                Map.of("id", job.graphId, "initializing", GraphInfo.STATUS_INITIALIZING, "job", job.id,
+                        "now", System.currentTimeMillis())).single().get(0).asLong());
+        if (alive == 0) throw new CancelledException();
+    }
+
+    private static void checkCancelled(Job job) {
+        if (job.cancelled) throw new CancelledException();
+    }
+
+    /**
+     * 重试前：分批删掉上次复制了一半的节点 (连同边)
+     */
+    private void deleteCopied(Session session, Job job) {
+        String cypher = String.format(
+            "MATCH (n:`%s`) WITH n LIMIT $batch DETACH DELETE n RETURN count(*)", job.label);
+        long deleted;
+        do {
+            heartbeat(session, job);
+            deleted = session.executeWrite(tx -> tx.run(cypher, Map.of("batch", batchSize)).single().get(0).asLong());
+        } while (deleted > 0);
+    }
+
+    /**
+     * Step 1: 按 id 游标分批复制节点，每批一个事务
+     */
+    private IdMap copyNodes(Session session, Job job) {
+        String cypher = String.format(
+            "MATCH (source:base_Song) WHERE id(source) > $after " +
+            "WITH source ORDER BY id(source) LIMIT $batch " +
+            "CREATE (target:Song:`%s`) " +
+            "SET target = properties(source), " + // 复制所有属性
+            "    target.isTemplateCopy = true, " + // 标记一下来源
+            // 重新初始化统计数据，不继承模板的热度
+            "    target.listenCount = 0, " +
+            "    target.fullPlayCount = 0, " +
+            "    target.skipCount = 0, " +
+            "    target.userSelectCount = 0, " +
+            "    target.randomSelectCount = 0 " +
+            "RETURN id(source) AS oldId, id(target) AS newId",
+            job.label);
+
+        IdMap ids = new IdMap((int) Math.min(job.nodesTotal, Integer.MAX_VALUE - 8));
+        long after = -1;
+        while (true) {
+            heartbeat(session, job);
+            long cursor = after;
+            List<long[]> pairs = new ArrayList<>(session.executeWrite(tx -> tx.run(cypher, Map.of("after", cursor, "batch", batchSize))
+                    .list(r -> new long[]{r.get("oldId").asLong(), r.get("newId").asLong()})));
+            if (pairs.isEmpty()) break;
+            pairs.sort(Comparator.comparingLong(p -> p[0]));
+            for (long[] p : pairs) ids.add(p[0], p[1]);
+            after = pairs.get(pairs.size() - 1)[0];
+            job.nodesCopied += pairs.size();
+            nodesCopied.add(pairs.size());
+            if (pairs.size() < batchSize) break;
+        }
+        return ids;
+    }
+
+    /**
+     * Step 2: 按源节点分批读模板边，换成新 id 后 UNWIND 批量建边
+     */
+    private void copyLinks(Session session, Job job, IdMap ids) {
+        String read =
+            "UNWIND $ids AS oldId " +
+            "MATCH (a:base_Song) WHERE id(a) = oldId " +
+            "MATCH (a)-[r:NEXT]->(b:base_Song) " +
+            "RETURN oldId AS fromId, id(b) AS toId, properties(r) AS props";
+        String write = String.format(
+            "UNWIND $rows AS row " +
+            "MATCH (a) WHERE id(a) = row.from " +
+            "MATCH (b) WHERE id(b) = row.to " +
+            "MERGE (a)-[newR:NEXT]->(b) " +
+            "SET newR = row.props, " + // 复制边属性
+            "    newR.jumpCount = 1, " + // 重置权重
+            "    newR.userSelectCount = 0 " +
+            "SET newR.weight = %s " +
+            "RETURN count(newR)",
+            ListenCypher.edgeWeight("newR"));
+
+        List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+        for (int start = 0; start < ids.size; start += batchSize) {
+            heartbeat(session, job);
+            List<Long> sources = new ArrayList<>(Math.min(batchSize, ids.size - start));
+            for (int i = start; i < Math.min(start + batchSize, ids.size); i++) sources.add(ids.oldIds[i]);
+            List<Record> links = session.executeRead(tx -> tx.run(read, Map.of("ids", sources)).list());
+            for (Record r : links) {
+                long from = ids.get(r.get("fromId").asLong());
+                long to = ids.get(r.get("toId").asLong());
+                if (from < 0 || to < 0) continue; // 复制节点之后模板又加了歌，跳过
+                Map<String, Object> row = new HashMap<>(4);
+                row.put("from", from);
+                row.put("to", to);
+                row.put("props", r.get("props").asMap());
+                rows.add(row);
+                if (rows.size() == batchSize) writeLinks(session, job, write, rows);
+            }
+        }
+        if (!rows.isEmpty()) writeLinks(session, job, write, rows);
+    }
+
+    private void writeLinks(Session session, Job job, String cypher, List<Map<String, Object>> rows) {
+        checkCancelled(job);
+        List<Map<String, Object>> batch = List.copyOf(rows);
+        rows.clear();
+        long written = session.executeWrite(tx -> tx.run(cypher, Map.of("rows", batch)).single().get(0).asLong());
+        job.linksCopied += written;
+        linksCopied.add(written);
+    }
+
+    /**
+     * 旧 id -> 新 id，按旧 id 升序追加，二分查找
+     */
+    private static final class IdMap {
+        long[] oldIds;
+        long[] newIds;
+        int size;
+
+        IdMap(int capacity) {
+            capacity = Math.max(16, capacity);
+            oldIds = new long[capacity];
+            newIds = new long[capacity];
+        }
+
+        void add(long oldId, long newId) {
+            if (size == oldIds.length) {
+                oldIds = Arrays.copyOf(oldIds, size * 2);
+                newIds = Arrays.copyOf(newIds, size * 2);
+            }
+            oldIds[size] = oldId;
+            newIds[size] = newId;
+            size++;
+        }
+
+        long get(long oldId) {
+            int i = Arrays.binarySearch(oldIds, 0, size, oldId);
+            return i < 0 ? -1 : newIds[i];
+        }
+    }
+
+    /**
+     * 运行指标：任务数 (提交 / 完成 / 失败 / 取消 / 被拒 / 清扫为失败的孤儿)、进行中的任务、累计复制的点和边、平均耗时
+     */
+    public Map<String, Object> snapshot() {
+        long active = jobs.values().stream().filter(j -> j.finishedAt == 0).count();
+        long done = completed.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("submitted", submitted.sum());
+        result.put("completed", done);
+        result.put("failed", failed.sum());
+        result.put("cancelled", cancelled.sum());
+        result.put("rejected", rejected.sum());
+        result.put("orphaned", orphaned.sum());
+        result.put("active", active);
+        result.put("queued", executor.getQueue().size());
+        result.put("nodesCopied", nodesCopied.sum());
+        result.put("linksCopied", linksCopied.sum());
+        result.put("avgCloneMs", done == 0 ? 0 : cloneMillis.sum() / done);
+        result.put("batchSize", batchSize);
+        return result;
+    }
+}
@@ -0,0 +1,30 @@
+package com.songmap.songmap.service;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 事务钩子
+ * <p>
+ * 内存结构、Redis、后台任务这类不随 Neo4j 事务回滚的副作用，必须等数据真正提交 (对其他会话可见) 之后再做。
+ * 处于事务中时推迟到提交之后执行，回滚则丢弃；不在事务中 (后台线程、自动提交) 时立即执行。
+ * </p>
+ */
+final class TransactionHooks {
+
+    private TransactionHooks() {
+    }
+
+    static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
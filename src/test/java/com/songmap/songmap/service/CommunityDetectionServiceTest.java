@@ -0,0 +1,88 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CommunityDetectionServiceTest {
+
+    private static final long GRAPH = 1L;
+
+    private CommunityDetectionService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new CommunityDetectionService(null, null, null, null, null);
+        ReflectionTestUtils.setField(service, "maxIterations", 20);
+        ReflectionTestUtils.setField(service, "minChangeRatio", 0.0);
+        ReflectionTestUtils.setField(service, "parallelism", 2);
+        service.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void twoDisjointCliquesBecomeTwoCommunities() {
+        // 0..5 是 6 个点的团，6..9 是 4 个点的团，两团之间没有边
+        CommunityDetectionService.UndirectedGraph g = cliques(6, 4);
+
+        CommunityDetectionService.Assignment assignment = partition(g, null);
+        assertEquals(2, assignment.count());
+        // 冷启动按社区大小编号：大团是 0，小团是 1
+        for (int v = 0; v < 6; v++) assertEquals(0, assignment.communities()[v]);
+        for (int v = 6; v < 10; v++) assertEquals(1, assignment.communities()[v]);
+        assertEquals(1, assignment.of(107L));
+        assertEquals(CommunityDetectionService.NO_COMMUNITY, assignment.of(999L));
+    }
+
+    @Test
+    void warmStartKeepsCommunityIds() {
+        CommunityDetectionService.UndirectedGraph g = cliques(6, 4);
+        CommunityDetectionService.Assignment first = partition(g, null);
+        // 假设上一次划分把编号反过来了：热启动后沿用上一次的编号，而不是按大小重排
+        int[] swapped = first.communities().clone();
+        for (int v = 0; v < swapped.length; v++) swapped[v] = 1 - swapped[v];
+        CommunityDetectionService.Assignment previous =
+                new CommunityDetectionService.Assignment(first.ids(), swapped, first.count());
+
+        CommunityDetectionService.Assignment second = partition(g, previous);
+        assertArrayEquals(swapped, second.communities());
+        assertNotEquals(second.communities()[0], second.communities()[9]);
+    }
+
+    @Test
+    void sameGraphGivesSamePartition() {
+        CommunityDetectionService.UndirectedGraph g = cliques(5, 5);
+        assertArrayEquals(partition(g, null).communities(), partition(g, null).communities());
+    }
+
+    private CommunityDetectionService.Assignment partition(CommunityDetectionService.UndirectedGraph g,
+                                                           CommunityDetectionService.Assignment previous) {
+        return service.partition(GRAPH, g, previous, System.nanoTime() + 10_000_000_000L);
+    }
+
+    /**
+     * 两个互不相连的完全图，点 id 为 100 + 下标 (升序)
+     */
+    private static CommunityDetectionService.UndirectedGraph cliques(int a, int b) {
+        int n = a + b;
+        long[] ids = new long[n];
+        for (int v = 0; v < n; v++) ids[v] = 100 + v;
+        CommunityDetectionService.EdgeList edges = new CommunityDetectionService.EdgeList(n * n);
+        for (int u = 0; u < a; u++) {
+            for (int v = u + 1; v < a; v++) edges.add(u, v, 1.0);
+        }
+        for (int u = a; u < n; u++) {
+            for (int v = u + 1; v < n; v++) edges.add(u, v, 1.0);
+        }
+        return edges.toGraph(ids);
+    }
+}
@@ -0,0 +1,155 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GraphBinaryEncoderTest {
+
+    @Test
+    void writesAlignedColumnarFrames() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GraphBinaryEncoder encoder = new GraphBinaryEncoder(out);
+        encoder.node(10L, "晴天", "周杰伦", 24, 1);
+        encoder.node(20L, "夜曲", "周杰伦", 30, -1);
+        encoder.node(30L, "x", null, 70000, 2);
+        assertTrue(encoder.link(10L, 20L, 3, 0.75));
+        assertTrue(encoder.link(30L, 10L, 1, 1.0));
+        assertFalse(encoder.link(10L, 99L, 1, 1.0)); // 端点不存在，跳过
+        encoder.end(42L);
+
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[8];
+        buf.get(magic);
+        assertArrayEquals(new byte[]{'S', 'M', 'G', '1', 0, 0, 0, 0}, magic);
+
+        // 1. 字符串表：晴天、周杰伦、夜曲、x
+        assertFrame(buf, 1, 4);
+        int[] lengths = new int[4];
+        for (int i = 0; i < 4; i++) lengths[i] = buf.getInt();
+        skipPadding(buf);
+        List<String> strings = new ArrayList<>();
+        for (int length : lengths) {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        skipPadding(buf);
+        assertEquals(List.of("晴天", "周杰伦", "夜曲", "x"), strings);
+
+        // 2. 点：id / name / artist / symbolSize / category 各一列，每列补齐到 8 字节
+        assertFrame(buf, 2, 3);
+        assertEquals(10L, buf.getLong());
+        assertEquals(20L, buf.getLong());
+        assertEquals(30L, buf.getLong());
+        assertArrayEquals(new int[]{0, 2, 3}, ints(buf, 3));
+        assertArrayEquals(new int[]{1, 1, -1}, ints(buf, 3));
+        assertEquals(24, buf.getShort() & 0xFFFF);
+        assertEquals(30, buf.getShort() & 0xFFFF);
+        assertEquals(0xFFFF, buf.getShort() & 0xFFFF); // 超出 uint16 截断
+        skipPadding(buf);
+        assertArrayEquals(new int[]{1, -1, 2}, ints(buf, 3));
+
+        // 3. 边：端点是点编号
+        assertFrame(buf, 3, 2);
+        assertArrayEquals(new int[]{0, 2}, ints(buf, 2));
+        assertArrayEquals(new int[]{1, 0}, ints(buf, 2));
+        assertArrayEquals(new int[]{3, 1}, ints(buf, 2));
+        assertEquals(0.75f, buf.getFloat());
+        assertEquals(1.0f, buf.getFloat());
+        skipPadding(buf);
+
+        // 4. 结束帧
+        assertFrame(buf, 4, 0);
+        assertEquals(42L, buf.getLong());
+        assertEquals(3L, buf.getLong());
+        assertEquals(2L, buf.getLong());
+        assertFalse(buf.hasRemaining());
+        assertEquals(3, encoder.nodes());
+        assertEquals(2, encoder.links());
+    }
+
+    @Test
+    void splitsIntoBlocksAndDoesNotRepeatStrings() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GraphBinaryEncoder encoder = new GraphBinaryEncoder(out);
+        int n = GraphBinaryEncoder.BLOCK_ROWS + 5;
+        for (int i = 0; i < n; i++) encoder.node(i, "same", "same", 1, 0);
+        encoder.end(1L);
+
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(8);
+        List<int[]> frames = new ArrayList<>();
+        while (buf.hasRemaining()) {
+            assertEquals(0, buf.position() % 8, "frame must start 8-byte aligned");
+            int type = buf.get();
+            buf.position(buf.position() + 3);
+            int rows = buf.getInt();
+            frames.add(new int[]{type, rows});
+            buf.position(buf.position() + bodyBytes(type, rows, buf));
+        }
+        assertEquals(4, frames.size());
+        assertArrayEquals(new int[]{1, 1}, frames.get(0));
+        assertArrayEquals(new int[]{2, GraphBinaryEncoder.BLOCK_ROWS}, frames.get(1));
+        assertArrayEquals(new int[]{2, 5}, frames.get(2));
+        assertArrayEquals(new int[]{4, 0}, frames.get(3));
+    }
+
+    @Test
+    void rejectsOutOfOrderNodes() throws IOException {
+        GraphBinaryEncoder encoder = new GraphBinaryEncoder(new ByteArrayOutputStream());
+        encoder.node(5L, "a", "b", 1, 0);
+        assertThrows(IllegalStateException.class, () -> encoder.node(5L, "a", "b", 1, 0));
+        encoder.link(5L, 5L, 1, 1.0);
+        assertThrows(IllegalStateException.class, () -> encoder.node(6L, "a", "b", 1, 0));
+    }
+
+    private static void assertFrame(ByteBuffer buf, int type, int rows) {
+        assertEquals(0, buf.position() % 8, "frame must start 8-byte aligned");
+        assertEquals(type, buf.get());
+        assertEquals(0, buf.get());
+        assertEquals(0, buf.get());
+        assertEquals(0, buf.get());
+        assertEquals(rows, buf.getInt());
+    }
+
+    private static int[] ints(ByteBuffer buf, int n) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) values[i] = buf.getInt();
+        skipPadding(buf);
+        return values;
+    }
+
+    private static void skipPadding(ByteBuffer buf) {
+        while ((buf.position() & 7) != 0) assertEquals(0, buf.get());
+    }
+
+    private static int pad(long bytes) {
+        return (int) ((bytes + 7) & ~7L);
+    }
+
+    private static int bodyBytes(int type, int rows, ByteBuffer buf) {
+        return switch (type) {
+            case 1 -> {
+                int bytes = 0;
+                for (int i = 0; i < rows; i++) bytes += buf.getInt(buf.position() + 4 * i);
+                yield pad(4L * rows) + pad(bytes);
+            }
+            case 2 -> pad(8L * rows) + 3 * pad(4L * rows) + pad(2L * rows);
+            case 3 -> 4 * pad(4L * rows);
+            default -> 24;
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GraphChangeLogTest {
+
+    private static final long GRAPH = 1L;
+    private static final int CAPACITY = 40;
+
+    private GraphChangeLog changeLog;
+
+    @BeforeEach
+    void setUp() {
+        changeLog = new GraphChangeLog();
+        ReflectionTestUtils.setField(changeLog, "capacity", CAPACITY);
+        ReflectionTestUtils.setField(changeLog, "idleMs", 1_800_000L);
+    }
+
+    @Test
+    void collectsDeduplicatedChangesSinceVersion() {
+        long since = changeLog.version(GRAPH);
+        changeLog.onListenApplied(listens(listen(5L, 4L), listen(5L, 4L)));
+        changeLog.nodeRemoved(GRAPH, 7L, List.of(3L));
+
+        GraphChangeLog.Delta delta = changeLog.changesSince(GRAPH, since);
+        assertFalse(delta.reset());
+        assertEquals(changeLog.version(GRAPH), delta.version());
+        assertEquals(Set.of(5L), delta.nodes());
+        assertEquals(Set.of(4L, 3L), delta.linkSources());
+        assertEquals(Set.of(7L), delta.removedNodes());
+
+        // 当前版本之后没有变更
+        GraphChangeLog.Delta empty = changeLog.changesSince(GRAPH, delta.version());
+        assertFalse(empty.reset());
+        assertTrue(empty.nodes().isEmpty() && empty.linkSources().isEmpty() && empty.removedNodes().isEmpty());
+    }
+
+    @Test
+    void nodeChangedAfterRemovalIsNotReportedRemoved() {
+        long since = changeLog.version(GRAPH);
+        changeLog.nodeRemoved(GRAPH, 7L, List.of());
+        changeLog.onListenApplied(listens(listen(7L, null)));
+
+        GraphChangeLog.Delta delta = changeLog.changesSince(GRAPH, since);
+        assertEquals(Set.of(7L), delta.nodes());
+        assertTrue(delta.removedNodes().isEmpty());
+    }
+
+    @Test
+    void ringWrapsAroundAndMovesTheFloor() {
+        long start = changeLog.version(GRAPH);
+        List<Long> versions = new ArrayList<>();
+        // 每次删边占两个槽位，100 次远超容量，环形缓冲要绕好几圈
+        for (long i = 0; i < 100; i++) {
+            changeLog.linkRemoved(GRAPH, i, i + 1000);
+            versions.add(changeLog.version(GRAPH));
+        }
+
+        assertEquals((long) CAPACITY, changeLog.snapshot().get("slots"));
+        assertEquals((long) CAPACITY, changeLog.snapshot().get("entries"));
+
+        // 被挤掉的历史之前的版本只能全量
+        assertTrue(changeLog.changesSince(GRAPH, start).reset());
+        assertTrue(changeLog.changesSince(GRAPH, versions.get(50)).reset());
+
+        // 缓冲里还留着最后 20 次删边，取最后 9 次
+        GraphChangeLog.Delta delta = changeLog.changesSince(GRAPH, versions.get(90));
+        assertFalse(delta.reset());
+        assertEquals(9, delta.removedLinks().size());
+        for (int k = 0; k < 9; k++) {
+            long from = 91 + k;
+            assertEquals(from, delta.removedLinks().get(k)[0]);
+            assertEquals(from + 1000, delta.removedLinks().get(k)[1]);
+            assertTrue(delta.linkSources().contains(from));
+        }
+        assertEquals(9, delta.linkSources().size());
+    }
+
+    @Test
+    void bufferGrowsLazily() {
+        changeLog.version(GRAPH);
+        assertEquals(0L, changeLog.snapshot().get("slots"));
+        changeLog.linkRemoved(GRAPH, 1L, 2L);
+        assertEquals((long) GraphChangeLog.INITIAL_SLOTS, changeLog.snapshot().get("slots"));
+    }
+
+    @Test
+    void resetInvalidatesEarlierVersions() {
+        long before = changeLog.version(GRAPH);
+        changeLog.linkRemoved(GRAPH, 1L, 2L);
+        long beforeReset = changeLog.version(GRAPH);
+
+        changeLog.reset(GRAPH);
+        long after = changeLog.version(GRAPH);
+        assertTrue(after > beforeReset);
+        assertTrue(changeLog.changesSince(GRAPH, before).reset());
+        assertTrue(changeLog.changesSince(GRAPH, beforeReset).reset());
+
+        GraphChangeLog.Delta delta = changeLog.changesSince(GRAPH, after);
+        assertFalse(delta.reset());
+        assertTrue(delta.removedLinks().isEmpty());
+    }
+
+    @Test
+    void futureVersionForcesReset() {
+        long version = changeLog.version(GRAPH);
+        assertTrue(changeLog.changesSince(GRAPH, version + 5).reset());
+    }
+
+    @Test
+    void tooManyChangedNodesFallBackToReset() {
+        long since = changeLog.version(GRAPH);
+        List<Long> few = List.of(1L, 2L, 3L);
+        changeLog.nodesChanged(GRAPH, few);
+        GraphChangeLog.Delta delta = changeLog.changesSince(GRAPH, since);
+        assertFalse(delta.reset());
+        assertEquals(Set.copyOf(few), delta.nodes());
+
+        long beforeMany = changeLog.version(GRAPH);
+        List<Long> many = new ArrayList<>();
+        for (long i = 0; i <= CAPACITY / 2; i++) many.add(i);
+        changeLog.nodesChanged(GRAPH, many);
+        assertTrue(changeLog.changesSince(GRAPH, beforeMany).reset());
+    }
+
+    private static ListenAppliedEvent listens(ListenAppliedEvent.Listen... listens) {
+        return new ListenAppliedEvent(GRAPH, List.of(listens));
+    }
+
+    private static ListenAppliedEvent.Listen listen(long songId, Long prevId) {
+        return new ListenAppliedEvent.Listen(songId, "song" + songId, "artist", prevId,
+                false, false, false, null, false, false, 1);
+    }
+}
@@ -0,0 +1,125 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HnswIndexTest {
+
+    private static final int DIM = 16;
+
+    @Test
+    void recallAgainstBruteForce() {
+        int n = 2000, k = 10, queries = 50;
+        Random random = new Random(7);
+        long[] ids = new long[n];
+        float[][] vectors = new float[n][];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 1000 + i;
+            vectors[i] = randomVector(random);
+        }
+        HnswIndex index = HnswIndex.build(1L, ids, vectors, Map.of(), 16, 100, 42);
+        assertEquals(n, index.size());
+
+        int found = 0;
+        for (int q = 0; q < queries; q++) {
+            float[] query = randomVector(random);
+            Set<Long> exact = new HashSet<>();
+            IntStream.range(0, n).boxed()
+                    .sorted(Comparator.comparingDouble((Integer i) -> -cosine(query, vectors[i])))
+                    .limit(k)
+                    .forEach(i -> exact.add(ids[i]));
+
+            List<HnswIndex.Hit> hits = index.search(query, k, 100, null);
+            assertEquals(k, hits.size());
+            for (int i = 1; i < hits.size(); i++) {
+                assertTrue(hits.get(i - 1).similarity() >= hits.get(i).similarity(), "hits must be sorted");
+            }
+            for (HnswIndex.Hit hit : hits) {
+                if (exact.contains(hit.id())) found++;
+            }
+        }
+        double recall = (double) found / (queries * k);
+        assertTrue(recall >= 0.9, "recall@10 = " + recall);
+    }
+
+    @Test
+    void skippedIdsAreNotReturned() {
+        Random random = new Random(3);
+        long[] ids = new long[200];
+        float[][] vectors = new float[200][];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+            vectors[i] = randomVector(random);
+        }
+        HnswIndex index = HnswIndex.build(1L, ids, vectors, Map.of(), 8, 50, 1);
+
+        // 用点本身查询，跳过它之后不应再出现
+        List<HnswIndex.Hit> hits = index.search(vectors[17], 5, 50, id -> id == 17);
+        assertEquals(5, hits.size());
+        assertFalse(hits.stream().anyMatch(h -> h.id() == 17));
+        assertEquals(17, index.search(vectors[17], 1, 50, null).get(0).id());
+    }
+
+    @Test
+    void writeThenMapRoundTrip(@TempDir Path dir) throws IOException {
+        Random random = new Random(11);
+        long[] ids = new long[300];
+        float[][] vectors = new float[300][];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 5000 + i * 3L;
+            vectors[i] = randomVector(random);
+        }
+        float[] artist = randomVector(random);
+        HnswIndex built = HnswIndex.build(99L, ids, vectors, Map.of("artist:周杰伦", artist), 12, 64, 5);
+
+        Path file = dir.resolve("graph-99.hnsw");
+        built.writeTo(file);
+        assertFalse(Files.exists(dir.resolve("graph-99.hnsw.tmp")));
+        assertEquals(built.byteSize(), Files.size(file));
+
+        HnswIndex mapped = HnswIndex.map(file);
+        assertEquals(built.size(), mapped.size());
+        assertEquals(99L, mapped.graphId());
+        assertEquals(built.builtAt(), mapped.builtAt());
+        assertArrayEquals(built.vector(ids[42]), mapped.vector(ids[42]));
+        assertNull(mapped.vector(1L));
+        assertArrayEquals(built.feature("artist:周杰伦"), mapped.feature("artist:周杰伦"));
+        assertNull(mapped.feature("artist:nobody"));
+
+        float[] query = randomVector(random);
+        assertEquals(built.search(query, 10, 64, null), mapped.search(query, 10, 64, null));
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] v = new float[DIM];
+        for (int d = 0; d < DIM; d++) v[d] = (float) random.nextGaussian();
+        return v;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, na = 0, nb = 0;
+        for (int d = 0; d < a.length; d++) {
+            dot += a[d] * b[d];
+            na += a[d] * a[d];
+            nb += b[d] * b[d];
+        }
+        return dot / Math.sqrt(na * nb);
+    }
+}
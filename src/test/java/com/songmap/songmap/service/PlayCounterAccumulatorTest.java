@@ -0,0 +1,216 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.TransactionCallback;
+import org.neo4j.driver.TransactionContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PlayCounterAccumulatorTest {
+
+    private static final long GRAPH = 1L;
+    private static final String LABEL = "G_test";
+
+    private PlayCounterAccumulator accumulator;
+    // 每个提交成功的 executeWrite 事务写入的行 (nodes / edges)，失败 (回滚) 的事务不计
+    private final List<Map<String, List<Map<String, Object>>>> committed = new ArrayList<>();
+    private boolean failEdges;
+    // 在写库事务里 (提交前) 执行，模拟刷盘期间的并发读写
+    private Runnable duringWrite;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        Driver driver = mock(Driver.class);
+        Session session = mock(Session.class);
+        TransactionContext tx = mock(TransactionContext.class);
+        when(driver.session()).thenReturn(session);
+
+        Map<String, List<Map<String, Object>>> current = new HashMap<>();
+        when(tx.run(anyString(), anyMap())).thenAnswer(inv -> {
+            String query = inv.getArgument(0);
+            Map<String, Object> params = inv.getArgument(1);
+            if (query.startsWith("UNWIND $edges")) {
+                if (failEdges) throw new IllegalStateException("edge write failed");
+                current.put("edges", (List<Map<String, Object>>) params.get("edges"));
+            } else {
+                current.put("nodes", (List<Map<String, Object>>) params.get("rows"));
+            }
+            return mock(Result.class);
+        });
+        when(session.executeWrite(any())).thenAnswer(inv -> {
+            current.clear();
+            if (duringWrite != null) duringWrite.run();
+            Object result = ((TransactionCallback<?>) inv.getArgument(0)).execute(tx);
+            committed.add(new HashMap<>(current));
+            return result;
+        });
+
+        accumulator = new PlayCounterAccumulator(driver, mock(GraphChangeLog.class));
+        ReflectionTestUtils.setField(accumulator, "enabled", true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void flushWritesNodesAndEdgesInOneTransactionAndEvictsEntries() {
+        accumulator.recordListen(GRAPH, LABEL, 10L, null, false, true, false);
+        accumulator.recordListen(GRAPH, LABEL, 11L, 10L, false, false, true);
+        accumulator.recordListen(GRAPH, LABEL, 11L, 10L, true, false, false);
+
+        accumulator.flush();
+
+        assertEquals(1, committed.size());
+        Map<Long, Map<String, Object>> nodes = byId(committed.get(0).get("nodes"));
+        assertEquals(1L, nodes.get(10L).get("listenInc"));
+        assertEquals(1L, nodes.get(10L).get("fullPlayInc"));
+        assertEquals(2L, nodes.get(11L).get("listenInc"));
+        assertEquals(1L, nodes.get(11L).get("skipInc"));
+        assertEquals(1L, nodes.get(11L).get("randomSelectInc"));
+        List<Map<String, Object>> edges = committed.get(0).get("edges");
+        assertEquals(1, edges.size());
+        assertEquals(2L, edges.get(0).get("jumpInc"));
+
+        // 刷完之后没有残留条目，也不会再发空事务
+        assertTrue(pending().isEmpty());
+        accumulator.flush();
+        assertEquals(1, committed.size());
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(accumulator, "partitions")).isEmpty());
+    }
+
+    @Test
+    void failedEdgeWriteRollsBackAndRestoresWithoutDoubleCounting() {
+        accumulator.recordListen(GRAPH, LABEL, 10L, null, false, false, false);
+        accumulator.recordListen(GRAPH, LABEL, 11L, 10L, false, false, false);
+
+        failEdges = true;
+        accumulator.flush();
+        assertTrue(committed.isEmpty());
+        // 增量全部还回来了 (点 2 个 + 边 1 条)
+        assertEquals(List.of("node:10:1", "node:11:1", "edge:10->11:1"), pending());
+
+        failEdges = false;
+        accumulator.flush();
+        assertEquals(1, committed.size());
+        Map<Long, Map<String, Object>> nodes = byId(committed.get(0).get("nodes"));
+        assertEquals(1L, nodes.get(10L).get("listenInc"));
+        assertEquals(1L, nodes.get(11L).get("listenInc"));
+        assertEquals(1L, committed.get(0).get("edges").get(0).get("jumpInc"));
+        assertTrue(pending().isEmpty());
+    }
+
+    @Test
+    void recordsOnlyAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        accumulator.recordListen(GRAPH, LABEL, 10L, null, false, false, false);
+        assertTrue(pending().isEmpty());
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            sync.afterCommit();
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+        assertEquals(List.of("node:10:1"), pending());
+
+        // 回滚：不触发 afterCommit，什么都不记
+        TransactionSynchronizationManager.initSynchronization();
+        accumulator.recordListen(GRAPH, LABEL, 12L, null, false, false, false);
+        TransactionSynchronizationManager.clearSynchronization();
+        assertEquals(List.of("node:10:1"), pending());
+    }
+
+    @Test
+    void countersStayVisibleWhileWritingAndNewListensWaitForNextFlush() {
+        accumulator.recordListen(GRAPH, LABEL, 10L, null, false, false, false);
+        accumulator.recordListen(GRAPH, LABEL, 11L, 10L, false, false, false);
+
+        List<List<String>> seen = new ArrayList<>();
+        duringWrite = () -> {
+            // 写库期间不持锁：读能进来，看到的是在途增量 (不重不漏)，新的听歌也能记
+            seen.add(pending());
+            accumulator.recordListen(GRAPH, LABEL, 11L, null, false, false, false);
+        };
+        accumulator.flush();
+        duringWrite = null;
+
+        assertEquals(List.of(List.of("node:10:1", "node:11:1", "edge:10->11:1")), seen);
+        assertEquals(List.of("node:11:1"), pending());
+
+        accumulator.flush();
+        assertEquals(2, committed.size());
+        assertEquals(1L, byId(committed.get(1).get("nodes")).get(11L).get("listenInc"));
+        assertTrue(pending().isEmpty());
+    }
+
+    @Test
+    void failedWriteMergesBackWithListensRecordedMeanwhile() {
+        accumulator.recordListen(GRAPH, LABEL, 10L, null, false, false, false);
+
+        failEdges = true;
+        duringWrite = () -> accumulator.recordListen(GRAPH, LABEL, 11L, 10L, false, false, false);
+        accumulator.recordListen(GRAPH, LABEL, 11L, 10L, false, false, false);
+        accumulator.flush();
+        duringWrite = null;
+        failEdges = false;
+
+        assertTrue(committed.isEmpty());
+        assertEquals(List.of("node:10:1", "node:11:2", "edge:10->11:2"), pending());
+        accumulator.flush();
+        assertEquals(2L, committed.get(0).get("edges").get(0).get("jumpInc"));
+    }
+
+    @Test
+    void dropGraphWaitsForCommit() {
+        accumulator.recordListen(GRAPH, LABEL, 10L, null, false, false, false);
+
+        TransactionSynchronizationManager.initSynchronization();
+        accumulator.dropGraph(GRAPH);
+        assertEquals(List.of("node:10:1"), pending());
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            sync.afterCommit();
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+        assertTrue(pending().isEmpty());
+    }
+
+    private List<String> pending() {
+        // 与刷盘交错时读会重试，每次都要从头收集
+        return accumulator.read(GRAPH, () -> {
+            List<String> result = new ArrayList<>();
+            accumulator.forEachPending(GRAPH,
+                    (nodeId, listen, fullPlay, skip, userSelect, randomSelect, at) -> {
+                        if (listen > 0) result.add("node:" + nodeId + ":" + listen);
+                    },
+                    (from, to, jump, userSelect, randomSelect) -> result.add("edge:" + from + "->" + to + ":" + jump));
+            return result;
+        });
+    }
+
+    private static Map<Long, Map<String, Object>> byId(List<Map<String, Object>> rows) {
+        Map<Long, Map<String, Object>> result = new HashMap<>();
+        for (Map<String, Object> row : rows) result.put((Long) row.get("id"), row);
+        return result;
+    }
+}
@@ -0,0 +1,110 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaylistBeamSearchTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+    private static final long STEP = 210_000L;
+
+    @Test
+    void beamFindsBetterPathThanGreedy() {
+        // 1 -> 2 (5) -> 4 (1)   贪心选 2，总分 6
+        // 1 -> 3 (4) -> 5 (10)  beam 保留 3，总分 14
+        Graph g = new Graph()
+                .edge(1, 2, 5).edge(1, 3, 4)
+                .edge(2, 4, 1).edge(3, 5, 10);
+
+        PlaylistBeamSearch.Result greedy = search(g, 1, null, 2, 1);
+        assertEquals(List.of(2L, 4L), ids(greedy));
+
+        PlaylistBeamSearch.Result beam = search(g, 1, null, 2, 2);
+        assertEquals(List.of(3L, 5L), ids(beam));
+        assertEquals(14 * RankWeights.DIR_FORWARD, beam.totalScore(), 1e-9);
+        assertTrue(beam.complete());
+        assertFalse(beam.budgetExceeded());
+    }
+
+    @Test
+    void neverRepeatsPathOrPreviousSong() {
+        // 9 是起始歌曲之前刚播的，2 -> 1 会回到起点，都不能选
+        Graph g = new Graph()
+                .edge(1, 9, 100).edge(1, 2, 10)
+                .edge(2, 1, 100).edge(2, 9, 100).edge(2, 3, 1);
+
+        PlaylistBeamSearch.Result result = search(g, 1, 9L, 2, 3);
+        assertEquals(List.of(2L, 3L), ids(result));
+        assertEquals(10 * RankWeights.DIR_FORWARD, result.steps().get(0).score(), 1e-9);
+    }
+
+    @Test
+    void stopsAtDeadEnd() {
+        Graph g = new Graph().edge(1, 2, 1).edge(2, 3, 1);
+
+        PlaylistBeamSearch.Result result = search(g, 1, null, 5, 4);
+        assertEquals(List.of(2L, 3L), ids(result));
+        assertFalse(result.complete());
+        assertFalse(result.budgetExceeded());
+    }
+
+    @Test
+    void expiredBudgetReturnsWhatWasFound() {
+        Graph g = new Graph().edge(1, 2, 1);
+
+        PlaylistBeamSearch.Result result = PlaylistBeamSearch.search(g, 1, null, 3, 2,
+                NOW, STEP, System.nanoTime() - 1);
+        assertTrue(result.steps().isEmpty());
+        assertTrue(result.budgetExceeded());
+        assertFalse(result.complete());
+    }
+
+    @Test
+    void recentlyPlayedSongsAreCooledDown() {
+        // 3 的基础分更高，但刚播过；2 从未记录播放时间，新鲜度为 1
+        Graph g = new Graph().edge(1, 2, 5).edge(1, 3, 6, NOW);
+
+        PlaylistBeamSearch.Result result = search(g, 1, null, 1, 2);
+        assertEquals(List.of(2L), ids(result));
+        assertEquals(1.0, result.steps().get(0).fresh(), 1e-9);
+    }
+
+    private static PlaylistBeamSearch.Result search(Graph g, long start, Long previous, int length, int beamWidth) {
+        return PlaylistBeamSearch.search(g, start, previous, length, beamWidth,
+                NOW, STEP, System.nanoTime() + 10_000_000_000L);
+    }
+
+    private static List<Long> ids(PlaylistBeamSearch.Result result) {
+        return result.steps().stream().map(PlaylistBeamSearch.Step::songId).toList();
+    }
+
+    /**
+     * 只有正向边的内存邻接表
+     */
+    private static final class Graph implements PlaylistBeamSearch.NeighborSource {
+        private final Map<Long, Map<Long, double[]>> out = new HashMap<>();
+
+        Graph edge(long from, long to, double base) {
+            return edge(from, to, base, SongScorer.NO_TIME);
+        }
+
+        Graph edge(long from, long to, double base, long listenedAt) {
+            out.computeIfAbsent(from, k -> new LinkedHashMap<>()).put(to, new double[]{base, listenedAt});
+            return this;
+        }
+
+        @Override
+        public void forEachNeighbor(long songId, PlaylistBeamSearch.NeighborVisitor visitor) {
+            out.getOrDefault(songId, Map.of())
+                    .forEach((to, e) -> visitor.visit(to, false, e[0], (long) e[1]));
+        }
+    }
+}
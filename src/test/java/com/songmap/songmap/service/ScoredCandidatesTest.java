@@ -0,0 +1,80 @@
+package com.songmap.songmap.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ScoredCandidatesTest {
+
+    @Test
+    void topKIsSortedByScoreDescending() {
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        double[] bases = {3.0, 9.0, 1.0, 7.0, 5.0};
+        for (int i = 0; i < bases.length; i++) candidates.add(100 + i, bases[i], 1.0, 1.0);
+
+        int[] top = candidates.top(3);
+        assertArrayEquals(new int[]{1, 3, 4}, top);
+        assertEquals(101, candidates.ref(top[0]));
+        assertEquals(9.0, candidates.score(top[0]));
+    }
+
+    @Test
+    void scoreIsProductOfBaseDirectionAndFreshness() {
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        candidates.add(0, 10.0, 0.5, 1.0); // 5
+        candidates.add(1, 4.0, 1.0, 2.0);  // 8
+        candidates.add(2, 6.0, 1.0, 1.0);  // 6
+
+        assertArrayEquals(new int[]{1, 2, 0}, candidates.top(3));
+        assertEquals(5.0, candidates.score(0));
+    }
+
+    @Test
+    void tiesKeepInsertionOrder() {
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        candidates.add(0, 1.0, 1.0, 1.0);
+        candidates.add(1, 2.0, 1.0, 1.0);
+        candidates.add(2, 2.0, 1.0, 1.0);
+        candidates.add(3, 1.0, 1.0, 1.0);
+        candidates.add(4, 2.0, 1.0, 1.0);
+
+        assertArrayEquals(new int[]{1, 2, 4, 0}, candidates.top(4));
+    }
+
+    @Test
+    void kLargerThanSizeReturnsAllAndEmptyForNonPositiveK() {
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        candidates.add(0, 1.0, 1.0, 1.0);
+        candidates.add(1, 3.0, 1.0, 1.0);
+
+        assertArrayEquals(new int[]{1, 0}, candidates.top(10));
+        assertEquals(0, candidates.top(0).length);
+        assertEquals(0, ScoredCandidates.forCurrentThread().top(5).length);
+    }
+
+    @Test
+    void matchesStableSortOnRandomInput() {
+        Random random = new Random(42);
+        ScoredCandidates candidates = ScoredCandidates.forCurrentThread();
+        int n = 1000;
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) {
+            // 取整制造大量并列
+            scores[i] = random.nextInt(50);
+            candidates.add(i, scores[i], 1.0, 1.0);
+        }
+
+        int[] expected = IntStream.range(0, n).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> scores[i]).reversed())
+                .limit(37)
+                .mapToInt(Integer::intValue)
+                .toArray();
+        assertArrayEquals(expected, candidates.top(37), Arrays.toString(candidates.top(37)));
+    }
+}